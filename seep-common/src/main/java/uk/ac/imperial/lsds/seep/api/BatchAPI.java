@@ -0,0 +1,12 @@
+package uk.ac.imperial.lsds.seep.api;
+
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+
+public interface BatchAPI extends API {
+
+	/**
+	 * Sends the first size() rows of the batch downstream. The batch can be reused once this returns
+	 */
+	public void sendBatch(ColumnBatch batch);
+	
+}
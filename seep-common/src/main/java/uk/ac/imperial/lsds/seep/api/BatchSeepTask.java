@@ -0,0 +1,14 @@
+package uk.ac.imperial.lsds.seep.api;
+
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+
+/**
+ * Opt-in interface for tasks that process whole batches of tuples, as primitive column arrays, instead of
+ * one ITuple at a time. The engine calls processBatch for inputs that can produce batches natively and
+ * falls back to processData otherwise, so both must be implemented.
+ */
+public interface BatchSeepTask extends SeepTask {
+
+	public void processBatch(ColumnBatch batch, BatchAPI api);
+	
+}
@@ -0,0 +1,19 @@
+package uk.ac.imperial.lsds.seep.api;
+
+import uk.ac.imperial.lsds.seep.api.data.OTupleBuilder;
+
+public interface BuilderAPI extends API {
+
+	/**
+	 * Starts the next tuple to send, in the output buffer when possible, so that its fields are written without
+	 * boxing or copying them. Only one tuple can be built at a time, and it must be sent before sending others
+	 * @return the builder of the tuple, with the schema of the output
+	 */
+	public OTupleBuilder newTuple();
+	
+	/**
+	 * Sends the tuple started with newTuple, once all its fields are set
+	 */
+	public void send(OTupleBuilder tuple);
+	
+}
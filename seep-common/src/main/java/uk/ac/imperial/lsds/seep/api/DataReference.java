@@ -1,5 +1,6 @@
 package uk.ac.imperial.lsds.seep.api;
 
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec;
 import uk.ac.imperial.lsds.seep.infrastructure.ControlEndPoint;
 import uk.ac.imperial.lsds.seep.infrastructure.SeepEndPoint;
 import uk.ac.imperial.lsds.seep.util.Utils;
@@ -41,6 +42,10 @@ public final class DataReference {
 	 * The endPoint to whom one should contact to request the DR
 	 */
 	private final ControlEndPoint endPoint;
+	/**
+	 * Filter and projection the consumer of this DR applies while reading it, null if none
+	 */
+	private ScanSpec scanSpec;
 	
 	private DataReference(int uid, DataStore dataStore, ControlEndPoint endPoint, boolean managed, boolean partitioned, ServeMode serveMode) {
 		this.ownerId = uid;
@@ -71,6 +76,16 @@ public final class DataReference {
 		this.partitionId = -1;
 	}
 	
+	/**
+	 * @return a copy of this DR, that refers to the same data, for a consumer that reads it through the given spec
+	 */
+	public DataReference withScanSpec(ScanSpec scanSpec) {
+		DataReference dr = new DataReference(ownerId, dataStore, endPoint, managed, partitioned, serveMode);
+		dr.partitionId = partitionId;
+		dr.scanSpec = scanSpec;
+		return dr;
+	}
+	
     public static DataReference makeEmptyDataReference(ControlEndPoint endPoint) {
     	DataStore ds = new DataStore(DataStoreType.EMPTY);
         return new DataReference(ds, endPoint);
@@ -130,6 +145,10 @@ public final class DataReference {
 		return partitionId;
 	}
 	
+	public ScanSpec getScanSpec() {
+		return scanSpec;
+	}
+	
 	/**
 	 * Empty constructor for Kryo serialization
 	 */
@@ -4,7 +4,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.Type;
 import uk.ac.imperial.lsds.seep.api.operator.DownstreamConnection;
 import uk.ac.imperial.lsds.seep.api.operator.LogicalOperator;
 import uk.ac.imperial.lsds.seep.api.operator.Operator;
@@ -48,8 +50,32 @@ public class QueryBuilder implements QueryAPI {
 		if(qp.getSink() == null){
 			throw new InvalidQueryDefinitionException("The query must define a sink");
 		}
+		for(LogicalOperator o : qp.getAllOperators()) {
+			for(DownstreamConnection dc : o.downstreamConnections()) {
+				checkDictionariesStayLocal(o, dc);
+			}
+		}
 		return qp;
 	}
+	
+	/**
+	 * DICT_STRING fields hold codes of a dictionary of the process that encodes them, which another process cannot
+	 * decode. So their tuples cannot go through data stores that carry them, encoded, to other workers
+	 */
+	private static void checkDictionariesStayLocal(LogicalOperator o, DownstreamConnection dc) {
+		DataStoreType type = dc.getExpectedDataStoreTypeOfDownstream();
+		Schema schema = dc.getSchema();
+		if(schema == null || ! (type == DataStoreType.NETWORK || type == DataStoreType.IPC
+				|| type == DataStoreType.KAFKA || type == DataStoreType.HDFS)) {
+			return;
+		}
+		for(int i = 0; i < schema.fields().length; i++) {
+			if(schema.fields()[i] instanceof Type.DictString) {
+				throw new InvalidQueryDefinitionException("Field '" + schema.names()[i] + "' of the output of op "
+						+ o.getOperatorId() + " is DICT_STRING, which cannot be sent through a " + type + " data store");
+			}
+		}
+	}
 
 	@Override
 	public List<LogicalOperator> getQueryOperators() {
@@ -45,6 +45,9 @@ public class CSVParser implements SchemaParser {
 			else if(t.equals(Type.STRING)){
 				values[index] = parts[index];
 			}
+			else if(t instanceof Type.DictString){
+				values[index] = ((Type.DictString) t).dictionary().encode(parts[index]);
+			}
 			else if(t.equals(Type.FLOAT)){
 				values[index] = new Float(parts[index]);
 			}
@@ -80,7 +83,7 @@ public class CSVParser implements SchemaParser {
 			else if(t.equals(Type.LONG)){
 				returnValue += data.getLong(fields[index]);
 			}
-			else if(t.equals(Type.STRING)){
+			else if(t.equals(Type.STRING) || t instanceof Type.DictString){
 				returnValue += data.getString(fields[index]);
 			}
 			else if(t.equals(Type.FLOAT)){
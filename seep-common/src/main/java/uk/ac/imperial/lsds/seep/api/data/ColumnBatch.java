@@ -0,0 +1,334 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * A batch of tuples of a fixed-size schema, stored as one primitive array per field. Tasks read and write
+ * the arrays directly, so that loops over a column are plain array loops the JIT can unroll and vectorize.
+ * Batches are reused: producers clear them and fill them again for every call.
+ */
+public class ColumnBatch {
+
+	private static final byte BYTE = 0;
+	private static final byte SHORT = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte FLOAT = 4;
+	private static final byte DOUBLE = 5;
+
+	private final Schema schema;
+	private final int capacity;
+	private final byte[] kinds;
+	private final int[] fieldSizes;
+	private final Object[] columns;
+	private final int tupleSize;
+	private int size;
+	private int streamId;
+
+	public ColumnBatch(Schema schema, int capacity) {
+		if(! supports(schema)) {
+			throw new SchemaException("Column batches are only supported for fixed-size schemas of primitive types");
+		}
+		this.schema = schema;
+		this.capacity = capacity;
+		Type[] fields = schema.fields();
+		this.kinds = new byte[fields.length];
+		this.fieldSizes = new int[fields.length];
+		this.columns = new Object[fields.length];
+		for(int i = 0; i < fields.length; i++) {
+			kinds[i] = kindOf(fields[i]);
+			fieldSizes[i] = fields[i].sizeOf(null);
+			columns[i] = newColumn(kinds[i], capacity);
+		}
+		this.tupleSize = schema.sizeOfTuple();
+	}
+
+	/**
+	 * @return whether tuples of the given schema can be stored in a ColumnBatch
+	 */
+	public static boolean supports(Schema schema) {
+		if(schema == null || schema.isVariableSize() || schema.fields().length == 0) {
+			return false;
+		}
+		for(Type t : schema.fields()) {
+			if(kindOf(t) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte kindOf(Type t) {
+		if(t.equals(Type.BYTE)) return BYTE;
+		if(t.equals(Type.SHORT)) return SHORT;
+		// DICT_STRING columns hold the codes
+		if(t.equals(Type.INT) || t instanceof Type.DictString) return INT;
+		if(t.equals(Type.LONG)) return LONG;
+		if(t.equals(Type.FLOAT)) return FLOAT;
+		if(t.equals(Type.DOUBLE)) return DOUBLE;
+		return -1;
+	}
+
+	private static Object newColumn(byte kind, int capacity) {
+		switch(kind) {
+		case BYTE: return new byte[capacity];
+		case SHORT: return new short[capacity];
+		case INT: return new int[capacity];
+		case LONG: return new long[capacity];
+		case FLOAT: return new float[capacity];
+		default: return new double[capacity];
+		}
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sets the number of valid rows, for tasks that fill the columns of an output batch directly
+	 */
+	public void setSize(int size) {
+		if(size < 0 || size > capacity) {
+			throw new IllegalArgumentException("Size: " + size + " out of batch capacity: " + capacity);
+		}
+		this.size = size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public void setStreamId(int streamId) {
+		this.streamId = streamId;
+	}
+
+	public byte[] byteColumn(int idx) {
+		return (byte[]) columns[idx];
+	}
+
+	public short[] shortColumn(int idx) {
+		return (short[]) columns[idx];
+	}
+
+	public int[] intColumn(int idx) {
+		return (int[]) columns[idx];
+	}
+
+	public long[] longColumn(int idx) {
+		return (long[]) columns[idx];
+	}
+
+	public float[] floatColumn(int idx) {
+		return (float[]) columns[idx];
+	}
+
+	public double[] doubleColumn(int idx) {
+		return (double[]) columns[idx];
+	}
+
+	public byte[] byteColumn(String fieldName) {
+		return byteColumn(idxOf(fieldName, Type.BYTE));
+	}
+
+	public short[] shortColumn(String fieldName) {
+		return shortColumn(idxOf(fieldName, Type.SHORT));
+	}
+
+	public int[] intColumn(String fieldName) {
+		return intColumn(idxOf(fieldName, Type.INT));
+	}
+
+	public int[] codeColumn(String fieldName) {
+		return intColumn(idxOf(fieldName, Type.DICT_STRING));
+	}
+
+	public long[] longColumn(String fieldName) {
+		return longColumn(idxOf(fieldName, Type.LONG));
+	}
+
+	public float[] floatColumn(String fieldName) {
+		return floatColumn(idxOf(fieldName, Type.FLOAT));
+	}
+
+	public double[] doubleColumn(String fieldName) {
+		return doubleColumn(idxOf(fieldName, Type.DOUBLE));
+	}
+
+	private int idxOf(String fieldName, Type type) {
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(! schema.typeCheck(fieldName, type)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ type +"' with name '"+fieldName+"'");
+		}
+		return schema.getFieldPosition(fieldName);
+	}
+
+	/**
+	 * Appends a tuple in row format, with its values starting at the given position of bb. The batch
+	 * must not be full.
+	 */
+	public void appendRow(ByteBuffer bb, int position) {
+		int row = size;
+		for(int i = 0; i < kinds.length; i++) {
+			switch(kinds[i]) {
+			case BYTE:
+				((byte[])columns[i])[row] = bb.get(position);
+				break;
+			case SHORT:
+				((short[])columns[i])[row] = bb.getShort(position);
+				break;
+			case INT:
+				((int[])columns[i])[row] = bb.getInt(position);
+				break;
+			case LONG:
+				((long[])columns[i])[row] = bb.getLong(position);
+				break;
+			case FLOAT:
+				((float[])columns[i])[row] = bb.getFloat(position);
+				break;
+			case DOUBLE:
+				((double[])columns[i])[row] = bb.getDouble(position);
+				break;
+			}
+			position = position + fieldSizes[i];
+		}
+		size++;
+	}
+
+	/**
+	 * Appends a tuple serialized in row format, as created by OTuple
+	 */
+	public void appendRow(byte[] data) {
+		appendRow(ByteBuffer.wrap(data), 0);
+	}
+
+	/**
+	 * Appends up to n rows of a buffer with the layout read by ColumnarITuple, starting at fromRow,
+	 * copying each column in bulk.
+	 * @return the number of rows appended, limited by the room left in this batch
+	 */
+	public int appendColumns(ByteBuffer columnar, int fromRow, int n) {
+		n = Math.min(n, capacity - size);
+		int maxRows = columnar.getInt(ColumnarITuple.MAX_ROWS_OFFSET);
+		int columnStart = ColumnarITuple.HEADER_SIZE;
+		ByteBuffer src = columnar.duplicate();
+		src.limit(src.capacity());
+		for(int i = 0; i < kinds.length; i++) {
+			src.position(columnStart + fromRow * fieldSizes[i]);
+			switch(kinds[i]) {
+			case BYTE:
+				src.get((byte[])columns[i], size, n);
+				break;
+			case SHORT:
+				src.asShortBuffer().get((short[])columns[i], size, n);
+				break;
+			case INT:
+				src.asIntBuffer().get((int[])columns[i], size, n);
+				break;
+			case LONG:
+				src.asLongBuffer().get((long[])columns[i], size, n);
+				break;
+			case FLOAT:
+				src.asFloatBuffer().get((float[])columns[i], size, n);
+				break;
+			case DOUBLE:
+				src.asDoubleBuffer().get((double[])columns[i], size, n);
+				break;
+			}
+			columnStart = columnStart + maxRows * fieldSizes[i];
+		}
+		size = size + n;
+		return n;
+	}
+
+	/**
+	 * Writes n rows, starting at fromRow, into the columns of a buffer with the layout read by
+	 * ColumnarITuple, after the rows it already has. The buffer must have room for them.
+	 */
+	public void writeColumns(int fromRow, int n, ByteBuffer columnar) {
+		int rows = columnar.getInt(ColumnarITuple.ROWS_OFFSET);
+		int maxRows = columnar.getInt(ColumnarITuple.MAX_ROWS_OFFSET);
+		int columnStart = ColumnarITuple.HEADER_SIZE;
+		ByteBuffer dst = columnar.duplicate();
+		dst.limit(dst.capacity());
+		for(int i = 0; i < kinds.length; i++) {
+			dst.position(columnStart + rows * fieldSizes[i]);
+			switch(kinds[i]) {
+			case BYTE:
+				dst.put((byte[])columns[i], fromRow, n);
+				break;
+			case SHORT:
+				dst.asShortBuffer().put((short[])columns[i], fromRow, n);
+				break;
+			case INT:
+				dst.asIntBuffer().put((int[])columns[i], fromRow, n);
+				break;
+			case LONG:
+				dst.asLongBuffer().put((long[])columns[i], fromRow, n);
+				break;
+			case FLOAT:
+				dst.asFloatBuffer().put((float[])columns[i], fromRow, n);
+				break;
+			case DOUBLE:
+				dst.asDoubleBuffer().put((double[])columns[i], fromRow, n);
+				break;
+			}
+			columnStart = columnStart + maxRows * fieldSizes[i];
+		}
+		columnar.putInt(ColumnarITuple.ROWS_OFFSET, rows + n);
+	}
+
+	/**
+	 * @return the size in bytes of one row in row format, without the size prefix
+	 */
+	public int getTupleSize() {
+		return tupleSize;
+	}
+
+	/**
+	 * Writes the given row in row format, without its size, at the position of dst
+	 */
+	public void writeRow(int row, ByteBuffer dst) {
+		for(int i = 0; i < kinds.length; i++) {
+			switch(kinds[i]) {
+			case BYTE:
+				dst.put(((byte[])columns[i])[row]);
+				break;
+			case SHORT:
+				dst.putShort(((short[])columns[i])[row]);
+				break;
+			case INT:
+				dst.putInt(((int[])columns[i])[row]);
+				break;
+			case LONG:
+				dst.putLong(((long[])columns[i])[row]);
+				break;
+			case FLOAT:
+				dst.putFloat(((float[])columns[i])[row]);
+				break;
+			case DOUBLE:
+				dst.putDouble(((double[])columns[i])[row]);
+				break;
+			}
+		}
+	}
+}
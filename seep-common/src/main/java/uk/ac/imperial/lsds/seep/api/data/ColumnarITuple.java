@@ -0,0 +1,203 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * Zero copy view of one row of a buffer with columnar layout, for fixed-size schemas. Such a buffer
+ * has a header with the number of rows written and the maximum number of rows that fit, followed by
+ * one vector per field, each sized for the maximum number of rows:
+ * [int rows][int maxRows][field0 x maxRows][field1 x maxRows]...
+ * There are no per-tuple length prefixes, and the view reads a field of the current row by index.
+ */
+public class ColumnarITuple extends ZCITuple {
+
+	public static final int ROWS_OFFSET = 0;
+	public static final int MAX_ROWS_OFFSET = Integer.BYTES;
+	public static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+	private final int[] fieldSizes;
+	// Offset of each column, relative to the start of the columns, per row that fits in the buffer
+	private final int[] columnOffsetPerRow;
+	private final int[] columnStarts;
+
+	private ByteBuffer ptr;
+	private int row;
+
+	public ColumnarITuple(Schema schema) {
+		super(schema);
+		if(schema.isVariableSize()) {
+			throw new SchemaException("Columnar layout is only supported for fixed-size schemas");
+		}
+		Type[] fields = schema.fields();
+		this.fieldSizes = new int[fields.length];
+		this.columnOffsetPerRow = new int[fields.length];
+		this.columnStarts = new int[fields.length];
+		int offset = 0;
+		for(int i = 0; i < fields.length; i++) {
+			fieldSizes[i] = fields[i].sizeOf(null);
+			columnOffsetPerRow[i] = offset;
+			offset = offset + fieldSizes[i];
+		}
+	}
+
+	/**
+	 * @return the maximum number of rows of the given schema that fit in a buffer of the given capacity
+	 */
+	public static int maxRows(Schema schema, int capacity) {
+		return (capacity - HEADER_SIZE) / schema.sizeOfTuple();
+	}
+
+	@Override
+	public void assignBuffer(ByteBuffer ptr) {
+		this.ptr = ptr;
+		int maxRows = ptr.getInt(MAX_ROWS_OFFSET);
+		for(int i = 0; i < columnStarts.length; i++) {
+			columnStarts[i] = HEADER_SIZE + maxRows * columnOffsetPerRow[i];
+		}
+		this.row = 0;
+	}
+
+	public int rows() {
+		return ptr.getInt(ROWS_OFFSET);
+	}
+
+	public void setRow(int row) {
+		this.row = row;
+	}
+
+	public int getRow() {
+		return row;
+	}
+
+	private int positionOf(int idx) {
+		return columnStarts[idx] + row * fieldSizes[idx];
+	}
+
+	private int idxOf(String fieldName, Type type) {
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(! schema.typeCheck(fieldName, type)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ type +"' with name '"+fieldName+"'");
+		}
+		return mapFieldToIdx.get(fieldName);
+	}
+
+	@Override
+	public byte getByte(String fieldName) {
+		return ptr.get(positionOf(idxOf(fieldName, Type.BYTE)));
+	}
+
+	@Override
+	public byte getByte(int idx) {
+		return ptr.get(positionOf(idx));
+	}
+
+	@Override
+	public short getShort(String fieldName) {
+		return ptr.getShort(positionOf(idxOf(fieldName, Type.SHORT)));
+	}
+
+	@Override
+	public short getShort(int idx) {
+		return ptr.getShort(positionOf(idx));
+	}
+
+	@Override
+	public int getInt(String fieldName) {
+		return ptr.getInt(positionOf(idxOf(fieldName, Type.INT)));
+	}
+
+	@Override
+	public int getInt(int idx) {
+		return ptr.getInt(positionOf(idx));
+	}
+
+	@Override
+	public int getDictCode(String fieldName) {
+		return ptr.getInt(positionOf(idxOf(fieldName, Type.DICT_STRING)));
+	}
+
+	@Override
+	public int getDictCode(int idx) {
+		return ptr.getInt(positionOf(idx));
+	}
+
+	@Override
+	public long getLong(String fieldName) {
+		return ptr.getLong(positionOf(idxOf(fieldName, Type.LONG)));
+	}
+
+	@Override
+	public long getLong(int idx) {
+		return ptr.getLong(positionOf(idx));
+	}
+
+	@Override
+	public float getFloat(String fieldName) {
+		return ptr.getFloat(positionOf(idxOf(fieldName, Type.FLOAT)));
+	}
+
+	@Override
+	public float getFloat(int idx) {
+		return ptr.getFloat(positionOf(idx));
+	}
+
+	@Override
+	public double getDouble(String fieldName) {
+		return ptr.getDouble(positionOf(idxOf(fieldName, Type.DOUBLE)));
+	}
+
+	@Override
+	public double getDouble(int idx) {
+		return ptr.getDouble(positionOf(idx));
+	}
+
+	@Override
+	public Object get(String fieldName) {
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		int idx = mapFieldToIdx.get(fieldName);
+		Type t = schema.getField(fieldName);
+		Object o = null;
+		if(t.equals(Type.BYTE)){
+			o = getByte(idx);
+		} else if(t.equals(Type.INT)){
+			o = getInt(idx);
+		} else if(t.equals(Type.SHORT)){
+			o = getShort(idx);
+		} else if(t.equals(Type.LONG)){
+			o = getLong(idx);
+		} else if(t.equals(Type.FLOAT)){
+			o = getFloat(idx);
+		} else if(t.equals(Type.DOUBLE)){
+			o = getDouble(idx);
+		} else if(t instanceof Type.DictString){
+			o = getString(fieldName);
+		}
+		return o;
+	}
+
+	@Override
+	public byte[] getData() {
+		byte[] data = new byte[schema.sizeOfTuple()];
+		copyRowTo(data);
+		return data;
+	}
+
+	/**
+	 * Copies the current row into row format, as written by OTuple
+	 */
+	public void copyRowTo(byte[] dst) {
+		int offset = 0;
+		for(int i = 0; i < fieldSizes.length; i++) {
+			int position = positionOf(i);
+			for(int b = 0; b < fieldSizes[i]; b++) {
+				dst[offset++] = ptr.get(position + b);
+			}
+		}
+	}
+}
@@ -19,11 +19,14 @@ public class ITuple {
 	protected int[] mapIdxToOffset;
 	// attribute name - index in mapIdxToOffset
 	protected Map<String, Integer> mapFieldToIdx;
+	// Generated for fixed size schemas
+	protected transient final SchemaAccessor accessor;
 	private ByteBuffer wrapper;
 	private byte[] data;
 	
 	public ITuple(Schema schema){
 		this.schema = schema;
+		this.accessor = schema.accessor();
 		mapFieldToOffset = new HashMap<>();
 		mapIdxToOffset = new int[schema.names().length];
 		mapFieldToIdx = new HashMap<>();
@@ -35,6 +38,7 @@ public class ITuple {
 	
 	private ITuple() {
 		this.schema = null; // TODO: EmptySchema?
+		this.accessor = null;
 	}
 	
 	public static ITuple makeEmptyITuple() {
@@ -45,6 +49,7 @@ public class ITuple {
 	
 	public ITuple(Schema schema, byte[] data) {
 		this.schema = schema;
+		this.accessor = schema.accessor();
 		mapFieldToOffset = new HashMap<>();
 		mapIdxToOffset = new int[schema.names().length];
 		mapFieldToIdx = new HashMap<>();
@@ -97,6 +102,9 @@ public class ITuple {
 	/** Consider moving these fields to a different interface to not expose the rest to users? **/
 	
 	public byte getByte(String fieldName){
+		if(accessor != null) {
+			return accessor.getByte(wrapper, 0, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -110,12 +118,18 @@ public class ITuple {
 	}
 	
 	public byte getByte(int idx) {
+		if(accessor != null) {
+			return accessor.getByte(wrapper, 0, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		wrapper.position(offset);
 		return wrapper.get();
 	}
 	
 	public short getShort(String fieldName){
+		if(accessor != null) {
+			return accessor.getShort(wrapper, 0, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -129,12 +143,18 @@ public class ITuple {
 	}
 	
 	public short getShort(int idx) {
+		if(accessor != null) {
+			return accessor.getShort(wrapper, 0, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		wrapper.position(offset);
 		return wrapper.getShort();
 	}
 	
 	public int getInt(String fieldName){
+		if(accessor != null) {
+			return accessor.getInt(wrapper, 0, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -148,12 +168,18 @@ public class ITuple {
 	}
 	
 	public int getInt(int idx) {
+		if(accessor != null) {
+			return accessor.getInt(wrapper, 0, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		wrapper.position(offset);
 		return wrapper.getInt();
 	}
 	
 	public long getLong(String fieldName){
+		if(accessor != null) {
+			return accessor.getLong(wrapper, 0, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -167,15 +193,53 @@ public class ITuple {
 	}
 	
 	public long getLong(int idx) {
+		if(accessor != null) {
+			return accessor.getLong(wrapper, 0, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		wrapper.position(offset);
 		return wrapper.getLong();
 	}
 	
+	/**
+	 * @return the code of a DICT_STRING field, to compare and hash it without decoding it
+	 */
+	public int getDictCode(String fieldName){
+		if(accessor != null) {
+			return accessor.getDictCode(wrapper, 0, fieldName);
+		}
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(! schema.typeCheck(fieldName, Type.DICT_STRING)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ Type.DICT_STRING +"' with name '"+fieldName+"'");
+		}
+		
+		int offset = mapFieldToOffset.get(fieldName);
+		return wrapper.getInt(offset);
+	}
+	
+	public int getDictCode(int idx) {
+		if(accessor != null) {
+			return accessor.getDictCode(wrapper, 0, idx);
+		}
+		return wrapper.getInt(mapIdxToOffset[idx]);
+	}
+	
+	/**
+	 * DICT_STRING fields are decoded in their dictionary, which returns always the same instance for a value
+	 */
 	public String getString(String fieldName){
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
+		else if(schema.typeCheck(fieldName, Type.DICT_STRING)) {
+			return schema.dictionary(fieldName).decode(getDictCode(fieldName));
+		}
+		else if(schema.typeCheck(fieldName, Type.SHORTSTRING)) {
+			wrapper.position(mapFieldToOffset.get(fieldName));
+			return (String) Type.SHORTSTRING.read(wrapper);
+		}
 		else if(! schema.typeCheck(fieldName, Type.STRING)) {
 			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ Type.STRING +"' with name '"+fieldName+"'");
 		}
@@ -187,6 +251,9 @@ public class ITuple {
 	}
 
 	public float getFloat(String fieldName){
+		if(accessor != null) {
+			return accessor.getFloat(wrapper, 0, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -200,12 +267,18 @@ public class ITuple {
 	}
 	
 	public float getFloat(int idx) {
+		if(accessor != null) {
+			return accessor.getFloat(wrapper, 0, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		wrapper.position(offset);
 		return wrapper.getFloat();
 	}
 
 	public double getDouble(String fieldName){
+		if(accessor != null) {
+			return accessor.getDouble(wrapper, 0, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -219,6 +292,9 @@ public class ITuple {
 	}
 	
 	public double getDouble(int idx) {
+		if(accessor != null) {
+			return accessor.getDouble(wrapper, 0, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		wrapper.position(offset);
 		return wrapper.getDouble();
@@ -256,6 +332,8 @@ public class ITuple {
 			o = wrapper.getLong();
 		} else if(t.equals(Type.STRING)){
 			o = Type.STRING.read(wrapper);
+		} else if(t instanceof Type.DictString){
+			o = t.read(wrapper);
 		} else if(t.equals(Type.FLOAT)){
 			o = wrapper.getFloat();
 		} else if(t.equals(Type.DOUBLE)){
@@ -9,6 +9,8 @@ public class OTuple {
 	private Schema schema;
 	private Object[] values;
 	private int fixedSchemaSize;
+	// Generated for fixed size schemas
+	private transient SchemaAccessor accessor;
 	
 	private byte[] data;
 	
@@ -20,6 +22,7 @@ public class OTuple {
 		if(! schema.isVariableSize()){
 			// This only happens once
 			this.fixedSchemaSize = this.calculateSizeFromSchema();
+			this.accessor = schema.accessor();
 		}
 		else {
 			this.fixedSchemaSize = -1; // variable size, so it needs to be computed per tuple
@@ -76,6 +79,10 @@ public class OTuple {
 	}
 	
 	public void writeValues(ByteBuffer bb) {
+		if(accessor != null) {
+			accessor.write(bb, values);
+			return;
+		}
 		Type[] types = schema.fields();
 		bb.putInt(this.fixedSchemaSize);
 		for(int i = 0; i < values.length; i++) {
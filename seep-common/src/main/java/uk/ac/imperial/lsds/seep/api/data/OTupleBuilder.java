@@ -0,0 +1,314 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * Writes the fields of one tuple straight into a buffer, as [size][tuple], without boxing them.
+ * Fields of fixed size schemas are written at constant offsets, in any order, and all of them must be set before
+ * the tuple is finished, as the buffer keeps the bytes of previous tuples. Fields of variable size schemas
+ * must be set in schema order, the length of each variable size field is written before it and patched once the
+ * field is written, and so is the size of the tuple when it is finished.
+ * The target buffer is not modified until finish, other than in the bytes of the tuple. If the tuple does not fit,
+ * it is moved to a buffer of the builder, and isInPlace returns false.
+ */
+public class OTupleBuilder {
+
+	private static final int INITIAL_SCRATCH_SIZE = 256;
+
+	private final Schema schema;
+	private final Type[] types;
+	// offset of each field in the tuple, only for fixed size schemas
+	private final int[] offsets;
+	private final boolean variableSize;
+	// size of the tuple for fixed size schemas, or of its fixed size part
+	private final int minimumSize;
+
+	private ByteBuffer target;
+	// position of the first field in target, the size of the tuple goes right before
+	private int base;
+	// variable size schemas: bytes written so far, and next field to set
+	private int cursor;
+	private int next;
+	// fixed size schemas: fields set so far
+	private final boolean[] isSet;
+	private int numSet;
+	private ByteBuffer scratch;
+	private boolean inScratch;
+
+	public OTupleBuilder(Schema schema) {
+		this.schema = schema;
+		this.types = new Type[schema.fields().length];
+		this.offsets = new int[types.length];
+		this.variableSize = schema.isVariableSize();
+		this.isSet = new boolean[types.length];
+		int size = 0;
+		for(int i = 0; i < types.length; i++) {
+			types[i] = Type.canonical(schema.fields()[i]);
+			offsets[i] = size;
+			size = size + (types[i].isVariableSize() ? Type.SIZE_OVERHEAD : types[i].sizeOf(null));
+		}
+		this.minimumSize = size;
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return the bytes the tuple takes at least in a buffer, including its size
+	 */
+	public int minimumSize() {
+		return TupleInfo.TUPLE_SIZE_OVERHEAD + minimumSize;
+	}
+
+	/**
+	 * Starts a new tuple at the position of the target buffer
+	 */
+	public OTupleBuilder start(ByteBuffer target) {
+		if(target.remaining() < (variableSize ? TupleInfo.TUPLE_SIZE_OVERHEAD : minimumSize())) {
+			return start();
+		}
+		this.target = target;
+		this.base = target.position() + TupleInfo.TUPLE_SIZE_OVERHEAD;
+		this.cursor = 0;
+		this.next = 0;
+		clearSetFields();
+		this.inScratch = false;
+		return this;
+	}
+
+	/**
+	 * Starts a new tuple in a buffer of this builder
+	 */
+	public OTupleBuilder start() {
+		if(scratch == null) {
+			scratch = ByteBuffer.allocate(Math.max(INITIAL_SCRATCH_SIZE, minimumSize()));
+		}
+		scratch.clear();
+		this.target = scratch;
+		this.base = TupleInfo.TUPLE_SIZE_OVERHEAD;
+		this.cursor = 0;
+		this.next = 0;
+		clearSetFields();
+		this.inScratch = true;
+		return this;
+	}
+
+	private void clearSetFields() {
+		if(! variableSize && numSet > 0) {
+			Arrays.fill(isSet, false);
+			numSet = 0;
+		}
+	}
+
+	/**
+	 * @return whether the tuple is being written to the buffer it was started at
+	 */
+	public boolean isInPlace() {
+		return ! inScratch;
+	}
+
+	/**
+	 * @return the position in the tuple of a field of the given type and size, and reserves it in variable size schemas
+	 */
+	private int reserve(int idx, Type type, int size) {
+		if(types[idx] != type && ! (type == Type.DICT_STRING && types[idx] instanceof Type.DictString)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ type +"' at index "+ idx);
+		}
+		if(! variableSize) {
+			if(! isSet[idx]) {
+				isSet[idx] = true;
+				numSet++;
+			}
+			return offsets[idx];
+		}
+		if(idx != next) {
+			throw new SchemaException("Fields of variable size schemas are set in order, expected field: " + next + " but got: " + idx);
+		}
+		ensureRoom(size);
+		int position = cursor;
+		cursor = cursor + size;
+		next++;
+		return position;
+	}
+
+	/**
+	 * Moves the tuple to a larger buffer of the builder if the remaining fields do not fit
+	 */
+	private void ensureRoom(int size) {
+		if(base + cursor + size <= target.limit()) {
+			return;
+		}
+		int required = TupleInfo.TUPLE_SIZE_OVERHEAD + cursor + size;
+		ByteBuffer dst = scratch;
+		if(dst == null || dst.capacity() < required || inScratch) {
+			int capacity = scratch == null ? INITIAL_SCRATCH_SIZE : scratch.capacity();
+			while(capacity < required) {
+				capacity = capacity * 2;
+			}
+			dst = ByteBuffer.allocate(capacity);
+		}
+		dst.clear();
+		for(int i = 0; i < cursor; i++) {
+			dst.put(TupleInfo.TUPLE_SIZE_OVERHEAD + i, target.get(base + i));
+		}
+		scratch = dst;
+		target = dst;
+		base = TupleInfo.TUPLE_SIZE_OVERHEAD;
+		inScratch = true;
+	}
+
+	public OTupleBuilder setByte(int idx, byte value) {
+		int position = reserve(idx, Type.BYTE, Byte.BYTES);
+		target.put(base + position, value);
+		return this;
+	}
+
+	public OTupleBuilder setShort(int idx, short value) {
+		int position = reserve(idx, Type.SHORT, Short.BYTES);
+		target.putShort(base + position, value);
+		return this;
+	}
+
+	public OTupleBuilder setInt(int idx, int value) {
+		int position = reserve(idx, Type.INT, Integer.BYTES);
+		target.putInt(base + position, value);
+		return this;
+	}
+
+	public OTupleBuilder setLong(int idx, long value) {
+		int position = reserve(idx, Type.LONG, Long.BYTES);
+		target.putLong(base + position, value);
+		return this;
+	}
+
+	public OTupleBuilder setFloat(int idx, float value) {
+		int position = reserve(idx, Type.FLOAT, Float.BYTES);
+		target.putFloat(base + position, value);
+		return this;
+	}
+
+	public OTupleBuilder setDouble(int idx, double value) {
+		int position = reserve(idx, Type.DOUBLE, Double.BYTES);
+		target.putDouble(base + position, value);
+		return this;
+	}
+
+	public OTupleBuilder setDictCode(int idx, int code) {
+		int position = reserve(idx, Type.DICT_STRING, Integer.BYTES);
+		target.putInt(base + position, code);
+		return this;
+	}
+
+	/**
+	 * Encodes the string in place when it is ASCII, and through a byte[] otherwise.
+	 * DICT_STRING fields are encoded in their dictionary
+	 */
+	public OTupleBuilder setString(int idx, String value) {
+		if(types[idx] instanceof Type.DictString) {
+			return setDictCode(idx, ((Type.DictString)types[idx]).dictionary().encode(value));
+		}
+		if(types[idx] == Type.SHORTSTRING) {
+			return setShortString(idx, value);
+		}
+		int lengthPosition = reserve(idx, Type.STRING, Type.SIZE_OVERHEAD);
+		int length = value.length();
+		ensureRoom(length);
+		int start = base + cursor;
+		int i = 0;
+		for(; i < length; i++) {
+			char c = value.charAt(i);
+			if(c >= 0x80) {
+				break;
+			}
+			target.put(start + i, (byte)c);
+		}
+		if(i < length) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			length = bytes.length;
+			ensureRoom(length);
+			putAt(base + cursor, bytes);
+		}
+		cursor = cursor + length;
+		target.putInt(base + lengthPosition, length);
+		return this;
+	}
+
+	/**
+	 * SHORTSTRING fields take a fixed size, padded with zeros
+	 */
+	private OTupleBuilder setShortString(int idx, String value) {
+		int size = Type.SHORTSTRING.sizeOf(null);
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length > size) {
+			throw new SchemaException("A SHORTSTRING cannot be longer than " + size + " bytes, field at index " + idx);
+		}
+		int position = reserve(idx, Type.SHORTSTRING, size);
+		putAt(base + position, bytes);
+		for(int i = bytes.length; i < size; i++) {
+			target.put(base + position + i, (byte)0);
+		}
+		return this;
+	}
+
+	public OTupleBuilder setBytes(int idx, byte[] value) {
+		int lengthPosition = reserve(idx, Type.BYTES, Type.SIZE_OVERHEAD);
+		ensureRoom(value.length);
+		putAt(base + cursor, value);
+		cursor = cursor + value.length;
+		target.putInt(base + lengthPosition, value.length);
+		return this;
+	}
+
+	private void putAt(int position, byte[] bytes) {
+		int current = target.position();
+		target.position(position);
+		target.put(bytes);
+		target.position(current);
+	}
+
+	/**
+	 * Writes the size of the tuple, and moves the position of the target buffer past the tuple when in place
+	 * @return the size of the tuple, without the size itself
+	 */
+	public int finish() {
+		int set = variableSize ? next : numSet;
+		if(set != types.length) {
+			throw new SchemaException("Only " + set + " out of " + types.length + " fields were set");
+		}
+		int size = variableSize ? cursor : minimumSize;
+		target.putInt(base - TupleInfo.TUPLE_SIZE_OVERHEAD, size);
+		if(! inScratch) {
+			target.position(base + size);
+		}
+		return size;
+	}
+
+	/**
+	 * @return a copy of the finished tuple, without its size
+	 */
+	public byte[] toBytes() {
+		int size = target.getInt(base - TupleInfo.TUPLE_SIZE_OVERHEAD);
+		byte[] data = new byte[size];
+		for(int i = 0; i < size; i++) {
+			data[i] = target.get(base + i);
+		}
+		return data;
+	}
+
+	/**
+	 * The buffer the finished tuple is in, and its position there
+	 */
+	ByteBuffer buffer() {
+		return target;
+	}
+
+	int tuplePosition() {
+		return base;
+	}
+
+}
@@ -0,0 +1,279 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec.Op;
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * A ScanSpec bound to a schema. Evaluates the filter straight on the bytes of a tuple, in row or columnar layout,
+ * reading each field at its offset, and writes the projected fields of a tuple in row format.
+ * Offsets of variable size schemas are found per tuple, so one evaluator must be used by one reader at a time.
+ */
+public class ScanEvaluator {
+
+	private static final int BYTE = 0;
+	private static final int SHORT = 1;
+	private static final int INT = 2;
+	private static final int LONG = 3;
+	private static final int FLOAT = 4;
+	private static final int DOUBLE = 5;
+
+	private final Schema schema;
+	private final Type[] types;
+	private final boolean variableSize;
+	// offset of each field in the tuple, constant for fixed size schemas and found per tuple otherwise
+	private final int[] offsets;
+	// last field whose offset is needed to filter, and to project
+	private final int lastFiltered;
+	private final int lastProjected;
+
+	// one entry per comparison
+	private final int[] fieldIdx;
+	private final int[] kinds;
+	private final Op[] ops;
+	private final long[] longValues;
+	private final double[] doubleValues;
+	// integral fields compared with constants that are not integral
+	private final boolean[] asDouble;
+
+	// fields to write, all of them if the spec does not project
+	private final int[] projected;
+	private final boolean projects;
+	private final Schema projectedSchema;
+
+	ScanEvaluator(ScanSpec spec, Schema schema) {
+		this.schema = schema;
+		this.types = schema.fields();
+		this.variableSize = schema.isVariableSize();
+		this.offsets = new int[types.length];
+		int offset = 0;
+		for(int i = 0; i < types.length && ! types[i].isVariableSize(); i++) {
+			offsets[i] = offset;
+			offset = offset + types[i].sizeOf(null);
+		}
+		int needed = -1;
+
+		String[] fields = spec.fields();
+		this.fieldIdx = new int[fields.length];
+		this.kinds = new int[fields.length];
+		this.ops = spec.ops();
+		this.longValues = spec.longValues().clone();
+		this.doubleValues = spec.doubleValues();
+		this.asDouble = new boolean[fields.length];
+		for(int i = 0; i < fields.length; i++) {
+			int idx = indexOf(fields[i]);
+			Type t = types[idx];
+			String stringValue = spec.stringValues()[i];
+			if(t instanceof Type.DictString) {
+				if(stringValue == null) {
+					throw new SchemaException("Field '" + fields[i] + "' of type '" + t + "' must be compared with a string");
+				}
+				// Encoded rather than looked up, so that the code is the one of values written later
+				longValues[i] = ((Type.DictString) t).dictionary().encode(stringValue);
+				kinds[i] = INT;
+			}
+			else {
+				kinds[i] = kindOf(t, fields[i]);
+				if(stringValue != null) {
+					throw new SchemaException("Field '" + fields[i] + "' of type '" + t + "' cannot be compared with a string");
+				}
+				asDouble[i] = kinds[i] < FLOAT && longValues[i] != doubleValues[i];
+			}
+			fieldIdx[i] = idx;
+			needed = Math.max(needed, idx);
+		}
+		this.lastFiltered = needed;
+		needed = -1;
+
+		if(spec.projects()) {
+			String[] names = spec.projection();
+			this.projected = new int[names.length];
+			SchemaBuilder sb = SchemaBuilder.getInstance();
+			for(int i = 0; i < names.length; i++) {
+				projected[i] = indexOf(names[i]);
+				sb.newField(types[projected[i]], names[i]);
+				needed = Math.max(needed, projected[i]);
+			}
+			this.projectedSchema = sb.build();
+			this.projects = true;
+		}
+		else {
+			this.projected = new int[types.length];
+			for(int i = 0; i < types.length; i++) {
+				projected[i] = i;
+			}
+			this.projectedSchema = schema;
+			this.projects = false;
+			needed = types.length - 1;
+		}
+		this.lastProjected = needed;
+	}
+
+	private int indexOf(String fieldName) {
+		int idx = schema.getFieldPosition(fieldName);
+		if(idx < 0) {
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		return idx;
+	}
+
+	private static int kindOf(Type t, String fieldName) {
+		if(t.equals(Type.BYTE)) return BYTE;
+		if(t.equals(Type.SHORT)) return SHORT;
+		if(t.equals(Type.INT)) return INT;
+		if(t.equals(Type.LONG)) return LONG;
+		if(t.equals(Type.FLOAT)) return FLOAT;
+		if(t.equals(Type.DOUBLE)) return DOUBLE;
+		throw new SchemaException("Field '" + fieldName + "' of type '" + t + "' cannot be compared");
+	}
+
+	public boolean filters() {
+		return fieldIdx.length > 0;
+	}
+
+	public boolean projects() {
+		return projects;
+	}
+
+	/**
+	 * @return the schema of the tuples after the projection
+	 */
+	public Schema getProjectedSchema() {
+		return projectedSchema;
+	}
+
+	/**
+	 * Finds the offsets of the fields up to the given one, in a tuple of a variable size schema
+	 */
+	private void locate(ByteBuffer buf, int base, int last) {
+		int offset = 0;
+		for(int i = 0; i <= last; i++) {
+			offsets[i] = offset;
+			if(types[i].isVariableSize()) {
+				offset = offset + Type.SIZE_OVERHEAD + buf.getInt(base + offset);
+			}
+			else {
+				offset = offset + types[i].sizeOf(null);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the tuple that starts at base, in row format, passes the filter
+	 */
+	public boolean accept(ByteBuffer buf, int base) {
+		if(variableSize) {
+			locate(buf, base, lastFiltered);
+		}
+		for(int i = 0; i < fieldIdx.length; i++) {
+			if(! test(buf, i, base + offsets[fieldIdx[i]])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the given row of a buffer with the layout read by ColumnarITuple passes the filter
+	 */
+	public boolean acceptColumnar(ByteBuffer buf, int row) {
+		int maxRows = buf.getInt(ColumnarITuple.MAX_ROWS_OFFSET);
+		for(int i = 0; i < fieldIdx.length; i++) {
+			int f = fieldIdx[i];
+			if(! test(buf, i, columnarPosition(f, maxRows, row))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int columnarPosition(int f, int maxRows, int row) {
+		// Columns are laid out in order, each with room for maxRows
+		return ColumnarITuple.HEADER_SIZE + maxRows * offsets[f] + row * types[f].sizeOf(null);
+	}
+
+	private boolean test(ByteBuffer buf, int i, int position) {
+		switch(kinds[i]) {
+		case BYTE:
+			return test(i, buf.get(position));
+		case SHORT:
+			return test(i, buf.getShort(position));
+		case INT:
+			return test(i, buf.getInt(position));
+		case LONG:
+			return test(i, buf.getLong(position));
+		case FLOAT:
+			return test(i, (double)buf.getFloat(position));
+		default:
+			return test(i, buf.getDouble(position));
+		}
+	}
+
+	private boolean test(int i, long v) {
+		if(asDouble[i]) {
+			return test(i, (double)v);
+		}
+		long c = longValues[i];
+		switch(ops[i]) {
+		case EQ: return v == c;
+		case NE: return v != c;
+		case LT: return v < c;
+		case LE: return v <= c;
+		case GT: return v > c;
+		default: return v >= c;
+		}
+	}
+
+	private boolean test(int i, double v) {
+		double c = doubleValues[i];
+		switch(ops[i]) {
+		case EQ: return v == c;
+		case NE: return v != c;
+		case LT: return v < c;
+		case LE: return v <= c;
+		case GT: return v > c;
+		default: return v >= c;
+		}
+	}
+
+	/**
+	 * Writes the projected fields of the tuple that starts at base, in row format, at the position of dst, which
+	 * must have room for the whole tuple
+	 * @return the size of the projected tuple
+	 */
+	public int project(ByteBuffer buf, int base, ByteBuffer dst) {
+		if(variableSize) {
+			locate(buf, base, lastProjected);
+		}
+		int start = dst.position();
+		for(int p : projected) {
+			int position = base + offsets[p];
+			int size = types[p].isVariableSize() ? Type.SIZE_OVERHEAD + buf.getInt(position) : types[p].sizeOf(null);
+			copy(buf, position, size, dst);
+		}
+		return dst.position() - start;
+	}
+
+	/**
+	 * Writes the projected fields of a row of a columnar buffer, in row format, at the position of dst. Without
+	 * projection, that is the whole row
+	 * @return the size of the projected tuple
+	 */
+	public int projectColumnar(ByteBuffer buf, int row, ByteBuffer dst) {
+		int maxRows = buf.getInt(ColumnarITuple.MAX_ROWS_OFFSET);
+		int start = dst.position();
+		for(int p : projected) {
+			copy(buf, columnarPosition(p, maxRows, row), types[p].sizeOf(null), dst);
+		}
+		return dst.position() - start;
+	}
+
+	private static void copy(ByteBuffer buf, int position, int size, ByteBuffer dst) {
+		for(int b = 0; b < size; b++) {
+			dst.put(buf.get(position + b));
+		}
+	}
+
+}
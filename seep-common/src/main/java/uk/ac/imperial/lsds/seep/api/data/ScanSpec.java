@@ -0,0 +1,171 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * A filter and a projection to apply when scanning the input of a stage. The filter is a conjunction of
+ * comparisons of fields of fixed size with constants, and the projection the fields to keep, in order.
+ * The spec travels with the DataReference of the input, and is bound to the schema of the data when read.
+ */
+public class ScanSpec {
+
+	public enum Op {
+		EQ, NE, LT, LE, GT, GE
+	}
+
+	private final String[] fields;
+	private final Op[] ops;
+	// constant of each comparison, as a long for integral fields and as a double for floating point ones
+	private final long[] longValues;
+	private final double[] doubleValues;
+	// only for DICT_STRING fields, encoded when bound
+	private final String[] stringValues;
+	// null to keep all fields
+	private final String[] projection;
+
+	private ScanSpec(String[] fields, Op[] ops, long[] longValues, double[] doubleValues, String[] stringValues,
+			String[] projection) {
+		this.fields = fields;
+		this.ops = ops;
+		this.longValues = longValues;
+		this.doubleValues = doubleValues;
+		this.stringValues = stringValues;
+		this.projection = projection;
+	}
+
+	public boolean filters() {
+		return fields.length > 0;
+	}
+
+	public boolean projects() {
+		return projection != null;
+	}
+
+	String[] fields() {
+		return fields;
+	}
+
+	Op[] ops() {
+		return ops;
+	}
+
+	long[] longValues() {
+		return longValues;
+	}
+
+	double[] doubleValues() {
+		return doubleValues;
+	}
+
+	String[] stringValues() {
+		return stringValues;
+	}
+
+	String[] projection() {
+		return projection;
+	}
+
+	/**
+	 * @return the evaluator of this spec for data of the given schema
+	 */
+	public ScanEvaluator bind(Schema schema) {
+		return new ScanEvaluator(this, schema);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < fields.length; i++) {
+			if(i > 0) {
+				sb.append(" AND ");
+			}
+			sb.append(fields[i]).append(' ').append(ops[i]).append(' ');
+			if(stringValues[i] != null) {
+				sb.append(stringValues[i]);
+			}
+			else if(longValues[i] == doubleValues[i]) {
+				sb.append(longValues[i]);
+			}
+			else {
+				sb.append(doubleValues[i]);
+			}
+		}
+		if(projection != null) {
+			sb.append(" PROJECT ").append(Arrays.toString(projection));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Empty constructor for Kryo serialization
+	 */
+	public ScanSpec() {
+		this.fields = null;
+		this.ops = null;
+		this.longValues = null;
+		this.doubleValues = null;
+		this.stringValues = null;
+		this.projection = null;
+	}
+
+	public static class ScanSpecBuilder {
+
+		private List<String> fields = new ArrayList<>();
+		private List<Op> ops = new ArrayList<>();
+		private List<Long> longValues = new ArrayList<>();
+		private List<Double> doubleValues = new ArrayList<>();
+		private List<String> stringValues = new ArrayList<>();
+		private String[] projection;
+
+		/**
+		 * Compares an integral or floating point field with a constant
+		 */
+		public ScanSpecBuilder where(String field, Op op, long value) {
+			return add(field, op, value, value, null);
+		}
+
+		public ScanSpecBuilder where(String field, Op op, double value) {
+			return add(field, op, (long)value, value, null);
+		}
+
+		/**
+		 * Compares a DICT_STRING field with a constant, only for equality as codes are not ordered
+		 */
+		public ScanSpecBuilder where(String field, Op op, String value) {
+			if(op != Op.EQ && op != Op.NE) {
+				throw new SchemaException("Strings can only be compared for equality, not with: " + op);
+			}
+			return add(field, op, 0, 0, value);
+		}
+
+		private ScanSpecBuilder add(String field, Op op, long longValue, double doubleValue, String stringValue) {
+			fields.add(field);
+			ops.add(op);
+			longValues.add(longValue);
+			doubleValues.add(doubleValue);
+			stringValues.add(stringValue);
+			return this;
+		}
+
+		public ScanSpecBuilder project(String... fields) {
+			this.projection = fields;
+			return this;
+		}
+
+		public ScanSpec build() {
+			long[] l = new long[longValues.size()];
+			double[] d = new double[doubleValues.size()];
+			for(int i = 0; i < l.length; i++) {
+				l[i] = longValues.get(i);
+				d[i] = doubleValues.get(i);
+			}
+			return new ScanSpec(fields.toArray(new String[fields.size()]), ops.toArray(new Op[ops.size()]), l, d,
+					stringValues.toArray(new String[stringValues.size()]), projection);
+		}
+	}
+
+}
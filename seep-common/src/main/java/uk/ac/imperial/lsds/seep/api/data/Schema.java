@@ -19,6 +19,9 @@ public class Schema {
 	// Maps fieldName to fieldPosition (fields are ordered in a certain way)
 	private Map<String, Integer> mapFieldNameToFieldPosition = new HashMap<>();
 	private SchemaParser parser = DefaultParser.getInstance();
+	// Generated on first use in each process
+	private transient volatile SchemaAccessor accessor;
+	private transient volatile boolean accessorResolved = false;
 	
 	private Schema(int schemaId, Type[] fields, String[] names){
 		this.schemaId = schemaId;
@@ -36,6 +39,17 @@ public class Schema {
 		return this.variableSize;
 	}
 	
+	/**
+	 * @return the generated accessor of this schema, or null if it is variable size
+	 */
+	public SchemaAccessor accessor() {
+		if(! accessorResolved) {
+			accessor = SchemaAccessor.forSchema(this);
+			accessorResolved = true;
+		}
+		return accessor;
+	}
+	
 	public boolean hasField(String fieldName){
 		return mapFieldNameToFieldPosition.containsKey(fieldName);
 	}
@@ -67,7 +81,7 @@ public class Schema {
 				return true;
 			}
 		}
-		else if(t.equals(Type.STRING)){
+		else if(t.equals(Type.STRING) || t.equals(Type.SHORTSTRING)){
 			if(o instanceof String){
 				return true;
 			}
@@ -87,9 +101,26 @@ public class Schema {
 				return true;
 			}
 		}
+		else if(t instanceof Type.DictString) {
+			// values are either strings or their codes
+			if(o instanceof String || o instanceof Integer) {
+				return true;
+			}
+		}
 		return false;
 	}
 	
+	/**
+	 * @return the dictionary that encodes the given DICT_STRING field
+	 */
+	public StringDictionary dictionary(String fieldName){
+		Type t = fields[mapFieldNameToFieldPosition.get(fieldName)];
+		if(! (t instanceof Type.DictString)) {
+			throw new SchemaException("Field '" + fieldName + "' is of type '" + t + "', not '" + Type.DICT_STRING + "'");
+		}
+		return ((Type.DictString) t).dictionary();
+	}
+	
 	public int getFieldPosition(String fieldName){
 		if(mapFieldNameToFieldPosition.containsKey(fieldName)){
 			return mapFieldNameToFieldPosition.get(fieldName);
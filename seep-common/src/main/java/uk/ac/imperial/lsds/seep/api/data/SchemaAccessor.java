@@ -0,0 +1,210 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.janino.ClassBodyEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * Reads and writes the tuples of one fixed size schema. Implementations are generated at runtime for each
+ * schema, so that fields are read at constant offsets, field names are matched by reference against the
+ * literals of the schema, and types are checked when generating the class instead of on every access.
+ * Getters take the buffer and the position where the tuple starts, and do not modify the buffer.
+ */
+public abstract class SchemaAccessor {
+
+	final private static Logger LOG = LoggerFactory.getLogger(SchemaAccessor.class);
+
+	// Schemas with the same fields share the generated class, e.g. copies deserialized in a worker
+	private static final Map<String, SchemaAccessor> accessors = new ConcurrentHashMap<>();
+
+	// DICT_STRING fields are read as their int codes
+	private static final Type[] PRIMITIVES = new Type[]{ Type.BYTE, Type.SHORT, Type.INT, Type.LONG, Type.FLOAT, Type.DOUBLE, Type.DICT_STRING };
+	private static final String[] JAVA_TYPES = new String[]{ "byte", "short", "int", "long", "float", "double", "int" };
+	private static final String[] BOXED_TYPES = new String[]{ "Byte", "Short", "Integer", "Long", "Float", "Double", null };
+	private static final String[] BUFFER_OPS = new String[]{ "", "Short", "Int", "Long", "Float", "Double", "Int" };
+	private static final String[] GETTERS = new String[]{ "Byte", "Short", "Int", "Long", "Float", "Double", "DictCode" };
+	private static final int DICT_STRING = 6;
+
+	public abstract byte getByte(ByteBuffer buf, int base, String fieldName);
+	public abstract byte getByte(ByteBuffer buf, int base, int idx);
+	public abstract short getShort(ByteBuffer buf, int base, String fieldName);
+	public abstract short getShort(ByteBuffer buf, int base, int idx);
+	public abstract int getInt(ByteBuffer buf, int base, String fieldName);
+	public abstract int getInt(ByteBuffer buf, int base, int idx);
+	public abstract long getLong(ByteBuffer buf, int base, String fieldName);
+	public abstract long getLong(ByteBuffer buf, int base, int idx);
+	public abstract float getFloat(ByteBuffer buf, int base, String fieldName);
+	public abstract float getFloat(ByteBuffer buf, int base, int idx);
+	public abstract double getDouble(ByteBuffer buf, int base, String fieldName);
+	public abstract double getDouble(ByteBuffer buf, int base, int idx);
+	public abstract int getDictCode(ByteBuffer buf, int base, String fieldName);
+	public abstract int getDictCode(ByteBuffer buf, int base, int idx);
+
+	/**
+	 * Writes the size of the tuple followed by its values, as OTuple.writeValues
+	 */
+	public abstract void write(ByteBuffer buf, Object[] values);
+
+	private Schema schema;
+
+	protected SchemaException noSuchField(String fieldName, String type) {
+		if(! schema.hasField(fieldName)) {
+			return new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		return new SchemaException("Current Schema cannot typeCheck a field type '"+ type +"' with name '"+fieldName+"'");
+	}
+
+	protected SchemaException noSuchField(int idx, String type) {
+		return new SchemaException("Current Schema does not have a field of type '"+ type +"' at index "+ idx);
+	}
+
+	/**
+	 * @return the code of the value of a DICT_STRING field, which is a String or a code already
+	 */
+	protected int code(int idx, Object value) {
+		return ((Type.DictString) schema.fields()[idx]).code(value);
+	}
+
+	/**
+	 * @return the accessor of the schema, or null if the schema is variable size, has fields that are not read as
+	 * primitives, e.g. SHORTSTRING, or it could not be generated
+	 */
+	public static SchemaAccessor forSchema(Schema schema) {
+		if(schema.isVariableSize()) {
+			return null;
+		}
+		for(Type t : schema.fields()) {
+			if(! isPrimitive(t)) {
+				return null;
+			}
+		}
+		String signature = signatureOf(schema);
+		SchemaAccessor accessor = accessors.get(signature);
+		if(accessor != null) {
+			return accessor;
+		}
+		try {
+			ClassBodyEvaluator cbe = new ClassBodyEvaluator();
+			cbe.setClassName(SchemaAccessor.class.getName() + "$Generated" + accessors.size());
+			cbe.setExtendedClass(SchemaAccessor.class);
+			cbe.setParentClassLoader(SchemaAccessor.class.getClassLoader());
+			cbe.setDefaultImports(new String[]{ "java.nio.ByteBuffer" });
+			cbe.cook(generateBody(schema));
+			accessor = (SchemaAccessor) cbe.getClazz().newInstance();
+			accessor.schema = schema;
+		}
+		catch (Exception e) {
+			LOG.warn("Could not generate accessor for schema: {}. Falling back to generic access", signature, e);
+			return null;
+		}
+		SchemaAccessor previous = accessors.putIfAbsent(signature, accessor);
+		return previous != null ? previous : accessor;
+	}
+
+	private static String signatureOf(Schema schema) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < schema.fields().length; i++) {
+			Type t = schema.fields()[i];
+			sb.append(t.toString());
+			// Schemas that encode in different dictionaries cannot share the writer
+			if(t instanceof Type.DictString) {
+				sb.append('(').append(((Type.DictString) t).dictionaryName()).append(')');
+			}
+			sb.append(' ').append(schema.names()[i]).append(';');
+		}
+		return sb.toString();
+	}
+
+	private static boolean isPrimitive(Type t) {
+		if(t instanceof Type.DictString) {
+			return true;
+		}
+		for(int i = 0; i < PRIMITIVES.length; i++) {
+			if(PRIMITIVES[i].equals(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int primitiveOf(Type t) {
+		// Whatever their dictionary
+		if(t instanceof Type.DictString) {
+			return DICT_STRING;
+		}
+		for(int i = 0; i < PRIMITIVES.length; i++) {
+			if(PRIMITIVES[i].equals(t)) {
+				return i;
+			}
+		}
+		throw new SchemaException("Type '" + t + "' is not of fixed size");
+	}
+
+	static String generateBody(Schema schema) {
+		Type[] fields = schema.fields();
+		String[] names = schema.names();
+		int[] kinds = new int[fields.length];
+		int[] offsets = new int[fields.length];
+		int size = 0;
+		for(int i = 0; i < fields.length; i++) {
+			kinds[i] = primitiveOf(fields[i]);
+			offsets[i] = size;
+			size = size + fields[i].sizeOf(null);
+		}
+		StringBuilder sb = new StringBuilder();
+		for(int k = 0; k < PRIMITIVES.length; k++) {
+			String javaType = JAVA_TYPES[k];
+			String op = "get" + BUFFER_OPS[k];
+			// By name: by reference first, as names are usually literals, and by value otherwise
+			sb.append("public ").append(javaType).append(" get").append(GETTERS[k])
+				.append("(ByteBuffer buf, int base, String fieldName) {\n");
+			for(int i = 0; i < fields.length; i++) {
+				if(kinds[i] == k) {
+					sb.append("\tif(fieldName == \"").append(escape(names[i])).append("\") return buf.")
+						.append(op).append("(base + ").append(offsets[i]).append(");\n");
+				}
+			}
+			for(int i = 0; i < fields.length; i++) {
+				if(kinds[i] == k) {
+					sb.append("\tif(fieldName.equals(\"").append(escape(names[i])).append("\")) return buf.")
+						.append(op).append("(base + ").append(offsets[i]).append(");\n");
+				}
+			}
+			sb.append("\tthrow noSuchField(fieldName, \"").append(PRIMITIVES[k]).append("\");\n}\n");
+			// By index
+			sb.append("public ").append(javaType).append(" get").append(GETTERS[k])
+				.append("(ByteBuffer buf, int base, int idx) {\n\tswitch(idx) {\n");
+			for(int i = 0; i < fields.length; i++) {
+				if(kinds[i] == k) {
+					sb.append("\tcase ").append(i).append(": return buf.")
+						.append(op).append("(base + ").append(offsets[i]).append(");\n");
+				}
+			}
+			sb.append("\tdefault: throw noSuchField(idx, \"").append(PRIMITIVES[k]).append("\");\n\t}\n}\n");
+		}
+		sb.append("public void write(ByteBuffer buf, Object[] values) {\n");
+		sb.append("\tbuf.putInt(").append(size).append(");\n");
+		for(int i = 0; i < fields.length; i++) {
+			int k = kinds[i];
+			if(k == DICT_STRING) {
+				sb.append("\tbuf.putInt(code(").append(i).append(", values[").append(i).append("]));\n");
+				continue;
+			}
+			sb.append("\tbuf.put").append(BUFFER_OPS[k]).append("(((").append(BOXED_TYPES[k]).append(") values[")
+				.append(i).append("]).").append(JAVA_TYPES[k]).append("Value());\n");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static String escape(String name) {
+		return name.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
@@ -0,0 +1,92 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * Assigns dense int codes to the values of DICT_STRING fields. Codes are assigned in order of first appearance
+ * and never change, so tasks compare and hash codes instead of strings. Decoding a code returns always the same
+ * String instance, so it does not allocate.
+ * Dictionaries are looked up by name in the process, one per dataset or stream that declares its own name, and
+ * Type.DICT_STRING uses the default one. Codes are only meaningful in the process that assigned them.
+ */
+public class StringDictionary {
+
+	public static final String DEFAULT = "default";
+
+	private static final ConcurrentMap<String, StringDictionary> dictionaries = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<>();
+	// Strings by code, new ones are published by writing size after them
+	private volatile String[] values = new String[64];
+	private volatile int size = 0;
+
+	private StringDictionary(String name) {
+		this.name = name;
+	}
+
+	public static StringDictionary named(String name) {
+		StringDictionary d = dictionaries.get(name);
+		if(d == null) {
+			StringDictionary newDictionary = new StringDictionary(name);
+			d = dictionaries.putIfAbsent(name, newDictionary);
+			if(d == null) {
+				d = newDictionary;
+			}
+		}
+		return d;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the code of the value, assigning a new one the first time the value is seen
+	 */
+	public int encode(String value) {
+		Integer code = codes.get(value);
+		if(code != null) {
+			return code;
+		}
+		synchronized(this) {
+			code = codes.get(value);
+			if(code != null) {
+				return code;
+			}
+			int newCode = size;
+			if(newCode == values.length) {
+				values = Arrays.copyOf(values, newCode * 2);
+			}
+			values[newCode] = value;
+			size = newCode + 1;
+			// Only once it decodes, as encode returns the codes in codes without taking the lock
+			codes.put(value, newCode);
+			return newCode;
+		}
+	}
+
+	/**
+	 * @return the code of the value, or -1 if it was never encoded, without growing the dictionary
+	 */
+	public int lookup(String value) {
+		Integer code = codes.get(value);
+		return code == null ? -1 : code;
+	}
+
+	public String decode(int code) {
+		if(code < 0 || code >= size) {
+			throw new SchemaException("Code " + code + " is not in dictionary '" + name + "'");
+		}
+		return values[code];
+	}
+
+}
@@ -4,6 +4,10 @@ public class TupleInfo {
 	
 	public static final int CONTROL_OVERHEAD = 1;
 	public static final int CONTROL_OFFSET = 0;
+	// Values of the control byte: a batch of tuples, or a marker, which holds no tuples and follows all the tuples
+	// written to the same buffer before it
+	public static final byte CONTROL_DATA = 0;
+	public static final byte CONTROL_MARKER = 1;
 	public static final int NUM_TUPLES_BATCH_OVERHEAD = 4;
 	public static final int NUM_TUPLES_BATCH_OFFSET = CONTROL_OVERHEAD;
 	public static final int BATCH_SIZE_OVERHEAD = 4; // Batch size is the size of the payload *only*
@@ -15,4 +19,7 @@ public class TupleInfo {
 											+ NUM_TUPLES_BATCH_OVERHEAD 
 											+ BATCH_SIZE_OVERHEAD; // control byte + batch_tuples
 	
+	// Receivers grant credits, in number of batches, writing an int on the same connection in the opposite direction
+	public static final int CREDIT_GRANT_SIZE = 4;
+	
 }
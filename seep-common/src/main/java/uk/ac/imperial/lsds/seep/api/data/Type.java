@@ -2,6 +2,7 @@ package uk.ac.imperial.lsds.seep.api.data;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import uk.ac.imperial.lsds.seep.errors.SchemaException;
@@ -19,12 +20,16 @@ public abstract class Type {
 	public abstract Object randomValue();
 	private static Random rnd = new Random();
 	
+	/**
+	 * Types are compared by name, as deserialized schemas carry copies of the constants. DICT_STRING types are
+	 * equal only if they encode in the same dictionary
+	 */
 	public boolean equals(Type t) {
 		return this.toString().equals(t.toString());
 	}
 	
 	public enum JavaType{
-		BYTE, SHORT, INT, LONG, STRING, BYTES, FLOAT, DOUBLE
+		BYTE, SHORT, INT, LONG, STRING, BYTES, FLOAT, DOUBLE, DICT_STRING
 	}
 	
 	public static final Type BYTE = new Type() {
@@ -239,6 +244,9 @@ public abstract class Type {
 		}
 	};
 	
+	/**
+	 * Strings of up to 64 bytes in UTF8, padded with zeros to a fixed size
+	 */
 	public static final Type SHORTSTRING = new Type(){
 
 		private final int maxSize = 64; // bytes
@@ -250,14 +258,25 @@ public abstract class Type {
 
 		@Override
 		public void write(ByteBuffer buffer, Object o) {
-			// TODO;
-			
+			byte[] bytes = ((String)o).getBytes(StandardCharsets.UTF_8);
+			if(bytes.length > maxSize) {
+				throw new SchemaException("A SHORTSTRING cannot be longer than " + maxSize + " bytes");
+			}
+			buffer.put(bytes);
+			for(int i = bytes.length; i < maxSize; i++) {
+				buffer.put((byte)0);
+			}
 		}
 
 		@Override
 		public Object read(ByteBuffer buffer) {
-			// TODO:
-			return null;
+			byte[] bytes = new byte[maxSize];
+			buffer.get(bytes);
+			int length = 0;
+			while(length < maxSize && bytes[length] != 0) {
+				length++;
+			}
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
 		}
 
 		@Override
@@ -412,4 +431,104 @@ public abstract class Type {
 			return (double)(rnd.nextDouble());
 		}
 	};
+	
+	/**
+	 * Strings encoded as the int code of a StringDictionary, in the default dictionary
+	 */
+	public static final Type DICT_STRING = new DictString(StringDictionary.DEFAULT);
+	
+	/**
+	 * @return a DICT_STRING type that encodes in the dictionary with the given name, e.g. one per dataset or stream
+	 */
+	public static Type dictString(String dictionaryName) {
+		return new DictString(dictionaryName);
+	}
+	
+	public static final class DictString extends Type {
+		
+		private final String dictionaryName;
+		private transient StringDictionary dictionary;
+		
+		private DictString(String dictionaryName) {
+			this.dictionaryName = dictionaryName;
+		}
+		
+		public String toString(){
+			return "DICT_STRING";
+		}
+		
+		public String dictionaryName() {
+			return dictionaryName;
+		}
+		
+		@Override
+		public boolean equals(Type t) {
+			return t instanceof DictString && dictionaryName.equals(((DictString)t).dictionaryName);
+		}
+		
+		public StringDictionary dictionary() {
+			if(dictionary == null) {
+				dictionary = StringDictionary.named(dictionaryName);
+			}
+			return dictionary;
+		}
+		
+		/**
+		 * @return the code of a value, which is either a String or a code already
+		 */
+		public int code(Object o) {
+			if(o instanceof Integer) {
+				return (int)o;
+			}
+			return dictionary().encode((String)o);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, Object o) {
+			buffer.putInt(code(o));
+		}
+
+		@Override
+		public Object read(ByteBuffer buffer) {
+			return dictionary().decode(buffer.getInt());
+		}
+
+		@Override
+		public int sizeOf(Object o) {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public boolean isVariableSize() {
+			return false;
+		}
+		
+		@Override
+		public Object defaultValue() {
+			return "string";
+		}
+		
+		@Override
+		public Object randomValue() {
+			return new Integer((rnd.nextInt())).toString();
+		}
+	}
+	
+	/**
+	 * Deserialized schemas carry copies of the constants, so they are matched by name
+	 * @return the constant with the same name as t, so that types can be compared by reference. DICT_STRING types
+	 * are returned as they are, as they are bound to their dictionary
+	 */
+	public static Type canonical(Type t) {
+		if(t instanceof DictString) {
+			return t;
+		}
+		Type[] all = new Type[]{ BYTE, SHORT, INT, LONG, STRING, SHORTSTRING, BYTES, FLOAT, DOUBLE };
+		for(Type c : all) {
+			if(c.equals(t)) {
+				return c;
+			}
+		}
+		return t;
+	}
 }
@@ -0,0 +1,315 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+/**
+ * A reusable row that keeps the values of a tuple unboxed, in one primitive array per kind of type, so that
+ * operators fused in the same task hand tuples to each other without serializing or allocating them.
+ * Integral fields are kept in a long[], floating point ones in a double[], and the rest by reference.
+ * DICT_STRING fields are kept as their codes, with the integral ones.
+ * Accessors by index take the position of the field in the schema, as in ITuple.
+ */
+public class TypedRow extends ITuple {
+
+	private static final int INTEGRAL = 0;
+	private static final int FLOATING = 1;
+	private static final int REFERENCE = 2;
+
+	private final Type[] types;
+	private final int[] kinds;
+	// position of each field in the array of its kind
+	private final int[] slots;
+	private final Map<String, Integer> fieldToIdx;
+
+	private final long[] integrals;
+	private final double[] floatings;
+	private final Object[] references;
+
+	public TypedRow(Schema schema) {
+		super(schema);
+		this.types = new Type[schema.fields().length];
+		this.kinds = new int[types.length];
+		this.slots = new int[types.length];
+		this.fieldToIdx = new HashMap<>();
+		int[] perKind = new int[3];
+		String[] names = schema.names();
+		for(int i = 0; i < types.length; i++) {
+			types[i] = Type.canonical(schema.fields()[i]);
+			kinds[i] = kindOf(types[i]);
+			slots[i] = perKind[kinds[i]]++;
+			fieldToIdx.put(names[i], i);
+		}
+		this.integrals = new long[perKind[INTEGRAL]];
+		this.floatings = new double[perKind[FLOATING]];
+		this.references = new Object[perKind[REFERENCE]];
+	}
+
+	private static int kindOf(Type t) {
+		if(t == Type.BYTE || t == Type.SHORT || t == Type.INT || t == Type.LONG || t instanceof Type.DictString) {
+			return INTEGRAL;
+		}
+		else if(t == Type.FLOAT || t == Type.DOUBLE) {
+			return FLOATING;
+		}
+		return REFERENCE;
+	}
+
+	/**
+	 * Unboxes the values of the given tuple into this row. The tuple can be reused afterwards
+	 */
+	public void setFrom(OTuple o) {
+		Object[] values = o.getValues();
+		if(values.length != types.length) {
+			throw new SchemaException("Mismatch between tuple values: " + values.length + " and schema fields: " + types.length);
+		}
+		for(int i = 0; i < values.length; i++) {
+			switch(kinds[i]) {
+			case INTEGRAL:
+				if(types[i] instanceof Type.DictString) {
+					integrals[slots[i]] = ((Type.DictString)types[i]).code(values[i]);
+					break;
+				}
+				integrals[slots[i]] = ((Number)values[i]).longValue();
+				break;
+			case FLOATING:
+				floatings[slots[i]] = ((Number)values[i]).doubleValue();
+				break;
+			default:
+				references[slots[i]] = values[i];
+			}
+		}
+	}
+
+	/**
+	 * Reads the values of a serialized tuple into this row
+	 */
+	@Override
+	public void setData(byte[] data) {
+		readFrom(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Reads the values of a tuple finished by the builder into this row
+	 */
+	public void setFrom(OTupleBuilder b) {
+		ByteBuffer buf = b.buffer();
+		int position = buf.position();
+		buf.position(b.tuplePosition());
+		readFrom(buf);
+		buf.position(position);
+	}
+
+	private void readFrom(ByteBuffer wrapper) {
+		for(int i = 0; i < types.length; i++) {
+			Type t = types[i];
+			if(t == Type.BYTE) {
+				integrals[slots[i]] = wrapper.get();
+			}
+			else if(t == Type.SHORT) {
+				integrals[slots[i]] = wrapper.getShort();
+			}
+			else if(t == Type.INT || t instanceof Type.DictString) {
+				integrals[slots[i]] = wrapper.getInt();
+			}
+			else if(t == Type.LONG) {
+				integrals[slots[i]] = wrapper.getLong();
+			}
+			else if(t == Type.FLOAT) {
+				floatings[slots[i]] = wrapper.getFloat();
+			}
+			else if(t == Type.DOUBLE) {
+				floatings[slots[i]] = wrapper.getDouble();
+			}
+			else {
+				references[slots[i]] = t.read(wrapper);
+			}
+		}
+	}
+
+	/**
+	 * Serializes the row. Only needed by operators that access raw tuples, fused operators use the accessors
+	 */
+	@Override
+	public byte[] getData() {
+		Object[] values = new Object[types.length];
+		for(int i = 0; i < types.length; i++) {
+			values[i] = types[i] instanceof Type.DictString ? getDictCode(i) : get(i);
+		}
+		return OTuple.createUnsafe(types, values);
+	}
+
+	private int idx(String fieldName, Type type) {
+		Integer idx = fieldToIdx.get(fieldName);
+		if(idx == null) {
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(types[idx] != type && ! (type == Type.DICT_STRING && types[idx] instanceof Type.DictString)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ type +"' with name '"+fieldName+"'");
+		}
+		return idx;
+	}
+
+	public void setByte(int idx, byte value) {
+		integrals[slots[idx]] = value;
+	}
+
+	public void setShort(int idx, short value) {
+		integrals[slots[idx]] = value;
+	}
+
+	public void setInt(int idx, int value) {
+		integrals[slots[idx]] = value;
+	}
+
+	public void setLong(int idx, long value) {
+		integrals[slots[idx]] = value;
+	}
+
+	public void setFloat(int idx, float value) {
+		floatings[slots[idx]] = value;
+	}
+
+	public void setDouble(int idx, double value) {
+		floatings[slots[idx]] = value;
+	}
+
+	public void setDictCode(int idx, int code) {
+		integrals[slots[idx]] = code;
+	}
+
+	public void setObject(int idx, Object value) {
+		references[slots[idx]] = value;
+	}
+
+	@Override
+	public int getIndexFor(String fieldName) {
+		return fieldToIdx.get(fieldName);
+	}
+
+	@Override
+	public byte getByte(String fieldName) {
+		return (byte)integrals[slots[idx(fieldName, Type.BYTE)]];
+	}
+
+	@Override
+	public byte getByte(int idx) {
+		return (byte)integrals[slots[idx]];
+	}
+
+	@Override
+	public short getShort(String fieldName) {
+		return (short)integrals[slots[idx(fieldName, Type.SHORT)]];
+	}
+
+	@Override
+	public short getShort(int idx) {
+		return (short)integrals[slots[idx]];
+	}
+
+	@Override
+	public int getInt(String fieldName) {
+		return (int)integrals[slots[idx(fieldName, Type.INT)]];
+	}
+
+	@Override
+	public int getInt(int idx) {
+		return (int)integrals[slots[idx]];
+	}
+
+	@Override
+	public long getLong(String fieldName) {
+		return integrals[slots[idx(fieldName, Type.LONG)]];
+	}
+
+	@Override
+	public long getLong(int idx) {
+		return integrals[slots[idx]];
+	}
+
+	@Override
+	public float getFloat(String fieldName) {
+		return (float)floatings[slots[idx(fieldName, Type.FLOAT)]];
+	}
+
+	@Override
+	public float getFloat(int idx) {
+		return (float)floatings[slots[idx]];
+	}
+
+	@Override
+	public double getDouble(String fieldName) {
+		return floatings[slots[idx(fieldName, Type.DOUBLE)]];
+	}
+
+	@Override
+	public double getDouble(int idx) {
+		return floatings[slots[idx]];
+	}
+
+	@Override
+	public int getDictCode(String fieldName) {
+		return (int)integrals[slots[idx(fieldName, Type.DICT_STRING)]];
+	}
+
+	@Override
+	public int getDictCode(int idx) {
+		return (int)integrals[slots[idx]];
+	}
+
+	@Override
+	public String getString(String fieldName) {
+		Integer idx = fieldToIdx.get(fieldName);
+		if(idx != null && types[idx] instanceof Type.DictString) {
+			return ((Type.DictString)types[idx]).dictionary().decode(getDictCode(idx));
+		}
+		return (String)references[slots[idx(fieldName, Type.STRING)]];
+	}
+
+	@Override
+	public byte[] getBytes(String fieldName) {
+		return (byte[])references[slots[idx(fieldName, Type.BYTES)]];
+	}
+
+	@Override
+	public Object get(String fieldName) {
+		Integer idx = fieldToIdx.get(fieldName);
+		if(idx == null) {
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		return get(idx);
+	}
+
+	/**
+	 * Boxes the value, so not meant for the data path
+	 */
+	public Object get(int idx) {
+		Type t = types[idx];
+		if(t == Type.BYTE) {
+			return getByte(idx);
+		}
+		else if(t == Type.SHORT) {
+			return getShort(idx);
+		}
+		else if(t == Type.INT) {
+			return getInt(idx);
+		}
+		else if(t == Type.LONG) {
+			return getLong(idx);
+		}
+		else if(t == Type.FLOAT) {
+			return getFloat(idx);
+		}
+		else if(t == Type.DOUBLE) {
+			return getDouble(idx);
+		}
+		else if(t instanceof Type.DictString) {
+			return ((Type.DictString)t).dictionary().decode(getDictCode(idx));
+		}
+		return references[slots[idx]];
+	}
+
+}
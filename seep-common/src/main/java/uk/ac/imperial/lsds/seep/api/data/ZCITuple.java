@@ -21,7 +21,60 @@ public class ZCITuple extends ITuple {
 		this.bufferPtrPosition = newPosition;
 	}
 	
+	public byte getByte(String fieldName){
+		if(accessor != null) {
+			return accessor.getByte(ptr, bufferPtrPosition, fieldName);
+		}
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(! schema.typeCheck(fieldName, Type.BYTE)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ Type.BYTE +"' with name '"+fieldName+"'");
+		}
+		
+		int offset = mapFieldToOffset.get(fieldName);
+		int ptrPosition = bufferPtrPosition + offset;
+		return ptr.get(ptrPosition);
+	}
+	
+	public byte getByte(int idx) {
+		if(accessor != null) {
+			return accessor.getByte(ptr, bufferPtrPosition, idx);
+		}
+		int offset = mapIdxToOffset[idx];
+		int ptrPosition = bufferPtrPosition + offset;
+		return ptr.get(ptrPosition);
+	}
+	
+	public short getShort(String fieldName){
+		if(accessor != null) {
+			return accessor.getShort(ptr, bufferPtrPosition, fieldName);
+		}
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(! schema.typeCheck(fieldName, Type.SHORT)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ Type.SHORT +"' with name '"+fieldName+"'");
+		}
+		
+		int offset = mapFieldToOffset.get(fieldName);
+		int ptrPosition = bufferPtrPosition + offset;
+		return ptr.getShort(ptrPosition);
+	}
+	
+	public short getShort(int idx) {
+		if(accessor != null) {
+			return accessor.getShort(ptr, bufferPtrPosition, idx);
+		}
+		int offset = mapIdxToOffset[idx];
+		int ptrPosition = bufferPtrPosition + offset;
+		return ptr.getShort(ptrPosition);
+	}
+	
 	public int getInt(String fieldName){
+		if(accessor != null) {
+			return accessor.getInt(ptr, bufferPtrPosition, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -31,18 +84,44 @@ public class ZCITuple extends ITuple {
 		
 		int offset = mapFieldToOffset.get(fieldName);
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getInt();
+		return ptr.getInt(ptrPosition);
 	}
 	
 	public int getInt(int idx) {
+		if(accessor != null) {
+			return accessor.getInt(ptr, bufferPtrPosition, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getInt();
+		return ptr.getInt(ptrPosition);
+	}
+	
+	public int getDictCode(String fieldName){
+		if(accessor != null) {
+			return accessor.getDictCode(ptr, bufferPtrPosition, fieldName);
+		}
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		if(! schema.typeCheck(fieldName, Type.DICT_STRING)) {
+			throw new SchemaException("Current Schema cannot typeCheck a field type '"+ Type.DICT_STRING +"' with name '"+fieldName+"'");
+		}
+		
+		int offset = mapFieldToOffset.get(fieldName);
+		return ptr.getInt(bufferPtrPosition + offset);
+	}
+	
+	public int getDictCode(int idx) {
+		if(accessor != null) {
+			return accessor.getDictCode(ptr, bufferPtrPosition, idx);
+		}
+		return ptr.getInt(bufferPtrPosition + mapIdxToOffset[idx]);
 	}
 	
 	public long getLong(String fieldName){
+		if(accessor != null) {
+			return accessor.getLong(ptr, bufferPtrPosition, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -52,18 +131,22 @@ public class ZCITuple extends ITuple {
 		
 		int offset = mapFieldToOffset.get(fieldName);
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getLong();
+		return ptr.getLong(ptrPosition);
 	}
 	
 	public long getLong(int idx) {
+		if(accessor != null) {
+			return accessor.getLong(ptr, bufferPtrPosition, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getLong();
+		return ptr.getLong(ptrPosition);
 	}
 	
 	public float getFloat(String fieldName){
+		if(accessor != null) {
+			return accessor.getFloat(ptr, bufferPtrPosition, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -73,18 +156,22 @@ public class ZCITuple extends ITuple {
 		
 		int offset = mapFieldToOffset.get(fieldName);
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getFloat();
+		return ptr.getFloat(ptrPosition);
 	}
 	
 	public float getFloat(int idx) {
+		if(accessor != null) {
+			return accessor.getFloat(ptr, bufferPtrPosition, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getFloat();
+		return ptr.getFloat(ptrPosition);
 	}
 	
 	public double getDouble(String fieldName){
+		if(accessor != null) {
+			return accessor.getDouble(ptr, bufferPtrPosition, fieldName);
+		}
 		if(! schema.hasField(fieldName)){
 			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
 		}
@@ -94,15 +181,51 @@ public class ZCITuple extends ITuple {
 		
 		int offset = mapFieldToOffset.get(fieldName);
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getDouble();
+		return ptr.getDouble(ptrPosition);
 	}
 	
 	public double getDouble(int idx) {
+		if(accessor != null) {
+			return accessor.getDouble(ptr, bufferPtrPosition, idx);
+		}
 		int offset = mapIdxToOffset[idx];
 		int ptrPosition = bufferPtrPosition + offset;
-		ptr.position(ptrPosition);
-		return ptr.getDouble();
+		return ptr.getDouble(ptrPosition);
+	}
+
+	public Object get(String fieldName){
+		if(! schema.hasField(fieldName)){
+			throw new SchemaException("Current Schema does not have a field with name '"+fieldName+ "'");
+		}
+		int idx = mapFieldToIdx.get(fieldName);
+		Type t = schema.getField(fieldName);
+		Object o = null;
+		if(t.equals(Type.BYTE)){
+			o = getByte(idx);
+		} else if(t.equals(Type.INT)){
+			o = getInt(idx);
+		} else if(t.equals(Type.SHORT)){
+			o = getShort(idx);
+		} else if(t.equals(Type.LONG)){
+			o = getLong(idx);
+		} else if(t.equals(Type.FLOAT)){
+			o = getFloat(idx);
+		} else if(t.equals(Type.DOUBLE)){
+			o = getDouble(idx);
+		} else if(t instanceof Type.DictString){
+			o = getString(fieldName);
+		}
+		return o;
+	}
+	
+	/**
+	 * Copies the tuple out of the buffer it points to. Only valid for fixed-size schemas
+	 */
+	public byte[] getData(){
+		byte[] data = new byte[schema.sizeOfTuple()];
+		ptr.position(bufferPtrPosition);
+		ptr.get(data);
+		return data;
 	}
  
 }
@@ -0,0 +1,32 @@
+package uk.ac.imperial.lsds.seep.api.state;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A class implements IncrementalCheckpoint to indicate that it can checkpoint only what changed since its previous
+ * checkpoint. The first checkpoint is a base one, with the whole state, and the following ones are deltas on top of
+ * it. Checkpoints are written in the background, so the owner of the state only pauses to start them.
+ */
+public interface IncrementalCheckpoint extends Checkpoint {
+
+	/**
+	 * Starts writing a checkpoint to out: a base one the first time or after rebase(), and a delta with the changes
+	 * since the previous checkpoint otherwise. The state can be used while the checkpoint is written.
+	 * @return a future with the number of entries written, done when the checkpoint is in out
+	 */
+	public Future<Integer> checkpoint(OutputStream out);
+
+	/**
+	 * Makes the next checkpoint a base one, e.g. so that older checkpoints can be dropped
+	 */
+	public void rebase();
+
+	/**
+	 * Recovers from a base checkpoint followed by the deltas written after it, in the order they were written
+	 */
+	public void recover(List<InputStream> checkpoints);
+
+}
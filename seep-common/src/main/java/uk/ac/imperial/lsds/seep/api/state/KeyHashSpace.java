@@ -0,0 +1,98 @@
+package uk.ac.imperial.lsds.seep.api.state;
+
+import java.util.Arrays;
+
+/**
+ * Space of the hashes of int keys, split in subspaces by frontiers. Subspace i holds the hashes in
+ * (frontier i+1, frontier i], and the last one all hashes up to its frontier. ConsistentHashingRoutingState routes
+ * tuples with key k to the i-th downstream when the hash of k is in subspace i, and partitioned states split their
+ * entries in the same subspaces, so that partition i of a state holds the keys routed to the i-th downstream. States
+ * use the hashCode of their keys as their int key, which is the key itself for Integer keys.
+ * Keys are hashed with the CRC32 of their 4 bytes.
+ */
+public class KeyHashSpace {
+
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for(int i = 0; i < 256; i++) {
+			int c = i;
+			for(int b = 0; b < 8; b++) {
+				c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+			}
+			CRC_TABLE[i] = c;
+		}
+	}
+
+	// Decreasing, starting at Integer.MAX_VALUE
+	private final int[] frontiers;
+
+	/**
+	 * Splits the space in subspaces of the same size
+	 */
+	public KeyHashSpace(int numSpaces) {
+		this.frontiers = new int[Math.max(1, numSpaces)];
+		long entireSpace = (long)Integer.MAX_VALUE * 2;
+		long subspaceSize = entireSpace / frontiers.length;
+		long frontier = Integer.MAX_VALUE;
+		for(int i = 0; i < frontiers.length; i++) {
+			frontiers[i] = (int)frontier;
+			frontier -= subspaceSize;
+		}
+	}
+
+	private KeyHashSpace(int[] frontiers) {
+		this.frontiers = frontiers;
+	}
+
+	public static int hash(int key) {
+		int crc = 0xFFFFFFFF;
+		for(int shift = 24; shift >= 0; shift -= 8) {
+			crc = CRC_TABLE[(crc ^ (key >>> shift)) & 0xFF] ^ (crc >>> 8);
+		}
+		return ~crc;
+	}
+
+	public int numSubspaces() {
+		return frontiers.length;
+	}
+
+	/**
+	 * @return the subspace of the hash of the key
+	 */
+	public int subspaceOf(int key) {
+		int h = hash(key);
+		// Last subspace whose frontier is not below h
+		int lo = 0;
+		int hi = frontiers.length - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(h <= frontiers[mid]) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return a space where subspace i is split in two halves, the upper one as subspace i and the lower one as
+	 * subspace i+1. The following subspaces move one position up
+	 */
+	public KeyHashSpace split(int subspace) {
+		long upper = frontiers[subspace];
+		long lower = subspace + 1 < frontiers.length ? frontiers[subspace + 1] : (long)Integer.MIN_VALUE - 1;
+		int[] split = new int[frontiers.length + 1];
+		System.arraycopy(frontiers, 0, split, 0, subspace + 1);
+		split[subspace + 1] = (int)(lower + (upper - lower) / 2);
+		System.arraycopy(frontiers, subspace + 1, split, subspace + 2, frontiers.length - subspace - 1);
+		return new KeyHashSpace(split);
+	}
+
+	@Override
+	public String toString() {
+		return "KeyHashSpace" + Arrays.toString(frontiers);
+	}
+
+}
@@ -0,0 +1,11 @@
+package uk.ac.imperial.lsds.seep.api.state;
+
+/**
+ * A class implements MemoryManaged to indicate that it keeps its content in memory borrowed from a StateMemory, which
+ * the worker that runs it sets before the state is used.
+ */
+public interface MemoryManaged {
+
+	public void setStateMemory(StateMemory memory);
+
+}
@@ -0,0 +1,27 @@
+package uk.ac.imperial.lsds.seep.api.state;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Memory budget that a state keeps its content in, in pages of a fixed size. Workers give states a StateMemory that
+ * borrows pages from their buffer pool, so that states and datasets share the memory of the worker.
+ */
+public interface StateMemory {
+
+	public int pageSize();
+
+	/**
+	 * @return a page with room for at least pageSize() bytes, or null if the budget is exhausted, in which case the
+	 * state must spill pages to disk to get one
+	 */
+	public ByteBuffer borrowPage();
+
+	public void returnPage(ByteBuffer page);
+
+	/**
+	 * @return the directory where states spill the pages that do not fit in the budget
+	 */
+	public File spillDirectory();
+
+}
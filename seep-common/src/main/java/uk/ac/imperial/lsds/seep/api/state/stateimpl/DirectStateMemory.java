@@ -0,0 +1,72 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import uk.ac.imperial.lsds.seep.api.state.StateMemory;
+
+/**
+ * StateMemory with a budget of its own, in direct memory, for states that are used outside a worker. Pages are
+ * kept for reuse once returned.
+ */
+public class DirectStateMemory implements StateMemory {
+
+	public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_PAGES = 256;
+
+	private final int pageSize;
+	private final int maxPages;
+	private final File spillDirectory;
+	private final Deque<ByteBuffer> free = new ArrayDeque<>();
+	private int borrowed = 0;
+
+	public DirectStateMemory() {
+		this(DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+	}
+
+	public DirectStateMemory(int pageSize, int maxPages) {
+		this(pageSize, maxPages, new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	public DirectStateMemory(int pageSize, int maxPages, File spillDirectory) {
+		this.pageSize = pageSize;
+		this.maxPages = maxPages;
+		this.spillDirectory = spillDirectory;
+	}
+
+	@Override
+	public int pageSize() {
+		return pageSize;
+	}
+
+	@Override
+	public synchronized ByteBuffer borrowPage() {
+		ByteBuffer page = free.pollFirst();
+		if(page == null) {
+			if(borrowed == maxPages) {
+				return null;
+			}
+			page = ByteBuffer.allocateDirect(pageSize);
+		}
+		borrowed++;
+		return page;
+	}
+
+	@Override
+	public synchronized void returnPage(ByteBuffer page) {
+		borrowed--;
+		free.addFirst(page);
+	}
+
+	public synchronized int borrowedPages() {
+		return borrowed;
+	}
+
+	@Override
+	public File spillDirectory() {
+		return spillDirectory;
+	}
+
+}
@@ -0,0 +1,338 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import uk.ac.imperial.lsds.seep.api.state.Checkpoint;
+import uk.ac.imperial.lsds.seep.api.state.DistributedMutableState;
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.MemoryManaged;
+import uk.ac.imperial.lsds.seep.api.state.Mergeable;
+import uk.ac.imperial.lsds.seep.api.state.Partitionable;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.api.state.StateMemory;
+import uk.ac.imperial.lsds.seep.api.state.Streamable;
+import uk.ac.imperial.lsds.seep.comm.serialization.KryoFactory;
+import uk.ac.imperial.lsds.seep.errors.IllegalOperationOnStateException;
+import uk.ac.imperial.lsds.seep.errors.IncompatibleStateException;
+
+/**
+ * Map state that keeps its keys and values serialized out of the heap, in pages of the StateMemory set by the worker,
+ * so that it shares the memory budget of the worker with its datasets and is not bound by the heap. The pages used
+ * least recently are spilled to disk when the budget is exhausted, see PageStore. Outside a worker the map uses a
+ * DirectStateMemory of its own.
+ * Keys and values are serialized with Kryo, and keys are equal when their serialized bytes are, which holds for
+ * primitive wrappers, strings and most value classes. Updates that do not change the size of the serialized value,
+ * e.g. of counters, are done in place. An entry must fit in a page.
+ * Not thread safe.
+ */
+public class OffHeapSeepMap<K,V> extends AbstractMap<K,V> implements Checkpoint, Partitionable, Mergeable, Streamable,
+		SeepState, MemoryManaged {
+
+	private int owner;
+	private DistributedMutableState dms = DistributedMutableState.PARTITIONED;
+
+	// Created when the map is first used, on the worker that runs it
+	private transient StateMemory memory;
+	private transient PageStore store;
+	private transient Kryo kryo;
+	private transient Output keyOut;
+	private transient Output valueOut;
+	private transient Input in;
+
+	public OffHeapSeepMap() { }
+
+	public OffHeapSeepMap(StateMemory memory) {
+		this.memory = memory;
+	}
+
+	/** Implement MemoryManaged interface **/
+
+	@Override
+	public void setStateMemory(StateMemory memory) {
+		if(store != null) {
+			if(store.size() > 0) {
+				throw new IllegalOperationOnStateException("The memory of a state cannot change once it holds entries");
+			}
+			store.clear();
+			store = null;
+		}
+		this.memory = memory;
+	}
+
+	private PageStore store() {
+		if(store == null) {
+			if(memory == null) {
+				memory = new DirectStateMemory();
+			}
+			store = new PageStore(memory);
+			kryo = KryoFactory.buildKryoForDeepCopy(this.getClass().getClassLoader());
+			keyOut = new Output(256, -1);
+			valueOut = new Output(256, -1);
+			in = new Input();
+		}
+		return store;
+	}
+
+	private void serializeKey(Object key) {
+		keyOut.clear();
+		kryo.writeClassAndObject(keyOut, key);
+	}
+
+	private Object deserialize(byte[] bytes, int size) {
+		in.setBuffer(bytes, 0, size);
+		return kryo.readClassAndObject(in);
+	}
+
+	/** Implement SeepState interface **/
+
+	@Override
+	public void setOwner(int owner) {
+		this.owner = owner;
+	}
+
+	@Override
+	public int getOwner() {
+		return owner;
+	}
+
+	@Override
+	public DistributedMutableState getDMS() {
+		return dms;
+	}
+
+	@Override
+	public void setDMS(DistributedMutableState dms) {
+		this.dms = dms;
+	}
+
+	/** Implement Map<K,V> interface **/
+
+	@Override
+	public int size() {
+		return store().size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		PageStore s = store();
+		serializeKey(key);
+		return s.find(keyOut.getBuffer(), keyOut.position()) != -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		PageStore s = store();
+		serializeKey(key);
+		long address = s.find(keyOut.getBuffer(), keyOut.position());
+		if(address == -1) {
+			return null;
+		}
+		int valueSize = s.copyValue(address);
+		return (V)deserialize(s.valueBuffer(), valueSize);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V put(K key, V value) {
+		PageStore s = store();
+		serializeKey(key);
+		valueOut.clear();
+		kryo.writeClassAndObject(valueOut, value);
+		int previous = s.put(keyOut.getBuffer(), keyOut.position(), valueOut.getBuffer(), valueOut.position(), true);
+		return previous == -1 ? null : (V)deserialize(s.valueBuffer(), previous);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(Object key) {
+		PageStore s = store();
+		serializeKey(key);
+		int previous = s.remove(keyOut.getBuffer(), keyOut.position(), true, true);
+		return previous == -1 ? null : (V)deserialize(s.valueBuffer(), previous);
+	}
+
+	/**
+	 * Returns the pages of the map to its StateMemory
+	 */
+	@Override
+	public void clear() {
+		store().clear();
+	}
+
+	/**
+	 * Entries are read from the pages as they are iterated, in the order they are stored
+	 */
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return OffHeapSeepMap.this.size();
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		private final PageStore s = store();
+		private long current = -1;
+		private long next = s.nextLive(-1);
+		private K currentKey;
+
+		@Override
+		public boolean hasNext() {
+			return next != -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Map.Entry<K, V> next() {
+			if(next == -1) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			int keySize = s.copyKey(current);
+			currentKey = (K)deserialize(s.keyBuffer(), keySize);
+			int valueSize = s.copyValue(current);
+			V value = (V)deserialize(s.valueBuffer(), valueSize);
+			next = s.nextLive(current);
+			return new AbstractMap.SimpleImmutableEntry<>(currentKey, value);
+		}
+
+		@Override
+		public void remove() {
+			if(current == -1) {
+				throw new IllegalStateException();
+			}
+			// Records are not moved, so the addresses of the next ones stay valid
+			serializeKey(currentKey);
+			s.remove(keyOut.getBuffer(), keyOut.position(), false, false);
+			current = -1;
+		}
+	}
+
+	/** Implement Streamable interface **/
+
+	@Override
+	public Iterator<Map.Entry<K, V>> makeStream() {
+		return entrySet().iterator();
+	}
+
+	/** Implement Mergeable interface **/
+
+	/**
+	 * Copies the entries of the chunks as they are serialized
+	 */
+	@Override
+	public void merge(List<SeepState> state) {
+		PageStore s = store();
+		for(SeepState chunk : state) {
+			if(! (chunk instanceof OffHeapSeepMap)) {
+				throw new IncompatibleStateException("Attempt to merge an incompatible state");
+			}
+			PageStore other = ((OffHeapSeepMap<?, ?>)chunk).store();
+			for(long a = other.nextLive(-1); a != -1; a = other.nextLive(a)) {
+				int keySize = other.copyKey(a);
+				int valueSize = other.copyValue(a);
+				s.put(other.keyBuffer(), keySize, other.valueBuffer(), valueSize, false);
+			}
+		}
+	}
+
+	/** Implement Partitionable interface **/
+
+	@Override
+	public List<SeepState> partition() {
+		return partition(2);
+	}
+
+	/**
+	 * Splits the map in the subspaces of a KeyHashSpace of the given size, so that partition i holds the keys that
+	 * ConsistentHashingRoutingState routes to the i-th downstream
+	 */
+	@Override
+	public List<SeepState> partition(int partitions) {
+		return partition(new KeyHashSpace(partitions));
+	}
+
+	/**
+	 * Splits the map in the subspaces of the space, copying the entries as they are serialized. Partitions share the
+	 * memory of this map
+	 */
+	public List<SeepState> partition(KeyHashSpace space) {
+		PageStore s = store();
+		int partitions = space.numSubspaces();
+		List<SeepState> result = new ArrayList<>(partitions);
+		List<PageStore> stores = new ArrayList<>(partitions);
+		for(int i = 0; i < partitions; i++) {
+			OffHeapSeepMap<K, V> p = new OffHeapSeepMap<>(memory);
+			p.setDMS(dms);
+			result.add(p);
+			stores.add(p.store());
+		}
+		for(long a = s.nextLive(-1); a != -1; a = s.nextLive(a)) {
+			int keySize = s.copyKey(a);
+			int valueSize = s.copyValue(a);
+			Object key = deserialize(s.keyBuffer(), keySize);
+			int p = space.subspaceOf(key == null ? 0 : key.hashCode());
+			stores.get(p).put(s.keyBuffer(), keySize, s.valueBuffer(), valueSize, false);
+		}
+		return result;
+	}
+
+	/** Implement Checkpoint interface **/
+
+	/**
+	 * Entries are written as they are serialized in the pages, without deserializing them
+	 */
+	@Override
+	public byte[] checkpoint() {
+		PageStore s = store();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Output o = new Output(baos);
+		o.writeInt(s.size());
+		for(long a = s.nextLive(-1); a != -1; a = s.nextLive(a)) {
+			int keySize = s.copyKey(a);
+			int valueSize = s.copyValue(a);
+			o.writeInt(keySize);
+			o.writeBytes(s.keyBuffer(), 0, keySize);
+			o.writeInt(valueSize);
+			o.writeBytes(s.valueBuffer(), 0, valueSize);
+		}
+		o.close();
+		return baos.toByteArray();
+	}
+
+	@Override
+	public void recover(byte[] bytes) {
+		PageStore s = store();
+		s.clear();
+		Input i = new Input(bytes);
+		int size = i.readInt();
+		for(int e = 0; e < size; e++) {
+			byte[] key = i.readBytes(i.readInt());
+			byte[] value = i.readBytes(i.readInt());
+			s.put(key, key.length, value, value.length, false);
+		}
+		i.close();
+	}
+
+}
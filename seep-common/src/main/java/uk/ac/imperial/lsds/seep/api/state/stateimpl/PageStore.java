@@ -0,0 +1,700 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.lsds.seep.api.state.StateMemory;
+import uk.ac.imperial.lsds.seep.errors.IllegalOperationOnStateException;
+import uk.ac.imperial.lsds.seep.errors.SeepException;
+
+/**
+ * Log structured store of key-value records, in pages borrowed from a StateMemory. Records are appended to the
+ * last page, and found through an index of key hashes and record addresses, the only part of the store on the
+ * heap. A record is rewritten in place when its new value has the size of the old one, and appended again
+ * otherwise, leaving the old one dead.
+ * When the memory has no pages left the least recently used page is evicted: written at the end of a spill file if
+ * it changed since it was last read, and its memory reused. Pages that are mostly dead are emptied by appending their
+ * live records again, and the spill file is rewritten when it is mostly dead pages.
+ * Records have the layout [hash][key size][value size][key][value]. Keys are equal if their bytes are equal.
+ * Not thread safe.
+ */
+class PageStore {
+
+	final private static Logger LOG = LoggerFactory.getLogger(PageStore.class);
+
+	private static final int HEADER_SIZE = 3 * Integer.BYTES;
+	private static final long EMPTY = -1L;
+	private static final int NONE = -1;
+
+	private final StateMemory memory;
+	private final int pageSize;
+
+	// Index, by open addressing
+	private int[] hashes;
+	private long[] addresses;
+	private int mask;
+	private int size;
+
+	// Pages, by id
+	private ByteBuffer[] frames;
+	private boolean[] allocated;
+	private int[] used;
+	private int[] live;
+	private boolean[] dirty;
+	private long[] fileOffset;
+	private int pageCount;
+	private int[] freeIds;
+	private int freeCount;
+	private int writePage = NONE;
+
+	// Resident pages, most recently used first
+	private int[] prev;
+	private int[] next;
+	private int lruHead = NONE;
+	private int lruTail = NONE;
+
+	private long liveBytes;
+	private long deadBytes;
+
+	private File file;
+	private FileChannel channel;
+	private long fileEnd;
+	private long fileGarbage;
+
+	// Copies of keys and values read, and of records moved by compaction, grown as needed
+	private byte[] keyBuffer = new byte[64];
+	private byte[] valueBuffer = new byte[64];
+	private byte[] scratch = new byte[64];
+	// Page held out of the memory budget, if any
+	private ByteBuffer reserve;
+
+	PageStore(StateMemory memory) {
+		this.memory = memory;
+		this.pageSize = memory.pageSize();
+		resetIndex(16);
+		resetPages(4);
+	}
+
+	private void resetIndex(int capacity) {
+		this.hashes = new int[capacity];
+		this.addresses = new long[capacity];
+		Arrays.fill(addresses, EMPTY);
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+	private void resetPages(int capacity) {
+		this.frames = new ByteBuffer[capacity];
+		this.allocated = new boolean[capacity];
+		this.used = new int[capacity];
+		this.live = new int[capacity];
+		this.dirty = new boolean[capacity];
+		this.fileOffset = new long[capacity];
+		this.prev = new int[capacity];
+		this.next = new int[capacity];
+		this.freeIds = new int[capacity];
+		this.pageCount = 0;
+		this.freeCount = 0;
+		this.writePage = NONE;
+		this.lruHead = NONE;
+		this.lruTail = NONE;
+	}
+
+	int pageSize() {
+		return pageSize;
+	}
+
+	int size() {
+		return size;
+	}
+
+	static int hash(byte[] key, int keySize) {
+		int h = 0x9747b28c;
+		for(int i = 0; i < keySize; i++) {
+			h = (h ^ key[i]) * 0x5bd1e995;
+			h ^= h >>> 15;
+		}
+		return h;
+	}
+
+	private static int slotOf(int hash, int mask) {
+		int h = hash * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static long address(int page, int offset) {
+		return ((long)page << 32) | offset;
+	}
+
+	private static int pageOf(long address) {
+		return (int)(address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int)address;
+	}
+
+	/** Records **/
+
+	/**
+	 * @return the address of the record of the key, or -1 if there is none
+	 */
+	long find(byte[] key, int keySize) {
+		int slot = slotFor(hash(key, keySize), key, keySize);
+		return slot < 0 ? EMPTY : addresses[slot];
+	}
+
+	/**
+	 * @return the slot of the key in the index, or -(empty slot)-1 if it is not in the index
+	 */
+	private int slotFor(int hash, byte[] key, int keySize) {
+		int i = slotOf(hash, mask);
+		while(true) {
+			long a = addresses[i];
+			if(a == EMPTY) {
+				return -i - 1;
+			}
+			if(hashes[i] == hash && keyEquals(a, key, keySize)) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private boolean keyEquals(long address, byte[] key, int keySize) {
+		ByteBuffer f = page(pageOf(address));
+		int offset = offsetOf(address);
+		if(f.getInt(offset + Integer.BYTES) != keySize) {
+			return false;
+		}
+		offset = offset + HEADER_SIZE;
+		for(int i = 0; i < keySize; i++) {
+			if(f.get(offset + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the key of the record at the given address to keyBuffer()
+	 * @return the size of the key
+	 */
+	int copyKey(long address) {
+		ByteBuffer f = page(pageOf(address));
+		int offset = offsetOf(address);
+		int keySize = f.getInt(offset + Integer.BYTES);
+		keyBuffer = ensure(keyBuffer, keySize);
+		copy(f, offset + HEADER_SIZE, keyBuffer, keySize);
+		return keySize;
+	}
+
+	/**
+	 * Copies the value of the record at the given address to valueBuffer()
+	 * @return the size of the value
+	 */
+	int copyValue(long address) {
+		ByteBuffer f = page(pageOf(address));
+		int offset = offsetOf(address);
+		int keySize = f.getInt(offset + Integer.BYTES);
+		int valueSize = f.getInt(offset + 2 * Integer.BYTES);
+		valueBuffer = ensure(valueBuffer, valueSize);
+		copy(f, offset + HEADER_SIZE + keySize, valueBuffer, valueSize);
+		return valueSize;
+	}
+
+	byte[] keyBuffer() {
+		return keyBuffer;
+	}
+
+	byte[] valueBuffer() {
+		return valueBuffer;
+	}
+
+	private static byte[] ensure(byte[] buffer, int size) {
+		return buffer.length >= size ? buffer : new byte[Math.max(size, buffer.length * 2)];
+	}
+
+	private static void copy(ByteBuffer f, int position, byte[] dst, int size) {
+		ByteBuffer d = f.duplicate();
+		d.position(position);
+		d.get(dst, 0, size);
+	}
+
+	/**
+	 * Sets the value of the key, copying the previous one to valueBuffer() if asked to, in which case value must
+	 * not be valueBuffer()
+	 * @return the size of the previous value, or -1 if the key was not in the store
+	 */
+	int put(byte[] key, int keySize, byte[] value, int valueSize, boolean copyPrevious) {
+		int recordSize = HEADER_SIZE + keySize + valueSize;
+		if(recordSize > pageSize) {
+			throw new IllegalOperationOnStateException("Entry of " + recordSize + " bytes does not fit in a page of "
+					+ pageSize + " bytes");
+		}
+		int hash = hash(key, keySize);
+		int slot = slotFor(hash, key, keySize);
+		if(slot >= 0) {
+			long a = addresses[slot];
+			int p = pageOf(a);
+			int offset = offsetOf(a);
+			ByteBuffer f = page(p);
+			int previousSize = f.getInt(offset + 2 * Integer.BYTES);
+			if(copyPrevious) {
+				valueBuffer = ensure(valueBuffer, previousSize);
+				copy(f, offset + HEADER_SIZE + keySize, valueBuffer, previousSize);
+			}
+			if(previousSize == valueSize) {
+				ByteBuffer d = f.duplicate();
+				d.position(offset + HEADER_SIZE + keySize);
+				d.put(value, 0, valueSize);
+				dirty[p] = true;
+				return previousSize;
+			}
+			addresses[slot] = append(hash, key, keySize, value, 0, valueSize);
+			kill(p, HEADER_SIZE + keySize + previousSize);
+			maybeCompact();
+			return previousSize;
+		}
+		if(size + 1 > (mask + 1) - ((mask + 1) >> 2)) {
+			resizeIndex();
+			slot = slotFor(hash, key, keySize);
+		}
+		slot = -slot - 1;
+		// Appending may load pages, but it does not change the index
+		addresses[slot] = append(hash, key, keySize, value, 0, valueSize);
+		hashes[slot] = hash;
+		size++;
+		return -1;
+	}
+
+	/**
+	 * Removes the key, copying its value to valueBuffer() if asked to. Compaction moves records, so it is held
+	 * back when removing records while they are iterated
+	 * @return the size of the value, or -1 if the key was not in the store
+	 */
+	int remove(byte[] key, int keySize, boolean copyPrevious, boolean compact) {
+		int slot = slotFor(hash(key, keySize), key, keySize);
+		if(slot < 0) {
+			return -1;
+		}
+		long a = addresses[slot];
+		int p = pageOf(a);
+		int offset = offsetOf(a);
+		ByteBuffer f = page(p);
+		int valueSize = f.getInt(offset + 2 * Integer.BYTES);
+		if(copyPrevious) {
+			valueBuffer = ensure(valueBuffer, valueSize);
+			copy(f, offset + HEADER_SIZE + keySize, valueBuffer, valueSize);
+		}
+		removeSlot(slot);
+		kill(p, HEADER_SIZE + keySize + valueSize);
+		if(compact) {
+			maybeCompact();
+		}
+		return valueSize;
+	}
+
+	private void removeSlot(int i) {
+		// Shift back the entries after i in the same run, so that there are no tombstones
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(addresses[j] == EMPTY) {
+				break;
+			}
+			int ideal = slotOf(hashes[j], mask);
+			if(((j - ideal) & mask) >= ((j - i) & mask)) {
+				hashes[i] = hashes[j];
+				addresses[i] = addresses[j];
+				i = j;
+			}
+		}
+		addresses[i] = EMPTY;
+		size--;
+	}
+
+	private void resizeIndex() {
+		int[] oldHashes = hashes;
+		long[] oldAddresses = addresses;
+		int capacity = (mask + 1) * 2;
+		this.hashes = new int[capacity];
+		this.addresses = new long[capacity];
+		Arrays.fill(addresses, EMPTY);
+		this.mask = capacity - 1;
+		for(int i = 0; i < oldAddresses.length; i++) {
+			if(oldAddresses[i] != EMPTY) {
+				int j = slotOf(oldHashes[i], mask);
+				while(addresses[j] != EMPTY) {
+					j = (j + 1) & mask;
+				}
+				hashes[j] = oldHashes[i];
+				addresses[j] = oldAddresses[i];
+			}
+		}
+	}
+
+	private long append(int hash, byte[] key, int keySize, byte[] value, int valueOffset, int valueSize) {
+		int recordSize = HEADER_SIZE + keySize + valueSize;
+		if(writePage == NONE || used[writePage] + recordSize > pageSize) {
+			writePage = newPage();
+		}
+		int p = writePage;
+		ByteBuffer f = page(p);
+		int offset = used[p];
+		f.putInt(offset, hash);
+		f.putInt(offset + Integer.BYTES, keySize);
+		f.putInt(offset + 2 * Integer.BYTES, valueSize);
+		ByteBuffer d = f.duplicate();
+		d.position(offset + HEADER_SIZE);
+		d.put(key, 0, keySize);
+		d.put(value, valueOffset, valueSize);
+		used[p] = offset + recordSize;
+		live[p] = live[p] + recordSize;
+		dirty[p] = true;
+		liveBytes = liveBytes + recordSize;
+		return address(p, offset);
+	}
+
+	private void kill(int page, int recordSize) {
+		live[page] = live[page] - recordSize;
+		liveBytes = liveBytes - recordSize;
+		deadBytes = deadBytes + recordSize;
+	}
+
+	/**
+	 * @return the address of the first live record after the given one, or from the start if it is -1, or -1 if
+	 * there are no more
+	 */
+	long nextLive(long after) {
+		int p = 0;
+		int offset = 0;
+		if(after != EMPTY) {
+			p = pageOf(after);
+			offset = offsetOf(after);
+			ByteBuffer f = page(p);
+			offset = offset + HEADER_SIZE + f.getInt(offset + Integer.BYTES) + f.getInt(offset + 2 * Integer.BYTES);
+		}
+		for(; p < pageCount; p++, offset = 0) {
+			if(! allocated[p] || live[p] == 0) {
+				continue;
+			}
+			while(offset < used[p]) {
+				ByteBuffer f = page(p);
+				int hash = f.getInt(offset);
+				long a = address(p, offset);
+				if(isIndexed(hash, a)) {
+					return a;
+				}
+				offset = offset + HEADER_SIZE + f.getInt(offset + Integer.BYTES) + f.getInt(offset + 2 * Integer.BYTES);
+			}
+		}
+		return EMPTY;
+	}
+
+	private boolean isIndexed(int hash, long address) {
+		int i = slotOf(hash, mask);
+		while(addresses[i] != EMPTY) {
+			if(addresses[i] == address) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	void clear() {
+		for(int p = 0; p < pageCount; p++) {
+			if(frames[p] != null) {
+				release(frames[p]);
+			}
+		}
+		closeFile();
+		resetIndex(16);
+		resetPages(4);
+		liveBytes = 0;
+		deadBytes = 0;
+	}
+
+	/** Pages **/
+
+	private ByteBuffer page(int p) {
+		ByteBuffer f = frames[p];
+		if(f == null) {
+			f = load(p);
+		}
+		else if(lruHead != p) {
+			unlink(p);
+			linkFirst(p);
+		}
+		return f;
+	}
+
+	private int newPage() {
+		int p;
+		if(freeCount > 0) {
+			p = freeIds[--freeCount];
+		}
+		else {
+			if(pageCount == frames.length) {
+				growPages();
+			}
+			p = pageCount++;
+		}
+		ByteBuffer f = frame();
+		frames[p] = f;
+		allocated[p] = true;
+		used[p] = 0;
+		live[p] = 0;
+		dirty[p] = true;
+		fileOffset[p] = EMPTY;
+		linkFirst(p);
+		return p;
+	}
+
+	private void growPages() {
+		int capacity = frames.length * 2;
+		frames = Arrays.copyOf(frames, capacity);
+		allocated = Arrays.copyOf(allocated, capacity);
+		used = Arrays.copyOf(used, capacity);
+		live = Arrays.copyOf(live, capacity);
+		dirty = Arrays.copyOf(dirty, capacity);
+		fileOffset = Arrays.copyOf(fileOffset, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		next = Arrays.copyOf(next, capacity);
+		freeIds = Arrays.copyOf(freeIds, capacity);
+	}
+
+	/**
+	 * @return memory for a page, borrowed or taken from the least recently used page
+	 */
+	private ByteBuffer frame() {
+		ByteBuffer f = memory.borrowPage();
+		if(f != null) {
+			return f;
+		}
+		if(lruTail != NONE) {
+			return evict(lruTail);
+		}
+		// Other states or datasets hold the whole budget. A store can always have one page, outside the budget,
+		// so that stores that share a budget do not starve one another
+		if(reserve == null) {
+			LOG.warn("State memory exhausted, using a page of {} bytes out of the budget", pageSize);
+			reserve = ByteBuffer.allocate(pageSize);
+			return reserve;
+		}
+		throw new IllegalOperationOnStateException("There is no memory for state pages");
+	}
+
+	private void release(ByteBuffer f) {
+		if(f == reserve) {
+			reserve = null;
+		}
+		else {
+			memory.returnPage(f);
+		}
+	}
+
+	private ByteBuffer evict(int p) {
+		ByteBuffer f = frames[p];
+		if(dirty[p]) {
+			spill(p, f);
+		}
+		unlink(p);
+		frames[p] = null;
+		if(p == writePage) {
+			writePage = NONE;
+		}
+		return f;
+	}
+
+	private ByteBuffer load(int p) {
+		ByteBuffer f = frame();
+		ByteBuffer d = f.duplicate();
+		d.clear();
+		d.limit(used[p]);
+		try {
+			long position = fileOffset[p];
+			while(d.hasRemaining()) {
+				position = position + channel.read(d, position);
+			}
+		}
+		catch(IOException e) {
+			throw new SeepException("Cannot read state page " + p + " from " + file, e);
+		}
+		frames[p] = f;
+		dirty[p] = false;
+		linkFirst(p);
+		return f;
+	}
+
+	private void spill(int p, ByteBuffer f) {
+		if(fileOffset[p] != EMPTY) {
+			fileGarbage = fileGarbage + used[p];
+		}
+		ByteBuffer d = f.duplicate();
+		d.clear();
+		d.limit(used[p]);
+		try {
+			if(channel == null) {
+				file = File.createTempFile("seep-state-", ".spill", memory.spillDirectory());
+				file.deleteOnExit();
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			fileOffset[p] = fileEnd;
+			while(d.hasRemaining()) {
+				fileEnd = fileEnd + channel.write(d, fileEnd);
+			}
+		}
+		catch(IOException e) {
+			throw new SeepException("Cannot spill state page " + p + " to " + file, e);
+		}
+		dirty[p] = false;
+	}
+
+	private void free(int p) {
+		if(frames[p] != null) {
+			unlink(p);
+			release(frames[p]);
+			frames[p] = null;
+		}
+		if(fileOffset[p] != EMPTY) {
+			fileGarbage = fileGarbage + used[p];
+		}
+		allocated[p] = false;
+		freeIds[freeCount++] = p;
+	}
+
+	private void linkFirst(int p) {
+		prev[p] = NONE;
+		next[p] = lruHead;
+		if(lruHead != NONE) {
+			prev[lruHead] = p;
+		}
+		lruHead = p;
+		if(lruTail == NONE) {
+			lruTail = p;
+		}
+	}
+
+	private void unlink(int p) {
+		if(prev[p] != NONE) {
+			next[prev[p]] = next[p];
+		}
+		else {
+			lruHead = next[p];
+		}
+		if(next[p] != NONE) {
+			prev[next[p]] = prev[p];
+		}
+		else {
+			lruTail = prev[p];
+		}
+	}
+
+	/** Compaction **/
+
+	private void maybeCompact() {
+		if(deadBytes > liveBytes && deadBytes >= 2L * pageSize) {
+			compact();
+		}
+	}
+
+	/**
+	 * Appends again the live records of the pages that are less than half live, and frees those pages
+	 */
+	private void compact() {
+		boolean[] sparse = new boolean[pageCount];
+		for(int p = 0; p < pageCount; p++) {
+			sparse[p] = allocated[p] && p != writePage && live[p] * 2 < used[p];
+		}
+		for(int i = 0; i <= mask; i++) {
+			long a = addresses[i];
+			// Records appended by the compaction are in pages that are not sparse, possibly new ones
+			if(a != EMPTY && pageOf(a) < sparse.length && sparse[pageOf(a)]) {
+				ByteBuffer f = page(pageOf(a));
+				int offset = offsetOf(a);
+				int keySize = f.getInt(offset + Integer.BYTES);
+				int valueSize = f.getInt(offset + 2 * Integer.BYTES);
+				int recordSize = HEADER_SIZE + keySize + valueSize;
+				scratch = ensure(scratch, recordSize - HEADER_SIZE);
+				copy(f, offset + HEADER_SIZE, scratch, recordSize - HEADER_SIZE);
+				// The old page can be evicted by append, so the record is appended from the copy
+				addresses[i] = append(hashes[i], scratch, keySize, scratch, keySize, valueSize);
+				kill(pageOf(a), recordSize);
+			}
+		}
+		for(int p = 0; p < sparse.length; p++) {
+			if(sparse[p]) {
+				deadBytes = deadBytes - used[p];
+				free(p);
+			}
+		}
+		if(fileGarbage * 2 > fileEnd && fileGarbage >= 2L * pageSize) {
+			compactFile();
+		}
+	}
+
+	/**
+	 * Rewrites the spilled pages that are not in memory to a new spill file. Those in memory are written again
+	 * when they are evicted
+	 */
+	private void compactFile() {
+		File oldFile = file;
+		FileChannel oldChannel = channel;
+		file = null;
+		channel = null;
+		fileEnd = 0;
+		fileGarbage = 0;
+		ByteBuffer buf = ByteBuffer.allocate(pageSize);
+		try {
+			for(int p = 0; p < pageCount; p++) {
+				if(! allocated[p] || fileOffset[p] == EMPTY) {
+					continue;
+				}
+				if(frames[p] != null) {
+					fileOffset[p] = EMPTY;
+					dirty[p] = true;
+					continue;
+				}
+				buf.clear();
+				buf.limit(used[p]);
+				long position = fileOffset[p];
+				while(buf.hasRemaining()) {
+					position = position + oldChannel.read(buf, position);
+				}
+				fileOffset[p] = EMPTY;
+				spill(p, buf);
+			}
+			oldChannel.close();
+		}
+		catch(IOException e) {
+			throw new SeepException("Cannot rewrite state spill file " + oldFile, e);
+		}
+		oldFile.delete();
+	}
+
+	private void closeFile() {
+		if(channel != null) {
+			try {
+				channel.close();
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+		file = null;
+		channel = null;
+		fileEnd = 0;
+		fileGarbage = 0;
+	}
+
+}
@@ -0,0 +1,530 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.StampedLock;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import uk.ac.imperial.lsds.seep.api.state.Checkpoint;
+import uk.ac.imperial.lsds.seep.api.state.DistributedMutableState;
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.Mergeable;
+import uk.ac.imperial.lsds.seep.api.state.Partitionable;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.api.state.Streamable;
+import uk.ac.imperial.lsds.seep.api.state.Versionable;
+import uk.ac.imperial.lsds.seep.comm.serialization.KryoFactory;
+import uk.ac.imperial.lsds.seep.errors.AttemptToReconcileStateNotInSnapshotModeException;
+import uk.ac.imperial.lsds.seep.errors.IncompatibleStateException;
+
+/**
+ * State keyed by primitive longs, kept in open addressing tables with linear probing, so that keys are not boxed
+ * and there are no entry objects. The state is split in segments, each with its own lock, so that threads that
+ * update different segments do not contend, and reads are lock free unless they race with a write to their segment.
+ * Snapshots are copy-on-write per segment: enterSnapshotMode only marks the segments as shared with the snapshot,
+ * the first write to a segment afterwards copies it, and reconcile drops the copies, so neither of them stops
+ * the task, nor do reads and writes check for dirty state. Checkpoints and streams taken in snapshot mode see the
+ * state as of enterSnapshotMode. Values cannot be null.
+ */
+public class SeepLongMap<V> implements Checkpoint, Partitionable, Mergeable, Streamable, Versionable, SeepState {
+
+	private static final int DEFAULT_SEGMENTS = 64;
+	private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+	private int owner;
+	private DistributedMutableState dms = DistributedMutableState.PARTITIONED;
+
+	private final Segment[] segments;
+	// segments are chosen with the high bits of the hash, slots with the low ones
+	private final int segmentBits;
+	private volatile boolean snapshotMode = false;
+
+	public SeepLongMap() {
+		this(DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * @param concurrency the number of segments, rounded up to a power of 2
+	 */
+	public SeepLongMap(int concurrency) {
+		int bits = 0;
+		while((1 << bits) < concurrency) {
+			bits++;
+		}
+		this.segmentBits = bits;
+		this.segments = new Segment[1 << bits];
+		for(int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private static final class Table {
+		final long[] keys;
+		// null marks an empty slot
+		final Object[] values;
+		final int mask;
+		int size;
+
+		Table(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new Object[capacity];
+			this.mask = capacity - 1;
+		}
+
+		Object find(long key, long hash) {
+			int i = (int)hash & mask;
+			// bounded, as readers may see the table while it is written
+			for(int n = 0; n <= mask; n++) {
+				Object v = values[i];
+				if(v == null) {
+					return null;
+				}
+				if(keys[i] == key) {
+					return v;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		Object put(long key, long hash, Object value) {
+			int i = (int)hash & mask;
+			while(true) {
+				Object v = values[i];
+				if(v == null) {
+					keys[i] = key;
+					values[i] = value;
+					size++;
+					return null;
+				}
+				if(keys[i] == key) {
+					values[i] = value;
+					return v;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		/**
+		 * Removes the key and shifts back the entries after it in the same run, so that there are no tombstones
+		 */
+		Object remove(long key, long hash) {
+			int i = (int)hash & mask;
+			while(true) {
+				Object v = values[i];
+				if(v == null) {
+					return null;
+				}
+				if(keys[i] == key) {
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+			Object removed = values[i];
+			int j = i;
+			while(true) {
+				j = (j + 1) & mask;
+				if(values[j] == null) {
+					break;
+				}
+				int ideal = (int)hash(keys[j]) & mask;
+				// The entry at j can fill the hole at i if i is on its probe sequence, from ideal to j
+				if(((j - ideal) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			values[i] = null;
+			size--;
+			return removed;
+		}
+
+		boolean needsResize() {
+			return size + 1 > (mask + 1) - ((mask + 1) >> 2);
+		}
+
+		Table resized(int capacity) {
+			Table t = new Table(capacity);
+			for(int i = 0; i <= mask; i++) {
+				if(values[i] != null) {
+					t.put(keys[i], hash(keys[i]), values[i]);
+				}
+			}
+			return t;
+		}
+	}
+
+	private static final class Segment {
+		final StampedLock lock = new StampedLock();
+		Table table = new Table(INITIAL_SEGMENT_CAPACITY);
+		// whether table belongs to the snapshot as well, and must be copied before it is written
+		boolean shared;
+		// the table as of enterSnapshotMode, once the segment was written in snapshot mode
+		Table frozen;
+
+		/**
+		 * @return the table to write to, called with the write lock held
+		 */
+		Table writable() {
+			if(shared) {
+				frozen = table;
+				table = table.resized(table.mask + 1);
+				shared = false;
+			}
+			if(table.needsResize()) {
+				table = table.resized((table.mask + 1) * 2);
+			}
+			return table;
+		}
+	}
+
+	private static long hash(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private Segment segmentFor(long hash) {
+		return segmentBits == 0 ? segments[0] : segments[(int)(hash >>> (64 - segmentBits))];
+	}
+
+	/** Implement SeepState interface **/
+
+	@Override
+	public void setOwner(int owner) {
+		this.owner = owner;
+	}
+
+	@Override
+	public int getOwner() {
+		return owner;
+	}
+
+	@Override
+	public DistributedMutableState getDMS() {
+		return dms;
+	}
+
+	@Override
+	public void setDMS(DistributedMutableState dms) {
+		this.dms = dms;
+	}
+
+	/** Map operations **/
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		long h = hash(key);
+		Segment s = segmentFor(h);
+		long stamp = s.lock.tryOptimisticRead();
+		Object v = s.table.find(key, h);
+		if(! s.lock.validate(stamp)) {
+			stamp = s.lock.readLock();
+			try {
+				v = s.table.find(key, h);
+			}
+			finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		return (V)v;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if(value == null) {
+			throw new IllegalArgumentException("Values of a SeepLongMap cannot be null");
+		}
+		long h = hash(key);
+		Segment s = segmentFor(h);
+		long stamp = s.lock.writeLock();
+		try {
+			return (V)s.writable().put(key, h, value);
+		}
+		finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		long h = hash(key);
+		Segment s = segmentFor(h);
+		long stamp = s.lock.writeLock();
+		try {
+			return (V)s.writable().remove(key, h);
+		}
+		finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for(Segment s : segments) {
+			size = size + s.table.size;
+		}
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void clear() {
+		for(Segment s : segments) {
+			long stamp = s.lock.writeLock();
+			if(s.shared) {
+				s.frozen = s.table;
+				s.shared = false;
+			}
+			s.table = new Table(INITIAL_SEGMENT_CAPACITY);
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return one table per segment that is not written anymore: the snapshot ones in snapshot mode, and copies
+	 * of the current ones otherwise
+	 */
+	private List<Table> stableView() {
+		List<Table> view = new ArrayList<>(segments.length);
+		for(Segment s : segments) {
+			long stamp = s.lock.readLock();
+			try {
+				if(s.shared) {
+					view.add(s.table);
+				}
+				else if(s.frozen != null) {
+					view.add(s.frozen);
+				}
+				else {
+					view.add(s.table.resized(s.table.mask + 1));
+				}
+			}
+			finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		return view;
+	}
+
+	/** Implement Versionable interface **/
+
+	@Override
+	public void enterSnapshotMode() {
+		for(Segment s : segments) {
+			long stamp = s.lock.writeLock();
+			s.shared = true;
+			s.frozen = null;
+			s.lock.unlockWrite(stamp);
+		}
+		snapshotMode = true;
+	}
+
+	@Override
+	public void reconcile() {
+		if(! snapshotMode) {
+			throw new AttemptToReconcileStateNotInSnapshotModeException("An attempt was made to reconcile state not in snapshot mode");
+		}
+		// Writes went to the current tables already, there is only the snapshot to drop
+		snapshotMode = false;
+		for(Segment s : segments) {
+			long stamp = s.lock.writeLock();
+			s.shared = false;
+			s.frozen = null;
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean isInSnapshotMode() {
+		return snapshotMode;
+	}
+
+	/** Implement Streamable interface **/
+
+	/**
+	 * Streams the snapshot in snapshot mode, and a copy of the state, segment by segment, otherwise
+	 */
+	@Override
+	public Iterator<Map.Entry<Long, V>> makeStream() {
+		final List<Table> view = stableView();
+		return new Iterator<Map.Entry<Long, V>>() {
+			private int table = 0;
+			private int slot = -1;
+			// whether table and slot point to an entry not returned yet
+			private boolean ready = false;
+
+			@Override
+			public boolean hasNext() {
+				while(! ready && table < view.size()) {
+					Object[] values = view.get(table).values;
+					if(++slot < values.length) {
+						ready = values[slot] != null;
+					}
+					else {
+						table++;
+						slot = -1;
+					}
+				}
+				return ready;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public Map.Entry<Long, V> next() {
+				if(! hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				Table t = view.get(table);
+				return new AbstractMap.SimpleImmutableEntry<>(t.keys[slot], (V)t.values[slot]);
+			}
+		};
+	}
+
+	/** Implement Mergeable interface **/
+
+	/**
+	 * Merges the chunks in parallel, one task per chunk, as writers of different segments do not contend. Chunks
+	 * that come from partition() hold disjoint keys, so the order in which they are merged does not matter
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void merge(List<SeepState> state) {
+		List<SeepLongMap<V>> chunks = new ArrayList<>(state.size());
+		for(SeepState chunk : state) {
+			if(! (chunk instanceof SeepLongMap)) {
+				throw new IncompatibleStateException("Attempt to merge an incompatible state");
+			}
+			chunks.add((SeepLongMap<V>)chunk);
+		}
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for(int c = 1; c < chunks.size(); c++) {
+			final SeepLongMap<V> chunk = chunks.get(c);
+			tasks.add(ForkJoinPool.commonPool().submit(new Runnable() {
+				@Override
+				public void run() {
+					mergeChunk(chunk);
+				}
+			}));
+		}
+		if(! chunks.isEmpty()) {
+			mergeChunk(chunks.get(0));
+		}
+		for(ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void mergeChunk(SeepLongMap<V> chunk) {
+		for(Table t : chunk.stableView()) {
+			for(int i = 0; i <= t.mask; i++) {
+				if(t.values[i] != null) {
+					put(t.keys[i], (V)t.values[i]);
+				}
+			}
+		}
+	}
+
+	/** Implement Partitionable interface **/
+
+	@Override
+	public List<SeepState> partition() {
+		return partition(2);
+	}
+
+	/**
+	 * Splits the state in the subspaces of a KeyHashSpace of the given size, so that partition i holds the keys that
+	 * ConsistentHashingRoutingState routes to the i-th downstream. The int key of a long is its hashCode
+	 */
+	@Override
+	public List<SeepState> partition(int partitions) {
+		return partition(new KeyHashSpace(partitions));
+	}
+
+	/**
+	 * Splits the state in the subspaces of the space, in a single pass over the entries
+	 */
+	@SuppressWarnings("unchecked")
+	public List<SeepState> partition(KeyHashSpace space) {
+		List<SeepState> result = new ArrayList<>(space.numSubspaces());
+		for(int i = 0; i < space.numSubspaces(); i++) {
+			SeepLongMap<V> p = new SeepLongMap<>(segments.length);
+			p.setDMS(dms);
+			result.add(p);
+		}
+		for(Table t : stableView()) {
+			for(int i = 0; i <= t.mask; i++) {
+				if(t.values[i] != null) {
+					long k = t.keys[i];
+					((SeepLongMap<V>)result.get(space.subspaceOf(Long.hashCode(k)))).put(k, (V)t.values[i]);
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Implement Checkpoint interface **/
+
+	/**
+	 * In snapshot mode the checkpoint is the state as of enterSnapshotMode, and the task can keep writing meanwhile
+	 */
+	@Override
+	public byte[] checkpoint() {
+		List<Table> view = stableView();
+		int size = 0;
+		for(Table t : view) {
+			size = size + t.size;
+		}
+		Kryo k = KryoFactory.buildKryoForDeepCopy(this.getClass().getClassLoader());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Output o = new Output(baos);
+		o.writeInt(size);
+		for(Table t : view) {
+			for(int i = 0; i <= t.mask; i++) {
+				if(t.values[i] != null) {
+					o.writeLong(t.keys[i]);
+					k.writeClassAndObject(o, t.values[i]);
+				}
+			}
+		}
+		o.close();
+		return baos.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void recover(byte[] bytes) {
+		clear();
+		Kryo k = KryoFactory.buildKryoForDeepCopy(this.getClass().getClassLoader());
+		Input in = new Input(bytes);
+		int size = in.readInt();
+		for(int i = 0; i < size; i++) {
+			long key = in.readLong();
+			put(key, (V)k.readClassAndObject(in));
+		}
+		in.close();
+	}
+
+}
@@ -1,30 +1,54 @@
 package uk.ac.imperial.lsds.seep.api.state.stateimpl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
-import uk.ac.imperial.lsds.seep.api.state.Checkpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 import uk.ac.imperial.lsds.seep.api.state.DistributedMutableState;
-import uk.ac.imperial.lsds.seep.api.state.Mergeable;
+import uk.ac.imperial.lsds.seep.api.state.IncrementalCheckpoint;
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.Migratable;
 import uk.ac.imperial.lsds.seep.api.state.Partitionable;
 import uk.ac.imperial.lsds.seep.api.state.SeepState;
 import uk.ac.imperial.lsds.seep.api.state.Streamable;
 import uk.ac.imperial.lsds.seep.api.state.Versionable;
+import uk.ac.imperial.lsds.seep.comm.serialization.KryoFactory;
 import uk.ac.imperial.lsds.seep.errors.AttemptToReconcileStateNotInSnapshotModeException;
 import uk.ac.imperial.lsds.seep.errors.IllegalOperationOnStateException;
 import uk.ac.imperial.lsds.seep.errors.IncompatibleStateException;
-import uk.ac.imperial.lsds.seep.errors.NotImplementedException;
 
-public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergeable, Streamable, Versionable, SeepState {
+public class SeepMap<K,V> implements Map<K,V>, IncrementalCheckpoint, Partitionable, Migratable, Streamable, Versionable, SeepState {
 
+	final private static Logger LOG = LoggerFactory.getLogger(SeepMap.class);
+	
+	private static final byte BASE_CHECKPOINT = 0;
+	private static final byte DELTA_CHECKPOINT = 1;
+	
 	// Main map
 	private int owner;
 	private DistributedMutableState dms = DistributedMutableState.PARTITIONED;
@@ -33,17 +57,35 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 	// Support for dirtyState
 	private Map<K, V> dirtyState;
 	private Set<K> keysRemoved;
+	// Keys in dirtyState that are not in map
+	private int keysAdded;
 	private AtomicBoolean snapshotMode;
 	private ReentrantLock lock;
 	
+	// Support for incremental checkpoints, keys put or removed since the last checkpoint once there is a base one
+	private boolean tracking;
+	private Set<K> changedKeys;
+	private boolean cleared;
+	private transient Future<Integer> pendingCheckpoint;
+	
 	public SeepMap(){
-		this.map = new HashMap<>();
+		this(0);
+	}
+	
+	public SeepMap(int expectedSize){
+		this.map = new HashMap<>(capacityFor(expectedSize));
 		this.dirtyState = new HashMap<>();
 		this.keysRemoved = new HashSet<>();
+		this.changedKeys = new HashSet<>();
 		this.snapshotMode = new AtomicBoolean(false);
 		this.lock = new ReentrantLock();
 	}
 	
+	private static int capacityFor(int expectedSize){
+		// Default capacity and load factor of HashMap
+		return Math.max(16, (int)(expectedSize / 0.75f) + 1);
+	}
+	
 	/** Implement SeepState interface **/
 	@Override
 	public void setOwner(int owner){
@@ -67,11 +109,16 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 	
 	/** Implement Map<K,V> interface **/
 	
+	/**
+	 * In snapshot mode map does not change: updates go to dirtyState and keysRemoved until reconcile, so that
+	 * the snapshot can be read, e.g. by a checkpoint in the background
+	 */
 	@Override
 	public int size() {
+		maybeFinishCheckpoint();
 		if(snapshotMode.get()){
 			lock.lock();
-			int size = map.size() - keysRemoved.size() + dirtyState.size();
+			int size = map.size() - keysRemoved.size() + keysAdded;
 			lock.unlock();
 			return size;
 		}
@@ -80,17 +127,12 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 
 	@Override
 	public boolean isEmpty() {
-		if(snapshotMode.get()){
-			lock.lock();
-			boolean empty = map.isEmpty() || dirtyState.isEmpty();
-			lock.unlock();
-			return empty;
-		}
-		return map.isEmpty();
+		return size() == 0;
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
+		maybeFinishCheckpoint();
 		if(snapshotMode.get()){
 			lock.lock();
 			boolean containsKey = (map.containsKey(key) && !keysRemoved.contains(key)) || dirtyState.containsKey(key);
@@ -103,6 +145,7 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 	@Override
 	public boolean containsValue(Object value) {
 		// FIXME: note how broken is this implementation... who uses containsValue anyway... ainss...
+		maybeFinishCheckpoint();
 		if(snapshotMode.get()){
 			lock.lock();
 			boolean containsValue = map.containsValue(value) || dirtyState.containsValue(value);
@@ -114,61 +157,142 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 
 	@Override
 	public V get(Object key) {
+		maybeFinishCheckpoint();
 		if(snapshotMode.get()){
 			lock.lock();
+			V v = null;
 			if(dirtyState.containsKey(key)){
-				lock.unlock();
-				return dirtyState.get(key);
+				v = dirtyState.get(key);
+			}
+			else if(!keysRemoved.contains(key)){
+				v = map.get(key);
 			}
 			lock.unlock();
-			return map.get(key);
+			return v;
 		}
 		return map.get(key);
 	}
 
 	@Override
 	public V put(K key, V value) {
+		maybeFinishCheckpoint();
 		lock.lock();
-		V v = map.put(key, value);
+		V v = null;
+		if(snapshotMode.get()){
+			boolean inMap = map.containsKey(key) && !keysRemoved.remove(key);
+			if(dirtyState.containsKey(key)){
+				v = dirtyState.put(key, value);
+			}
+			else {
+				if(inMap){
+					v = map.get(key);
+				}
+				else if(!map.containsKey(key)){
+					keysAdded++;
+				}
+				dirtyState.put(key, value);
+			}
+		}
+		else{
+			v = map.put(key, value);
+		}
+		if(tracking){
+			changedKeys.add(key);
+		}
 		lock.unlock();
 		return v;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public V remove(Object key) {
+		maybeFinishCheckpoint();
 		lock.lock();
-		V v = map.remove(key);
+		V v = null;
+		if(snapshotMode.get()){
+			boolean inMap = map.containsKey(key);
+			if(dirtyState.containsKey(key)){
+				v = dirtyState.remove(key);
+				if(!inMap){
+					keysAdded--;
+				}
+			}
+			else if(inMap && !keysRemoved.contains(key)){
+				v = map.get(key);
+			}
+			if(inMap){
+				keysRemoved.add((K)key);
+			}
+		}
+		else{
+			v = map.remove(key);
+		}
+		if(tracking){
+			changedKeys.add((K)key);
+		}
 		lock.unlock();
 		return v;
 	}
 
 	@Override
 	public void putAll(Map<? extends K, ? extends V> m) {
-		lock.lock();
-		map.putAll(m);
-		lock.unlock();
+		for(Map.Entry<? extends K, ? extends V> e : m.entrySet()){
+			put(e.getKey(), e.getValue());
+		}
 	}
 
 	@Override
 	public void clear() {
+		maybeFinishCheckpoint();
 		lock.lock();
-		map.clear();
+		if(snapshotMode.get()){
+			dirtyState.clear();
+			keysRemoved.addAll(map.keySet());
+			keysAdded = 0;
+		}
+		else{
+			map.clear();
+		}
+		if(tracking){
+			changedKeys.clear();
+			cleared = true;
+		}
 		lock.unlock();
 	}
 
+	/**
+	 * Views are read-only, so that all updates go through put and remove. In snapshot mode they are of a copy of the
+	 * snapshot with the updates done since, which later updates do not change
+	 */
 	@Override
 	public Set<K> keySet() {
-		return map.keySet();
+		return view().keySet();
 	}
 
 	@Override
 	public Collection<V> values() {
-		return map.values();
+		return view().values();
 	}
 
 	@Override
 	public Set<Map.Entry<K, V>> entrySet() {
-		return map.entrySet();
+		return view().entrySet();
+	}
+	
+	private Map<K, V> view() {
+		maybeFinishCheckpoint();
+		if(snapshotMode.get()){
+			lock.lock();
+			Map<K, V> merged = new HashMap<>(capacityFor(map.size() + keysAdded));
+			merged.putAll(map);
+			for(K k : keysRemoved){
+				merged.remove(k);
+			}
+			merged.putAll(dirtyState);
+			lock.unlock();
+			return Collections.unmodifiableMap(merged);
+		}
+		return Collections.unmodifiableMap(map);
 	}
 	
 	/** Implement Versionable interface **/
@@ -180,6 +304,11 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 
 	@Override
 	public void reconcile() {
+		if(pendingCheckpoint != null){
+			// map is being read by the checkpoint
+			finishCheckpoint();
+			return;
+		}
 		if(snapshotMode.get()){
 			lock.lock();
 			performReconcileOperation();
@@ -192,83 +321,303 @@ public class SeepMap<K,V> implements Map<K,V>, Checkpoint, Partitionable, Mergea
 	}
 	
 	private void performReconcileOperation(){
+		// Removals, keys removed and put again are not in keysRemoved
+		for(K k : keysRemoved){
+			map.remove(k);
+		}
 		// Additions and updates
 		for(Map.Entry<K, V> dirtyEntry : dirtyState.entrySet()){
 			map.put(dirtyEntry.getKey(), dirtyEntry.getValue());
 		}
-		// Removals
-		for(K k : keysRemoved){
-			map.remove(k);
-		}
 		// Clean dirtyState
 		dirtyState.clear();
 		keysRemoved.clear();
-		System.gc();
+		keysAdded = 0;
+		snapshotMode.set(false);
 	}
 	
 	/** Implement Streamable interface **/
 
 	@Override
 	public Iterator<Map.Entry<K, V>> makeStream() {
+		if(pendingCheckpoint != null) finishCheckpoint();
 		if(snapshotMode.get()) throw new IllegalOperationOnStateException("Attemp to stream state while in snapshot mode");
 		return map.entrySet().iterator();
 	}
 	
 	/** Implement Mergeable interface **/
 
+	/**
+	 * Merges partitions of this state, e.g. the ones of partition(int), in a single pass over each of them. The map is
+	 * sized upfront for all of them, so that it does not grow while they are merged
+	 */
 	@SuppressWarnings("unchecked")
 	@Override
 	public void merge(List<SeepState> state) {
-		if(snapshotMode.get()) throw new IllegalOperationOnStateException("Attemp to stream state while in snapshot mode");
+		if(pendingCheckpoint != null) finishCheckpoint();
+		if(snapshotMode.get()) throw new IllegalOperationOnStateException("Attempt to merge state while in snapshot mode");
+		int size = map.size();
 		for(SeepState chunk : state){
 			if(!(chunk instanceof SeepMap)){
 				throw new IncompatibleStateException("Attempt to merge an incompatible state");
 			}
-			for(Map.Entry<K, V> entry : ((SeepMap<K,V>)chunk).entrySet()){
-				map.put(entry.getKey(), entry.getValue());
+			size = size + ((SeepMap<K,V>)chunk).map.size();
+		}
+		lock.lock();
+		if(map.isEmpty()){
+			map = new HashMap<>(capacityFor(size));
+		}
+		for(SeepState chunk : state){
+			SeepMap<K,V> other = (SeepMap<K,V>)chunk;
+			if(other.pendingCheckpoint != null) other.finishCheckpoint();
+			map.putAll(other.map);
+			if(tracking){
+				changedKeys.addAll(other.map.keySet());
 			}
 		}
-		
+		lock.unlock();
+	}
+	
+	/** Implement Migratable interface **/
+
+	/**
+	 * @return whether the state can be partitioned and streamed to another worker now, i.e. it is not in snapshot
+	 * mode. A pending checkpoint is finished first
+	 */
+	@Override
+	public boolean migrate() {
+		if(pendingCheckpoint != null) finishCheckpoint();
+		return !snapshotMode.get();
 	}
 	
 	/** Implement Partitionable interface **/
 
 	@Override
 	public List<SeepState> partition(){
-		List<SeepState> partitions = new ArrayList<>();
-		int partitioningKey = Integer.MAX_VALUE / 2;
-		Map<K,V> partition1 = new SeepMap<>();
-		Map<K,V> partition2 = new SeepMap<>();
-		for(K key : map.keySet()){
-			if(key.hashCode() < partitioningKey){
-				partition1.put(key, map.get(key));
-			}
-			else{
-				partition2.put(key, map.get(key));
-			}
-		}
-		partitions.add((SeepState)partition1);
-		partitions.add((SeepState)partition2);
-		return partitions;
+		return partition(2);
 	}
 	
+	/**
+	 * Splits the state in the subspaces of a KeyHashSpace of the given size, so that partition i holds the keys that
+	 * ConsistentHashingRoutingState routes to the i-th downstream
+	 */
 	@Override
 	public List<SeepState> partition(int partitions) {
-		throw new NotImplementedException("yet to implement n-partitioning...");
+		return partition(new KeyHashSpace(partitions));
+	}
+	
+	/**
+	 * Splits the state in the subspaces of the space, in a single pass over the entries. Each entry is put once
+	 * in its partition, and partitions are sized upfront so that they do not grow while they are filled
+	 */
+	public List<SeepState> partition(KeyHashSpace space) {
+		if(pendingCheckpoint != null) finishCheckpoint();
+		if(snapshotMode.get()) throw new IllegalOperationOnStateException("Attempt to partition state while in snapshot mode");
+		int numPartitions = space.numSubspaces();
+		List<SeepState> partitions = new ArrayList<>(numPartitions);
+		List<Map<K, V>> maps = new ArrayList<>(numPartitions);
+		int expectedSize = map.size() / numPartitions + 1;
+		for(int i = 0; i < numPartitions; i++){
+			SeepMap<K, V> partition = new SeepMap<>(expectedSize);
+			partition.setDMS(dms);
+			partitions.add(partition);
+			maps.add(partition.map);
+		}
+		for(Map.Entry<K, V> entry : map.entrySet()){
+			K key = entry.getKey();
+			int routingKey = key == null ? 0 : key.hashCode();
+			maps.get(space.subspaceOf(routingKey)).put(key, entry.getValue());
+		}
+		return partitions;
 	}
 	
 	/** Implement Checkpoint interface **/
 
+	/**
+	 * @return a base checkpoint of the state, written by the calling thread
+	 */
 	@Override
 	public byte[] checkpoint() {
-		// TODO: Auto-generated method stub
-		return null;
+		if(pendingCheckpoint != null){
+			finishCheckpoint();
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Output o = new Output(baos);
+		lock.lock();
+		writeBase(KryoFactory.buildKryoForDeepCopy(SeepMap.class.getClassLoader()), o);
+		lock.unlock();
+		o.close();
+		return baos.toByteArray();
 	}
 
 	@Override
 	public void recover(byte[] bytes) {
-		// TODO Auto-generated method stub
-		
+		recover(Collections.<InputStream>singletonList(new ByteArrayInputStream(bytes)));
+	}
+	
+	/** Implement IncrementalCheckpoint interface **/
+	
+	/**
+	 * Enters snapshot mode, and writes the snapshot, or only the keys changed since the previous checkpoint, from
+	 * a background thread. The state leaves snapshot mode on the first use after the checkpoint is written. Values
+	 * must not be modified in place while they are checkpointed, but replaced with put.
+	 */
+	@Override
+	public Future<Integer> checkpoint(final OutputStream out) {
+		if(pendingCheckpoint != null){
+			// Deltas are relative to the previous checkpoint, so they are written one at a time
+			finishCheckpoint();
+		}
+		lock.lock();
+		final boolean base = !tracking;
+		final Set<K> delta = changedKeys;
+		final boolean deltaCleared = cleared;
+		changedKeys = new HashSet<>();
+		cleared = false;
+		tracking = true;
+		snapshotMode.set(true);
+		lock.unlock();
+		pendingCheckpoint = Checkpointer.EXECUTOR.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				Kryo k = KryoFactory.buildKryoForDeepCopy(SeepMap.class.getClassLoader());
+				Output o = new Output(out);
+				int entries = base ? writeBase(k, o) : writeDelta(k, o, delta, deltaCleared);
+				o.flush();
+				return entries;
+			}
+		});
+		return pendingCheckpoint;
+	}
+	
+	@Override
+	public void rebase() {
+		lock.lock();
+		tracking = false;
+		changedKeys.clear();
+		cleared = false;
+		lock.unlock();
+	}
+	
+	@Override
+	public void recover(List<InputStream> checkpoints) {
+		if(pendingCheckpoint != null){
+			finishCheckpoint();
+		}
+		if(snapshotMode.get()) throw new IllegalOperationOnStateException("Attempt to recover state while in snapshot mode");
+		Kryo k = KryoFactory.buildKryoForDeepCopy(SeepMap.class.getClassLoader());
+		lock.lock();
+		try{
+			boolean first = true;
+			for(InputStream is : checkpoints){
+				Input in = new Input(is);
+				if(in.readByte() == BASE_CHECKPOINT){
+					readBase(k, in);
+				}
+				else if(first){
+					throw new IllegalOperationOnStateException("Recovery must start from a base checkpoint");
+				}
+				else{
+					readDelta(k, in);
+				}
+				first = false;
+			}
+			// Next checkpoints are deltas on top of the recovered ones
+			changedKeys.clear();
+			cleared = false;
+			tracking = true;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	private void maybeFinishCheckpoint(){
+		if(pendingCheckpoint != null && pendingCheckpoint.isDone()){
+			finishCheckpoint();
+		}
+	}
+	
+	/**
+	 * Waits for the pending checkpoint, and reconciles the updates done while it was written
+	 */
+	private void finishCheckpoint(){
+		try{
+			pendingCheckpoint.get();
+		}
+		catch(InterruptedException | ExecutionException e){
+			// The changes in the checkpoint are not in any other, so the next one must be a base one
+			LOG.error("Checkpoint of state failed, next checkpoint will be a base one", e);
+			rebase();
+		}
+		pendingCheckpoint = null;
+		lock.lock();
+		performReconcileOperation();
+		lock.unlock();
+	}
+	
+	private int writeBase(Kryo k, Output o){
+		o.writeByte(BASE_CHECKPOINT);
+		o.writeInt(map.size());
+		for(Map.Entry<K, V> e : map.entrySet()){
+			k.writeClassAndObject(o, e.getKey());
+			k.writeClassAndObject(o, e.getValue());
+		}
+		return map.size();
+	}
+	
+	private int writeDelta(Kryo k, Output o, Set<K> delta, boolean deltaCleared){
+		o.writeByte(DELTA_CHECKPOINT);
+		o.writeBoolean(deltaCleared);
+		o.writeInt(delta.size());
+		for(K key : delta){
+			k.writeClassAndObject(o, key);
+			// Keys not in the snapshot were removed
+			boolean present = map.containsKey(key);
+			o.writeBoolean(present);
+			if(present){
+				k.writeClassAndObject(o, map.get(key));
+			}
+		}
+		return delta.size();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readBase(Kryo k, Input in){
+		map.clear();
+		int size = in.readInt();
+		for(int i = 0; i < size; i++){
+			K key = (K)k.readClassAndObject(in);
+			map.put(key, (V)k.readClassAndObject(in));
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readDelta(Kryo k, Input in){
+		if(in.readBoolean()){
+			map.clear();
+		}
+		int size = in.readInt();
+		for(int i = 0; i < size; i++){
+			K key = (K)k.readClassAndObject(in);
+			if(in.readBoolean()){
+				map.put(key, (V)k.readClassAndObject(in));
+			}
+			else{
+				map.remove(key);
+			}
+		}
+	}
+	
+	private static class Checkpointer {
+		static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "seep-state-checkpointer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 
 }
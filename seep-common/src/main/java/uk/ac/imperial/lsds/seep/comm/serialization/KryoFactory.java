@@ -3,7 +3,14 @@ package uk.ac.imperial.lsds.seep.comm.serialization;
 import uk.ac.imperial.lsds.seep.comm.protocol.MasterWorkerProtocolAPI;
 import uk.ac.imperial.lsds.seep.comm.protocol.WorkerWorkerProtocolAPI;
 
+import java.lang.reflect.Constructor;
+
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.objenesis.strategy.InstantiatorStrategy;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 
 public class KryoFactory {
 
@@ -44,4 +51,44 @@ public class KryoFactory {
 		return k;
 	}
 	
+	/**
+	 * Kryo to deep copy objects with Kryo.copy, e.g. tasks. Classes are instantiated through their no-arg 
+	 * constructor, even if private, or without calling any constructor when they do not have one. 
+	 * Transient fields are not copied.
+	 */
+	public static Kryo buildKryoForDeepCopy(ClassLoader cl) {
+		Kryo k = new Kryo();
+		k.setInstantiatorStrategy(new NoArgOrStdInstantiatorStrategy());
+		k.setClassLoader(cl);
+		return k;
+	}
+	
+	private static class NoArgOrStdInstantiatorStrategy implements InstantiatorStrategy {
+		
+		private final StdInstantiatorStrategy std = new StdInstantiatorStrategy();
+		
+		@Override
+		public <T> ObjectInstantiator<T> newInstantiatorOf(Class<T> type) {
+			final Constructor<T> constructor;
+			try {
+				constructor = type.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			}
+			catch (NoSuchMethodException | SecurityException e) {
+				return std.newInstantiatorOf(type);
+			}
+			return new ObjectInstantiator<T>() {
+				@Override
+				public T newInstance() {
+					try {
+						return constructor.newInstance();
+					}
+					catch (Exception e) {
+						throw new KryoException("Error constructing instance of class: " + type.getName(), e);
+					}
+				}
+			};
+		}
+	}
+	
 }
@@ -0,0 +1,21 @@
+package uk.ac.imperial.lsds.seep.core;
+
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+
+/**
+ * InputAdapter that can fill ColumnBatch directly from its underlying buffers, without an ITuple per row.
+ */
+public interface BatchInputAdapter extends InputAdapter {
+
+	/**
+	 * @return a batch for the schema of this input, or null if the schema cannot be batched
+	 */
+	public ColumnBatch newBatch(int capacity);
+	
+	/**
+	 * Clears the batch and fills it with as many tuples as available, up to its capacity
+	 * @return false if no tuple could be read, as pullDataItem returning null
+	 */
+	public boolean pullDataBatch(ColumnBatch batch, int timeout);
+	
+}
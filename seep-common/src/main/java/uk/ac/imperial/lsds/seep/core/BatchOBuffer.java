@@ -0,0 +1,13 @@
+package uk.ac.imperial.lsds.seep.core;
+
+import uk.ac.imperial.lsds.seep.api.RuntimeEventRegister;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+
+/**
+ * OBuffer that writes a whole ColumnBatch at once. Other OBuffers receive batches one row at a time
+ */
+public interface BatchOBuffer extends OBuffer {
+
+	public boolean write(ColumnBatch batch, RuntimeEventRegister reg);
+	
+}
@@ -0,0 +1,37 @@
+package uk.ac.imperial.lsds.seep.core;
+
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * OBuffer that keeps several completed batches, and writes them to a channel with a single gathering write
+ */
+public interface GatheringOBuffer extends OBuffer {
+
+	/**
+	 * Writes completed batches, oldest first, in one call to the channel. Up to maxBatches batches, and up to 
+	 * maxBytes but at least one batch. A batch that is partially written is written first in the next call
+	 * @return the number of batches fully written
+	 */
+	public int drainTo(GatheringByteChannel channel, int maxBytes, int maxBatches);
+
+	/**
+	 * @return the size in bytes of the completed batches waiting to be written
+	 */
+	public int bytesReadyToWrite();
+
+	/**
+	 * @return the System.nanoTime() at which the oldest batch waiting to be written was completed, or -1 if none
+	 */
+	public long oldestReadyToWriteTime();
+
+	/**
+	 * @return true if producers block until some batch is written
+	 */
+	public boolean isFull();
+
+	/**
+	 * Blocks until isFull() is false, e.g. before taking a lock that other producers of the buffer need
+	 */
+	public void awaitNotFull();
+
+}
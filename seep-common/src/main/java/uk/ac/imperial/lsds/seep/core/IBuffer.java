@@ -11,6 +11,10 @@ public interface IBuffer {
 	public DataReference getDataReference();
 	public int readFrom(ReadableByteChannel channel);
 	public byte[] read(int timeout);
+	/**
+	 * Feeds a tuple to the buffer from outside a channel, e.g. by selectors that parse records. Buffers that are
+	 * only fed by their producer ignore it
+	 */
 	void pushData(byte[] data);
 	
 }
@@ -0,0 +1,25 @@
+package uk.ac.imperial.lsds.seep.core;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.api.RuntimeEventRegister;
+
+/**
+ * OBuffer whose tuples can be written by an OTupleBuilder straight into its write buffer, one at a time.
+ * Other OBuffers receive a copy of the tuple once it is built
+ */
+public interface InPlaceOBuffer extends OBuffer {
+
+	/**
+	 * @return the write buffer, positioned where the next tuple starts and with at least minimumSize bytes
+	 * remaining, or null if tuples cannot be written in place now
+	 */
+	public ByteBuffer beginTuple(int minimumSize);
+	
+	/**
+	 * Accounts for the tuple written at the position returned by beginTuple, and left the buffer positioned after it
+	 * @return true if the tuple completed a batch
+	 */
+	public boolean endTuple(int tupleSize, RuntimeEventRegister reg);
+	
+}
@@ -0,0 +1,17 @@
+package uk.ac.imperial.lsds.seep.core;
+
+import uk.ac.imperial.lsds.seep.api.RuntimeEventRegister;
+
+/**
+ * OBuffer that carries markers in order with the tuples, so that its consumer knows when it has read all the
+ * tuples written before one
+ */
+public interface MarkerOBuffer extends OBuffer {
+
+	/**
+	 * Completes the batch being filled, if it has tuples, and writes a marker batch after it
+	 * @return true, as batches are completed
+	 */
+	public boolean writeMarker(RuntimeEventRegister reg);
+
+}
@@ -8,6 +8,9 @@ import java.util.Map;
 import java.util.Set;
 
 import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec;
+import uk.ac.imperial.lsds.seep.errors.NotSupportedException;
 import uk.ac.imperial.lsds.seep.infrastructure.ControlEndPoint;
 import uk.ac.imperial.lsds.seep.infrastructure.SeepEndPoint;
 import uk.ac.imperial.lsds.seep.util.Utils;
@@ -39,6 +42,10 @@ public class Stage {
 	 * All input data references this stage must consume. These will be partitioned across available tasks
 	 */
 	private Map<Integer, Set<DataReference>> inputDataReferences;
+	/**
+	 * Filter and projection pushed down to the scan of the input data references of a stream
+	 */
+	private Map<Integer, ScanSpec> inputScanSpecs;
 	/**
 	 * All data references produced by this stage
 	 */
@@ -59,6 +66,7 @@ public class Stage {
 		this.upstream = new HashSet<>();
 		this.downstream = new HashSet<>();
 		this.inputDataReferences = new HashMap<>();
+		this.inputScanSpecs = new HashMap<>();
 		this.outputDataReferences = new HashMap<>();
 		this.wrapping = new ArrayDeque<>();
 	}
@@ -91,7 +99,36 @@ public class Stage {
 		if(! this.inputDataReferences.containsKey(streamId)){
 			this.inputDataReferences.put(streamId, new HashSet<>());
 		}
-		this.inputDataReferences.get(streamId).addAll(dataReferences);
+		ScanSpec spec = inputScanSpecs.get(streamId);
+		if(spec == null) {
+			this.inputDataReferences.get(streamId).addAll(dataReferences);
+			return;
+		}
+		for(DataReference dr : dataReferences) {
+			checkScannable(streamId, dr);
+			this.inputDataReferences.get(streamId).add(dr.withScanSpec(spec));
+		}
+	}
+	
+	/**
+	 * Input data references of the stream added from now on are read through the given spec, so that tuples that
+	 * do not pass its filter never reach the operators of this stage. Only datasets stored by SEEP are scanned, so
+	 * the stream must not have other inputs
+	 */
+	public void pushDownToInput(int streamId, ScanSpec spec) {
+		if(inputDataReferences.containsKey(streamId)) {
+			for(DataReference dr : inputDataReferences.get(streamId)) {
+				checkScannable(streamId, dr);
+			}
+		}
+		this.inputScanSpecs.put(streamId, spec);
+	}
+	
+	private void checkScannable(int streamId, DataReference dr) {
+		if(! dr.isManaged() || dr.getServeMode() != ServeMode.STORE) {
+			throw new NotSupportedException("Cannot push down a scan to input "+dr.getId()+" of stream "+streamId
+					+" of stage "+stageId+", only datasets stored by SEEP are scanned");
+		}
 	}
 	
 	public Map<Integer, Set<DataReference>> getOutputDataReferences() {
@@ -0,0 +1,33 @@
+package uk.ac.imperial.lsds.seep.api;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.operator.LogicalOperator;
+import uk.ac.imperial.lsds.seep.errors.InvalidQueryDefinitionException;
+
+public class QueryComposerDictStringTest {
+
+	@Test
+	public void testDictStringCannotCrossProcesses() {
+		QueryBuilder queryAPI = new QueryBuilder();
+		BaseTest bt = new BaseTest();
+		LogicalOperator src = queryAPI.newStatelessSource(bt.new CustomSource(), 0);
+		LogicalOperator p = queryAPI.newStatelessOperator(bt.new Processor(), 1);
+		LogicalOperator snk = queryAPI.newStatelessSink(bt.new CustomSink(), 2);
+		Schema s = queryAPI.schemaBuilder.newField(Type.INT, "id").newField(Type.dictString("test-query"), "country").build();
+		src.connectTo(p, 0, new DataStore(s, DataStoreType.IN_MEMORY));
+		p.connectTo(snk, 0, new DataStore(s, DataStoreType.NETWORK));
+		try {
+			QueryBuilder.build();
+			fail();
+		}
+		catch(InvalidQueryDefinitionException e) {
+			assertTrue(e.getMessage().contains("country"));
+		}
+	}
+
+}
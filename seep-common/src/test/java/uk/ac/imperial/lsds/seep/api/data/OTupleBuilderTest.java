@@ -0,0 +1,115 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+public class OTupleBuilderTest {
+
+	@Test
+	public void testFixedSizeFieldsInAnyOrder() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.LONG, "ts")
+				.newField(Type.DOUBLE, "value").build();
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.position(3);
+		OTupleBuilder b = new OTupleBuilder(s);
+		b.start(buf).setDouble(2, 0.5).setInt(0, 7).setLong(1, 99L);
+		assertTrue(b.isInPlace());
+		// Nothing is published until the tuple is finished
+		assertEquals(3, buf.position());
+		int size = b.finish();
+
+		assertEquals(s.sizeOfTuple(), size);
+		assertEquals(3 + TupleInfo.TUPLE_SIZE_OVERHEAD + size, buf.position());
+		assertEquals(size, buf.getInt(3));
+		byte[] expected = OTuple.create(s, s.names(), new Object[]{ 7, 99L, 0.5 });
+		assertArrayEquals(expected, b.toBytes());
+	}
+
+	@Test
+	public void testVariableSizeFieldsArePatched() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.STRING, "name")
+				.newField(Type.BYTES, "payload").newField(Type.LONG, "ts").build();
+		ByteBuffer buf = ByteBuffer.allocate(128);
+		OTupleBuilder b = new OTupleBuilder(s);
+		byte[] payload = new byte[]{ 1, 2, 3 };
+		for(String name : new String[]{ "ascii", "été" }) {
+			buf.clear();
+			b.start(buf).setInt(0, 1).setString(1, name).setBytes(2, payload).setLong(3, 2L);
+			int size = b.finish();
+			byte[] expected = OTuple.create(s, s.names(), new Object[]{ 1, name, payload, 2L });
+			assertEquals(expected.length, size);
+			assertArrayEquals(expected, b.toBytes());
+			assertTrue(b.isInPlace());
+			ITuple t = new ITuple(s, b.toBytes());
+			assertEquals(name, t.getString("name"));
+		}
+	}
+
+	@Test
+	public void testMovesOutOfTargetWhenFull() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.STRING, "name").build();
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		buf.position(2);
+		OTupleBuilder b = new OTupleBuilder(s);
+		String name = "a name longer than the buffer";
+		b.start(buf).setInt(0, 5).setString(1, name);
+		b.finish();
+		assertFalse(b.isInPlace());
+		assertEquals(2, buf.position());
+		assertArrayEquals(OTuple.create(s, s.names(), new Object[]{ 5, name }), b.toBytes());
+	}
+
+	@Test
+	public void testShortStringFields() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.SHORTSTRING, "name").build();
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		OTupleBuilder b = new OTupleBuilder(s);
+		// A shorter string after a longer one is padded, not mixed with the bytes of the previous tuple
+		for(String name : new String[]{ "a longer name", "été" }) {
+			buf.clear();
+			b.start(buf).setString(1, name).setInt(0, 3);
+			assertEquals(s.sizeOfTuple(), b.finish());
+			assertArrayEquals(OTuple.create(s, s.names(), new Object[]{ 3, name }), b.toBytes());
+			assertEquals(name, new ITuple(s, b.toBytes()).getString("name"));
+		}
+	}
+
+	@Test
+	public void testRejectsMisuse() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.STRING, "name").build();
+		OTupleBuilder b = new OTupleBuilder(s);
+		try {
+			b.start().setLong(0, 1L);
+			fail();
+		}
+		catch(SchemaException e) { }
+		try {
+			b.start().setString(1, "out of order");
+			fail();
+		}
+		catch(SchemaException e) { }
+		try {
+			b.start().setInt(0, 1);
+			b.finish();
+			fail();
+		}
+		catch(SchemaException e) { }
+		// Fixed size fields that are not set would keep the bytes of a previous tuple
+		Schema fixed = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.LONG, "ts").build();
+		OTupleBuilder fb = new OTupleBuilder(fixed);
+		fb.start().setInt(0, 1).setLong(1, 2L).finish();
+		try {
+			fb.start().setInt(0, 1).setInt(0, 2);
+			fb.finish();
+			fail();
+		}
+		catch(SchemaException e) { }
+	}
+
+}
@@ -0,0 +1,106 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec.Op;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec.ScanSpecBuilder;
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+public class ScanEvaluatorTest {
+
+	private ByteBuffer tuple(Schema s, Object... values) {
+		byte[] data = OTuple.create(s, s.names(), values);
+		ByteBuffer buf = ByteBuffer.allocate(data.length + 3);
+		buf.position(3);
+		buf.put(data);
+		return buf;
+	}
+
+	@Test
+	public void testFiltersFixedSizeFields() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.LONG, "ts")
+				.newField(Type.DOUBLE, "value").build();
+		ScanEvaluator e = new ScanSpecBuilder().where("userId", Op.GE, 10).where("value", Op.LT, 0.5).build().bind(s);
+		assertTrue(e.filters());
+		assertFalse(e.projects());
+		assertTrue(e.accept(tuple(s, 10, 0L, 0.25), 3));
+		assertFalse(e.accept(tuple(s, 9, 0L, 0.25), 3));
+		assertFalse(e.accept(tuple(s, 11, 0L, 0.5), 3));
+
+		// Integral fields compared with fractional constants
+		ScanEvaluator f = new ScanSpecBuilder().where("ts", Op.GT, 1.5).build().bind(s);
+		assertTrue(f.accept(tuple(s, 0, 2L, 0.0), 3));
+		assertFalse(f.accept(tuple(s, 0, 1L, 0.0), 3));
+	}
+
+	@Test
+	public void testFiltersAndProjectsVariableSizeTuples() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.STRING, "name").newField(Type.INT, "age")
+				.newField(Type.BYTES, "payload").newField(Type.dictString("test-scan"), "country").build();
+		ScanEvaluator e = new ScanSpecBuilder().where("country", Op.EQ, "uk").where("age", Op.NE, 30)
+				.project("country", "name").build().bind(s);
+		assertTrue(e.projects());
+		Schema p = e.getProjectedSchema();
+		assertArrayEquals(new String[]{ "country", "name" }, p.names());
+
+		ByteBuffer accepted = tuple(s, "a longer name", 31, new byte[]{ 1, 2 }, "uk");
+		assertTrue(e.accept(accepted, 3));
+		assertFalse(e.accept(tuple(s, "n", 30, new byte[0], "uk"), 3));
+		assertFalse(e.accept(tuple(s, "n", 31, new byte[0], "es"), 3));
+
+		ByteBuffer dst = ByteBuffer.allocate(64);
+		int size = e.project(accepted, 3, dst);
+		byte[] expected = OTuple.create(p, p.names(), new Object[]{ "uk", "a longer name" });
+		assertEquals(expected.length, size);
+		ITuple t = new ITuple(p, java.util.Arrays.copyOf(dst.array(), size));
+		assertEquals("uk", t.getString("country"));
+		assertEquals("a longer name", t.getString("name"));
+	}
+
+	@Test
+	public void testFiltersColumnarRows() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.SHORT, "a").newField(Type.FLOAT, "b").build();
+		int maxRows = 4;
+		ByteBuffer buf = ByteBuffer.allocate(ColumnarITuple.HEADER_SIZE + maxRows * 6);
+		buf.putInt(ColumnarITuple.ROWS_OFFSET, maxRows);
+		buf.putInt(ColumnarITuple.MAX_ROWS_OFFSET, maxRows);
+		for(int r = 0; r < maxRows; r++) {
+			buf.putShort(ColumnarITuple.HEADER_SIZE + r * 2, (short)r);
+			buf.putFloat(ColumnarITuple.HEADER_SIZE + maxRows * 2 + r * 4, r * 1.5f);
+		}
+		ScanEvaluator e = new ScanSpecBuilder().where("a", Op.LE, 2).where("b", Op.GT, 1.0).project("b").build().bind(s);
+		assertFalse(e.acceptColumnar(buf, 0));
+		assertTrue(e.acceptColumnar(buf, 1));
+		assertTrue(e.acceptColumnar(buf, 2));
+		assertFalse(e.acceptColumnar(buf, 3));
+		ByteBuffer dst = ByteBuffer.allocate(16);
+		assertEquals(Float.BYTES, e.projectColumnar(buf, 2, dst));
+		assertEquals(3.0f, dst.getFloat(0), 0);
+	}
+
+	@Test
+	public void testRejectsInvalidSpecs() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.STRING, "name").newField(Type.INT, "age").build();
+		try {
+			new ScanSpecBuilder().where("name", Op.EQ, "x").build().bind(s);
+			fail();
+		}
+		catch(SchemaException e) { }
+		try {
+			new ScanSpecBuilder().where("missing", Op.EQ, 1).build().bind(s);
+			fail();
+		}
+		catch(SchemaException e) { }
+		try {
+			new ScanSpecBuilder().where("age", Op.LT, "x");
+			fail();
+		}
+		catch(SchemaException e) { }
+	}
+
+}
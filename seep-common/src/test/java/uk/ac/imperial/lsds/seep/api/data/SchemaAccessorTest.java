@@ -0,0 +1,92 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+public class SchemaAccessorTest {
+
+	private Schema fixed = SchemaBuilder.getInstance().newField(Type.BYTE, "b").newField(Type.SHORT, "s")
+			.newField(Type.INT, "i").newField(Type.LONG, "l").newField(Type.FLOAT, "f").newField(Type.DOUBLE, "d").build();
+	private Object[] values = new Object[]{ (byte)1, (short)2, 3, 4L, 5.0f, 6.0d };
+
+	@Test
+	public void testReadsFieldsAtConstantOffsets() {
+		assertNotNull(fixed.accessor());
+		ITuple t = new ITuple(fixed, OTuple.create(fixed, fixed.names(), values));
+		assertEquals(1, t.getByte("b"));
+		assertEquals(2, t.getShort("s"));
+		assertEquals(3, t.getInt("i"));
+		assertEquals(4L, t.getLong("l"));
+		assertEquals(5.0f, t.getFloat("f"), 0);
+		assertEquals(6.0d, t.getDouble("d"), 0);
+		// Names that are not literals are matched by value
+		assertEquals(3, t.getInt(new String("i")));
+		assertEquals(4L, t.getLong(t.getIndexFor("l")));
+		assertEquals(6.0d, t.getDouble(5), 0);
+	}
+
+	@Test
+	public void testReadsFromSharedBuffer() {
+		byte[] data = OTuple.create(fixed, fixed.names(), values);
+		ByteBuffer buf = ByteBuffer.allocate(100);
+		buf.position(17);
+		buf.put(data);
+		ZCITuple t = new ZCITuple(fixed);
+		t.assignBuffer(buf);
+		t.setBufferPtr(17);
+		assertEquals(3, t.getInt("i"));
+		assertEquals(5.0f, t.getFloat(4), 0);
+	}
+
+	@Test
+	public void testTypeChecks() {
+		ITuple t = new ITuple(fixed, OTuple.create(fixed, fixed.names(), values));
+		try {
+			t.getInt("l");
+			fail();
+		}
+		catch(SchemaException e) {
+			assertTrue(e.getMessage().contains("typeCheck"));
+		}
+		try {
+			t.getInt("missing");
+			fail();
+		}
+		catch(SchemaException e) {
+			assertTrue(e.getMessage().contains("does not have"));
+		}
+	}
+
+	@Test
+	public void testWritesAsGenericSerialization() {
+		OTuple o = new OTuple(fixed);
+		o.setValues(values);
+		ByteBuffer generated = ByteBuffer.allocate(100);
+		o.writeValues(generated);
+
+		ByteBuffer generic = ByteBuffer.allocate(100);
+		generic.putInt(o.getTupleSize());
+		for(int i = 0; i < values.length; i++) {
+			fixed.fields()[i].write(generic, values[i]);
+		}
+		generated.flip();
+		generic.flip();
+		assertEquals(generic, generated);
+	}
+
+	@Test
+	public void testSameFieldsShareAccessor() {
+		Schema other = SchemaBuilder.getInstance().newField(Type.BYTE, "b").newField(Type.SHORT, "s")
+				.newField(Type.INT, "i").newField(Type.LONG, "l").newField(Type.FLOAT, "f").newField(Type.DOUBLE, "d").build();
+		assertSame(fixed.accessor(), other.accessor());
+		Schema variable = SchemaBuilder.getInstance().newField(Type.INT, "i").newField(Type.STRING, "s").build();
+		assertNull(variable.accessor());
+	}
+
+}
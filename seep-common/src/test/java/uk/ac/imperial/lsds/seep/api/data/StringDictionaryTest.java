@@ -0,0 +1,142 @@
+package uk.ac.imperial.lsds.seep.api.data;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.errors.SchemaException;
+
+public class StringDictionaryTest {
+
+	@Test
+	public void testCodesAreStableAndDecodeToSameInstance() {
+		StringDictionary d = StringDictionary.named("test-codes");
+		assertSame(d, StringDictionary.named("test-codes"));
+		int uk = d.encode("uk");
+		int es = d.encode("es");
+		assertNotEquals(uk, es);
+		assertEquals(uk, d.encode(new String("uk")));
+		assertSame(d.decode(uk), d.decode(uk));
+		assertEquals("es", d.decode(es));
+		assertEquals(-1, d.lookup("fr"));
+		assertEquals(2, d.size());
+		for(int i = 0; i < 1000; i++) {
+			assertEquals(i + 2, d.encode("v" + i));
+		}
+		assertEquals("v999", d.decode(1001));
+		try {
+			d.decode(d.size());
+			fail();
+		}
+		catch(SchemaException e) { }
+	}
+
+	@Test
+	public void testCodesDecodeOnceOtherThreadsSeeThem() throws InterruptedException {
+		final StringDictionary d = StringDictionary.named("test-concurrent");
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread[] threads = new Thread[2];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// Both threads encode the same new values, so one often finds the code the other assigned
+						for(int i = 0; i < 200000; i++) {
+							String value = "v" + i;
+							assertEquals(value, d.decode(d.encode(value)));
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		assertNull(error.get());
+		assertEquals(200000, d.size());
+	}
+
+	@Test
+	public void testTuplesCarryCodes() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId")
+				.newField(Type.dictString("test-tuples"), "country").build();
+		assertFalse(s.isVariableSize());
+		assertNotNull(s.accessor());
+		StringDictionary d = s.dictionary("country");
+		byte[] a = OTuple.create(s, s.names(), new Object[]{ 1, "uk" });
+		byte[] b = OTuple.create(s, s.names(), new Object[]{ 2, new String("uk") });
+		// Codes are accepted as values too
+		byte[] c = OTuple.create(s, s.names(), new Object[]{ 3, d.encode("es") });
+		assertEquals(Integer.BYTES * 2, a.length);
+
+		ITuple ta = new ITuple(s, a);
+		ITuple tb = new ITuple(s, b);
+		ITuple tc = new ITuple(s, c);
+		assertEquals(ta.getDictCode("country"), tb.getDictCode("country"));
+		assertNotEquals(ta.getDictCode("country"), tc.getDictCode(1));
+		assertEquals("es", tc.getString("country"));
+		assertSame(ta.getString("country"), tb.getString("country"));
+		assertEquals("uk", ta.get("country"));
+		try {
+			ta.getInt("country");
+			fail();
+		}
+		catch(SchemaException e) { }
+
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.position(5);
+		buf.put(c);
+		ZCITuple z = new ZCITuple(s);
+		z.assignBuffer(buf);
+		z.setBufferPtr(5);
+		assertEquals(d.lookup("es"), z.getDictCode("country"));
+		assertEquals("es", z.getString("country"));
+	}
+
+	@Test
+	public void testDictionariesAreIndependent() {
+		Schema s1 = SchemaBuilder.getInstance().newField(Type.dictString("test-stream-1"), "key").build();
+		Schema s2 = SchemaBuilder.getInstance().newField(Type.dictString("test-stream-2"), "key").build();
+		assertNotSame(s1.accessor(), s2.accessor());
+		assertFalse(s1.fields()[0].equals(s2.fields()[0]));
+		assertTrue(s1.fields()[0].equals(Type.dictString("test-stream-1")));
+		OTuple.create(s1, s1.names(), new Object[]{ "a" });
+		byte[] b = OTuple.create(s2, s2.names(), new Object[]{ "b" });
+		// b is the first value of its own dictionary
+		assertEquals(0, new ITuple(s2, b).getDictCode("key"));
+		assertEquals(-1, s1.dictionary("key").lookup("b"));
+		assertEquals("b", new ITuple(s2, b).getString("key"));
+	}
+
+	@Test
+	public void testBuilderRowAndParser() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.dictString("test-csv"), "country")
+				.newField(Type.LONG, "value").build();
+		OTupleBuilder builder = new OTupleBuilder(s);
+		builder.start().setString(0, "uk").setLong(1, 10L);
+		builder.finish();
+		assertArrayEquals(OTuple.create(s, s.names(), new Object[]{ "uk", 10L }), builder.toBytes());
+
+		TypedRow row = new TypedRow(s);
+		row.setFrom(builder);
+		assertEquals(s.dictionary("country").lookup("uk"), row.getDictCode("country"));
+		assertEquals("uk", row.getString("country"));
+		assertArrayEquals(builder.toBytes(), row.getData());
+
+		CSVParser parser = CSVParser.getInstance();
+		parser.setSchema(s);
+		byte[] parsed = parser.bytesFromString("uk,10");
+		assertArrayEquals(builder.toBytes(), parsed);
+		assertEquals("uk,10", parser.stringFromBytes(parsed));
+	}
+
+}
@@ -0,0 +1,46 @@
+package uk.ac.imperial.lsds.seep.api.state;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class KeyHashSpaceTest {
+
+	@Test
+	public void testHashIsTheCRC32OfTheKeyBytes() {
+		Random r = new Random(3);
+		CRC32 crc = new CRC32();
+		for(int i = 0; i < 1000; i++) {
+			int key = i < 10 ? i : r.nextInt();
+			crc.reset();
+			crc.update(ByteBuffer.allocate(4).putInt(key).array());
+			assertEquals((int)crc.getValue(), KeyHashSpace.hash(key));
+		}
+	}
+
+	@Test
+	public void testSplitHalvesASubspace() {
+		KeyHashSpace space = new KeyHashSpace(2);
+		KeyHashSpace split = space.split(0);
+		assertEquals(3, split.numSubspaces());
+		int[] sizes = new int[3];
+		for(int key = 0; key < 30000; key++) {
+			int before = space.subspaceOf(key);
+			int after = split.subspaceOf(key);
+			// Keys of the split subspace go to one of its halves, the others move one position up
+			if(before == 0) {
+				assertTrue(after == 0 || after == 1);
+			}
+			else {
+				assertEquals(2, after);
+			}
+			sizes[after]++;
+		}
+		assertTrue(sizes[0] > 6000 && sizes[1] > 6000 && sizes[2] > 13000);
+	}
+
+}
@@ -0,0 +1,112 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+
+public class OffHeapSeepMapTest {
+
+	private Map<Integer, String> copy(Map<Integer, String> map) {
+		Map<Integer, String> m = new HashMap<>();
+		for(Map.Entry<Integer, String> e : map.entrySet()) {
+			assertNull(m.put(e.getKey(), e.getValue()));
+		}
+		return m;
+	}
+
+	@Test
+	public void testSpillsWhenMemoryIsExhausted() {
+		// 4 pages of 1KB for about 200KB of entries
+		DirectStateMemory memory = new DirectStateMemory(1024, 4);
+		OffHeapSeepMap<Integer, String> map = new OffHeapSeepMap<>(memory);
+		Map<Integer, String> expected = new HashMap<>();
+		Random r = new Random(11);
+		for(int i = 0; i < 30000; i++) {
+			int k = r.nextInt(4000);
+			int op = r.nextInt(4);
+			if(op == 0) {
+				assertEquals(expected.remove(k), map.remove(k));
+			}
+			else {
+				// Values of the same size are updated in place, others are appended again
+				String v = op == 1 ? "value-" + (i % 10) : "v" + i;
+				assertEquals(expected.put(k, v), map.put(k, v));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(4, memory.borrowedPages());
+		for(int k = 0; k < 4000; k++) {
+			assertEquals(expected.get(k), map.get(k));
+			assertEquals(expected.containsKey(k), map.containsKey(k));
+		}
+		assertEquals(expected, copy(map));
+
+		map.clear();
+		assertEquals(0, memory.borrowedPages());
+		assertTrue(map.isEmpty());
+		assertNull(map.get(1));
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		OffHeapSeepMap<Integer, String> map = new OffHeapSeepMap<>(new DirectStateMemory(512, 2));
+		for(int k = 0; k < 1000; k++) {
+			map.put(k, "v" + k);
+		}
+		Iterator<Map.Entry<Integer, String>> it = map.entrySet().iterator();
+		int seen = 0;
+		while(it.hasNext()) {
+			Map.Entry<Integer, String> e = it.next();
+			assertEquals("v" + e.getKey(), e.getValue());
+			if(e.getKey() % 2 == 0) {
+				it.remove();
+			}
+			seen++;
+		}
+		assertEquals(1000, seen);
+		assertEquals(500, map.size());
+		for(int k = 0; k < 1000; k++) {
+			assertEquals(k % 2 == 0 ? null : "v" + k, map.get(k));
+		}
+	}
+
+	@Test
+	public void testCheckpointPartitionAndMerge() {
+		DirectStateMemory memory = new DirectStateMemory(1024, 8);
+		OffHeapSeepMap<Integer, String> map = new OffHeapSeepMap<>(memory);
+		for(int k = 0; k < 2000; k++) {
+			map.put(k * 31, "v" + k);
+		}
+		Map<Integer, String> expected = copy(map);
+
+		OffHeapSeepMap<Integer, String> recovered = new OffHeapSeepMap<>(new DirectStateMemory(1024, 8));
+		recovered.recover(map.checkpoint());
+		assertEquals(expected, copy(recovered));
+
+		List<SeepState> parts = map.partition(3);
+		int total = 0;
+		for(int p = 0; p < parts.size(); p++) {
+			@SuppressWarnings("unchecked")
+			OffHeapSeepMap<Integer, String> part = (OffHeapSeepMap<Integer, String>) parts.get(p);
+			for(Integer k : part.keySet()) {
+				assertEquals(p, new KeyHashSpace(3).subspaceOf(k));
+			}
+			total = total + part.size();
+		}
+		assertEquals(2000, total);
+
+		OffHeapSeepMap<Integer, String> merged = new OffHeapSeepMap<>();
+		merged.merge(parts);
+		assertEquals(expected, copy(merged));
+	}
+
+}
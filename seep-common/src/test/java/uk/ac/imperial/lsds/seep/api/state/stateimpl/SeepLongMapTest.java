@@ -0,0 +1,143 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.errors.AttemptToReconcileStateNotInSnapshotModeException;
+
+public class SeepLongMapTest {
+
+	private Map<Long, String> drain(SeepLongMap<String> map) {
+		Map<Long, String> m = new HashMap<>();
+		Iterator<Map.Entry<Long, String>> it = map.makeStream();
+		while(it.hasNext()) {
+			Map.Entry<Long, String> e = it.next();
+			assertNull(m.put(e.getKey(), e.getValue()));
+		}
+		return m;
+	}
+
+	@Test
+	public void testBehavesAsAMap() {
+		// A single segment, so that it resizes and entries collide
+		SeepLongMap<String> map = new SeepLongMap<>(1);
+		Map<Long, String> expected = new HashMap<>();
+		Random r = new Random(7);
+		for(int i = 0; i < 20000; i++) {
+			long k = r.nextInt(5000) - 2500L;
+			if(r.nextInt(3) == 0) {
+				assertEquals(expected.remove(k), map.remove(k));
+			}
+			else {
+				assertEquals(expected.put(k, "v" + i), map.put(k, "v" + i));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for(long k = -2500; k < 2500; k++) {
+			assertEquals(expected.get(k), map.get(k));
+			assertEquals(expected.containsKey(k), map.containsKey(k));
+		}
+		assertEquals(expected, drain(map));
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(1L));
+	}
+
+	@Test
+	public void testSnapshotIsIsolatedFromWrites() {
+		SeepLongMap<String> map = new SeepLongMap<>(4);
+		for(long k = 0; k < 100; k++) {
+			map.put(k, "a");
+		}
+		try {
+			map.reconcile();
+			fail();
+		}
+		catch(AttemptToReconcileStateNotInSnapshotModeException e) { }
+
+		map.enterSnapshotMode();
+		map.put(0L, "b");
+		map.remove(1L);
+		map.put(1000L, "b");
+		// Reads see the writes
+		assertEquals("b", map.get(0L));
+		assertNull(map.get(1L));
+
+		// The snapshot does not
+		Map<Long, String> snapshot = drain(map);
+		assertEquals(100, snapshot.size());
+		assertEquals("a", snapshot.get(0L));
+		assertEquals("a", snapshot.get(1L));
+		SeepLongMap<String> recovered = new SeepLongMap<>();
+		recovered.recover(map.checkpoint());
+		assertEquals(snapshot, drain(recovered));
+
+		map.reconcile();
+		Map<Long, String> current = drain(map);
+		assertEquals(100, current.size());
+		assertEquals("b", current.get(1000L));
+		assertFalse(current.containsKey(1L));
+	}
+
+	@Test
+	public void testPartitionAndMerge() {
+		SeepLongMap<String> map = new SeepLongMap<>();
+		for(long k = 0; k < 1000; k++) {
+			map.put(k * 7919, "v" + k);
+		}
+		List<SeepState> parts = map.partition(3);
+		assertEquals(3, parts.size());
+		int total = 0;
+		for(int p = 0; p < parts.size(); p++) {
+			@SuppressWarnings("unchecked")
+			SeepLongMap<String> part = (SeepLongMap<String>) parts.get(p);
+			for(Long k : drain(part).keySet()) {
+				assertEquals(p, new KeyHashSpace(3).subspaceOf(Long.hashCode(k)));
+			}
+			total = total + part.size();
+		}
+		assertEquals(1000, total);
+
+		SeepLongMap<String> merged = new SeepLongMap<>();
+		merged.merge(parts);
+		assertEquals(drain(map), drain(merged));
+	}
+
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final SeepLongMap<Long> map = new SeepLongMap<>();
+		List<Thread> threads = new ArrayList<>();
+		for(int t = 0; t < 4; t++) {
+			final long base = t * 100000L;
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(long k = base; k < base + 20000; k++) {
+						map.put(k, k);
+						assertEquals(Long.valueOf(k), map.get(k));
+					}
+				}
+			});
+			threads.add(th);
+			th.start();
+		}
+		for(Thread th : threads) {
+			th.join();
+		}
+		assertEquals(80000, map.size());
+		for(int t = 0; t < 4; t++) {
+			assertEquals(Long.valueOf(t * 100000L + 19999), map.get(t * 100000L + 19999));
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+package uk.ac.imperial.lsds.seep.api.state.stateimpl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.errors.IllegalOperationOnStateException;
+
+public class SeepMapTest {
+
+	private List<InputStream> streams(List<ByteArrayOutputStream> checkpoints) {
+		List<InputStream> streams = new ArrayList<>();
+		for(ByteArrayOutputStream c : checkpoints) {
+			streams.add(new ByteArrayInputStream(c.toByteArray()));
+		}
+		return streams;
+	}
+
+	private ByteArrayOutputStream checkpoint(SeepMap<Integer, String> map, int expectedEntries) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(Integer.valueOf(expectedEntries), map.checkpoint(out).get());
+		return out;
+	}
+
+	@Test
+	public void testBasePlusDeltasRecoverTheState() throws Exception {
+		SeepMap<Integer, String> map = new SeepMap<>();
+		for(int k = 0; k < 1000; k++) {
+			map.put(k, "a" + k);
+		}
+		List<ByteArrayOutputStream> checkpoints = new ArrayList<>();
+		checkpoints.add(checkpoint(map, 1000));
+
+		// Deltas only hold the keys changed since the previous checkpoint
+		map.put(1, "b");
+		map.remove(2);
+		map.put(2000, "new");
+		checkpoints.add(checkpoint(map, 3));
+		map.put(1, "c");
+		map.remove(2000);
+		checkpoints.add(checkpoint(map, 2));
+		assertTrue(checkpoints.get(2).size() < checkpoints.get(0).size() / 10);
+
+		SeepMap<Integer, String> recovered = new SeepMap<>();
+		recovered.recover(streams(checkpoints));
+		assertEquals(new HashMap<>(map), new HashMap<>(recovered));
+		assertEquals("c", recovered.get(1));
+		assertNull(recovered.get(2));
+		assertNull(recovered.get(2000));
+
+		// Recovered state keeps checkpointing deltas on top of the same base
+		recovered.clear();
+		recovered.put(5, "after clear");
+		checkpoints.add(checkpoint(recovered, 1));
+		SeepMap<Integer, String> again = new SeepMap<>();
+		again.recover(streams(checkpoints));
+		assertEquals(1, again.size());
+		assertEquals("after clear", again.get(5));
+
+		try {
+			again.recover(streams(checkpoints.subList(1, 2)));
+			fail();
+		}
+		catch(IllegalOperationOnStateException e) { }
+	}
+
+	@Test
+	public void testUpdatesDuringACheckpointGoToTheNextOne() throws Exception {
+		SeepMap<Integer, String> map = new SeepMap<>();
+		for(int k = 0; k < 100; k++) {
+			map.put(k, "a");
+		}
+		final CountDownLatch release = new CountDownLatch(1);
+		ByteArrayOutputStream base = new ByteArrayOutputStream() {
+			@Override
+			public void write(byte[] b, int off, int len) {
+				try {
+					release.await();
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+				}
+				super.write(b, off, len);
+			}
+		};
+		Future<Integer> pending = map.checkpoint(base);
+		map.put(0, "b");
+		map.remove(1);
+		map.put(100, "b");
+		map.put(101, "b");
+		map.remove(101);
+		assertEquals("b", map.get(0));
+		assertNull(map.get(1));
+		assertNull(map.get(101));
+		assertEquals(100, map.size());
+		assertTrue(map.containsKey(100));
+		assertFalse(pending.isDone());
+		release.countDown();
+		assertEquals(Integer.valueOf(100), pending.get());
+
+		SeepMap<Integer, String> recovered = new SeepMap<>();
+		recovered.recover(base.toByteArray());
+		assertEquals(100, recovered.size());
+		assertEquals("a", recovered.get(0));
+		assertEquals("a", recovered.get(1));
+
+		// Reconciled on first use
+		assertEquals(100, map.size());
+		List<ByteArrayOutputStream> checkpoints = new ArrayList<>();
+		checkpoints.add(base);
+		checkpoints.add(checkpoint(map, 4));
+		recovered = new SeepMap<>();
+		recovered.recover(streams(checkpoints));
+		assertEquals(new HashMap<>(map), new HashMap<>(recovered));
+	}
+
+	@Test
+	public void testRebaseAndFullCheckpoint() throws Exception {
+		SeepMap<Integer, String> map = new SeepMap<>();
+		map.put(1, "a");
+		checkpoint(map, 1);
+		map.put(2, "b");
+		map.rebase();
+		map.put(3, "c");
+		ByteArrayOutputStream base = checkpoint(map, 3);
+		SeepMap<Integer, String> recovered = new SeepMap<>();
+		recovered.recover(base.toByteArray());
+		assertEquals(3, recovered.size());
+
+		SeepMap<Integer, String> copy = new SeepMap<>();
+		copy.recover(map.checkpoint());
+		Map<Integer, String> expected = new HashMap<>(map);
+		assertEquals(expected, new HashMap<>(copy));
+	}
+
+	@Test
+	public void testSnapshotModeKeepsMapUnchangedUntilReconcile() throws IOException {
+		SeepMap<Integer, String> map = new SeepMap<>();
+		map.put(1, "a");
+		map.put(2, "a");
+		map.enterSnapshotMode();
+		map.put(1, "b");
+		map.remove(2);
+		map.put(3, "c");
+		assertEquals(2, map.size());
+		// Views have the updates, and cannot change the state
+		Map<Integer, String> expected = new HashMap<>();
+		expected.put(1, "b");
+		expected.put(3, "c");
+		assertEquals(expected.entrySet(), map.entrySet());
+		assertEquals(expected.keySet(), map.keySet());
+		try {
+			map.entrySet().iterator().next().setValue("d");
+			fail();
+		}
+		catch(UnsupportedOperationException e) { }
+		try {
+			map.keySet().remove(1);
+			fail();
+		}
+		catch(UnsupportedOperationException e) { }
+		map.reconcile();
+		assertEquals("b", map.get(1));
+		assertFalse(map.containsKey(2));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	public void testViewsFollowTheStateAfterABackgroundCheckpoint() throws Exception {
+		SeepMap<Integer, String> map = new SeepMap<>();
+		map.put(1, "a");
+		checkpoint(map, 1);
+		// The checkpoint is over, so the map leaves snapshot mode and its views are of the state
+		Set<Integer> keys = map.keySet();
+		map.put(2, "b");
+		assertTrue(keys.contains(2));
+		assertEquals(2, map.values().size());
+	}
+
+	@Test
+	public void testPartitionFollowsTheKeyHashSpaceAndMergeRebuildsTheState() {
+		SeepMap<Integer, String> map = new SeepMap<>();
+		for(int k = 0; k < 5000; k++) {
+			map.put(k * 13, "v" + k);
+		}
+		Map<Integer, String> expected = new HashMap<>(map);
+		// A space as the one of the router after the second of 3 downstreams was scaled out
+		KeyHashSpace space = new KeyHashSpace(3).split(1);
+		List<SeepState> parts = map.partition(space);
+		assertEquals(4, parts.size());
+		int total = 0;
+		for(int p = 0; p < parts.size(); p++) {
+			@SuppressWarnings("unchecked")
+			SeepMap<Integer, String> part = (SeepMap<Integer, String>) parts.get(p);
+			assertFalse(part.isEmpty());
+			for(Integer k : part.keySet()) {
+				assertEquals(p, space.subspaceOf(k));
+			}
+			total = total + part.size();
+		}
+		assertEquals(5000, total);
+
+		SeepMap<Integer, String> merged = new SeepMap<>();
+		merged.merge(parts);
+		assertEquals(expected, merged);
+	}
+
+}
@@ -0,0 +1,132 @@
+package uk.ac.imperial.lsds.seep.integration.performance.microbenchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.BufferPool;
+
+/**
+ * Compares borrow/return throughput of the BufferPool against the previous implementation, a
+ * synchronized borrow over a single ArrayDeque, with 1 to 32 threads.
+ */
+public class BufferPoolContentionPerformanceTest {
+
+	private final int bufferSize = 4096;
+	private final int buffersPerThread = 4;
+	private final int maxThreads = 32;
+	private final long durationMs = 1000;
+
+	interface Pool {
+		ByteBuffer borrowBuffer();
+		int returnBuffer(ByteBuffer bb);
+	}
+
+	/**
+	 * Borrow/return path of the BufferPool before it was made concurrent
+	 */
+	static class SynchronizedPool implements Pool {
+		private Deque<ByteBuffer> allocatedBuffers = new ArrayDeque<>();
+		private Counter usedMemory = new Counter();
+
+		SynchronizedPool(int bufferSize, int numBuffers) {
+			for(int i = 0; i < numBuffers; i++) {
+				allocatedBuffers.add(ByteBuffer.allocate(bufferSize));
+			}
+		}
+
+		public synchronized ByteBuffer borrowBuffer() {
+			if(allocatedBuffers.size() > 0) {
+				ByteBuffer bb = allocatedBuffers.pop();
+				bb.clear();
+				usedMemory.inc(bb.capacity());
+				return bb;
+			}
+			return null;
+		}
+
+		// Not synchronized in the previous implementation, which is a data race. Synchronized here
+		// to keep the comparison fair
+		public synchronized int returnBuffer(ByteBuffer bb) {
+			usedMemory.dec(bb.capacity());
+			allocatedBuffers.add(bb);
+			return bb.capacity();
+		}
+	}
+
+	@Test
+	public void testBorrowReturnThroughput() throws InterruptedException {
+		for(int threads = 1; threads <= maxThreads; threads = threads * 2) {
+			final BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig());
+			Pool concurrent = new Pool() {
+				public ByteBuffer borrowBuffer() { return bp.borrowBuffer(); }
+				public int returnBuffer(ByteBuffer bb) { return bp.returnBuffer(bb); }
+			};
+			Pool sync = new SynchronizedPool(bufferSize, maxThreads * buffersPerThread);
+
+			long syncOps = run(sync, threads);
+			long concurrentOps = run(concurrent, threads);
+			System.out.println("threads: " + threads
+					+ " synchronized ops/s: " + (syncOps * 1000 / durationMs)
+					+ " concurrent ops/s: " + (concurrentOps * 1000 / durationMs));
+		}
+	}
+
+	private long run(final Pool pool, int numThreads) throws InterruptedException {
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long end[] = new long[1];
+		Thread[] threads = new Thread[numThreads];
+		for(int t = 0; t < numThreads; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					ByteBuffer[] held = new ByteBuffer[buffersPerThread];
+					long localOps = 0;
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					while(System.currentTimeMillis() < end[0]) {
+						for(int i = 0; i < held.length; i++) {
+							held[i] = pool.borrowBuffer();
+						}
+						for(int i = 0; i < held.length; i++) {
+							if(held[i] != null) {
+								pool.returnBuffer(held[i]);
+								localOps++;
+							}
+						}
+					}
+					ops.addAndGet(localOps);
+				}
+			});
+			threads[t].start();
+		}
+		end[0] = System.currentTimeMillis() + durationMs;
+		start.countDown();
+		for(Thread t : threads) {
+			t.join();
+		}
+		return ops.get();
+	}
+
+	private WorkerConfig buildWorkerConfig() {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, bufferSize);
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, (long)(bufferSize * (maxThreads * buffersPerThread + 1)));
+		return new WorkerConfig(p);
+	}
+}
@@ -0,0 +1,160 @@
+package uk.ac.imperial.lsds.seep.integration.performance.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.comm.Connection;
+import uk.ac.imperial.lsds.seep.comm.OutgoingConnectionRequest;
+import uk.ac.imperial.lsds.seep.core.DataStoreSelector;
+import uk.ac.imperial.lsds.seep.core.EventAPI;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+import uk.ac.imperial.lsds.seep.core.InputAdapter;
+import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seep.infrastructure.DataEndPoint;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.comm.IpcSelector;
+import uk.ac.imperial.lsds.seepworker.comm.NetworkSelector;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.input.IpcDataStream;
+import uk.ac.imperial.lsds.seepworker.core.input.NetworkDataStream;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
+
+/**
+ * Throughput of a stream between two operators in the same host, over loopback TCP with
+ * the NetworkSelector versus a memory-mapped ring with the IpcSelector. Both ends run in this JVM, but share
+ * nothing but the socket or the ring file, as they would in two workers.
+ */
+public class IpcVsLoopbackPerformanceTest {
+
+	private final Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId")
+			.newField(Type.LONG, "ts").newField(Type.INT, "value").build();
+	private final int id = 1;
+	private final int batchSize = 64 * 1024;
+	private final int numTuples = 20000000;
+	private final int repetitions = 3;
+
+	private WorkerConfig buildWorkerConfig(File ipcDir) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.setProperty(WorkerConfig.NUM_NETWORK_READER_THREADS, "1");
+		p.setProperty(WorkerConfig.NUM_NETWORK_WRITER_THREADS, "1");
+		p.setProperty(WorkerConfig.IPC_DIR, ipcDir.getAbsolutePath());
+		return new WorkerConfig(p);
+	}
+
+	@Test
+	public void testIpcVersusLoopbackThroughput() throws IOException, InterruptedException {
+		File ipcDir = Files.createTempDirectory("ipcbenchmark").toFile();
+		WorkerConfig wc = buildWorkerConfig(ipcDir);
+		for(int r = 0; r < repetitions; r++) {
+			run("loopback", wc, false);
+			run("ipc", wc, true);
+		}
+		ipcDir.delete();
+	}
+
+	private void run(String name, WorkerConfig wc, boolean ipc) throws IOException, InterruptedException {
+		InputBuffer ib = InputBuffer.makeInputBufferFor(wc, null);
+		final OutputBuffer ob = new OutputBuffer(null, batchSize, wc.getInt(WorkerConfig.OUTPUT_RING_SLOTS), null) {
+			@Override
+			public int id() {
+				return id;
+			}
+		};
+		Map<Integer, IBuffer> ibMap = new HashMap<>();
+		ibMap.put(id, ib);
+
+		DataStoreSelector[] selectors = null;
+		InputAdapter ia = null;
+		if(ipc) {
+			IpcSelector producerSide = new IpcSelector(wc);
+			Set<OBuffer> obufs = new HashSet<>();
+			obufs.add(ob);
+			producerSide.configureOutgoingConnection(obufs);
+			IpcSelector consumerSide = new IpcSelector(wc);
+			consumerSide.configureExpectedIncomingConnection(ibMap);
+			selectors = new DataStoreSelector[]{ producerSide, consumerSide };
+			ia = new IpcDataStream(wc, 0, ib, s);
+		}
+		else {
+			int port = 0;
+			try(ServerSocket ss = new ServerSocket(0)) {
+				port = ss.getLocalPort();
+			}
+			NetworkSelector ns = new NetworkSelector(wc, 0);
+			ob.setEventAPI(ns);
+			ns.configureServerToListen(InetAddress.getByName("127.0.0.1"), port);
+			ns.configureExpectedIncomingConnection(ibMap);
+			Set<OutgoingConnectionRequest> ocrs = new HashSet<>();
+			ocrs.add(new OutgoingConnectionRequest(new Connection(new DataEndPoint(id, "127.0.0.1", port)), ob));
+			ns.configureOutgoingConnection(ocrs);
+			selectors = new DataStoreSelector[]{ ns };
+			ia = new NetworkDataStream(wc, 0, ib, s);
+		}
+		for(DataStoreSelector dss : selectors) {
+			dss.initSelector();
+		}
+		for(DataStoreSelector dss : selectors) {
+			dss.startSelector();
+		}
+
+		final EventAPI eAPI = (EventAPI)selectors[0];
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				OTuple o = new OTuple(s);
+				for(int i = 0; i < numTuples; i++) {
+					o.setValues(new Object[]{i, (long)i, i});
+					if(ob.write(o, null)) {
+						eAPI.readyForWrite(id);
+					}
+				}
+			}
+		});
+
+		long start = System.nanoTime();
+		producer.start();
+		// The last batch is incomplete and is never sent
+		int sizeOnWire = s.sizeOfTuple() + TupleInfo.TUPLE_SIZE_OVERHEAD;
+		int tuplesPerBatch = (batchSize - TupleInfo.PER_BATCH_OVERHEAD_SIZE + sizeOnWire - 1) / sizeOnWire;
+		int expected = numTuples - (numTuples % tuplesPerBatch);
+		long checksum = 0;
+		for(int i = 0; i < expected; i++) {
+			ITuple t = ia.pullDataItem(5000);
+			if(t == null) {
+				System.out.println(name + ": timed out after " + i + " tuples");
+				break;
+			}
+			checksum = checksum + t.getInt("value");
+		}
+		long time = System.nanoTime() - start;
+		producer.join();
+		for(DataStoreSelector dss : selectors) {
+			dss.stopSelector();
+		}
+
+		long bytes = (long)expected * sizeOnWire;
+		System.out.println("transport: " + name
+				+ " Mtuples/s: " + String.format("%.2f", expected / (time / 1000.0))
+				+ " MB/s: " + String.format("%.2f", (bytes / (1024.0 * 1024.0)) / (time / 1000000000.0))
+				+ " (" + checksum + ")");
+	}
+
+}
@@ -0,0 +1,84 @@
+package uk.ac.imperial.lsds.seep.integration.performance.microbenchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seepworker.core.SpillCodec;
+import uk.ac.imperial.lsds.seepworker.core.SpillFile;
+
+/**
+ * Spill and reload throughput of raw versus compressed spill files, for buffers of fixed-schema
+ * tuples as written by a Dataset.
+ */
+public class SpillCodecPerformanceTest {
+
+	private final Schema s = SchemaBuilder.getInstance().newField(Type.INT, "userId")
+			.newField(Type.LONG, "ts").newField(Type.INT, "value").build();
+	private final int bufferSize = 1024 * 1024;
+	private final int numBuffers = 256; // 256 MB
+	private final int repetitions = 3;
+
+	@Test
+	public void testSpillAndReloadThroughput() throws IOException {
+		ByteBuffer buffer = fillBuffer();
+		for(SpillCodec codec : SpillCodec.values()) {
+			for(int r = 0; r < repetitions; r++) {
+				String name = "spillcodecbenchmark_" + codec + ".cached";
+				SpillFile sf = SpillFile.open(name, codec);
+
+				long start = System.nanoTime();
+				for(int i = 0; i < numBuffers; i++) {
+					sf.append(buffer.duplicate());
+				}
+				long spillTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				long position = 0;
+				long checksum = 0;
+				ByteBuffer frame = null;
+				while((frame = sf.readFrame(position)) != null) {
+					// Touch the data, as a consumer would
+					while(frame.remaining() >= TupleInfo.TUPLE_SIZE_OVERHEAD) {
+						int size = frame.getInt();
+						checksum = checksum + frame.getInt(frame.position());
+						frame.position(frame.position() + size);
+					}
+					position = sf.nextFramePosition();
+				}
+				long reloadTime = System.nanoTime() - start;
+
+				long rawBytes = (long)bufferSize * numBuffers;
+				System.out.println("codec: " + codec
+						+ " ratio: " + String.format("%.2f", rawBytes / (double)sf.size())
+						+ " spill MB/s: " + mbPerSecond(rawBytes, spillTime)
+						+ " reload MB/s: " + mbPerSecond(rawBytes, reloadTime)
+						+ " (" + checksum + ")");
+				sf.delete();
+			}
+		}
+	}
+
+	private ByteBuffer fillBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		OTuple o = new OTuple(s);
+		int i = 0;
+		while(buffer.remaining() >= s.sizeOfTuple() + TupleInfo.TUPLE_SIZE_OVERHEAD) {
+			o.setValues(new Object[]{i % 1000, 1450000000000L + i, i % 10});
+			o.writeValues(buffer);
+			i++;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private long mbPerSecond(long bytes, long nanos) {
+		return (long)((bytes / (1024.0 * 1024.0)) / (nanos / 1e9));
+	}
+}
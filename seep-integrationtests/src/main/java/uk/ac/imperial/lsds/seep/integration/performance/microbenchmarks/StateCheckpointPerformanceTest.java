@@ -0,0 +1,88 @@
+package uk.ac.imperial.lsds.seep.integration.performance.microbenchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.state.stateimpl.SeepMap;
+
+/**
+ * Time the task pauses to checkpoint a SeepMap, versus the size of the state. A full checkpoint pauses for as long
+ * as it takes to serialize the whole state, an incremental one only to start writing it in the background. Each
+ * incremental checkpoint after the base one writes the keys updated since the previous one.
+ */
+public class StateCheckpointPerformanceTest {
+
+	private final int[] stateSizes = new int[]{ 10000, 100000, 1000000 };
+	private final int updatesPerCheckpoint = 1000;
+	private final int checkpoints = 10;
+
+	@Test
+	public void testCheckpointPauseTime() throws InterruptedException, ExecutionException {
+		Random r = new Random(0);
+		for(int size : stateSizes) {
+			SeepMap<Integer, Long> map = new SeepMap<>();
+			for(int k = 0; k < size; k++) {
+				map.put(k, (long)k);
+			}
+
+			long fullPause = 0;
+			long fullBytes = 0;
+			for(int c = 0; c < checkpoints; c++) {
+				update(map, r, size);
+				long start = System.nanoTime();
+				fullBytes = fullBytes + map.checkpoint().length;
+				fullPause = fullPause + (System.nanoTime() - start);
+			}
+
+			CountingOutputStream out = new CountingOutputStream();
+			map.checkpoint(out).get();
+			long incrementalPause = 0;
+			long incrementalTotal = 0;
+			long incrementalBytes = 0;
+			for(int c = 0; c < checkpoints; c++) {
+				update(map, r, size);
+				out.count = 0;
+				long start = System.nanoTime();
+				Future<Integer> f = map.checkpoint(out);
+				incrementalPause = incrementalPause + (System.nanoTime() - start);
+				f.get();
+				incrementalTotal = incrementalTotal + (System.nanoTime() - start);
+				incrementalBytes = incrementalBytes + out.count;
+			}
+
+			System.out.println("state: " + size + " entries"
+					+ " full pause us: " + (fullPause / checkpoints / 1000)
+					+ " (" + (fullBytes / checkpoints) + " bytes)"
+					+ " incremental pause us: " + (incrementalPause / checkpoints / 1000)
+					+ " written in us: " + (incrementalTotal / checkpoints / 1000)
+					+ " (" + (incrementalBytes / checkpoints) + " bytes)");
+		}
+	}
+
+	private void update(SeepMap<Integer, Long> map, Random r, int size) {
+		for(int i = 0; i < updatesPerCheckpoint; i++) {
+			int k = r.nextInt(size);
+			map.put(k, map.get(k) + 1);
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) throws IOException {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			count = count + len;
+		}
+	}
+
+}
@@ -63,7 +63,8 @@ public class WorkerConfig extends Config {
     private static final String MAX_PENDING_NETWORK_CONNECTION_PER_THREAD_DOC = "Max. number of pending connections per thread";
     
     public static final String SIMPLE_INPUT_QUEUE_LENGTH = "simple.input.queue.length";
-    private static final String SIMPLE_INPUT_QUEUE_LENGTH_DOC = "The length of a simple input queue, in case this is configured";
+    private static final String SIMPLE_INPUT_QUEUE_LENGTH_DOC = "The length of a simple input queue, in case this is configured. Network input buffers "
+    													+ "queue whole batches as received, so this is the number of batches they hold";
     
     public static final String BATCH_SIZE = "batch.size";
     private static final String BATCH_SIZE_DOC = "Recommended maximum batch size in bytes. Note that this is not enforced, the system"
@@ -88,6 +89,85 @@ public class WorkerConfig extends Config {
     
     public static final String BUFFERPOOL_MAX_MEM_AVAILABLE = "bufferpool.max.memory.available";
     private static final String BUFFERPOOL_MAX_MEM_AVAILABLE_DOC = "Maximum memory available to the buffer pool";
+    
+    public static final String BUFFERPOOL_OFF_HEAP = "bufferpool.offheap";
+    private static final String BUFFERPOOL_OFF_HEAP_DOC = "Allocate pooled buffers in direct memory slabs instead of the heap. Requires "
+    													+ "-XX:MaxDirectMemorySize to be at least the memory available to the buffer pool";
+    
+    public static final String BUFFERPOOL_OFF_HEAP_SLAB_BUFFERS = "bufferpool.offheap.slab.buffers";
+    private static final String BUFFERPOOL_OFF_HEAP_SLAB_BUFFERS_DOC = "Number of minimum size buffers carved out of each direct memory slab";
+    
+    public static final String BUFFERPOOL_SIZE_CLASSES = "bufferpool.size.classes";
+    private static final String BUFFERPOOL_SIZE_CLASSES_DOC = "Number of buffer size classes, each one half the size of the previous one, "
+    													+ "starting at the minimum buffer size";
+    
+    public static final String BUFFERPOOL_THREAD_CACHE_SIZE = "bufferpool.thread.cache.size";
+    private static final String BUFFERPOOL_THREAD_CACHE_SIZE_DOC = "Maximum number of free buffers, per size class, cached by each thread "
+    													+ "that borrows from the buffer pool. 0 disables per-thread caching";
+
+    public static final String SPILL_ASYNC = "spill.async";
+    private static final String SPILL_ASYNC_DOC = "Spill datasets to disk in a background thread when the buffer pool goes above "
+    													+ "the high watermark, instead of only when a writer runs out of buffers";
+    
+    public static final String SPILL_HIGH_WATERMARK = "spill.high.watermark";
+    private static final String SPILL_HIGH_WATERMARK_DOC = "Fraction of the buffer pool memory in use above which datasets start to be "
+    													+ "spilled to disk in the background";
+    
+    public static final String SPILL_LOW_WATERMARK = "spill.low.watermark";
+    private static final String SPILL_LOW_WATERMARK_DOC = "Fraction of the buffer pool memory in use below which background spilling stops";
+
+    public static final String SPILL_CODEC = "spill.codec";
+    private static final String SPILL_CODEC_DOC = "Codec to compress the frames of datasets spilled to disk: none, lz4 or deflate";
+
+    public static final String SPILL_READAHEAD_DEPTH = "spill.readahead.depth";
+    private static final String SPILL_READAHEAD_DEPTH_DOC = "Maximum number of buffers of a spilled dataset read ahead of its reader in "
+    													+ "the background. The depth adapts to the reader up to this value. Raw frames are read in place, their pages are "
+    													+ "only loaded ahead. Compressed frames are decompressed ahead into buffers of the pool. 0 disables read-ahead";
+
+    public static final String OUTPUT_RING_SLOTS = "output.ring.slots";
+    private static final String OUTPUT_RING_SLOTS_DOC = "Number of batch buffers per network output. Tasks only block on output when all of "
+    													+ "them are waiting to be sent";
+
+    public static final String NETWORK_COALESCE_BYTES = "network.coalesce.bytes";
+    private static final String NETWORK_COALESCE_BYTES_DOC = "Maximum number of bytes of ready batches written to a network connection in a single "
+    													+ "gathering write";
+
+    public static final String NETWORK_COALESCE_LATENCY_MS = "network.coalesce.latency.ms";
+    private static final String NETWORK_COALESCE_LATENCY_MS_DOC = "Maximum time ready batches are held back to coalesce them with following ones "
+    													+ "into a single write. 0 only coalesces batches that are already ready";
+
+    public static final String NETWORK_CREDIT_FLOW_CONTROL = "network.credit.flowcontrol";
+    private static final String NETWORK_CREDIT_FLOW_CONTROL_DOC = "Senders only send batches the receiver has granted credits for, as its input queue "
+    													+ "drains, so that a slow consumer does not block the reader thread it shares with other connections. "
+    													+ "Must be the same in all workers";
+
+    public static final String IPC_DIR = "ipc.dir";
+    private static final String IPC_DIR_DOC = "Directory of the memory-mapped ring files of IPC connections between workers in the same host. "
+    													+ "Must be the same in all of them. Preferably in a memory backed file system, e.g. /dev/shm";
+
+    public static final String IPC_RING_SIZE = "ipc.ring.size";
+    private static final String IPC_RING_SIZE_DOC = "Size in bytes of the memory-mapped ring of each IPC connection";
+
+    public static final String STREAM_LOCAL_HANDOFF = "stream.local.handoff";
+    private static final String STREAM_LOCAL_HANDOFF_DOC = "Streams produced and consumed in the same worker hand batches over by reference, "
+    													+ "instead of through the network";
+
+    public static final String ENGINE_THREADS = "engine.threads";
+    private static final String ENGINE_THREADS_DOC = "Number of worker threads of the MULTI_THREAD processing engine. 0 uses one per available core";
+
+    public static final String PROCESSING_BATCH_SIZE = "processing.batch.size";
+    private static final String PROCESSING_BATCH_SIZE_DOC = "Maximum number of tuples handed to tasks that process batches (BatchSeepTask) in one call";
+
+    public static final String DATASET_COLUMNAR = "dataset.columnar";
+    private static final String DATASET_COLUMNAR_DOC = "Store datasets with a fixed-size schema of primitive types in columnar layout, one "
+    													+ "vector per field and without per tuple sizes";
+
+    public static final String STATE_SPILL_DIR = "state.spill.dir";
+    private static final String STATE_SPILL_DIR_DOC = "Directory where off-heap states spill the pages that do not fit in the buffer pool";
+
+    public static final String SCALE_OUT_MAX_HELD_BYTES = "scaleout.max.held.bytes";
+    private static final String SCALE_OUT_MAX_HELD_BYTES_DOC = "Maximum size of the tuples an upstream holds while a downstream scales out. "
+    													+ "Tasks block on send once they reach it, until the scale out is over";
 
 	public static final String SHUFFLE_NUM_PARTITIONS = "shuffle.partitions.num";
 	private static final String SHUFFLE_NUM_PARTITIONS_DOC = "Configures the default number of partitions per DataReference per partition";
@@ -120,6 +200,27 @@ public class WorkerConfig extends Config {
 				// 10MB = 10 * 1024 * 1024 = 10485760
 				.define(BUFFERPOOL_MIN_BUFFER_SIZE, Type.INT, 10485760, Importance.MEDIUM, BUFFERPOOL_MIN_BUFFER_SIZE_DOC)
 				.define(BUFFERPOOL_MAX_MEM_AVAILABLE, Type.LONG, (int)(availableMemoryBytes/2), Importance.HIGH, BUFFERPOOL_MAX_MEM_AVAILABLE_DOC)
+				.define(BUFFERPOOL_OFF_HEAP, Type.BOOLEAN, false, Importance.MEDIUM, BUFFERPOOL_OFF_HEAP_DOC)
+				.define(BUFFERPOOL_OFF_HEAP_SLAB_BUFFERS, Type.INT, 16, Importance.LOW, BUFFERPOOL_OFF_HEAP_SLAB_BUFFERS_DOC)
+				.define(BUFFERPOOL_SIZE_CLASSES, Type.INT, 8, Importance.LOW, BUFFERPOOL_SIZE_CLASSES_DOC)
+				.define(BUFFERPOOL_THREAD_CACHE_SIZE, Type.INT, 4, Importance.LOW, BUFFERPOOL_THREAD_CACHE_SIZE_DOC)
+				.define(SPILL_ASYNC, Type.BOOLEAN, false, Importance.MEDIUM, SPILL_ASYNC_DOC)
+				.define(SPILL_HIGH_WATERMARK, Type.DOUBLE, 0.9, Importance.LOW, SPILL_HIGH_WATERMARK_DOC)
+				.define(SPILL_LOW_WATERMARK, Type.DOUBLE, 0.7, Importance.LOW, SPILL_LOW_WATERMARK_DOC)
+				.define(SPILL_CODEC, Type.STRING, "none", Importance.MEDIUM, SPILL_CODEC_DOC)
+				.define(SPILL_READAHEAD_DEPTH, Type.INT, 4, Importance.LOW, SPILL_READAHEAD_DEPTH_DOC)
+				.define(OUTPUT_RING_SLOTS, Type.INT, 4, Importance.LOW, OUTPUT_RING_SLOTS_DOC)
+				.define(NETWORK_COALESCE_BYTES, Type.INT, 65536, Importance.LOW, NETWORK_COALESCE_BYTES_DOC)
+				.define(NETWORK_COALESCE_LATENCY_MS, Type.INT, 0, Importance.LOW, NETWORK_COALESCE_LATENCY_MS_DOC)
+				.define(NETWORK_CREDIT_FLOW_CONTROL, Type.BOOLEAN, true, Importance.MEDIUM, NETWORK_CREDIT_FLOW_CONTROL_DOC)
+				.define(IPC_DIR, Type.STRING, System.getProperty("java.io.tmpdir"), Importance.LOW, IPC_DIR_DOC)
+				.define(IPC_RING_SIZE, Type.INT, 4194304, Importance.LOW, IPC_RING_SIZE_DOC)
+				.define(STREAM_LOCAL_HANDOFF, Type.BOOLEAN, true, Importance.LOW, STREAM_LOCAL_HANDOFF_DOC)
+				.define(ENGINE_THREADS, Type.INT, 0, Importance.LOW, ENGINE_THREADS_DOC)
+				.define(PROCESSING_BATCH_SIZE, Type.INT, 1024, Importance.LOW, PROCESSING_BATCH_SIZE_DOC)
+				.define(DATASET_COLUMNAR, Type.BOOLEAN, false, Importance.LOW, DATASET_COLUMNAR_DOC)
+				.define(STATE_SPILL_DIR, Type.STRING, System.getProperty("java.io.tmpdir"), Importance.LOW, STATE_SPILL_DIR_DOC)
+				.define(SCALE_OUT_MAX_HELD_BYTES, Type.INT, 16777216, Importance.LOW, SCALE_OUT_MAX_HELD_BYTES_DOC)
 				.define(SHUFFLE_NUM_PARTITIONS, Type.INT, (int)8, Importance.MEDIUM, SHUFFLE_NUM_PARTITIONS_DOC);
 	}
 	
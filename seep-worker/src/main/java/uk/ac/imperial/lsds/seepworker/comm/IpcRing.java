@@ -0,0 +1,268 @@
+package uk.ac.imperial.lsds.seepworker.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Single producer, single consumer byte ring in a memory-mapped file, shared by two processes in the same host.
+ * The producer writes to it as a WritableByteChannel and the consumer reads from it as a ReadableByteChannel,
+ * so that batches are framed exactly as they are on a socket.
+ * The file starts with a header: [magic][capacity][session][epoch][producer pid], then the total bytes written
+ * (head) and the total bytes read (tail), each in its own cache line, followed by the data region.
+ * Consumers only open rings of their session whose producer is alive, so leftover rings of other runs, or rings of
+ * other deployments sharing the directory, are never read as live data.
+ * Each side publishes its position only after copying the bytes it covers, with a fence between the copy and the
+ * store, and the other side fences between loading the position and accessing the bytes. Positions are aligned
+ * 8-byte words of the mapping in native order, which direct buffers load and store in one access.
+ */
+public class IpcRing implements ReadableByteChannel, WritableByteChannel {
+
+	private static final int MAGIC = 0x5EE91BC0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int SESSION_OFFSET = 8;
+	private static final int EPOCH_OFFSET = 16;
+	private static final int PID_OFFSET = 24;
+	private static final int HEAD_OFFSET = 64;
+	private static final int TAIL_OFFSET = 128;
+	public static final int HEADER_SIZE = 192;
+
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final ByteBuffer data;
+	private final int capacity;
+	private final long epoch;
+
+	// Cached positions, only the local side modifies its own one
+	private long head;
+	private long tail;
+	private boolean open = true;
+
+	// Only written and read back to fence the accesses to the mapping, see orderAccesses
+	private static volatile long fence;
+	private static final long PID;
+	static {
+		// pid@host
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		PID = Long.parseLong(name.substring(0, name.indexOf('@')));
+	}
+
+	private IpcRing(File file, FileChannel channel, MappedByteBuffer map, int capacity, long epoch) {
+		this.file = file;
+		this.channel = channel;
+		this.map = map;
+		this.capacity = capacity;
+		this.epoch = epoch;
+		map.position(HEADER_SIZE);
+		this.data = map.slice();
+		map.position(0);
+		map.order(ByteOrder.nativeOrder());
+		this.head = loadPosition(HEAD_OFFSET);
+		this.tail = loadPosition(TAIL_OFFSET);
+	}
+
+	/**
+	 * Creates the ring file of the producer, replacing any previous one. It is initialised aside and then moved in
+	 * place, so that a consumer never opens it half initialised
+	 * @param session identifies the producer and consumer of the ring, the consumer opens it with the same one
+	 */
+	public static IpcRing create(File file, int capacity, long session) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			raf.setLength(HEADER_SIZE + capacity);
+			raf.writeInt(MAGIC);
+			raf.writeInt(capacity);
+			raf.writeLong(session);
+			raf.writeLong(ThreadLocalRandom.current().nextLong());
+			raf.writeLong(PID);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return map(file);
+	}
+
+	/**
+	 * Opens the ring file of a producer
+	 * @return null if the file does not exist yet, or it is not of this session, or its producer is gone, e.g. a
+	 * ring left behind by a previous run that its producer will replace
+	 */
+	public static IpcRing open(File file, long session) throws IOException {
+		if(! file.exists()) {
+			return null;
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if(raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+				throw new IOException("Not an IPC ring file: " + file);
+			}
+			raf.seek(SESSION_OFFSET);
+			if(raf.readLong() != session) {
+				return null;
+			}
+			raf.seek(PID_OFFSET);
+			if(! isAlive(raf.readLong())) {
+				return null;
+			}
+		}
+		return map(file);
+	}
+
+	private static IpcRing map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel fc = raf.getChannel();
+		MappedByteBuffer header = fc.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+		int capacity = header.getInt(CAPACITY_OFFSET);
+		long epoch = header.getLong(EPOCH_OFFSET);
+		MappedByteBuffer map = fc.map(MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+		return new IpcRing(file, fc, map, capacity, epoch);
+	}
+
+	/**
+	 * @return false if there is certainly no process with the pid. Hosts without /proc cannot tell
+	 */
+	private static boolean isAlive(long pid) {
+		File proc = new File("/proc");
+		return ! proc.isDirectory() || new File(proc, Long.toString(pid)).exists();
+	}
+
+	/**
+	 * Removes the ring file, unless a new producer replaced it already
+	 */
+	public void delete() {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if(raf.length() < HEADER_SIZE) {
+				return;
+			}
+			raf.seek(EPOCH_OFFSET);
+			if(raf.readLong() != epoch) {
+				return;
+			}
+		}
+		catch (IOException e) {
+			// Removed already
+			return;
+		}
+		file.delete();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the bytes that can be read
+	 */
+	public int readable() {
+		return (int)(loadPosition(HEAD_OFFSET) - tail);
+	}
+
+	/**
+	 * @return the bytes that can be written
+	 */
+	public int writable() {
+		return capacity - (int)(head - loadPosition(TAIL_OFFSET));
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		int n = Math.min(src.remaining(), writable());
+		if(n == 0) {
+			return 0;
+		}
+		copy(src, n, (int)(head % capacity), true);
+		head = head + n;
+		storePosition(HEAD_OFFSET, head);
+		return n;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) {
+		int n = Math.min(dst.remaining(), readable());
+		if(n == 0) {
+			return 0;
+		}
+		copy(dst, n, (int)(tail % capacity), false);
+		tail = tail + n;
+		storePosition(TAIL_OFFSET, tail);
+		return n;
+	}
+
+	/**
+	 * Loads the position of the other side, before any access to the bytes it covers
+	 */
+	private long loadPosition(int offset) {
+		long position = map.getLong(offset);
+		orderAccesses();
+		return position;
+	}
+
+	/**
+	 * Publishes the position of this side, after all accesses to the bytes it covers
+	 */
+	private void storePosition(int offset, long position) {
+		orderAccesses();
+		map.putLong(offset, position);
+	}
+
+	/**
+	 * No access before a volatile store is reordered after it, nor any access after a volatile load before it, and
+	 * the store is not reordered after the load. So accesses to the mapping, which is the same memory in both
+	 * processes, are not reordered across this call
+	 */
+	private static void orderAccesses() {
+		fence = 0;
+		long loaded = fence;
+	}
+
+	/**
+	 * Copies n bytes between buf and the data region starting at offset, wrapping around its end
+	 */
+	private void copy(ByteBuffer buf, int n, int offset, boolean toRing) {
+		int first = Math.min(n, capacity - offset);
+		copySegment(buf, first, offset, toRing);
+		if(first < n) {
+			copySegment(buf, n - first, 0, toRing);
+		}
+	}
+
+	private void copySegment(ByteBuffer buf, int n, int offset, boolean toRing) {
+		data.limit(offset + n);
+		data.position(offset);
+		if(toRing) {
+			int limit = buf.limit();
+			buf.limit(buf.position() + n);
+			data.put(buf);
+			buf.limit(limit);
+		}
+		else {
+			buf.put(data);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+		channel.close();
+	}
+
+}
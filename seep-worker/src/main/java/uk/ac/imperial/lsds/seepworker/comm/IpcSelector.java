@@ -0,0 +1,288 @@
+package uk.ac.imperial.lsds.seepworker.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.core.DataStoreSelector;
+import uk.ac.imperial.lsds.seep.core.EventAPI;
+import uk.ac.imperial.lsds.seep.core.EventBasedOBuffer;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seep.infrastructure.SeepEndPoint;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
+
+/**
+ * Moves batches between workers in the same host through memory-mapped rings, one per DataReference, instead
+ * of loopback sockets. The ring file of a DataReference is created by the worker that produces it, and found
+ * by the worker that consumes it in the shared IPC directory, so there is no connection handshake. Ring files are
+ * named after the session of the DataReference too, its producer endpoint, and both sides remove them on stop.
+ * A writer thread copies completed batches of the output buffers into their rings, and a reader thread copies
+ * them into the input buffers. Both poll the rings, and back off when they are idle.
+ */
+public class IpcSelector implements EventAPI, DataStoreSelector {
+
+	final private static Logger LOG = LoggerFactory.getLogger(IpcSelector.class);
+
+	// Rounds without progress that the reader spins before parking
+	private static final int IDLE_SPINS = 100;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long MAX_WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final File ipcDir;
+	private final int ringSize;
+
+	// incoming id -> local input buffer, and rings found so far
+	private Map<Integer, IBuffer> ibMap;
+	private Map<Integer, IpcRing> inputRings;
+	// outgoing id -> output buffer and its ring
+	private Map<Integer, OBuffer> obMap;
+	private Map<Integer, IpcRing> outputRings;
+	// id -> session of its ring
+	private Map<Integer, Long> sessions;
+
+	private volatile boolean working = false;
+	private Thread readerWorker;
+	private Thread writerWorker;
+
+	public IpcSelector(WorkerConfig wc) {
+		this.ipcDir = new File(wc.getString(WorkerConfig.IPC_DIR));
+		this.ringSize = wc.getInt(WorkerConfig.IPC_RING_SIZE);
+		this.ibMap = new HashMap<>();
+		this.inputRings = new HashMap<>();
+		this.obMap = new HashMap<>();
+		this.outputRings = new HashMap<>();
+		this.sessions = new HashMap<>();
+	}
+
+	public static File ringFileFor(File ipcDir, long session, int id) {
+		return new File(ipcDir, "seep-ipc-" + Long.toHexString(session) + "-" + id + ".ring");
+	}
+
+	/**
+	 * Producer and consumer of a DataReference agree on its session, derived from the endpoint of the worker that
+	 * produces it
+	 */
+	public static long sessionOf(DataReference dr) {
+		if(dr == null || dr.getControlEndPoint() == null) {
+			return 0;
+		}
+		SeepEndPoint ep = dr.getControlEndPoint();
+		return ((long)ep.getId() << 32) ^ (31L * String.valueOf(ep.getIp()).hashCode() + ep.getPort());
+	}
+
+	/**
+	 * Input buffers receive the batches of the ring with their id, once its producer creates it
+	 * @param ibMap
+	 */
+	public void configureExpectedIncomingConnection(Map<Integer, IBuffer> ibMap) {
+		for(Entry<Integer, IBuffer> e : ibMap.entrySet()) {
+			if(e.getValue() instanceof InputBuffer) {
+				this.ibMap.put(e.getKey(), e.getValue());
+				this.sessions.put(e.getKey(), sessionOf(e.getValue().getDataReference()));
+			}
+		}
+		LOG.info("Expecting {} upstream IPC connections", this.ibMap.size());
+	}
+
+	/**
+	 * Output buffers are written to a ring with their id
+	 * @param obufs
+	 */
+	public void configureOutgoingConnection(Set<OBuffer> obufs) {
+		for(OBuffer ob : obufs) {
+			if(ob instanceof EventBasedOBuffer) {
+				((EventBasedOBuffer)ob).setEventAPI(this);
+			}
+			obMap.put(ob.id(), ob);
+			sessions.put(ob.id(), sessionOf(ob.getDataReference()));
+		}
+		LOG.info("Configured {} downstream IPC connections", obMap.size());
+	}
+
+	@Override
+	public DataStoreType type() {
+		return DataStoreType.IPC;
+	}
+
+	@Override
+	public boolean initSelector() {
+		ipcDir.mkdirs();
+		// Create the rings of the output now, so that they are there when downstream workers look for them
+		for(Integer id : obMap.keySet()) {
+			try {
+				outputRings.put(id, IpcRing.create(ringFileFor(ipcDir, sessions.get(id), id), ringSize, sessions.get(id)));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		if(! ibMap.isEmpty()) {
+			readerWorker = new Thread(new Reader());
+			readerWorker.setName("IPC-Reader");
+		}
+		if(! obMap.isEmpty()) {
+			writerWorker = new Thread(new Writer());
+			writerWorker.setName("IPC-Writer");
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startSelector() {
+		working = true;
+		if(readerWorker != null) {
+			LOG.info("Starting reader: {}", readerWorker.getName());
+			readerWorker.start();
+		}
+		if(writerWorker != null) {
+			LOG.info("Starting writer: {}", writerWorker.getName());
+			writerWorker.start();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean stopSelector() {
+		working = false;
+		try {
+			if(readerWorker != null) {
+				readerWorker.join();
+			}
+			if(writerWorker != null) {
+				LockSupport.unpark(writerWorker);
+				writerWorker.join();
+			}
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		// Both sides remove the rings, so that no stale one is left behind. Consumers that mapped one already keep
+		// reading it
+		for(IpcRing ring : inputRings.values()) {
+			close(ring);
+			ring.delete();
+		}
+		for(IpcRing ring : outputRings.values()) {
+			close(ring);
+			ring.delete();
+		}
+		LOG.info("Stopped IPC reader and writer");
+		return true;
+	}
+
+	private void close(IpcRing ring) {
+		try {
+			ring.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void readyForWrite(int id) {
+		if(writerWorker != null) {
+			LockSupport.unpark(writerWorker);
+		}
+	}
+
+	@Override
+	public void readyForWrite(List<Integer> ids) {
+		readyForWrite(-1);
+	}
+
+	/**
+	 * Copies batches from the rings to the input buffers, as long as they can take them without blocking
+	 */
+	class Reader implements Runnable {
+
+		@Override
+		public void run() {
+			LOG.info("Started IPC Reader worker: {}", Thread.currentThread().getName());
+			int idleRounds = 0;
+			while(working) {
+				if(inputRings.size() < ibMap.size()) {
+					openNewRings();
+				}
+				boolean progress = false;
+				for(Entry<Integer, IpcRing> e : inputRings.entrySet()) {
+					IpcRing ring = e.getValue();
+					InputBuffer ib = (InputBuffer)ibMap.get(e.getKey());
+					while(ib.hasRoomForBatch() && ring.readable() > 0) {
+						ib.readFrom(ring);
+						progress = true;
+					}
+				}
+				idleRounds = progress ? 0 : idleRounds + 1;
+				if(idleRounds > IDLE_SPINS) {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+		}
+
+		private void openNewRings() {
+			for(Integer id : ibMap.keySet()) {
+				if(inputRings.containsKey(id)) {
+					continue;
+				}
+				try {
+					long session = sessions.get(id);
+					IpcRing ring = IpcRing.open(ringFileFor(ipcDir, session, id), session);
+					if(ring != null) {
+						LOG.info("Found IPC ring of upstream: {}", id);
+						inputRings.put(id, ring);
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies completed batches of the output buffers to their rings. Sleeps until notified of a new batch, or
+	 * polls while some ring is full
+	 */
+	class Writer implements Runnable {
+
+		@Override
+		public void run() {
+			LOG.info("Started IPC Writer worker: {}", Thread.currentThread().getName());
+			while(working) {
+				boolean progress = false;
+				boolean blocked = false;
+				for(Entry<Integer, OBuffer> e : obMap.entrySet()) {
+					OBuffer ob = e.getValue();
+					IpcRing ring = outputRings.get(e.getKey());
+					while(ob.readyToWrite()) {
+						// A batch only partially fits in the ring, the rest is written once the consumer makes room
+						if(! ob.drainTo(ring)) {
+							blocked = true;
+							break;
+						}
+						progress = true;
+					}
+				}
+				if(! progress) {
+					LockSupport.parkNanos(blocked ? IDLE_PARK_NANOS : MAX_WRITER_PARK_NANOS);
+				}
+			}
+		}
+	}
+
+}
@@ -22,20 +22,24 @@ import java.util.Properties;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
 import uk.ac.imperial.lsds.seep.api.data.Type;
 import uk.ac.imperial.lsds.seep.comm.Connection;
 import uk.ac.imperial.lsds.seep.comm.OutgoingConnectionRequest;
 import uk.ac.imperial.lsds.seep.core.DataStoreSelector;
 import uk.ac.imperial.lsds.seep.core.EventAPI;
+import uk.ac.imperial.lsds.seep.core.GatheringOBuffer;
 import uk.ac.imperial.lsds.seep.core.IBuffer;
 import uk.ac.imperial.lsds.seep.core.OBuffer;
 import uk.ac.imperial.lsds.seep.infrastructure.SeepEndPointType;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
 
 public class NetworkSelector implements EventAPI, DataStoreSelector {
 
@@ -55,6 +59,9 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 	private Thread[] readerWorkers;
 	private Thread[] writerWorkers;
 	private int numWriterWorkers;
+	private int coalesceMaxBytes;
+	private boolean creditFlowControl;
+	private long coalesceMaxDelayNanos;
 	
 	private int myId;
 	private Map<Integer, SelectionKey> writerKeys;
@@ -70,6 +77,9 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 		this.numReaderWorkers = wc.getInt(WorkerConfig.NUM_NETWORK_READER_THREADS);
 		this.numWriterWorkers = wc.getInt(WorkerConfig.NUM_NETWORK_WRITER_THREADS);
 		this.totalNumberPendingConnectionsPerThread = wc.getInt(WorkerConfig.MAX_PENDING_NETWORK_CONNECTION_PER_THREAD);
+		this.coalesceMaxBytes = wc.getInt(WorkerConfig.NETWORK_COALESCE_BYTES);
+		this.coalesceMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(wc.getInt(WorkerConfig.NETWORK_COALESCE_LATENCY_MS));
+		this.creditFlowControl = wc.getBoolean(WorkerConfig.NETWORK_CREDIT_FLOW_CONTROL);
 		LOG.info("Configuring NetworkSelector with: {} readers, {} workers and {} maxPendingNetworkConn",
 				numReaderWorkers, numWriterWorkers, totalNumberPendingConnectionsPerThread);
 		// Create pool of reader threads
@@ -287,6 +297,7 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 		private int id;
 		private boolean working;
 		private Queue<SocketChannel> pendingConnections;
+		private Map<SelectionKey, ByteBuffer> pendingGrants;
 		
 		private Selector readSelector;
 		
@@ -294,6 +305,7 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			this.id = id;
 			this.working = true;
 			this.pendingConnections = new ArrayDeque<SocketChannel>(totalNumberOfPendingConnectionsPerThread);
+			this.pendingGrants = new HashMap<>();
 			try {
 				this.readSelector = Selector.open();
 			}
@@ -325,6 +337,9 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			while(working) {
 				// First handle potential new connections that have been queued up
 				this.handleNewConnections();
+				if(creditFlowControl) {
+					this.grantCredits();
+				}
 				try {
 					int readyChannels = readSelector.select();
 					if(readyChannels == 0){
@@ -360,6 +375,41 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			this.closeReader();
 		}
 		
+		/**
+		 * Grants senders the credits of their input buffers. A grant that does not fit in the socket is
+		 * completed in the next iteration, before granting more
+		 */
+		private void grantCredits() {
+			for(SelectionKey key : readSelector.keys()) {
+				if(! (key.attachment() instanceof InputBuffer) || ! key.isValid()) {
+					continue;
+				}
+				SocketChannel channel = (SocketChannel) key.channel();
+				ByteBuffer grant = pendingGrants.get(key);
+				if(grant == null) {
+					int credits = ((InputBuffer)key.attachment()).takeCreditsToGrant();
+					if(credits == 0) {
+						continue;
+					}
+					grant = ByteBuffer.allocate(TupleInfo.CREDIT_GRANT_SIZE);
+					grant.putInt(credits);
+					grant.flip();
+				}
+				try {
+					channel.write(grant);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+				if(grant.hasRemaining()) {
+					pendingGrants.put(key, grant);
+				}
+				else {
+					pendingGrants.remove(key);
+				}
+			}
+		}
+		
 		private boolean needsToConfigureConnection(SelectionKey key) {
 			return !(key.attachment() instanceof IBuffer);
 		}
@@ -396,6 +446,15 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			key.attach(null);
 			key.attach(responsibleForThisChannel);
 			readerKeys.put(key, id);
+			if(responsibleForThisChannel instanceof InputBuffer) {
+				// Wake up to grant credits as the buffer is consumed
+				((InputBuffer)responsibleForThisChannel).setCreditListener(new Runnable() {
+					@Override
+					public void run() {
+						wakeUp();
+					}
+				});
+			}
 			return moreConnectionsPending;
 		}
 		
@@ -456,6 +515,9 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 		// buffer id - outputbuffer
 		private Map<Integer, OBuffer> outputBufferMap;
 		private Map<Integer, Boolean> needsConfigureOutputConnection;
+		// buffer id - batches the receiver can take, and partially read credit grants
+		private Map<Integer, Integer> credits;
+		private Map<Integer, ByteBuffer> creditGrants;
 		
 		private Selector writeSelector;
 		
@@ -464,6 +526,8 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			this.working = true;
 			this.outputBufferMap = new HashMap<>();
 			this.needsConfigureOutputConnection = new HashMap<>();
+			this.credits = new HashMap<>();
+			this.creditGrants = new HashMap<>();
 			this.pendingConnections = new ArrayDeque<OutgoingConnectionRequest>();
 			try {
 				this.writeSelector = Selector.open();
@@ -492,9 +556,9 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			while(working){
 				// First handle potential new connections that have been queued up
 				handleNewConnections();
-				pollBuffers();
+				long waitMs = pollBuffers();
 				try {
-					int readyChannels = writeSelector.select();
+					int readyChannels = waitMs > 0 ? writeSelector.select(waitMs) : writeSelector.select();
 					if(readyChannels == 0){
 						continue;
 					}
@@ -522,17 +586,35 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 							if(needsConfigureOutputConnection.get(ob.id())) {
 								handleSendIdentifier(ob.id(), channel);
 								unsetWritable(key);
+								if(creditFlowControl) {
+									// Nothing is sent until the receiver grants credits
+									key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+								}
 								needsConfigureOutputConnection.put(ob.id(), false);
 								// Notify of a new configured connection
 								writersConfiguredLatch.countDown();
 								LOG.trace("CountDown to configure all output conns: {}", writersConfiguredLatch.getCount());
 							}
 							else {
-								// write batch
-								boolean fullyWritten = ob.drainTo(channel);
-								if(fullyWritten) unsetWritable(key);
+								// write batches, coalescing those ready into one write when possible
+								int maxBatches = creditFlowControl ? credits.get(ob.id()) : Integer.MAX_VALUE;
+								int written = 0;
+								if(ob instanceof GatheringOBuffer) {
+									written = ((GatheringOBuffer)ob).drainTo(channel, coalesceMaxBytes, maxBatches);
+								}
+								else if(maxBatches > 0 && ob.drainTo(channel)) {
+									written = 1;
+								}
+								if(creditFlowControl) {
+									credits.put(ob.id(), maxBatches - written);
+								}
+								if(! ob.readyToWrite() || ! hasCredits(ob)) unsetWritable(key);
 							}
 						}
+						// credits granted by the receiver
+						if(key.isValid() && key.isReadable()) {
+							handleCreditGrant(key);
+						}
 						if(! key.isValid()){
 							String conn = ((SocketChannel)key.channel()).socket().getRemoteSocketAddress().toString();
 							LOG.warn("Invalid outgoing data connection to: {}", conn);
@@ -546,14 +628,79 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 			this.closeWriter();
 		}
 		
-		private void pollBuffers(){
+		/**
+		 * Sets the interest in writing for the buffers with batches that are due
+		 * @return the time in ms until the next batch held back to coalesce it with others is due, or 0 if none
+		 */
+		private long pollBuffers(){
+			long nextDueNanos = Long.MAX_VALUE;
+			long now = System.nanoTime();
 			for(OBuffer ob : outputBufferMap.values()){
-				if(ob.readyToWrite()){
+				if(ob.readyToWrite() && hasCredits(ob)){
+					long dueInNanos = dueIn(ob, now);
+					if(dueInNanos > 0) {
+						nextDueNanos = Math.min(nextDueNanos, dueInNanos);
+						continue;
+					}
 					SelectionKey key = writerKeys.get(ob.id());
 					int interestOps = key.interestOps() | SelectionKey.OP_WRITE;
 					key.interestOps(interestOps);
 				}
 			}
+			if(nextDueNanos == Long.MAX_VALUE) {
+				return 0;
+			}
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDueNanos));
+		}
+		
+		/**
+		 * Batches are held back, up to the latency budget, while there are not enough bytes to fill a write and
+		 * the producer is not blocked waiting for them to be written
+		 */
+		private long dueIn(OBuffer ob, long now) {
+			if(coalesceMaxDelayNanos == 0 || !(ob instanceof GatheringOBuffer)) {
+				return 0;
+			}
+			GatheringOBuffer gob = (GatheringOBuffer)ob;
+			if(gob.isFull() || gob.bytesReadyToWrite() >= coalesceMaxBytes) {
+				return 0;
+			}
+			long oldest = gob.oldestReadyToWriteTime();
+			if(oldest < 0) {
+				return 0;
+			}
+			return Math.max(0, coalesceMaxDelayNanos - (now - oldest));
+		}
+		
+		private boolean hasCredits(OBuffer ob) {
+			return ! creditFlowControl || credits.get(ob.id()) > 0;
+		}
+		
+		private void handleCreditGrant(SelectionKey key) {
+			OBuffer ob = (OBuffer)key.attachment();
+			ByteBuffer grants = creditGrants.get(ob.id());
+			int readBytes = 0;
+			try {
+				readBytes = ((SocketChannel)key.channel()).read(grants);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(readBytes < 0) {
+				LOG.warn("Receiver closed data connection for: {}", ob.id());
+				key.cancel();
+				return;
+			}
+			grants.flip();
+			int granted = 0;
+			while(grants.remaining() >= TupleInfo.CREDIT_GRANT_SIZE) {
+				granted = granted + grants.getInt();
+			}
+			grants.compact();
+			if(granted > 0) {
+				credits.put(ob.id(), credits.get(ob.id()) + granted);
+				LOG.trace("Granted {} credits for: {}", granted, ob.id());
+			}
 		}
 		
 		private void handleSendIdentifier(int oBufferId, SocketChannel channel){
@@ -606,6 +753,8 @@ public class NetworkSelector implements EventAPI, DataStoreSelector {
 					key.attach(ob);
 					outputBufferMap.put(ob.id(), ob);
 					needsConfigureOutputConnection.put(ob.id(), true);
+					credits.put(ob.id(), 0);
+					creditGrants.put(ob.id(), ByteBuffer.allocate(TupleInfo.CREDIT_GRANT_SIZE * 16));
 					LOG.info("Configured new output connection with OP: {} at {}", ob.id(), address.toString());
 					// Associate id - key in the networkSelectorMap
 					writerKeys.put(ob.id(), key);
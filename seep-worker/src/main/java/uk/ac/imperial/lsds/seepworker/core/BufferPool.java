@@ -2,9 +2,17 @@ package uk.ac.imperial.lsds.seepworker.core;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,13 +22,41 @@ import com.codahale.metrics.Counter;
 import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
 
+/**
+ * Pool of buffers shared by all Datasets (and other buffer users) of a worker. Borrowing and returning 
+ * buffers is thread-safe and does not take a global lock: each thread keeps a small magazine of free
+ * buffers per size class, backed by a lock-free shared stack. When both are empty, a thread steals
+ * buffers from the magazines of other threads before allocating new memory, and once the memory of the pool is
+ * used up, it cuts a free buffer of a larger size class into smaller ones.
+ */
 public class BufferPool {
 
 	final private Logger LOG = LoggerFactory.getLogger(BufferPool.class.getName());
 	
+	// Size classes smaller than this are not created, regardless of configuration
+	private static final int MIN_SIZE_CLASS = 1024;
+	
 	private final int minBufferSize;
 	private final long totalMemAvailableToBufferPool;
-	private Deque<ByteBuffer> allocatedBuffers;
+	
+	// When offHeap, buffers are segments carved out of direct memory slabs
+	private final boolean offHeap;
+	private final int slabSize;
+	private ByteBuffer currentSlab;
+	private long slabMemory;
+	
+	// sizeClasses[0] is always minBufferSize, each following class halves the previous one.
+	// allocatedBuffers keeps one shared free stack per size class
+	private final int[] sizeClasses;
+	private List<ConcurrentLinkedDeque<ByteBuffer>> allocatedBuffers;
+	
+	// Per thread caches of free buffers, and all of them so that they can be stolen from
+	private final int magazineSize;
+	private final ThreadLocal<Magazine> localMagazine;
+	private final Queue<Magazine> magazines;
+	
+	// Memory reserved by this pool, used for bounds checking (the metrics below are shared by all pools)
+	private final AtomicLong reservedMemory;
 		
 	// Metrics
 	// usedMemory is allocated memory that is currently used by some Dataset
@@ -38,7 +74,14 @@ public class BufferPool {
 	private BufferPool(int a) {
 		this.minBufferSize = 8192;
 		this.totalMemAvailableToBufferPool = (int)(Runtime.getRuntime().totalMemory())/2;
-		this.allocatedBuffers = new ArrayDeque<ByteBuffer>();
+		this.offHeap = false;
+		this.slabSize = minBufferSize;
+		this.sizeClasses = computeSizeClasses(minBufferSize, 1);
+		this.allocatedBuffers = createFreeLists(sizeClasses.length);
+		this.magazineSize = 0;
+		this.magazines = new ConcurrentLinkedQueue<>();
+		this.localMagazine = newLocalMagazine();
+		this.reservedMemory = new AtomicLong();
 		LOG.warn("TEMPORAL-> dangling buffer pools");
 		usedMemory = SeepMetrics.REG.counter(name(BufferPool.class, "total", "mem"));
 		allocatedMemory = SeepMetrics.REG.counter(name(BufferPool.class, "allocated", "mem"));
@@ -48,11 +91,19 @@ public class BufferPool {
 	private BufferPool(WorkerConfig wc) {
 		this.minBufferSize = wc.getInt(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE);
 		this.totalMemAvailableToBufferPool = wc.getLong(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE);
-		this.allocatedBuffers = new ArrayDeque<ByteBuffer>();
+		this.offHeap = wc.getBoolean(WorkerConfig.BUFFERPOOL_OFF_HEAP);
+		this.slabSize = minBufferSize * Math.max(1, wc.getInt(WorkerConfig.BUFFERPOOL_OFF_HEAP_SLAB_BUFFERS));
+		this.sizeClasses = computeSizeClasses(minBufferSize, wc.getInt(WorkerConfig.BUFFERPOOL_SIZE_CLASSES));
+		this.allocatedBuffers = createFreeLists(sizeClasses.length);
+		this.magazineSize = wc.getInt(WorkerConfig.BUFFERPOOL_THREAD_CACHE_SIZE);
+		this.magazines = new ConcurrentLinkedQueue<>();
+		this.localMagazine = newLocalMagazine();
+		this.reservedMemory = new AtomicLong();
 		usedMemory = SeepMetrics.REG.counter(name(BufferPool.class, "event", "mem"));
 		allocatedMemory = SeepMetrics.REG.counter(name(BufferPool.class, "allocated", "mem"));
 		preAllocatePoolOfBuffers();
-		LOG.info("Created new Buffer Pool with availableMemory of {} and minBufferSize of: {}", this.totalMemAvailableToBufferPool, this.minBufferSize);
+		LOG.info("Created new Buffer Pool with availableMemory of {} and minBufferSize of: {}, offHeap: {}, sizeClasses: {}", 
+				this.totalMemAvailableToBufferPool, this.minBufferSize, this.offHeap, this.sizeClasses.length);
 	}
 	
 	public static BufferPool createBufferPool(WorkerConfig wc) {
@@ -63,54 +114,192 @@ public class BufferPool {
 		return this.minBufferSize;
 	}
 	
+	public boolean isOffHeap() {
+		return this.offHeap;
+	}
+	
 	/**
 	 * Will return a ByteBuffer from the pool if available. If not, it will try to allocate a new ByteBuffer,
 	 * an operation that will succeed if there is enough memory available. If there is not enough memory
 	 * available, the method returns null
 	 * @return
 	 */
-	public synchronized ByteBuffer borrowBuffer() {
-		if(allocatedBuffers.size() > 0) {
-			ByteBuffer bb = allocatedBuffers.pop();
+	public ByteBuffer borrowBuffer() {
+		return borrowFromSizeClass(0);
+	}
+	
+	/**
+	 * Same as borrowBuffer(), but returns a buffer of the smallest size class that can hold size bytes. 
+	 * Returns null when size is larger than the minimum buffer size or there is not enough memory available.
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer borrowBuffer(int size) {
+		int sizeClass = sizeClassFor(size);
+		if(sizeClass == -1) {
+			return null;
+		}
+		return borrowFromSizeClass(sizeClass);
+	}
+	
+	private ByteBuffer borrowFromSizeClass(int sizeClass) {
+		int size = sizeClasses[sizeClass];
+		Magazine magazine = localMagazine.get();
+		ByteBuffer bb = takeFreeBuffer(magazine, sizeClass);
+		if(bb != null) {
 			bb.clear();
 			//allocatedMemory.inc(minBufferSize);
-			usedMemory.inc(minBufferSize);
+			usedMemory.inc(size);
 			return bb;
 		}
 		else {
-			if(enoughMemoryAvailable()){
-				allocatedMemory.inc(minBufferSize);
-				usedMemory.inc(minBufferSize);
-				return allocateByteBuffer();
+			if(reserveMemory(size)){
+				allocatedMemory.inc(size);
+				usedMemory.inc(size);
+				return allocateByteBuffer(size);
 			}
-			else {
-				return null;
+			bb = splitLargerBuffer(magazine, sizeClass);
+			if(bb != null) {
+				usedMemory.inc(size);
 			}
+			return bb;
 		}
 	}
 	
-	private ByteBuffer allocateByteBuffer() {
-		return ByteBuffer.allocate(minBufferSize);
+	private ByteBuffer takeFreeBuffer(Magazine magazine, int sizeClass) {
+		ByteBuffer bb = magazine.pop(sizeClass);
+		if(bb == null) {
+			bb = refillFromSharedStack(magazine, sizeClass);
+		}
+		if(bb == null) {
+			bb = stealFromOtherMagazines(magazine, sizeClass);
+		}
+		return bb;
 	}
 	
-	public ByteBuffer getCacheBuffer() {
-		ByteBuffer bb = allocateByteBuffer();
+	/**
+	 * Cuts the closest larger free buffer into buffers of the given size class, e.g. once the memory of the pool
+	 * went to the buffers of minBufferSize allocated on creation. The pieces stay in the smaller class, the one
+	 * returned and the rest in the shared stack of the class
+	 * @return a piece, or null if there are no larger free buffers
+	 */
+	private ByteBuffer splitLargerBuffer(Magazine magazine, int sizeClass) {
+		for(int larger = sizeClass - 1; larger >= 0; larger--) {
+			ByteBuffer bb = takeFreeBuffer(magazine, larger);
+			if(bb == null) {
+				continue;
+			}
+			int size = sizeClasses[sizeClass];
+			int pieces = sizeClasses[larger] / size;
+			LOG.debug("Splitting free buffer of {} bytes into {} buffers of {} bytes", sizeClasses[larger], pieces, size);
+			ConcurrentLinkedDeque<ByteBuffer> shared = allocatedBuffers.get(sizeClass);
+			for(int i = 1; i < pieces; i++) {
+				shared.offerFirst(slice(bb, i * size, size));
+			}
+			return slice(bb, 0, size);
+		}
+		return null;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer bb, int start, int size) {
+		bb.clear();
+		bb.position(start);
+		bb.limit(start + size);
+		return bb.slice();
+	}
+	
+	/**
+	 * Takes one buffer from the shared stack, and moves up to half a magazine more to the local magazine
+	 * so that the next borrows do not touch shared state.
+	 */
+	private ByteBuffer refillFromSharedStack(Magazine magazine, int sizeClass) {
+		ConcurrentLinkedDeque<ByteBuffer> shared = allocatedBuffers.get(sizeClass);
+		ByteBuffer bb = shared.pollFirst();
+		if(bb == null) {
+			return null;
+		}
+		for(int i = 0; i < magazineSize / 2; i++) {
+			ByteBuffer next = shared.pollFirst();
+			if(next == null) {
+				break;
+			}
+			if(! magazine.push(sizeClass, next)) {
+				shared.offerFirst(next);
+				break;
+			}
+		}
 		return bb;
 	}
 	
+	private ByteBuffer stealFromOtherMagazines(Magazine thief, int sizeClass) {
+		for(Magazine victim : magazines) {
+			if(victim != thief) {
+				ByteBuffer bb = victim.steal(sizeClass);
+				if(bb != null) {
+					return bb;
+				}
+			}
+		}
+		return null;
+	}
+	
+	private ByteBuffer allocateByteBuffer(int size) {
+		if(offHeap) {
+			return carveSegmentFromSlab(size);
+		}
+		return ByteBuffer.allocate(size);
+	}
+	
+	/**
+	 * Slices a segment of the given size out of the current direct memory slab, allocating a new slab
+	 * when the current one does not have enough space left. Slabs are never released, segments are
+	 * recycled through the free lists.
+	 */
+	private synchronized ByteBuffer carveSegmentFromSlab(int size) {
+		if(currentSlab == null || currentSlab.remaining() < size) {
+			// Do not reserve more direct memory than the pool is allowed to use
+			long remainingBudget = totalMemAvailableToBufferPool - slabMemory;
+			int newSlabSize = (int) Math.max(size, Math.min(slabSize, remainingBudget));
+			currentSlab = ByteBuffer.allocateDirect(newSlabSize);
+			slabMemory = slabMemory + newSlabSize;
+		}
+		int start = currentSlab.position();
+		currentSlab.limit(start + size);
+		ByteBuffer segment = currentSlab.slice();
+		currentSlab.limit(currentSlab.capacity());
+		currentSlab.position(start + size);
+		return segment;
+	}
+	
+	public ByteBuffer getCacheBuffer() {
+		// The cache buffer lives outside the pool, so it does not consume slab space
+		if(offHeap) {
+			return ByteBuffer.allocateDirect(minBufferSize);
+		}
+		return ByteBuffer.allocate(minBufferSize);
+	}
+	
 	public int returnBuffer(ByteBuffer buffer) {
 		int freedMemory = buffer.capacity();
-		usedMemory.dec(minBufferSize);
-		allocatedBuffers.add(buffer);
+		int sizeClass = sizeClassOfCapacity(freedMemory);
+		usedMemory.dec(sizeClasses[sizeClass]);
+		if(! localMagazine.get().push(sizeClass, buffer)) {
+			allocatedBuffers.get(sizeClass).offerFirst(buffer);
+		}
 		return freedMemory;
 	}
 	
-	private boolean enoughMemoryAvailable() {
+	private boolean reserveMemory(int size) {
 		// Any headroom should have been incorporated on bufferPool creation (e.g. aprox. constant mem usage on steady state)
-		if(allocatedMemory.getCount() + minBufferSize > totalMemAvailableToBufferPool) {
-			return false;
+		while(true) {
+			long current = reservedMemory.get();
+			if(current + size > totalMemAvailableToBufferPool) {
+				return false;
+			}
+			if(reservedMemory.compareAndSet(current, current + size)) {
+				return true;
+			}
 		}
-		return true;
 	}
 
 	public boolean isThereXMemAvailable(long size) {
@@ -126,15 +315,149 @@ public class BufferPool {
 		return availableMemory/(double)totalMemAvailableToBufferPool;
 	}
 	
+	private int sizeClassFor(int size) {
+		if(size > minBufferSize) {
+			return -1;
+		}
+		int sizeClass = 0;
+		while(sizeClass + 1 < sizeClasses.length && sizeClasses[sizeClass + 1] >= size) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+	
+	private int sizeClassOfCapacity(int capacity) {
+		// Buffers not created by the pool (e.g. cache buffers) have minBufferSize capacity
+		for(int i = 0; i < sizeClasses.length; i++) {
+			if(sizeClasses[i] <= capacity) {
+				return i;
+			}
+		}
+		return sizeClasses.length - 1;
+	}
+	
+	private static int[] computeSizeClasses(int minBufferSize, int numSizeClasses) {
+		List<Integer> classes = new ArrayList<>();
+		int size = minBufferSize;
+		classes.add(size);
+		while(classes.size() < numSizeClasses && (size / 2) >= MIN_SIZE_CLASS) {
+			size = size / 2;
+			classes.add(size);
+		}
+		int[] sizeClasses = new int[classes.size()];
+		for(int i = 0; i < sizeClasses.length; i++) {
+			sizeClasses[i] = classes.get(i);
+		}
+		return sizeClasses;
+	}
+	
+	private static List<ConcurrentLinkedDeque<ByteBuffer>> createFreeLists(int numSizeClasses) {
+		List<ConcurrentLinkedDeque<ByteBuffer>> freeLists = new ArrayList<>(numSizeClasses);
+		for(int i = 0; i < numSizeClasses; i++) {
+			freeLists.add(new ConcurrentLinkedDeque<ByteBuffer>());
+		}
+		return freeLists;
+	}
+	
+	private ThreadLocal<Magazine> newLocalMagazine() {
+		return new ThreadLocal<Magazine>() {
+			@Override
+			protected Magazine initialValue() {
+				sweepDeadMagazines();
+				Magazine m = new Magazine(Thread.currentThread(), sizeClasses.length, magazineSize);
+				magazines.add(m);
+				return m;
+			}
+		};
+	}
+	
+	/**
+	 * Deregisters the magazines of threads that exited, and moves their buffers to the shared stacks. Called when
+	 * a thread registers its magazine, so that the magazines never outnumber the live threads plus those that
+	 * exited since the last thread started
+	 */
+	private void sweepDeadMagazines() {
+		Iterator<Magazine> it = magazines.iterator();
+		while(it.hasNext()) {
+			Magazine m = it.next();
+			if(! m.isOwnerAlive()) {
+				it.remove();
+				m.drainTo(allocatedBuffers);
+			}
+		}
+	}
+	
+	int getNumMagazines() {
+		return magazines.size();
+	}
+	
 	private void preAllocatePoolOfBuffers() {
 		LOG.info("Creating buffer pool... Pooling buffers");
-		while(allocatedMemory.getCount() + this.minBufferSize < this.totalMemAvailableToBufferPool) {
-			usedMemory.inc(minBufferSize);
+		int buffers = 0;
+		while(reservedMemory.get() + this.minBufferSize < this.totalMemAvailableToBufferPool) {
+			reservedMemory.addAndGet(minBufferSize);
 			allocatedMemory.inc(minBufferSize);
-			ByteBuffer n = this.allocateByteBuffer();
-			this.returnBuffer(n);
+			ByteBuffer n = this.allocateByteBuffer(minBufferSize);
+			// Straight to the shared stack, so that any thread can use them
+			this.allocatedBuffers.get(0).offerFirst(n);
+			buffers++;
+		}
+		LOG.info("Pooling buffers... {} buffers created", buffers);
+	}
+	
+	/**
+	 * Small per-thread cache of free buffers, one stack per size class. Only the owner thread pushes and
+	 * pops, so its lock is uncontended except when another thread steals from it.
+	 */
+	private static class Magazine {
+		
+		private final Deque<ByteBuffer>[] cached;
+		private final int capacity;
+		// Weak, so that the magazine does not keep its thread reachable
+		private final WeakReference<Thread> owner;
+		
+		@SuppressWarnings("unchecked")
+		Magazine(Thread owner, int numSizeClasses, int capacity) {
+			this.owner = new WeakReference<>(owner);
+			this.cached = (Deque<ByteBuffer>[]) new Deque<?>[numSizeClasses];
+			for(int i = 0; i < numSizeClasses; i++) {
+				cached[i] = new ArrayDeque<ByteBuffer>(Math.max(1, capacity));
+			}
+			this.capacity = capacity;
+		}
+		
+		boolean isOwnerAlive() {
+			Thread t = owner.get();
+			return t != null && t.isAlive();
+		}
+		
+		synchronized void drainTo(List<ConcurrentLinkedDeque<ByteBuffer>> shared) {
+			for(int i = 0; i < cached.length; i++) {
+				ByteBuffer bb = null;
+				while((bb = cached[i].pollFirst()) != null) {
+					shared.get(i).offerFirst(bb);
+				}
+			}
+		}
+		
+		synchronized ByteBuffer pop(int sizeClass) {
+			return cached[sizeClass].pollFirst();
+		}
+		
+		synchronized boolean push(int sizeClass, ByteBuffer bb) {
+			if(cached[sizeClass].size() >= capacity) {
+				return false;
+			}
+			cached[sizeClass].addFirst(bb);
+			return true;
+		}
+		
+		ByteBuffer steal(int sizeClass) {
+			synchronized(this) {
+				// Take the coldest buffer, the owner keeps using the hot ones
+				return cached[sizeClass].pollLast();
+			}
 		}
-		LOG.info("Pooling buffers... {} buffers created", this.allocatedBuffers.size());
 	}
 
 }
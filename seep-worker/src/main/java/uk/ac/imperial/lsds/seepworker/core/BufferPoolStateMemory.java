@@ -0,0 +1,44 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.api.state.StateMemory;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+/**
+ * StateMemory that borrows the pages of states from the BufferPool of the worker, so that states and Datasets are
+ * accounted in the same memory budget. Pages are buffers of the pool, as the pool reserves its memory in buffers of
+ * the minimum size. When the pool is exhausted states spill their pages, same as Datasets.
+ */
+public class BufferPoolStateMemory implements StateMemory {
+
+	private final BufferPool bufferPool;
+	private final File spillDirectory;
+
+	public BufferPoolStateMemory(BufferPool bufferPool, WorkerConfig wc) {
+		this.bufferPool = bufferPool;
+		this.spillDirectory = new File(wc.getString(WorkerConfig.STATE_SPILL_DIR));
+	}
+
+	@Override
+	public int pageSize() {
+		return bufferPool.getMinimumBufferSize();
+	}
+
+	@Override
+	public ByteBuffer borrowPage() {
+		return bufferPool.borrowBuffer();
+	}
+
+	@Override
+	public void returnPage(ByteBuffer page) {
+		bufferPool.returnBuffer(page);
+	}
+
+	@Override
+	public File spillDirectory() {
+		return spillDirectory;
+	}
+
+}
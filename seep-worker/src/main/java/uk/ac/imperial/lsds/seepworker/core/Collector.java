@@ -1,32 +1,54 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 
-import uk.ac.imperial.lsds.seep.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.lsds.seep.api.BatchAPI;
+import uk.ac.imperial.lsds.seep.api.BuilderAPI;
 import uk.ac.imperial.lsds.seep.api.RuntimeEvent;
 import uk.ac.imperial.lsds.seep.api.RuntimeEventFactory;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
 import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.OTupleBuilder;
+import uk.ac.imperial.lsds.seep.core.BatchOBuffer;
 import uk.ac.imperial.lsds.seep.core.EventBasedOBuffer;
+import uk.ac.imperial.lsds.seep.core.GatheringOBuffer;
+import uk.ac.imperial.lsds.seep.core.InPlaceOBuffer;
+import uk.ac.imperial.lsds.seep.core.MarkerOBuffer;
 import uk.ac.imperial.lsds.seep.core.OBuffer;
 import uk.ac.imperial.lsds.seep.errors.DoYouKnowWhatYouAreDoingException;
 import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
+import uk.ac.imperial.lsds.seepworker.core.output.routing.ConsistentHashingRoutingState;
+import uk.ac.imperial.lsds.seepworker.core.output.routing.ConsistentHashingRoutingState.ScaleOutListener;
 import uk.ac.imperial.lsds.seepworker.core.output.routing.NotEnoughRoutingInformation;
 import uk.ac.imperial.lsds.seepworker.core.output.routing.Router;
 import uk.ac.imperial.lsds.seepworker.core.output.routing.RouterFactory;
 
-public class Collector implements API {
+public class Collector implements BatchAPI, BuilderAPI {
 
+	final private static Logger LOG = LoggerFactory.getLogger(Collector.class);
+	
+	static final long DEFAULT_MAX_HELD_BYTES = 16 * 1024 * 1024;
+	
 	// Attributes for CommAPI
 	private final boolean NOT_SEND_API;
 	private final boolean SINGLE_SEND_NOT_DEFINED;
 	private final boolean MULTIPLE_STREAMID;
 	
 	final private int id;
+	private CoreOutput coreOutput;
 	private Map<Integer, List<OBuffer>> streamId_To_OBuffer;
 	private Map<Integer, OBuffer> buffers;
 	
@@ -35,6 +57,28 @@ public class Collector implements API {
 	private Router theRouter;
 	private OBuffer theOBuffer;
 	
+	// Tuples of keys held by theRouter while a downstream scales out, in the order they were sent, and their size.
+	// The task blocks when they would take more than maxHeldBytes, until the scale out is over
+	private List<HeldTuple> held;
+	private long heldBytes;
+	private long maxHeldBytes = DEFAULT_MAX_HELD_BYTES;
+	// Left by theRouter, on the thread of the scale out, to the thread of the task: the downstreams to send a marker
+	// to, and whether the held keys are routed again
+	private final Queue<Integer> markersToSend = new ConcurrentLinkedQueue<>();
+	private volatile boolean heldReleased;
+	private volatile boolean scaleOutPending;
+	private final Object scaleOutLock = new Object();
+	// Also runs the work left by scale outs, so that it is done when the task does not send
+	private ProcessingEngine engine;
+	
+	// Rows of batches sent to OBuffers that only take tuples, the OBuffers copy them
+	private byte[] rowScratch;
+	// Whether other Collectors write to the same OBuffers concurrently
+	private final boolean sharedOutput;
+	// Builders of tuples for each OBuffer, and the OBuffer of the tuple being built
+	private Map<OBuffer, OTupleBuilder> builders;
+	private OBuffer builderOBuffer;
+	
 	// Attributes for RuntimeEvent
 	private List<RuntimeEvent> rEvents;
 	// Current evaluation results
@@ -42,9 +86,20 @@ public class Collector implements API {
 	private Object lastEvaluationResults;
 	
 	public Collector(int id, CoreOutput coreOutput) {
+		this(id, coreOutput, false);
+	}
+	
+	/**
+	 * @param sharedOutput true when several Collectors write to the OBuffers of coreOutput concurrently, e.g.
+	 * one per worker thread of an engine. Each write then holds the lock of its OBuffer, once it has room
+	 */
+	public Collector(int id, CoreOutput coreOutput, boolean sharedOutput) {
 		this.rEvents = new ArrayList<>();
+		this.sharedOutput = sharedOutput;
+		this.builders = new IdentityHashMap<>();
 		
 		this.id = id;
+		this.coreOutput = coreOutput;
 		this.streamId_To_OBuffer = coreOutput.getStreamIdToBuffers();
 		this.buffers = coreOutput.getBuffers();
 		
@@ -70,6 +125,9 @@ public class Collector implements API {
 					List<Integer> oBufferIds = getBufferIds(buffers.values());
 					boolean stateful = buffers.values().iterator().next().getDataReference().isPartitioned();
 					theRouter = RouterFactory.buildRouterFor(oBufferIds, stateful);
+					if(theRouter instanceof ConsistentHashingRoutingState) {
+						listenToScaleOuts((ConsistentHashingRoutingState)theRouter);
+					}
 				}
 			}
 			else { // multiple streamId
@@ -100,6 +158,116 @@ public class Collector implements API {
 		return routers;
 	}
 
+	private static class HeldTuple {
+		final byte[] data;
+		final int key;
+		
+		HeldTuple(byte[] data, int key) {
+			this.data = data;
+			this.key = key;
+		}
+	}
+	
+	Router getRouter() {
+		return theRouter;
+	}
+	
+	/**
+	 * Runs the work that scale outs leave to the thread of the task on the engine too, e.g. while the task waits for
+	 * input, so that it is done when the task does not send. Held tuples take up to maxHeldBytes
+	 */
+	void handleScaleOutsOn(ProcessingEngine engine, long maxHeldBytes) {
+		this.engine = engine;
+		this.maxHeldBytes = maxHeldBytes;
+	}
+	
+	private void listenToScaleOuts(ConsistentHashingRoutingState router) {
+		router.setScaleOutListener(new ScaleOutListener() {
+			@Override
+			public void holding(int opId) {
+				markersToSend.add(opId);
+				scaleOutChanged();
+			}
+			
+			@Override
+			public void released() {
+				heldReleased = true;
+				scaleOutChanged();
+			}
+		});
+	}
+	
+	private void scaleOutChanged() {
+		synchronized(scaleOutLock) {
+			scaleOutPending = true;
+			scaleOutLock.notifyAll();
+		}
+		ProcessingEngine e = engine;
+		if(e != null) {
+			try {
+				e.submit(new Runnable() {
+					@Override
+					public void run() {
+						flushScaleOuts();
+					}
+				});
+			}
+			catch(RejectedExecutionException ree) {
+				// The task does not process input, it flushes when it sends
+				LOG.debug("Scale out left to the next send of task {}", id);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a marker to each downstream whose keys are held since the last call, after the tuples sent to it before,
+	 * and routes again the held tuples once their keys are released. Runs on the thread of the task
+	 */
+	private void flushScaleOuts() {
+		scaleOutPending = false;
+		Integer opId = null;
+		while((opId = markersToSend.poll()) != null) {
+			sendMarker(opId);
+		}
+		if(heldReleased) {
+			heldReleased = false;
+			if(held != null) {
+				replayHeld();
+			}
+		}
+	}
+	
+	/**
+	 * Waits until a scale out leaves work to the task
+	 * @return false if interrupted
+	 */
+	private boolean awaitScaleOut() {
+		synchronized(scaleOutLock) {
+			while(! scaleOutPending) {
+				try {
+					scaleOutLock.wait();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private void sendMarker(int opId) {
+		OBuffer ob = buffers.get(opId);
+		if(! (ob instanceof MarkerOBuffer)) {
+			LOG.warn("Output {} does not carry markers, its downstream cannot know when to split its state", opId);
+			return;
+		}
+		boolean completed = write((MarkerOBuffer)ob);
+		if(completed && ob instanceof EventBasedOBuffer) {
+			((EventBasedOBuffer)ob).getEventAPI().readyForWrite(opId);
+		}
+	}
+
 	@Override
 	public int id() {
 		return id;
@@ -117,8 +285,7 @@ public class Collector implements API {
 			int id = theRouter.route();
 			ob = buffers.get(id);
 		}
-		boolean completed = ob.write(o, this);
-		//boolean completed = ob.write(o, this);
+		boolean completed = write(ob, o);
 		if(completed && ob instanceof EventBasedOBuffer) {
 			((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
 		}
@@ -136,23 +303,224 @@ public class Collector implements API {
 			int id = theRouter.route();
 			ob = buffers.get(id);
 		}
-		boolean completed = ob.write(o, this);
+		boolean completed = write(ob, o);
+		if(completed && ob instanceof EventBasedOBuffer) {
+			((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
+		}
+	}
+	
+	@Override
+	public void sendBatch(ColumnBatch batch) {
+		OBuffer ob = theOBuffer;
+		if(NOT_SEND_API) throw new UnsupportedOperationException("Send API not defined, maybe this is a sink?");
+		if(MULTIPLE_STREAMID) {
+			throw new NotEnoughRoutingInformation("There are more than one streamId downstream; you must specify where "
+					+ "you are sending to");
+		}
+		if(SINGLE_SEND_NOT_DEFINED) {
+			// The whole batch goes to the same downstream
+			int id = theRouter.route();
+			ob = buffers.get(id);
+		}
+		if(ob instanceof BatchOBuffer) {
+			boolean completed = write((BatchOBuffer)ob, batch);
+			if(completed && ob instanceof EventBasedOBuffer) {
+				((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
+			}
+			return;
+		}
+		if(rowScratch == null || rowScratch.length != batch.getTupleSize()) {
+			rowScratch = new byte[batch.getTupleSize()];
+		}
+		ByteBuffer row = ByteBuffer.wrap(rowScratch);
+		for(int i = 0; i < batch.size(); i++) {
+			row.clear();
+			batch.writeRow(i, row);
+			boolean completed = write(ob, rowScratch);
+			// Event based buffers block on the next write until drained
+			if(completed && ob instanceof EventBasedOBuffer) {
+				((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
+			}
+		}
+	}
+	
+	@Override
+	public OTupleBuilder newTuple() {
+		OBuffer ob = theOBuffer;
+		if(NOT_SEND_API) throw new UnsupportedOperationException("Send API not defined, maybe this is a sink?");
+		if(MULTIPLE_STREAMID) {
+			throw new NotEnoughRoutingInformation("There are more than one streamId downstream; you must specify where "
+					+ "you are sending to");
+		}
+		if(SINGLE_SEND_NOT_DEFINED) {
+			// Routed now, as the tuple is written to the OBuffer while it is built
+			int id = theRouter.route();
+			ob = buffers.get(id);
+		}
+		OTupleBuilder b = builders.get(ob);
+		if(b == null) {
+			b = new OTupleBuilder(ob.getDataReference().getDataStore().getSchema());
+			builders.put(ob, b);
+		}
+		builderOBuffer = ob;
+		// Shared OBuffers cannot be held while the task builds the tuple, so it is copied into them instead
+		ByteBuffer target = null;
+		if(! sharedOutput && ob instanceof InPlaceOBuffer) {
+			target = ((InPlaceOBuffer)ob).beginTuple(b.minimumSize());
+		}
+		return target != null ? b.start(target) : b.start();
+	}
+	
+	@Override
+	public void send(OTupleBuilder tuple) {
+		OBuffer ob = builderOBuffer;
+		if(ob == null || builders.get(ob) != tuple) {
+			throw new DoYouKnowWhatYouAreDoingException("Tuples must be started with newTuple() before sending them");
+		}
+		builderOBuffer = null;
+		int size = tuple.finish();
+		boolean completed = false;
+		if(tuple.isInPlace()) {
+			completed = ((InPlaceOBuffer)ob).endTuple(size, this);
+		}
+		else {
+			completed = write(ob, tuple.toBytes());
+		}
 		if(completed && ob instanceof EventBasedOBuffer) {
 			((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
 		}
 	}
 	
+	private boolean write(OBuffer ob, byte[] o) {
+		if(sharedOutput) {
+			while(true) {
+				awaitRoom(ob);
+				synchronized(ob) {
+					if(hasRoom(ob)) {
+						return ob.write(o, this);
+					}
+				}
+			}
+		}
+		return ob.write(o, this);
+	}
+	
+	private boolean write(OBuffer ob, OTuple o) {
+		if(sharedOutput) {
+			while(true) {
+				awaitRoom(ob);
+				synchronized(ob) {
+					if(hasRoom(ob)) {
+						return ob.write(o, this);
+					}
+				}
+			}
+		}
+		return ob.write(o, this);
+	}
+	
+	private boolean write(BatchOBuffer ob, ColumnBatch batch) {
+		if(sharedOutput) {
+			while(true) {
+				awaitRoom(ob);
+				synchronized(ob) {
+					if(hasRoom(ob)) {
+						return ob.write(batch, this);
+					}
+				}
+			}
+		}
+		return ob.write(batch, this);
+	}
+	
+	private boolean write(MarkerOBuffer ob) {
+		if(sharedOutput) {
+			while(true) {
+				awaitRoom(ob);
+				synchronized(ob) {
+					if(hasRoom(ob)) {
+						return ob.writeMarker(this);
+					}
+				}
+			}
+		}
+		return ob.writeMarker(this);
+	}
+	
+	/**
+	 * Writes to a full OBuffer block until it is drained. Shared OBuffers are waited on before taking their lock, 
+	 * and written once they have room while holding it, so that no worker blocks holding the lock
+	 */
+	private void awaitRoom(OBuffer ob) {
+		if(ob instanceof GatheringOBuffer) {
+			((GatheringOBuffer)ob).awaitNotFull();
+		}
+	}
+	
+	private boolean hasRoom(OBuffer ob) {
+		return ! (ob instanceof GatheringOBuffer) || ! ((GatheringOBuffer)ob).isFull();
+	}
+	
 	@Override
 	public void sendKey(byte[] o, int key) {
 		if(NOT_SEND_API) throw new UnsupportedOperationException("Send API not defined, maybe this is a sink?");
+		if(scaleOutPending) {
+			flushScaleOuts();
+		}
 		int id = theRouter.route(key);
+		while(id == ConsistentHashingRoutingState.HELD && heldBytes > 0 && heldBytes + o.length > maxHeldBytes) {
+			// Backpressure until the scale out is over, which needs the marker sent first
+			if(! awaitScaleOut()) {
+				break;
+			}
+			flushScaleOuts();
+			id = theRouter.route(key);
+		}
+		if(id == ConsistentHashingRoutingState.HELD) {
+			// The caller may reuse o
+			hold(new HeldTuple(o.clone(), key));
+			return;
+		}
+		writeKey(o, id);
+	}
+	
+	private void hold(HeldTuple t) {
+		if(held == null) {
+			held = new ArrayList<>();
+		}
+		held.add(t);
+		heldBytes = heldBytes + t.data.length;
+	}
+	
+	private void writeKey(byte[] o, int id) {
 		OBuffer ob = buffers.get(id);
-		
-		boolean completed = ob.write(o, this);
+		boolean completed = write(ob, o);
 		if(completed && ob instanceof EventBasedOBuffer) {
 			((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
 		}
 	}
+	
+	/**
+	 * Routes again the tuples held during a scale out, before any tuple sent after it, so that the tuples of each key
+	 * keep their order. They go to the downstream that joined, whose buffer was added to coreOutput, or back to the
+	 * one they were held from if the scale out failed
+	 */
+	private void replayHeld() {
+		buffers = coreOutput.getBuffers();
+		List<HeldTuple> toReplay = held;
+		held = null;
+		heldBytes = 0;
+		for(HeldTuple t : toReplay) {
+			int id = theRouter.route(t.key);
+			// Another scale out may have started already
+			if(id == ConsistentHashingRoutingState.HELD) {
+				hold(t);
+			}
+			else {
+				writeKey(t.data, id);
+			}
+		}
+	}
 
 	@Override
 	public void sendAll(byte[] o) {
@@ -167,7 +535,7 @@ public class Collector implements API {
 		for(Entry<Integer, OBuffer> entry : buffers.entrySet()){
 			int id = entry.getKey();
 			ob = entry.getValue();
-			boolean completed = ob.write(o, this);
+			boolean completed = write(ob, o);
 			if(completed && ob instanceof EventBasedOBuffer) {
 				ids.add(id);
 			}
@@ -191,7 +559,7 @@ public class Collector implements API {
 		Router r = streamId_To_Router.get(streamId);
 		int id = r.route();
 		OBuffer ob = buffers.get(id);
-		boolean completed = ob.write(o, this);
+		boolean completed = write(ob, o);
 		if(completed && ob instanceof EventBasedOBuffer) {
 			((EventBasedOBuffer)ob).getEventAPI().readyForWrite(id);
 		}
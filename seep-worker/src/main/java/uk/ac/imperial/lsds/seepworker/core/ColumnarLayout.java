@@ -0,0 +1,168 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ColumnarITuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+
+/**
+ * Writes tuples of a fixed-size schema into buffers with the columnar layout read by ColumnarITuple.
+ * A buffer that has not been written holds position 0, and one with rows holds position == capacity,
+ * so that a Dataset can flip, spill and read it back as it does with any other buffer.
+ */
+public class ColumnarLayout {
+
+	private static final byte BYTE = 0;
+	private static final byte SHORT = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte FLOAT = 4;
+	private static final byte DOUBLE = 5;
+
+	private final Schema schema;
+	private final int tupleSize;
+	private final int[] fieldSizes;
+	private final int[] columnOffsetPerRow;
+	private final byte[] kinds;
+
+	// Cached for the buffer being written, that is always the same until it fills up
+	private ByteBuffer current;
+	private final int[] columnStarts;
+
+	public ColumnarLayout(Schema schema) {
+		this.schema = schema;
+		this.tupleSize = schema.sizeOfTuple();
+		Type[] fields = schema.fields();
+		this.fieldSizes = new int[fields.length];
+		this.columnOffsetPerRow = new int[fields.length];
+		this.columnStarts = new int[fields.length];
+		this.kinds = new byte[fields.length];
+		int offset = 0;
+		for(int i = 0; i < fields.length; i++) {
+			fieldSizes[i] = fields[i].sizeOf(null);
+			columnOffsetPerRow[i] = offset;
+			offset = offset + fieldSizes[i];
+			kinds[i] = kindOf(fields[i]);
+		}
+	}
+
+	/**
+	 * @return whether the schema can be stored with a columnar layout
+	 */
+	public static boolean supports(Schema schema) {
+		if(schema == null || schema.isVariableSize() || schema.fields().length == 0) {
+			return false;
+		}
+		for(Type t : schema.fields()) {
+			if(kindOf(t) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte kindOf(Type t) {
+		if(t.equals(Type.BYTE)) return BYTE;
+		if(t.equals(Type.SHORT)) return SHORT;
+		if(t.equals(Type.INT)) return INT;
+		if(t.equals(Type.LONG)) return LONG;
+		if(t.equals(Type.FLOAT)) return FLOAT;
+		if(t.equals(Type.DOUBLE)) return DOUBLE;
+		return -1;
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	public int getTupleSize() {
+		return tupleSize;
+	}
+
+	public boolean hasRoom(ByteBuffer bb) {
+		if(bb.position() == 0) {
+			return ColumnarITuple.maxRows(schema, bb.capacity()) > 0;
+		}
+		return bb.getInt(ColumnarITuple.ROWS_OFFSET) < bb.getInt(ColumnarITuple.MAX_ROWS_OFFSET);
+	}
+
+	/**
+	 * Writes a tuple with the given values, in schema order. The buffer must have room for it
+	 */
+	public void write(ByteBuffer bb, Object[] values) {
+		int row = nextRow(bb);
+		for(int i = 0; i < kinds.length; i++) {
+			int position = columnStarts[i] + row * fieldSizes[i];
+			switch(kinds[i]) {
+			case BYTE:
+				bb.put(position, (byte)values[i]);
+				break;
+			case SHORT:
+				bb.putShort(position, (short)values[i]);
+				break;
+			case INT:
+				bb.putInt(position, (int)values[i]);
+				break;
+			case LONG:
+				bb.putLong(position, (long)values[i]);
+				break;
+			case FLOAT:
+				bb.putFloat(position, (float)values[i]);
+				break;
+			case DOUBLE:
+				bb.putDouble(position, (double)values[i]);
+				break;
+			}
+		}
+		bb.putInt(ColumnarITuple.ROWS_OFFSET, row + 1);
+	}
+
+	/**
+	 * Writes a tuple serialized in row format, as created by OTuple, without its size. All types are
+	 * big endian in both layouts, so values are copied byte by byte into their column.
+	 */
+	public void write(ByteBuffer bb, byte[] data) {
+		int row = nextRow(bb);
+		int offset = 0;
+		for(int i = 0; i < fieldSizes.length; i++) {
+			int position = columnStarts[i] + row * fieldSizes[i];
+			for(int b = 0; b < fieldSizes[i]; b++) {
+				bb.put(position + b, data[offset++]);
+			}
+		}
+		bb.putInt(ColumnarITuple.ROWS_OFFSET, row + 1);
+	}
+
+	/**
+	 * Writes up to n rows of the batch, starting at fromRow, copying each column in bulk. The buffer
+	 * must have room for at least one row
+	 * @return the number of rows written, limited by the room left in the buffer
+	 */
+	public int write(ByteBuffer bb, ColumnBatch batch, int fromRow, int n) {
+		int row = nextRow(bb);
+		int toWrite = Math.min(n, bb.getInt(ColumnarITuple.MAX_ROWS_OFFSET) - row);
+		batch.writeColumns(fromRow, toWrite, bb);
+		return toWrite;
+	}
+
+	private int nextRow(ByteBuffer bb) {
+		if(bb.position() == 0) {
+			// First row, lay out the columns for the whole buffer
+			int rows = ColumnarITuple.maxRows(schema, bb.capacity());
+			bb.putInt(ColumnarITuple.ROWS_OFFSET, 0);
+			bb.putInt(ColumnarITuple.MAX_ROWS_OFFSET, rows);
+			bb.limit(bb.capacity());
+			bb.position(bb.capacity());
+		}
+		if(bb != current) {
+			current = bb;
+			int maxRows = bb.getInt(ColumnarITuple.MAX_ROWS_OFFSET);
+			for(int i = 0; i < columnStarts.length; i++) {
+				columnStarts[i] = ColumnarITuple.HEADER_SIZE + maxRows * columnOffsetPerRow[i];
+			}
+		}
+		return bb.getInt(ColumnarITuple.ROWS_OFFSET);
+	}
+}
@@ -24,6 +24,7 @@ import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.operator.LogicalOperator;
 import uk.ac.imperial.lsds.seep.api.operator.SeepLogicalQuery;
 import uk.ac.imperial.lsds.seep.api.operator.UpstreamConnection;
+import uk.ac.imperial.lsds.seep.api.state.MemoryManaged;
 import uk.ac.imperial.lsds.seep.api.state.SeepState;
 import uk.ac.imperial.lsds.seep.comm.Comm;
 import uk.ac.imperial.lsds.seep.comm.Connection;
@@ -43,6 +44,7 @@ import uk.ac.imperial.lsds.seepworker.core.input.CoreInput;
 import uk.ac.imperial.lsds.seepworker.core.input.CoreInputFactory;
 import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
 import uk.ac.imperial.lsds.seepworker.core.output.CoreOutputFactory;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
 
 import com.esotericsoftware.kryo.Kryo;
 
@@ -109,14 +111,16 @@ public class Conductor {
 		SeepState state = o.getState();
 		if (o.isStateful()) {
 			LOG.info("Configuring state of local task: {}", state.toString());
+			if(state instanceof MemoryManaged) {
+				((MemoryManaged)state).setStateMemory(new BufferPoolStateMemory(drm.getBufferPool(), wc));
+			}
 			((StatefulSeepTask)task).setState(state);
 		}
 		// This creates one inputAdapter per upstream stream Id
 		Map<Integer, Set<DataReference>> input = inputs.get(o.getOperatorId());
 		Map<Integer, Set<DataReference>> output = outputs.get(o.getOperatorId());
 		Map<Integer, ConnectionType> connTypeInformation = getInputConnectionType(o);
-		coreInput = CoreInputFactory.buildCoreInputFor(wc, drm, input, connTypeInformation);
-		coreOutput = CoreOutputFactory.buildCoreOutputFor(wc, drm, output);
+		buildCoreFor(input, output, connTypeInformation);
 		
 		// Specialized data selectors
 		dataStoreSelectors = DataStoreSelectorFactory.buildDataStoreSelector(coreInput, 
@@ -136,7 +140,7 @@ public class Conductor {
 		
 		engine = ProcessingEngineFactory.buildSingleTaskProcessingEngine(wc, sid, task, state, coreInput, coreOutput, makeContinuousConductorCallback());
 		
-		// Initialize system
+		// Initialize system. After building the engine, which may copy the task before it is set up
 		LOG.info("Setting up task...");
 		task.setUp(); // setup method of task
 		LOG.info("Setting up task...OK");
@@ -160,7 +164,6 @@ public class Conductor {
 		LOG.info("Physical plan with {} stages", stages.size());
 		for(Stage s : stages) {
 			ScheduleTask st = ScheduleTask.buildTaskFor(id, s, sd);
-			st.setUp();
 			scheduleTasks.put(s, st);
 		}
 	}
@@ -181,7 +184,6 @@ public class Conductor {
 			connTypeInformation.put(i, ConnectionType.ONE_AT_A_TIME);
 		}
 		
-		coreInput = CoreInputFactory.buildCoreInputFor(wc, drm, input, connTypeInformation);
 		if(output.size() == 0) { // FIXME:
 			// FIXME: output should arrive from scheduler, that knows about downstream.
 			// if 0 then it means we do not have output
@@ -191,7 +193,7 @@ public class Conductor {
 			// FIXME: assumption, same schema as input -> will change once SINKs have also schemas
 			output = createOutputForTask(s, expectedSchema);
 		}
-		coreOutput = CoreOutputFactory.buildCoreOutputFor(wc, drm, output);
+		buildCoreFor(input, output, connTypeInformation);
 		
 		// Make sure that NetworkSelector is listening for input connections
 		// FIXME: Note this is not reusable!! Can we make NetworkSelector a service rather than a
@@ -237,9 +239,28 @@ public class Conductor {
 		ProcessingEngine engine = ProcessingEngineFactory.buildComposedTaskProcessingEngine(wc, 
 				s.getStageId(), task, state, coreInput, 
 				coreOutput, makeConductorCallbackForScheduleStage(stageId, id, output));
+		task.setUp();
 		engine.start();
 	}
 	
+	/**
+	 * Builds the output before the input, so that the streams the task produces are registered in the DRM when its
+	 * inputs look for streams produced in this worker
+	 */
+	void buildCoreFor(Map<Integer, Set<DataReference>> input, Map<Integer, Set<DataReference>> output,
+			Map<Integer, ConnectionType> connTypeInformation) {
+		coreOutput = CoreOutputFactory.buildCoreOutputFor(wc, drm, output);
+		coreInput = CoreInputFactory.buildCoreInputFor(wc, drm, input, connTypeInformation);
+	}
+	
+	CoreInput getCoreInput() {
+		return coreInput;
+	}
+	
+	CoreOutput getCoreOutput() {
+		return coreOutput;
+	}
+	
 	private Map<Integer, Set<DataReference>> createOutputForTask(Stage s, Schema schema) {
 		// Master did not assign output, so we need to create it here
 		// Althouth output is indexed on an integer, this is for compatibility with
@@ -300,6 +321,13 @@ public class Conductor {
 		for(DataStoreSelector dss : dataStoreSelectors) {
 			dss.stopSelector();
 		}
+		// Nothing writes or drains them any more
+		for(OBuffer output: coreOutput.getBuffers().values()) {
+			if(output instanceof OutputBuffer) {
+				((OutputBuffer)output).close();
+			}
+		}
+		drm.unregisterStreamOutputs(coreOutput.getBuffers().values());
 		LOG.info("Stopping processing engine...OK");
 	}
 	
@@ -333,7 +361,7 @@ public class Conductor {
 		private int euId;
 		private Map<Integer, Set<DataReference>> refToProducedOutput;
 		
-		private ConductorCallback(boolean continuousTask) {
+		ConductorCallback(boolean continuousTask) {
 			this.continuousTask = continuousTask;
 		}
 		
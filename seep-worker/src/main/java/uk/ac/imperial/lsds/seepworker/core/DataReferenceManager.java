@@ -1,9 +1,12 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -11,11 +14,20 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+
 import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
 import uk.ac.imperial.lsds.seep.api.DataStoreType;
 import uk.ac.imperial.lsds.seep.api.data.OTuple;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
@@ -28,9 +40,12 @@ import uk.ac.imperial.lsds.seep.core.DatasetMetadataPackage;
 import uk.ac.imperial.lsds.seep.core.IBuffer;
 import uk.ac.imperial.lsds.seep.core.OBuffer;
 import uk.ac.imperial.lsds.seep.infrastructure.DataEndPoint;
+import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
 import uk.ac.imperial.lsds.seepworker.comm.NetworkSelector;
+import uk.ac.imperial.lsds.seepworker.core.input.LocalInputBuffer;
 import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
 
 /**
  * This has to:
@@ -48,30 +63,89 @@ public class DataReferenceManager {
 	private Map<Integer, Dataset> datasets;
 	private List<DataStoreSelector> dataStoreSelectors;
 	
+	/**
+	 * Outputs streamed from this worker. Downstream operators in this worker consume them through a
+	 * LocalChannel, instead of through the network
+	 */
+	private Map<Integer, OutputBuffer> streamOutputs;
+	private boolean localHandoff;
+	private int localChannelCapacity;
+	
 	/**
 	 * This list keeps datasets ordered by priority of staying in memory. Such order 
 	 * is determined by the master and used by DRM to choose which datasets to evict to disk
 	 * and which datasets to load from disk.
 	 */
-	private List<Integer> rankedDatasets;
+	private volatile List<Integer> rankedDatasets;
 	
 	private DiskCacher cacher;
 	
 	private int syntheticDatasetGenerator;
 	
 	private BufferPool bufferPool;
+	private SpillCodec spillCodec;
+	
+	/**
+	 * Background spilling. When the fraction of buffer pool memory in use goes above the high
+	 * watermark, the spill executor evicts datasets, lowest ranked first, until it goes below the
+	 * low watermark, so that writers rarely find the pool empty and have to spill themselves.
+	 */
+	private ExecutorService spillExecutor;
+	private final AtomicBoolean spillScheduled = new AtomicBoolean(false);
+	private double spillHighWatermark;
+	private double spillLowWatermark;
+	
+	/**
+	 * I/O thread shared by all datasets to read ahead spilled data, null if read-ahead is disabled
+	 */
+	private ExecutorService readAheadExecutor;
+	private int readAheadDepth;
+	private boolean columnarDatasets;
 	
 	// metrics
 	private long __time_freeDatasets = 0;
+	private Timer spillLatency;
+	private Counter writerStalls;
 	
 	private DataReferenceManager(WorkerConfig wc) {
 		this.catalogue = new HashMap<>();
-		this.datasets = new HashMap<>();
+		this.streamOutputs = new ConcurrentHashMap<>();
+		this.localHandoff = wc.getBoolean(WorkerConfig.STREAM_LOCAL_HANDOFF);
+		this.localChannelCapacity = wc.getInt(WorkerConfig.SIMPLE_INPUT_QUEUE_LENGTH);
+		// Accessed by the spill executor too
+		this.datasets = new ConcurrentHashMap<>();
 		int rnd = new Random().nextInt();
 		// Get from WC the data reference ID for the synthetic generator and create a dataset for it
 		this.syntheticDatasetGenerator = wc.getInt(WorkerConfig.SYNTHETIC_DATA_GENERATOR_ID) + rnd;
 		this.bufferPool = BufferPool.createBufferPool(wc);
 		this.cacher = DiskCacher.makeDiskCacher(wc);
+		this.spillCodec = SpillCodec.fromName(wc.getString(WorkerConfig.SPILL_CODEC));
+		this.spillHighWatermark = wc.getDouble(WorkerConfig.SPILL_HIGH_WATERMARK);
+		this.spillLowWatermark = wc.getDouble(WorkerConfig.SPILL_LOW_WATERMARK);
+		if(wc.getBoolean(WorkerConfig.SPILL_ASYNC)) {
+			this.spillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "spill-executor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		this.columnarDatasets = wc.getBoolean(WorkerConfig.DATASET_COLUMNAR);
+		this.readAheadDepth = wc.getInt(WorkerConfig.SPILL_READAHEAD_DEPTH);
+		if(readAheadDepth > 0) {
+			this.readAheadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "spill-read-ahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		this.spillLatency = SeepMetrics.REG.timer(name(DataReferenceManager.class, "spill", "latency"));
+		this.writerStalls = SeepMetrics.REG.counter(name(DataReferenceManager.class, "writer", "stalls"));
 	}
 	
 	public static DataReferenceManager makeDataReferenceManager(WorkerConfig wc) {
@@ -81,6 +155,22 @@ public class DataReferenceManager {
 		return instance;
 	}
 	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public SpillCodec getSpillCodec() {
+		return spillCodec;
+	}
+	
+	public ExecutorService getReadAheadExecutor() {
+		return readAheadExecutor;
+	}
+	
+	public int getReadAheadDepth() {
+		return readAheadDepth;
+	}
+	
 	public void updateRankedDatasets(List<Integer> rankedDatasets) {
 		
 		this.rankedDatasets = rankedDatasets;
@@ -189,7 +279,13 @@ public class DataReferenceManager {
 			LOG.info("Start managing new DataReference, id -> {}", id);
 			catalogue.put(id, dataRef);
 			// TODO: will become more complex...
-			newDataset = new Dataset(dataRef, bufferPool, this);
+			if(columnarDatasets && dataRef.getDataStore() != null 
+					&& ColumnarLayout.supports(dataRef.getDataStore().getSchema())) {
+				newDataset = Dataset.newColumnarDataset(dataRef, bufferPool, this);
+			}
+			else {
+				newDataset = new Dataset(dataRef, bufferPool, this);
+			}
 			datasets.put(id, newDataset);
 		}
 		else {
@@ -208,6 +304,45 @@ public class DataReferenceManager {
 		return false;
 	}
 	
+	public void registerStreamOutput(OutputBuffer ob) {
+		streamOutputs.put(ob.id(), ob);
+	}
+	
+	/**
+	 * Forgets the given outputs that no consumer in this worker connected to, e.g. once their task stops
+	 */
+	public void unregisterStreamOutputs(Collection<OBuffer> outputs) {
+		for(OBuffer ob : outputs) {
+			if(ob instanceof OutputBuffer) {
+				streamOutputs.remove(ob.id(), ob);
+			}
+		}
+	}
+	
+	/**
+	 * @return true if the stream of the given DataReference is produced in this worker, so it can be consumed
+	 * without going through the network
+	 */
+	public boolean isStreamedFromThisWorker(DataReference dr) {
+		return localHandoff && dr.getServeMode() == ServeMode.STREAM && streamOutputs.containsKey(dr.getId());
+	}
+	
+	/**
+	 * Connects the OutputBuffer of a stream produced in this worker with a new input that receives its batches 
+	 * by reference. There is a single consumer per stream
+	 */
+	public LocalInputBuffer connectToLocalStream(DataReference dr) {
+		OutputBuffer ob = streamOutputs.remove(dr.getId());
+		if(ob == null) {
+			LOG.error("Asked to connect to stream, but stream not produced here!");
+			return null;
+		}
+		LocalChannel channel = new LocalChannel(ob, localChannelCapacity);
+		ob.setEventAPI(channel);
+		LOG.info("DataReference id -> {} consumed locally, through a LocalChannel", dr.getId());
+		return LocalInputBuffer.makeOneFor(dr, channel);
+	}
+	
 	public DataReference doesManageDataReference(int dataRefId) {
 		return catalogue.get(dataRefId);
 	}
@@ -251,7 +386,14 @@ public class DataReferenceManager {
 	
 	public int sendDatasetToDisk(int datasetId) throws IOException {
 		LOG.info("Caching Dataset to disk, id -> {}", datasetId);
-		int freedMemory = cacher.cacheToDisk(datasets.get(datasetId));
+		int freedMemory = 0;
+		final Timer.Context context = spillLatency.time();
+		try {
+			freedMemory = cacher.cacheToDisk(datasets.get(datasetId));
+		}
+		finally {
+			context.stop();
+		}
 		LOG.info("Cached to disk, id -> {}, freedMemory -> {}", datasetId, freedMemory);
 		return freedMemory;
 	}
@@ -362,10 +504,68 @@ public class DataReferenceManager {
 		return synthetic;
 	}
 	
+	/**
+	 * Called by writers after they borrow a buffer. Schedules a background spill when the memory
+	 * in use goes above the high watermark, unless one is already scheduled.
+	 */
+	public void checkMemoryPressure() {
+		if(spillExecutor == null || (1 - bufferPool.getPercAvailableMemory()) < spillHighWatermark) {
+			return;
+		}
+		if(spillScheduled.compareAndSet(false, true)) {
+			spillExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						spillUntilLowWatermark();
+					}
+					finally {
+						spillScheduled.set(false);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Only ranked datasets are spilled in the background. These are the output of previous stages, 
+	 * so no one writes to them anymore, and datasets that are being read are skipped.
+	 */
+	private void spillUntilLowWatermark() {
+		List<Integer> ranked = rankedDatasets;
+		if(ranked == null) {
+			return;
+		}
+		for(Integer i : ranked) {
+			if((1 - bufferPool.getPercAvailableMemory()) < spillLowWatermark) {
+				break;
+			}
+			Dataset d = datasets.get(i);
+			if(d == null) {
+				continue;
+			}
+			try {
+				synchronized(d) {
+					if(d.isBeingRead() || ! cacher.inMem(d)) {
+						continue;
+					}
+					int freedMemory = sendDatasetToDisk(i);
+					LOG.debug("Background spill of dataset: {}, freedMemory: {}", i, freedMemory);
+				}
+			}
+			catch (IOException io) {
+				LOG.error("While trying to spill dataset: {} to disk in the background", i);
+				io.printStackTrace();
+			}
+		}
+	}
+	
 	public int spillDatasetsToDisk(Integer datasetId) {
 		LOG.info("Worker node runs out of memory while writing to dataset: {}", datasetId);
+		writerStalls.inc();
 		int freedMemory = 0;
 		
+		List<Integer> rankedDatasets = this.rankedDatasets;
 		try {
 			if(rankedDatasets == null) {
 				if (datasetId != null) {
@@ -21,6 +21,7 @@ import uk.ac.imperial.lsds.seep.core.OBuffer;
 import uk.ac.imperial.lsds.seepcontrib.kafka.comm.KafkaSelector;
 import uk.ac.imperial.lsds.seepcontrib.kafka.config.KafkaConfig;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.comm.IpcSelector;
 import uk.ac.imperial.lsds.seepworker.comm.NetworkSelector;
 import uk.ac.imperial.lsds.seepworker.core.input.CoreInput;
 import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
@@ -47,6 +48,12 @@ public class DataStoreSelectorFactory {
 			selectors.add(sel);
 		}
 		
+		if(coreInput.requiresConfigureSelectorOfType(DataStoreType.IPC) ||
+		   coreOutput.requiresConfigureSelectorOfType(DataStoreType.IPC)) {
+			DataStoreSelector sel = DataStoreSelectorFactory.maybeConfigureIpcSelector(coreInput, coreOutput, wc);
+			selectors.add(sel);
+		}
+		
 		if(coreInput.requiresConfigureSelectorOfType(DataStoreType.KAFKA)) {
 			DataStoreSelector sel = DataStoreSelectorFactory.maybeConfigureKafkaSelector(coreInput, coreOutput, 
 					wc, o, myIp, dataPort);
@@ -85,7 +92,8 @@ public class DataStoreSelectorFactory {
 			}
 			// TODO: maybe we can iterate directly over eventbasedOBuffer ?
 			for(OBuffer ob : obufsToStream) {
-				if (ob instanceof EventBasedOBuffer) {
+				// Outputs consumed in this worker are not sent through the network
+				if (ob instanceof EventBasedOBuffer && !(((EventBasedOBuffer)ob).getEventAPI() instanceof LocalChannel)) {
 					((EventBasedOBuffer)ob).setEventAPI(ns);
 				}
 			}
@@ -116,6 +124,26 @@ public class DataStoreSelectorFactory {
 		return fs;
 	}
 
+	public static IpcSelector maybeConfigureIpcSelector(CoreInput coreInput, CoreOutput coreOutput, WorkerConfig wc) {
+		IpcSelector is = new IpcSelector(wc);
+		if(coreInput.requiresConfigureSelectorOfType(DataStoreType.IPC)) {
+			LOG.info("Configuring ipcSelector for input");
+			Map<Integer, IBuffer> ipcBuffers = new HashMap<>();
+			for(IBuffer ib : coreInput.getIBufferProvider().values()) {
+				DataReference dr = ib.getDataReference();
+				if(dr.getDataStore().type() == DataStoreType.IPC) {
+					ipcBuffers.put(dr.getId(), ib);
+				}
+			}
+			is.configureExpectedIncomingConnection(ipcBuffers);
+		}
+		if(coreOutput.requiresConfigureSelectorOfType(DataStoreType.IPC)) {
+			LOG.info("Configuring ipcSelector for output");
+			is.configureOutgoingConnection(coreOutput.getOBufferToDataStoreOfType(DataStoreType.IPC));
+		}
+		return is;
+	}
+
 	public static KafkaSelector maybeConfigureKafkaSelector(CoreInput coreInput, CoreOutput coreOutput, 
 			WorkerConfig wc, LogicalOperator o, InetAddress myIp, int dataPort){
 		KafkaSelector ks = null;
@@ -1,33 +1,31 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
-import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import uk.ac.imperial.lsds.seep.api.DataReference;
 import uk.ac.imperial.lsds.seep.api.RuntimeEventRegister;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ColumnarITuple;
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
 import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.ScanEvaluator;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
 import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
 import uk.ac.imperial.lsds.seep.core.IBuffer;
-import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seep.core.BatchOBuffer;
+import uk.ac.imperial.lsds.seep.core.InPlaceOBuffer;
 
 // No thread safe. In particular no simultaneous write and read is allowed right now
-public class Dataset implements IBuffer, OBuffer {
+public class Dataset implements IBuffer, BatchOBuffer, InPlaceOBuffer {
 
 	private int id;
 	private DataReferenceManager drm;
@@ -52,13 +50,40 @@ public class Dataset implements IBuffer, OBuffer {
 	private int diskAccess;
 	private int memAccess;
 	
-	private byte[] readInt = new byte[Integer.BYTES];
+	// Opened lazily, when the dataset is first written to or read from disk
+	private SpillFile spillFile;
+	// Whether rPtrToBuffer is the write buffer, which must be restored once the read completes.
+	// Otherwise it may be a view of the spill file, that must never go back to the BufferPool
+	private boolean readingWriteBuffer;
+	// Reads ahead the spill file while the dataset is read from disk
+	private SpillReadAhead readAhead;
+	private boolean readAheadStopped;
+	
+	// Only for datasets with columnar layout, null otherwise
+	private ColumnarLayout columnar;
+	private ColumnarITuple columnarReader;
+	private int readRow;
+	// Whether consumeBatch reached the end of the dataset with a partially filled batch
+	private boolean batchReadExhausted;
+	// Tuples are projected here when read through a scan that projects
+	private ByteBuffer scanBuffer;
 	
 	public static Dataset newDatasetOnDisk(DataReference dataRef,
 			BufferPool bufferPool, DataReferenceManager drm) {
 		return new Dataset(dataRef, bufferPool, drm, true);
 	}
 	
+	/**
+	 * Creates a dataset that stores tuples in columnar layout, one vector per field and no per tuple size, 
+	 * see ColumnarITuple. Only for fixed-size schemas, see ColumnarLayout.supports.
+	 */
+	public static Dataset newColumnarDataset(DataReference dataRef, 
+			BufferPool bufferPool, DataReferenceManager drm) {
+		Dataset d = new Dataset(dataRef, bufferPool, drm);
+		d.columnar = new ColumnarLayout(d.getSchemaForDataset());
+		return d;
+	}
+	
 	public Dataset(DataReference dataReference, BufferPool bufferPool, DataReferenceManager drm, boolean onDisk) {
 		this.drm = drm;
 		this.dataReference = dataReference;
@@ -154,47 +179,48 @@ public class Dataset implements IBuffer, OBuffer {
 		return freedMemory;
 	}
 	
-	public void transferToMemory(BufferedInputStream bis, int bbSize) {
-		boolean goOn = true;
-		while(goOn) {
-			int limit = 0;
-			ByteBuffer bb = null;
-			try {
-				limit = bis.read();
-				if(limit == -1) {
-					goOn = false;
-					bis.close();
+	/**
+	 * Copies the frames of the spill file into buffers borrowed from the BufferPool.
+	 * @return false if there is not enough memory to hold the whole dataset, in which case 
+	 * the dataset is left on disk
+	 */
+	public boolean transferToMemory() {
+		List<ByteBuffer> loaded = new ArrayList<>();
+		long position = 0;
+		try {
+			ByteBuffer frame = null;
+			while((frame = getSpillFile().readFrame(position)) != null) {
+				position = getSpillFile().nextFramePosition();
+				if(! frame.hasRemaining()) {
 					continue;
 				}
-				bb = bufferPool.borrowBuffer();
-				int read = 0;
-				if(bb == null) { // Run out of memory, we can try with the cached buffer
-					read = bis.read(wPtrToBuffer.array());
-				}
-				else {
-					read = bis.read(bb.array());
-				}
-				if(read == -1) {
-					goOn = false;
-					bufferPool.returnBuffer(bb);
-					bis.close();
-					continue;
+				ByteBuffer bb = bufferPool.borrowBuffer();
+				if(bb == null || bb.capacity() < frame.remaining()) {
+					if(bb != null) {
+						bufferPool.returnBuffer(bb);
+					}
+					for(ByteBuffer l : loaded) {
+						bufferPool.returnBuffer(l);
+					}
+					return false;
 				}
-			} 
-			catch (IOException e) {
-				e.printStackTrace();
-			}
-			// Add read buffer to memory
-			if(bb == null) {
-				wPtrToBuffer.limit(limit);
-				wPtrToBuffer.flip();
-				this.addBufferToBuffers(wPtrToBuffer);
+				bb.put(frame);
+				bb.flip();
+				loaded.add(bb);
 			}
-			else {
-				bb.limit(limit);
-				this.addBufferToBuffers(bb);
+		} 
+		catch (IOException e) {
+			e.printStackTrace();
+			for(ByteBuffer l : loaded) {
+				bufferPool.returnBuffer(l);
 			}
+			return false;
+		}
+		// Add read buffers to memory
+		for(ByteBuffer bb : loaded) {
+			this.addBufferToBuffers(bb);
 		}
+		return true;
 	}
 	
 	public void completeTransferToMemory(ByteBuffer currentPointer) {
@@ -248,6 +274,11 @@ public class Dataset implements IBuffer, OBuffer {
 		/*if(this.rPtrToBuffer != null) {
 			totalFreedMemory = totalFreedMemory + bufferPool.returnBuffer(rPtrToBuffer);
 		}*/
+		closeReadAhead();
+		if(this.spillFile != null) {
+			this.spillFile.delete();
+			this.spillFile = null;
+		}
 		
 		return totalFreedMemory;
 	}
@@ -280,6 +311,10 @@ public class Dataset implements IBuffer, OBuffer {
 	private ByteBuffer obtainNewWPtrBuffer() {
 		
 		ByteBuffer bb = bufferPool.borrowBuffer();
+		if(bb != null && drm != null) {
+			// Give the background spiller a chance to free memory before the pool runs out
+			drm.checkMemoryPressure();
+		}
 		if(bb == null) {
 			try {
 				if (drm.spillDatasetsToDisk(id) == 0) {
@@ -299,8 +334,13 @@ public class Dataset implements IBuffer, OBuffer {
 	
 	public void prepareDatasetForFutureRead() {
 		// For memory read only this is enough
-		wPtrToBuffer = rPtrToBuffer; // Set wPtrToBuffer to that one
+		if(readingWriteBuffer) {
+			wPtrToBuffer = rPtrToBuffer; // Set wPtrToBuffer to that one
+			readingWriteBuffer = false;
+		}
 		rPtrToBuffer = null;
+		closeReadAhead();
+		readAheadStopped = false;
 		readerIterator = this.buffers.iterator();
 		// Flip all memory buffers
 		while(readerIterator.hasNext()) {
@@ -318,124 +358,37 @@ public class Dataset implements IBuffer, OBuffer {
 		cacheFilePosition = 0;
 	}
 	
+	public boolean isColumnar() {
+		return columnar != null;
+	}
+	
+	/**
+	 * @return a tuple to read this dataset with consumeData_zerocopy, that depends on its layout
+	 */
+	public ZCITuple newZeroCopyTuple() {
+		Schema schema = getSchemaForDataset();
+		return columnar != null ? new ColumnarITuple(schema) : new ZCITuple(schema);
+	}
+	
+	/**
+	 * @return a tuple to read this dataset with consumeData_zerocopy through the given scan. If the scan 
+	 * projects, tuples are handed in row format with the projected schema
+	 */
+	public ZCITuple newZeroCopyTuple(ScanEvaluator scan) {
+		if(! scan.projects()) {
+			return newZeroCopyTuple();
+		}
+		return new ZCITuple(scan.getProjectedSchema());
+	}
+	
 	public ITuple consumeData_zerocopy(ZCITuple t) {
+		if(columnar != null) {
+			return consumeColumnar((ColumnarITuple)t);
+		}
 		// Try to read from rPtrToBuffer
 		if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
-			// MEMORY
-			if (cacheFileName.equals("")) {
-				memAccess++;
-				if(readerIterator == null) {
-					readerIterator = this.buffers.iterator();
-				}
-				if(readerIterator.hasNext()) {
-					rPtrToBuffer = readerIterator.next();
-					if(rPtrToBuffer.position() == rPtrToBuffer.limit()) {
-						rPtrToBuffer.flip();
-					}
-				}
-				else {
-					// No more buffers available, read the write buffer
-					if(wPtrToBuffer != null) {
-						if(wPtrToBuffer.position() != 0) {
-							wPtrToBuffer.flip();
-						}
-						rPtrToBuffer = wPtrToBuffer;
-						if(rPtrToBuffer.limit() == 0) {
-							System.out.println("B");
-						}
-						wPtrToBuffer = null;
-					}
-					else {
-						prepareDatasetForFutureRead();
-						return null;
-					}
-				}
-			}
-			// DISK
-			else {
-				diskAccess++;
-				FileInputStream is = null;
-				try {
-					is = new FileInputStream(cacheFileName);
-					is.getChannel().position(cacheFilePosition);
-					int limit = is.read(readInt);
-					int size = ByteBuffer.wrap(readInt).getInt();
-					if(limit == -1 || size == 0) {
-						// if the write buffer still contains data
-						if(wPtrToBuffer != null) {
-							if(wPtrToBuffer.position() != 0) {
-								wPtrToBuffer.flip();
-							}
-							rPtrToBuffer = wPtrToBuffer;
-							if(rPtrToBuffer.limit() == 0) {
-								System.out.println("D");
-							}
-							is.close();
-							wPtrToBuffer = null;
-						}
-						else {
-							is.close();
-							prepareDatasetForFutureRead();
-							return null;
-						}
-					}
-					else {
-						byte[] d = new byte[size];
-						int read = is.read(d);
-						if(read == -1) {
-							// if the write buffer still contains data
-							if(wPtrToBuffer != null) {
-								if(wPtrToBuffer.position() != 0) {
-									wPtrToBuffer.flip();
-								}
-								rPtrToBuffer = wPtrToBuffer;
-								if(rPtrToBuffer.limit() == 0) {
-									System.out.println("F");
-								}
-								is.close();
-								wPtrToBuffer = null;
-							}
-							else {
-								is.close();
-								prepareDatasetForFutureRead();
-								return null;
-							}
-						}
-						else if (read != d.length) {
-							System.out.println("Problem reading smaller buffer chunk (Dataset.consumeData)");
-							System.exit(-1);
-						}
-						else {
-							rPtrToBuffer = ByteBuffer.wrap(d);
-							if(rPtrToBuffer.limit() == 0) {
-								System.out.println("H");
-							}
-							cacheFilePosition = is.getChannel().position(); // 4 limit size
-							is.close();
-						}
-					} // else
-				}
-				catch (FileNotFoundException fnfe) {
-					if(wPtrToBuffer != null) {
-						if(wPtrToBuffer.position() != 0) {
-							wPtrToBuffer.flip();
-						}
-						rPtrToBuffer = wPtrToBuffer;
-						if(rPtrToBuffer.limit() == 0) {
-							System.out.println("I");
-						}
-						// no need to close stream as it does not exist
-						wPtrToBuffer = null;
-					}
-					else {
-						// no need to close stream as it does not exist
-						prepareDatasetForFutureRead();
-						return null;
-					}
-				}
-				catch (IOException e) {
-					e.printStackTrace();
-				}
+			if(! nextReadBuffer()) {
+				return null;
 			}
 			t.assignBuffer(rPtrToBuffer);
 		}
@@ -443,144 +396,318 @@ public class Dataset implements IBuffer, OBuffer {
 			int size = rPtrToBuffer.getInt();
 			int currentPosition = rPtrToBuffer.position();
 			t.setBufferPtr(currentPosition);
+			// Tuples are read with absolute offsets, so skip to the next one here
+			rPtrToBuffer.position(currentPosition + size);
 		}
 		return t;
 	}
 			
-	public byte[] consumeData() {
-		// Try to read from rPtrToBuffer
-		if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
-			// MEMORY
-			if (cacheFileName.equals("")) {
-				memAccess++;
-				if(readerIterator == null) {
-					readerIterator = this.buffers.iterator();
+	/**
+	 * Reads the next tuple that passes the filter of the scan. Tuples are tested on the buffers of the dataset, 
+	 * and the ones that do not pass are skipped, so they never reach the task. If the scan projects, the 
+	 * projected fields are copied to a buffer t points to.
+	 */
+	public ITuple consumeData_zerocopy(ZCITuple t, ScanEvaluator scan) {
+		while(true) {
+			if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
+				if(! nextReadBuffer()) {
+					return null;
 				}
-				if(readerIterator.hasNext()) {
-					rPtrToBuffer = readerIterator.next();
-					if(rPtrToBuffer.position() == rPtrToBuffer.limit()) {
-						rPtrToBuffer.flip();
-					}
+				readRow = 0;
+				if(! scan.projects()) {
+					t.assignBuffer(rPtrToBuffer);
 				}
-				else {
-					// No more buffers available, read the write buffer
-					if(wPtrToBuffer != null) {
-						if(wPtrToBuffer.position() != 0) {
-							wPtrToBuffer.flip();
-						}
-						rPtrToBuffer = wPtrToBuffer;
-						if(rPtrToBuffer.limit() == 0) {
-							System.out.println("B");
-						}
-						wPtrToBuffer = null;
-					}
-					else {
-						prepareDatasetForFutureRead();
-						return null;
-					}
+				continue;
+			}
+			if(columnar != null) {
+				int rows = rPtrToBuffer.getInt(ColumnarITuple.ROWS_OFFSET);
+				int row = readRow;
+				while(row < rows && ! scan.acceptColumnar(rPtrToBuffer, row)) {
+					row++;
+				}
+				readRow = row + 1;
+				if(readRow >= rows) {
+					rPtrToBuffer.position(rPtrToBuffer.limit());
+				}
+				if(row >= rows) {
+					continue;
 				}
+				if(! scan.projects()) {
+					((ColumnarITuple)t).setRow(row);
+					return t;
+				}
+				scan.projectColumnar(rPtrToBuffer, row, scanBuffer(columnar.getTupleSize()));
 			}
-			// DISK
 			else {
-				diskAccess++;
-				FileInputStream is = null;
-				try {
-					is = new FileInputStream(cacheFileName);
-					is.getChannel().position(cacheFilePosition);
-					int limit = is.read(readInt);
-					int size = ByteBuffer.wrap(readInt).getInt();
-					if(limit == -1 || size == 0) {
-						// if the write buffer still contains data
-						if(wPtrToBuffer != null) {
-							if(wPtrToBuffer.position() != 0) {
-								wPtrToBuffer.flip();
-							}
-							rPtrToBuffer = wPtrToBuffer;
-							if(rPtrToBuffer.limit() == 0) {
-								System.out.println("D");
-							}
-							is.close();
-//							if(wPtrToBuffer.limit() == 0) return null;
-							wPtrToBuffer = null;
-						}
-						else {
-							is.close();
-							prepareDatasetForFutureRead();
-							return null;
-						}
-					}
-					else {
-						byte[] d = new byte[size];
-						int read = is.read(d);
-						if(read == -1) {
-							// if the write buffer still contains data
-							if(wPtrToBuffer != null) {
-								if(wPtrToBuffer.position() != 0) {
-									wPtrToBuffer.flip();
-								}
-								rPtrToBuffer = wPtrToBuffer;
-								if(rPtrToBuffer.limit() == 0) {
-									System.out.println("F");
-								}
-								is.close();
-//								if(wPtrToBuffer.limit() == 0) return null;
-								wPtrToBuffer = null;
-							}
-							else {
-								is.close();
-								prepareDatasetForFutureRead();
-								return null;
-							}
-						}
-						else if (read != d.length) {
-							System.out.println("Problem reading smaller buffer chunk (Dataset.consumeData)");
-							System.exit(-1);
-						}
-						else {
-							rPtrToBuffer = ByteBuffer.wrap(d);
-							if(rPtrToBuffer.limit() == 0) {
-								System.out.println("H");
-							}
-							cacheFilePosition = is.getChannel().position(); // 4 limit size
-							is.close();
-						}
-					} // else
-				}
-				catch (FileNotFoundException fnfe) {
-					if(wPtrToBuffer != null) {
-						if(wPtrToBuffer.position() != 0) {
-							wPtrToBuffer.flip();
-						}
-						rPtrToBuffer = wPtrToBuffer;
-						if(rPtrToBuffer.limit() == 0) {
-							System.out.println("I");
-						}
-						// no need to close stream as it does not exist
-//						if(wPtrToBuffer.limit() == 0) return null;
-						wPtrToBuffer = null;
-					}
-					else {
-						// no need to close stream as it does not exist
-						prepareDatasetForFutureRead();
-						return null;
-					}
+				int size = rPtrToBuffer.getInt();
+				int currentPosition = rPtrToBuffer.position();
+				rPtrToBuffer.position(currentPosition + size);
+				if(! scan.accept(rPtrToBuffer, currentPosition)) {
+					continue;
 				}
-				catch (IOException e) {
-					e.printStackTrace();
+				if(! scan.projects()) {
+					t.setBufferPtr(currentPosition);
+					return t;
 				}
+				scan.project(rPtrToBuffer, currentPosition, scanBuffer(size));
+			}
+			t.assignBuffer(scanBuffer);
+			t.setBufferPtr(0);
+			return t;
+		}
+	}
+	
+	/**
+	 * @return the buffer to project tuples of at most the given size to, cleared
+	 */
+	private ByteBuffer scanBuffer(int size) {
+		if(scanBuffer == null || scanBuffer.capacity() < size) {
+			scanBuffer = ByteBuffer.allocate(Math.max(size, 256));
+		}
+		scanBuffer.clear();
+		return scanBuffer;
+	}
+			
+	public byte[] consumeData() {
+		if(columnar != null) {
+			if(columnarReader == null) {
+				columnarReader = new ColumnarITuple(columnar.getSchema());
+			}
+			if(consumeColumnar(columnarReader) == null) {
+				return null;
+			}
+			byte[] data = new byte[columnar.getTupleSize()];
+			columnarReader.copyRowTo(data);
+			return data;
+		}
+		// Try to read from rPtrToBuffer
+		if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
+			if(! nextReadBuffer()) {
+				return null;
 			}
 		}
 		
 		// At this point we have rPtrToBuffer
 		int size = rPtrToBuffer.getInt();
-		if(size == 0) {
-			System.out.println();
-		}
 		byte[] data = new byte[size];
 		rPtrToBuffer.get(data);
 		return data;
 	}
 	
+	/**
+	 * Fills the batch with the next tuples of the dataset, copying columnar buffers a column at a time and
+	 * decoding row buffers in place, without an ITuple per row.
+	 * @return false once all data is consumed, in which case the dataset is ready to be read again
+	 */
+	public boolean consumeBatch(ColumnBatch batch) {
+		batch.clear();
+		if(batchReadExhausted) {
+			// The previous call returned the last tuples
+			batchReadExhausted = false;
+			return false;
+		}
+		while(! batch.isFull()) {
+			if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
+				if(! nextReadBuffer()) {
+					batchReadExhausted = batch.size() > 0;
+					return batchReadExhausted;
+				}
+				readRow = 0;
+			}
+			if(columnar != null) {
+				int rows = rPtrToBuffer.getInt(ColumnarITuple.ROWS_OFFSET);
+				readRow = readRow + batch.appendColumns(rPtrToBuffer, readRow, rows - readRow);
+				if(readRow >= rows) {
+					rPtrToBuffer.position(rPtrToBuffer.limit());
+				}
+			}
+			else {
+				int size = rPtrToBuffer.getInt();
+				int currentPosition = rPtrToBuffer.position();
+				batch.appendRow(rPtrToBuffer, currentPosition);
+				rPtrToBuffer.position(currentPosition + size);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Fills the batch with the next tuples of the dataset that pass the filter of the scan, projected. The batch 
+	 * must have the projected schema. Rows are tested and appended one at a time.
+	 * @return false once all data is consumed, in which case the dataset is ready to be read again
+	 */
+	public boolean consumeBatch(ColumnBatch batch, ScanEvaluator scan) {
+		batch.clear();
+		if(batchReadExhausted) {
+			batchReadExhausted = false;
+			return false;
+		}
+		while(! batch.isFull()) {
+			if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
+				if(! nextReadBuffer()) {
+					batchReadExhausted = batch.size() > 0;
+					return batchReadExhausted;
+				}
+				readRow = 0;
+				continue;
+			}
+			if(columnar != null) {
+				int rows = rPtrToBuffer.getInt(ColumnarITuple.ROWS_OFFSET);
+				if(readRow < rows && scan.acceptColumnar(rPtrToBuffer, readRow)) {
+					scan.projectColumnar(rPtrToBuffer, readRow, scanBuffer(columnar.getTupleSize()));
+					batch.appendRow(scanBuffer, 0);
+				}
+				readRow++;
+				if(readRow >= rows) {
+					rPtrToBuffer.position(rPtrToBuffer.limit());
+				}
+			}
+			else {
+				int size = rPtrToBuffer.getInt();
+				int currentPosition = rPtrToBuffer.position();
+				rPtrToBuffer.position(currentPosition + size);
+				if(! scan.accept(rPtrToBuffer, currentPosition)) {
+					continue;
+				}
+				if(scan.projects()) {
+					scan.project(rPtrToBuffer, currentPosition, scanBuffer(size));
+					batch.appendRow(scanBuffer, 0);
+				}
+				else {
+					batch.appendRow(rPtrToBuffer, currentPosition);
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Columnar buffers are read row by row, there is no size to skip. Once the last row of a buffer is
+	 * handed to the reader, the buffer is marked as consumed.
+	 */
+	private ITuple consumeColumnar(ColumnarITuple t) {
+		if(rPtrToBuffer == null || rPtrToBuffer.remaining() == 0) {
+			if(! nextReadBuffer()) {
+				return null;
+			}
+			t.assignBuffer(rPtrToBuffer);
+			readRow = 0;
+		}
+		t.setRow(readRow);
+		readRow++;
+		if(readRow >= t.rows()) {
+			rPtrToBuffer.position(rPtrToBuffer.limit());
+		}
+		return t;
+	}
+	
+	/**
+	 * Points rPtrToBuffer to the next buffer to read, either from memory or from the spill file, and
+	 * finally to the write buffer. When the dataset is on disk, the buffer is a view of the mapped 
+	 * spill file, so tuples are read from the mapped pages without copying them, or, if the spill file 
+	 * is compressed, the frame decompressed as the reader gets to it.
+	 * Synchronized with spills to disk, that only happen between reads.
+	 * @return false if there is no more data to read, in which case the dataset is ready to be read again
+	 */
+	private synchronized boolean nextReadBuffer() {
+		// MEMORY
+		if (cacheFileName.equals("")) {
+			memAccess++;
+			if(readerIterator == null) {
+				readerIterator = this.buffers.iterator();
+			}
+			if(readerIterator.hasNext()) {
+				rPtrToBuffer = readerIterator.next();
+				if(rPtrToBuffer.position() == rPtrToBuffer.limit()) {
+					rPtrToBuffer.flip();
+				}
+				readingWriteBuffer = false;
+				return true;
+			}
+		}
+		// DISK
+		else {
+			diskAccess++;
+			ByteBuffer bb = nextBufferFromReadAhead();
+			if(bb != null) {
+				rPtrToBuffer = bb;
+				readingWriteBuffer = false;
+				return true;
+			}
+			try {
+				ByteBuffer frame = getSpillFile().readFrame(cacheFilePosition);
+				while(frame != null) {
+					cacheFilePosition = getSpillFile().nextFramePosition();
+					if(frame.hasRemaining()) {
+						rPtrToBuffer = frame;
+						readingWriteBuffer = false;
+						return true;
+					}
+					frame = getSpillFile().readFrame(cacheFilePosition);
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		// No more buffers available, read the write buffer if it still contains data
+		if(wPtrToBuffer != null && wPtrToBuffer.position() != 0) {
+			wPtrToBuffer.flip();
+			rPtrToBuffer = wPtrToBuffer;
+			wPtrToBuffer = null;
+			readingWriteBuffer = true;
+			return true;
+		}
+		prepareDatasetForFutureRead();
+		return false;
+	}
+	
+	/**
+	 * Buffers of a spilled dataset are read ahead in the background, if configured, so that the reader 
+	 * does not wait for the disk on every buffer. If the read-ahead runs out of memory, the rest of the 
+	 * dataset is read synchronously.
+	 * @return the next buffer, or null if it must be read synchronously from cacheFilePosition
+	 */
+	private ByteBuffer nextBufferFromReadAhead() {
+		if(readAheadStopped || drm == null || drm.getReadAheadExecutor() == null) {
+			return null;
+		}
+		if(readAhead == null) {
+			try {
+				readAhead = new SpillReadAhead(getSpillFile(), cacheFilePosition, bufferPool, 
+						drm.getReadAheadExecutor(), drm.getReadAheadDepth());
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+			readAhead.start();
+		}
+		ByteBuffer bb = readAhead.next();
+		if(bb == null) {
+			// End of file, or out of memory. Carry on from where the read-ahead got to
+			closeReadAhead();
+			readAheadStopped = true;
+		}
+		return bb;
+	}
+	
+	private void closeReadAhead() {
+		if(readAhead != null) {
+			readAhead.close();
+			cacheFilePosition = readAhead.position();
+			readAhead = null;
+		}
+	}
+	
+	/**
+	 * A read is in progress from the moment the first buffer is handed to the reader until all data
+	 * is consumed. Callers must hold the lock of this dataset for the answer to stay valid.
+	 */
+	public synchronized boolean isBeingRead() {
+		return rPtrToBuffer != null;
+	}
+	
 	public Schema getSchemaForDataset() {
 		return this.dataReference.getDataStore().getSchema();
 	}
@@ -608,20 +735,20 @@ public class Dataset implements IBuffer, OBuffer {
 	@Override
 	public boolean write(byte[] data, RuntimeEventRegister reg) {
 		int dataSize = data.length;
-		totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
 		this.lastAccessForWriteTime = System.nanoTime();
+		if(columnar != null) {
+			totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + dataSize;
+			if(! columnar.hasRoom(wPtrToBuffer)) {
+				handOffFullWPtrBuffer();
+			}
+			columnar.write(wPtrToBuffer, data);
+			return true;
+		}
+		totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
 		
 		// Try to write to cache buffer first
 		if(wPtrToBuffer.remaining() < dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD) {
-			// When buffer is full, then we check whether this dataset is in memory or not
-			if (!cacheFileName.equals("")) { // disk
-				transferBBToDisk();
-			}
-			else { // memory
-				wPtrToBuffer.flip();
-				this.addBufferToBuffers(wPtrToBuffer); // add full buffer
-				this.wPtrToBuffer = this.obtainNewWPtrBuffer(); // try to get a new one
-			}
+			handOffFullWPtrBuffer();
 		}
 		
 		// Write size and data to cache buffer. Here it is guaranteed to exist
@@ -634,20 +761,20 @@ public class Dataset implements IBuffer, OBuffer {
 	@Override
 	public boolean write(OTuple o, RuntimeEventRegister reg) {
 		int dataSize = o.getTupleSize();
-		totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
 		this.lastAccessForWriteTime = System.nanoTime();
+		if(columnar != null) {
+			totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + dataSize;
+			if(! columnar.hasRoom(wPtrToBuffer)) {
+				handOffFullWPtrBuffer();
+			}
+			columnar.write(wPtrToBuffer, o.getValues());
+			return true;
+		}
+		totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
 		
 		// Try to write to cache buffer first
 		if(wPtrToBuffer.remaining() < dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD) {
-			// When buffer is full, then we check whether this dataset is in memory or not
-			if (!cacheFileName.equals("")) { // disk
-				transferBBToDisk();
-			}
-			else { // memory
-				wPtrToBuffer.flip();
-				this.addBufferToBuffers(wPtrToBuffer); // add full buffer
-				this.wPtrToBuffer = this.obtainNewWPtrBuffer(); // try to get a new one
-			}
+			handOffFullWPtrBuffer();
 		}
 		
 		// Write size and data to cache buffer. Here it is guaranteed to exist
@@ -656,26 +783,63 @@ public class Dataset implements IBuffer, OBuffer {
 		return true;
 	}
 	
-	private void _transferBBToDisk() {
-		WritableByteChannel bc = null;
-		try {
-			// Open file to append buffer
+	@Override
+	public boolean write(ColumnBatch batch, RuntimeEventRegister reg) {
+		int numTuples = batch.size();
+		int dataSize = batch.getTupleSize();
+		this.lastAccessForWriteTime = System.nanoTime();
+		if(columnar != null) {
+			totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + (long)numTuples * dataSize;
+			int row = 0;
+			while(row < numTuples) {
+				if(! columnar.hasRoom(wPtrToBuffer)) {
+					handOffFullWPtrBuffer();
+				}
+				row = row + columnar.write(wPtrToBuffer, batch, row, numTuples - row);
+			}
+			return true;
+		}
+		totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + (long)numTuples * (dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD);
+		for(int row = 0; row < numTuples; row++) {
+			if(wPtrToBuffer.remaining() < dataSize + TupleInfo.TUPLE_SIZE_OVERHEAD) {
+				handOffFullWPtrBuffer();
+			}
+			wPtrToBuffer.putInt(dataSize);
+			batch.writeRow(row, wPtrToBuffer);
+		}
+		return true;
+	}
+	
+	/**
+	 * Columnar datasets lay out tuples by column, so they are not written in place
+	 */
+	@Override
+	public ByteBuffer beginTuple(int minimumSize) {
+		if(columnar != null) {
+			return null;
+		}
+		if(wPtrToBuffer.remaining() < minimumSize) {
+			handOffFullWPtrBuffer();
+		}
+		return wPtrToBuffer;
+	}
+	
+	@Override
+	public boolean endTuple(int tupleSize, RuntimeEventRegister reg) {
+		this.lastAccessForWriteTime = System.nanoTime();
+		totalDataWrittenToThisDataset = totalDataWrittenToThisDataset + tupleSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
+		return true;
+	}
+	
+	private void handOffFullWPtrBuffer() {
+		// When buffer is full, then we check whether this dataset is in memory or not
+		if (!cacheFileName.equals("")) { // disk
+			transferBBToDisk();
+		}
+		else { // memory
 			wPtrToBuffer.flip();
-			bc = Channels.newChannel(new FileOutputStream(cacheFileName, true));
-			
-			int limit = wPtrToBuffer.limit();
-			ByteBuffer limitInt = ByteBuffer.allocate(Integer.BYTES).putInt(limit);
-			bc.write(limitInt);
-			bc.write(wPtrToBuffer);
-			bc.close();
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} 
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			this.addBufferToBuffers(wPtrToBuffer); // add full buffer
+			this.wPtrToBuffer = this.obtainNewWPtrBuffer(); // try to get a new one
 		}
 	}
 	
@@ -683,35 +847,40 @@ public class Dataset implements IBuffer, OBuffer {
 		if (wPtrToBuffer.position() == 0) {
 			return;
 		}
-		BufferedOutputStream bos = null;
 		try {
-			// Open file to append buffer
+			// Appending through the channel avoids copying the buffer into a byte[] first, and works 
+			// for both heap and direct (off-heap) buffers
 			wPtrToBuffer.flip();
-			FileOutputStream fos = new FileOutputStream(cacheFileName, true);
-			bos = new BufferedOutputStream(fos, bufferPool.getMinimumBufferSize());
-			byte[] payload = Arrays.copyOfRange(wPtrToBuffer.array(), wPtrToBuffer.arrayOffset(), wPtrToBuffer.limit());
-			bos.write(ByteBuffer.wrap(readInt).putInt(payload.length).array());
-			bos.write(payload);
-			bos.flush();
-			fos.getFD().sync();
-			bos.close();
-			fos.close();
+			getSpillFile().append(wPtrToBuffer);
 			wPtrToBuffer.clear();
 		}
-		catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} 
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	public SpillFile getSpillFile() throws IOException {
+		if(spillFile == null) {
+			SpillCodec codec = drm != null ? drm.getSpillCodec() : SpillCodec.NONE;
+			spillFile = SpillFile.open(cacheFileName, codec);
+		}
+		return spillFile;
+	}
+	
 	public void setCachedLocation(String filename) {
+		if(spillFile != null && ! spillFile.getFileName().equals(filename)) {
+			spillFile.close();
+			spillFile = null;
+		}
 		cacheFileName = filename;
 		cacheFilePosition = 0;
 	}
 	
 	public void unsetCachedLocation() {
+		if(spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
 		cacheFileName = "";
 	}
 	
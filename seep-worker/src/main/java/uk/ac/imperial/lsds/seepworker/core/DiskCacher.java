@@ -1,18 +1,14 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +30,7 @@ public class DiskCacher {
 	private WorkerConfig wc;
 	
 	private DiskCacher(WorkerConfig wc) {
-		filenames = new HashMap<Integer, String>();
+		filenames = new ConcurrentHashMap<Integer, String>();
 		this.wc = wc;
 	}
 
@@ -106,63 +102,64 @@ public class DiskCacher {
 	}
 	
 	public int cacheToDisk(Dataset data) throws FileNotFoundException, IOException {
-		String cacheFileName = getCacheFileName(data.id());
+		// Datasets may be spilled both by their writer and by the spill executor
+		synchronized(data) {
+			return cacheToDisk0(data);
+		}
+	}
+	
+	private int cacheToDisk0(Dataset data) throws IOException {
 		if (filenames.containsKey(data.id())) {
+			// Already on disk, new writes go straight to its spill file
 			return 0;
 		}
-		filenames.put(data.id(), cacheFileName);
-		
-		// Prepare channel
-		FileOutputStream fos = new FileOutputStream(cacheFileName, true);
-		BufferedOutputStream bos = new BufferedOutputStream(fos, wc.getInt(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE));
+		String cacheFileName = getCacheFileName(data.id());
+		data.setCachedLocation(cacheFileName);
 		
-		// Basically get buffers from Dataset and write them in chunks, and ordered to disk
+		// Basically get buffers from Dataset and append them in order to its spill file. Buffers are 
+		// written straight through the channel, so direct (off-heap) buffers are not copied into the 
+		// heap on their way to disk. Nothing is forced to disk, the file only needs to outlive the 
+		// buffers, not the worker
+		SpillFile spillFile = data.getSpillFile();
 		Iterator<ByteBuffer> buffers = data.prepareForTransferToDisk();
-		byte[] payload = new byte[wc.getInt(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE)];
 		
 		while(buffers != null && buffers.hasNext()) {
-			ByteBuffer bb = buffers.next();
-			if (payload.length != bb.limit() - bb.arrayOffset()) {
-				payload = new byte[bb.limit() - bb.arrayOffset()];
-			}
-			bb.get(payload, bb.arrayOffset(), bb.remaining());
-			bos.write(ByteBuffer.allocate(Integer.BYTES).putInt(payload.length).array());
-			bos.write(payload, 0, payload.length);
+			// Write the whole content of the buffer, even if it was partially read already
+			ByteBuffer bb = buffers.next().duplicate();
+			bb.position(0);
+			spillFile.append(bb);
 		}
-		bos.flush();
-		fos.getFD().sync();
-		bos.close();
-		fos.close();
-		data.setCachedLocation(cacheFileName);
 		
 		// close
 		int freedMemory = data.completeTransferToDisk();
 		
-		
 		LOG.debug("Content is spilled to: {}", cacheFileName);
 		
 		return freedMemory;
 	}
 	
 	public void retrieveFromDisk(Dataset data) throws FileNotFoundException {
-		
+		synchronized(data) {
+			retrieveFromDisk0(data);
+		}
+	}
+	
+	private void retrieveFromDisk0(Dataset data) {
 		// Get cache file
 		String cacheFileName = filenames.get(data.id());
 		// Prepare dataset for trasnfer to memory
 		ByteBuffer currentPointer = data.prepareForTransferToMemory();
 		
-		int bbSize = wc.getInt(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE);
-		BufferedInputStream bis = new BufferedInputStream(new FileInputStream(cacheFileName), bbSize);
-
-		data.transferToMemory(bis, bbSize);
+		if(! data.transferToMemory()) {
+			LOG.warn("Not enough memory to retrieve dataset {} from: {}", data.id(), cacheFileName);
+			return;
+		}
 		
 		data.completeTransferToMemory(currentPointer);
 		
+		// Removes the spill file
 		data.unsetCachedLocation();
 		filenames.remove(data.id());
-		if (filenames.containsKey(data.id())) {
-			data.setCachedLocation(filenames.get(data.id()));
-		}
 	}
 	
 	/***
@@ -0,0 +1,143 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.util.List;
+
+import uk.ac.imperial.lsds.seep.api.API;
+import uk.ac.imperial.lsds.seep.api.BuilderAPI;
+import uk.ac.imperial.lsds.seep.api.RuntimeEvent;
+import uk.ac.imperial.lsds.seep.api.SeepTask;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.OTupleBuilder;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.TypedRow;
+
+/**
+ * The API that an operator fused in a ScheduleTask sends to. Each tuple sent is unboxed into a row with the
+ * schema of the connection to the next operator, which processes it right away, so operators can send any
+ * number of tuples per input and the row is reused for all of them.
+ * Runtime events are registered in the API of the last operator, i.e. the one of the task.
+ */
+public class FusedCollector implements BuilderAPI {
+
+	private final SeepTask next;
+	private final TypedRow row;
+	private final OTupleBuilder builder;
+	private API downstream;
+
+	public FusedCollector(SeepTask next, Schema schema) {
+		this.next = next;
+		this.row = new TypedRow(schema);
+		this.builder = new OTupleBuilder(schema);
+	}
+
+	public void setDownstream(API downstream) {
+		this.downstream = downstream;
+	}
+
+	@Override
+	public int id() {
+		return downstream.id();
+	}
+
+	@Override
+	public void send(OTuple o) {
+		row.setFrom(o);
+		next.processData(row, downstream);
+	}
+
+	@Override
+	public void send(byte[] o) {
+		row.setData(o);
+		next.processData(row, downstream);
+	}
+
+	@Override
+	public OTupleBuilder newTuple() {
+		return builder.start();
+	}
+
+	@Override
+	public void send(OTupleBuilder tuple) {
+		tuple.finish();
+		row.setFrom(tuple);
+		next.processData(row, downstream);
+	}
+
+	// There is only one operator downstream of a fused operator, so routing is irrelevant
+
+	@Override
+	public void sendAll(byte[] o) {
+		send(o);
+	}
+
+	@Override
+	public void sendKey(byte[] o, int key) {
+		send(o);
+	}
+
+	@Override
+	public void sendKey(byte[] o, String key) {
+		send(o);
+	}
+
+	@Override
+	public void sendToStreamId(int streamId, byte[] o) {
+		send(o);
+	}
+
+	@Override
+	public void sendToAllInStreamId(int streamId, byte[] o) {
+		send(o);
+	}
+
+	@Override
+	public void sendStreamidKey(int streamId, byte[] o, int key) {
+		send(o);
+	}
+
+	@Override
+	public void sendStreamidKey(int streamId, byte[] o, String key) {
+		send(o);
+	}
+
+	@Override
+	public void send_index(int index, byte[] o) {
+		send(o);
+	}
+
+	@Override
+	public void send_opid(int opId, byte[] o) {
+		send(o);
+	}
+
+	@Override
+	public void exception(String message) {
+		downstream.exception(message);
+	}
+
+	@Override
+	public void datasetSpilledToDisk(int datasetId) {
+		downstream.datasetSpilledToDisk(datasetId);
+	}
+
+	@Override
+	public void failure() {
+		downstream.failure();
+	}
+
+	@Override
+	public List<RuntimeEvent> getRuntimeEvents() {
+		return downstream.getRuntimeEvents();
+	}
+
+	@Override
+	public void notifyEndOfLoop() {
+		downstream.notifyEndOfLoop();
+	}
+
+	@Override
+	public void storeEvaluateResults(Object obj) {
+		downstream.storeEvaluateResults(obj);
+	}
+
+}
@@ -0,0 +1,129 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import uk.ac.imperial.lsds.seep.core.EventAPI;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
+
+/**
+ * Hands completed batches of an OutputBuffer to a consumer in the same worker by reference, through a bounded
+ * lock-free single producer, single consumer queue. Consumed batch buffers travel back to the producer through
+ * a free list, so in steady state batches are neither copied nor allocated.
+ * It is the EventAPI of the OutputBuffer, so the Collector hands off each batch as it completes it.
+ */
+public class LocalChannel implements EventAPI {
+
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final OutputBuffer producer;
+	private final ByteBuffer[] batches;
+	// Batches taken by the consumer, and batches offered by the producer
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+	private volatile Thread waitingConsumer;
+	private final Queue<ByteBuffer> freeBuffers;
+
+	public LocalChannel(OutputBuffer producer, int capacity) {
+		this.producer = producer;
+		this.batches = new ByteBuffer[Math.max(1, capacity)];
+		this.freeBuffers = new ConcurrentLinkedQueue<>();
+	}
+
+	@Override
+	public void readyForWrite(int id) {
+		// Serializes tasks that share the output
+		synchronized(this) {
+			producer.handOffTo(this);
+		}
+	}
+
+	@Override
+	public void readyForWrite(List<Integer> ids) {
+		readyForWrite(-1);
+	}
+
+	/**
+	 * Called by the producer. Waits while the queue is full
+	 */
+	public void offer(ByteBuffer batch) {
+		long t = tail.get();
+		while(t - head.get() >= batches.length) {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		batches[(int)(t % batches.length)] = batch;
+		// Not lazySet, the store must be visible before checking for a waiting consumer
+		tail.set(t + 1);
+		Thread consumer = waitingConsumer;
+		if(consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Called by the consumer
+	 * @return the next batch, flipped and starting with its header, or null if none arrived within timeout
+	 */
+	public ByteBuffer poll(int timeout) {
+		long h = head.get();
+		if(h == tail.get()) {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			waitingConsumer = Thread.currentThread();
+			try {
+				while(h == tail.get()) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						return null;
+					}
+					LockSupport.parkNanos(remaining);
+				}
+			}
+			finally {
+				waitingConsumer = null;
+			}
+		}
+		int idx = (int)(h % batches.length);
+		ByteBuffer batch = batches[idx];
+		batches[idx] = null;
+		head.lazySet(h + 1);
+		return batch;
+	}
+
+	/**
+	 * Called by the consumer, once it does not access the batch any more
+	 */
+	public void recycle(ByteBuffer batch) {
+		freeBuffers.offer(batch);
+		if(producer.isClosed()) {
+			releaseFreeBuffers();
+		}
+	}
+
+	/**
+	 * Gives the buffers the consumer is done with back to the producer, once it is closed
+	 */
+	public void releaseFreeBuffers() {
+		ByteBuffer buf = null;
+		while((buf = freeBuffers.poll()) != null) {
+			producer.releaseSlot(buf);
+		}
+	}
+
+	/**
+	 * Called by the producer
+	 * @return a batch buffer the consumer is done with, or null if none
+	 */
+	public ByteBuffer takeFreeBuffer() {
+		return freeBuffers.poll();
+	}
+
+	public int size() {
+		return (int)(tail.get() - head.get());
+	}
+
+}
@@ -0,0 +1,389 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.imperial.lsds.seep.api.BatchAPI;
+import uk.ac.imperial.lsds.seep.api.BatchSeepTask;
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.RuntimeEvent;
+import uk.ac.imperial.lsds.seep.api.SeepTask;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.comm.serialization.KryoFactory;
+import uk.ac.imperial.lsds.seep.core.BatchInputAdapter;
+import uk.ac.imperial.lsds.seep.core.InputAdapter;
+import uk.ac.imperial.lsds.seep.core.InputAdapterReturnType;
+import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.Conductor.ConductorCallback;
+import uk.ac.imperial.lsds.seepworker.core.input.CoreInput;
+import uk.ac.imperial.lsds.seepworker.core.input.DatasetInputAdapter;
+import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
+
+import com.codahale.metrics.Meter;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.factories.SerializerFactory;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Runs a task on a pool of worker threads, each with its own copy of the task and its own Collector.
+ * Input adapters are assigned to workers by partition. Workers of scheduled tasks drain one input adapter
+ * at a time, and steal adapters from other workers when they run out of their own, so that skewed
+ * partitions do not leave cores idle. The ConductorCallback is notified once all workers are done.
+ * Stateful tasks run on a single worker, as SeepState is not safe for concurrent access.
+ */
+public class MultiThreadProcessingEngine implements ProcessingEngine {
+
+	final private Logger LOG = LoggerFactory.getLogger(MultiThreadProcessingEngine.class.getName());
+	final private int MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS;
+	final private int BATCH_SIZE;
+
+	private volatile boolean working = false;
+	private ConductorCallback callback;
+
+	private int id;
+	private CoreInput coreInput;
+	private CoreOutput coreOutput;
+	private SeepTask task;
+	private SeepState state;
+
+	private final int numWorkers;
+	private List<SeepTask> tasks;
+	private List<Thread> workers;
+	private List<ConcurrentLinkedDeque<InputAdapter>> assignedInputAdapters;
+	private final AtomicInteger runningWorkers;
+	private final List<RuntimeEvent> runtimeEvents;
+	// Actions to run between two calls to the task of the first worker, the only one of stateful tasks. Accepted
+	// while the first worker polls input adapters
+	private final Queue<FutureTask<?>> actions = new ConcurrentLinkedQueue<>();
+	private volatile boolean runningActions = false;
+
+	// Metrics
+	final private Meter m;
+
+	public MultiThreadProcessingEngine(WorkerConfig wc, int id, SeepTask task, SeepState state, CoreInput coreInput, CoreOutput coreOutput, ConductorCallback callback) {
+		this.id = id;
+		this.task = task;
+		this.state = state;
+		this.coreInput = coreInput;
+		this.coreOutput = coreOutput;
+		this.callback = callback;
+		this.MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS = wc.getInt(WorkerConfig.MAX_WAIT_TIME_PER_INPUTADAPTER_MS);
+		this.BATCH_SIZE = wc.getInt(WorkerConfig.PROCESSING_BATCH_SIZE);
+		int threads = wc.getInt(WorkerConfig.ENGINE_THREADS);
+		if(threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		if(state != null) {
+			LOG.warn("Stateful task, running on a single worker");
+			threads = 1;
+		}
+		// No point in more workers than inputs, and sources (no inputs) run once
+		int numInputAdapters = coreInput.getInputAdapters().size();
+		this.numWorkers = Math.max(1, Math.min(threads, numInputAdapters));
+		this.runningWorkers = new AtomicInteger(0);
+		this.runtimeEvents = new ArrayList<>();
+		// The task is set up by the Conductor once the engine is built, so the copies are taken from a pristine one
+		this.tasks = copyTask(task, numWorkers);
+		m = SeepMetrics.REG.meter(name(MultiThreadProcessingEngine.class, "event", "per", "sec"));
+	}
+
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	@Override
+	public void start() {
+		for(int i = 1; i < tasks.size(); i++) {
+			tasks.get(i).setUp();
+		}
+		assignedInputAdapters = assignInputAdapters(coreInput.getInputAdapters(), tasks.size());
+		LOG.info("Configuring MULTITHREAD processing engine with {} workers, {} inputAdapters and {} outputBuffers",
+				tasks.size(), coreInput.getInputAdapters().size(), coreOutput.getBuffers().size());
+		workers = new ArrayList<>();
+		boolean sharedOutput = tasks.size() > 1;
+		for(int i = 0; i < tasks.size(); i++) {
+			Thread t = new Thread(new Worker(i, tasks.get(i), new Collector(id, coreOutput, sharedOutput)));
+			t.setName(this.getClass().getSimpleName() + "-" + i);
+			workers.add(t);
+		}
+		working = true;
+		// Continuous workers only poll the input adapters assigned to them
+		runningActions = ! coreInput.getInputAdapters().isEmpty()
+				&& (! callback.isContinuousTask() || ! assignedInputAdapters.get(0).isEmpty());
+		runningWorkers.set(workers.size());
+		for(Thread t : workers) {
+			t.start();
+		}
+	}
+
+	@Override
+	public void stop() {
+		working = false;
+		this.closeAndCleanEngine();
+	}
+
+	@Override
+	public Future<?> submit(Runnable action) {
+		if(! runningActions) {
+			throw new RejectedExecutionException("Engine of task "+id+" is not processing input");
+		}
+		FutureTask<?> f = new FutureTask<>(action, null);
+		actions.add(f);
+		// The first worker may have stopped running actions after the check
+		if(! runningActions) {
+			cancelActions();
+		}
+		return f;
+	}
+	
+	private void cancelActions() {
+		FutureTask<?> f = null;
+		while((f = actions.poll()) != null) {
+			f.cancel(false);
+		}
+	}
+
+	private void closeAndCleanEngine(){
+		try {
+			LOG.debug("Waiting for worker threads to die...");
+			if(workers != null) {
+				for(Thread t : workers) {
+					t.join();
+				}
+			}
+			LOG.debug("Waiting for worker threads to die...OK");
+		}
+		catch (InterruptedException e) {
+			LOG.warn("Interrupted while waiting for worker threads to die, tasks of running workers are not closed");
+			Thread.currentThread().interrupt();
+		}
+		// Scheduled tasks are closed by their worker once drained. A task still in use by its worker is not closed
+		if(tasks != null && callback.isContinuousTask()) {
+			for(int i = 0; i < tasks.size(); i++) {
+				if(workers == null || ! workers.get(i).isAlive()) {
+					tasks.get(i).close();
+				}
+			}
+		}
+		coreInput = null;
+		coreOutput = null;
+		task = null;
+		state = null;
+	}
+
+	/**
+	 * The original task is used by the first worker. The others get a deep copy, taken before the original is set up
+	 * and set up on start. If the task cannot be copied, it runs on a single worker.
+	 */
+	private List<SeepTask> copyTask(SeepTask task, int copies) {
+		List<SeepTask> tasks = new ArrayList<>();
+		tasks.add(task);
+		if(copies == 1) {
+			return tasks;
+		}
+		Kryo k = KryoFactory.buildKryoForDeepCopy(task.getClass().getClassLoader());
+		// Scheduled tasks run again with the same instance, which is set up by then. Its transient fields are what
+		// setUp builds, so copies leave them out
+		k.setDefaultSerializer(new SerializerFactory() {
+			@Override
+			@SuppressWarnings("rawtypes")
+			public Serializer makeSerializer(Kryo kryo, Class<?> type) {
+				FieldSerializer<?> fs = new FieldSerializer(kryo, type);
+				fs.setCopyTransient(false);
+				return fs;
+			}
+		});
+		try {
+			for(int i = 1; i < copies; i++) {
+				tasks.add(k.copy(task));
+			}
+		}
+		catch(KryoException e) {
+			LOG.warn("Task {} cannot be copied, running on a single worker: {}", task.getClass().getName(), e.getMessage());
+			tasks.subList(1, tasks.size()).clear();
+		}
+		return tasks;
+	}
+
+	private List<ConcurrentLinkedDeque<InputAdapter>> assignInputAdapters(List<InputAdapter> inputAdapters, int numWorkers) {
+		List<ConcurrentLinkedDeque<InputAdapter>> assigned = new ArrayList<>();
+		for(int i = 0; i < numWorkers; i++) {
+			assigned.add(new ConcurrentLinkedDeque<InputAdapter>());
+		}
+		for(int i = 0; i < inputAdapters.size(); i++) {
+			InputAdapter ia = inputAdapters.get(i);
+			assigned.get(partitionOf(ia, i) % numWorkers).add(ia);
+		}
+		return assigned;
+	}
+
+	private int partitionOf(InputAdapter ia, int idx) {
+		if(ia instanceof DatasetInputAdapter) {
+			DataReference dr = ((DatasetInputAdapter)ia).getDataReference();
+			if(dr.isPartitioned()) {
+				return dr.getPartitionId();
+			}
+		}
+		return idx;
+	}
+
+	private void workerFinished(Collector api) {
+		synchronized(runtimeEvents) {
+			runtimeEvents.addAll(api.getRuntimeEvents());
+		}
+		if(runningWorkers.decrementAndGet() == 0) {
+			working = false;
+			if(! callback.isContinuousTask()) {
+				// notify and pass all generated runtime events
+				callback.notifyOk(runtimeEvents);
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final int workerId;
+		private final SeepTask task;
+		private final Collector api;
+		private final short one = InputAdapterReturnType.ONE.ofType();
+		private final short many = InputAdapterReturnType.MANY.ofType();
+		// Batches for batch tasks, per input adapter. Null for adapters that cannot produce them
+		private final Map<InputAdapter, ColumnBatch> batches = new IdentityHashMap<>();
+
+		Worker(int workerId, SeepTask task, Collector api) {
+			this.workerId = workerId;
+			this.task = task;
+			this.api = api;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(coreInput.getInputAdapters().isEmpty()) {
+					// If there are no input adapters, assume processData contain all necessary and give null input data
+					LOG.info("About to call processData without data. Am I a source?");
+					task.processData(null, api);
+				}
+				else if(callback.isContinuousTask()) {
+					runContinuous();
+				}
+				else {
+					runUntilDrained();
+				}
+			}
+			finally {
+				if(workerId == 0) {
+					runningActions = false;
+					cancelActions();
+				}
+				if(! callback.isContinuousTask()) {
+					task.close();
+				}
+				workerFinished(api);
+				LOG.info("Stopping engine worker {}", workerId);
+			}
+		}
+
+		/**
+		 * Continuous inputs never drain, so each worker keeps polling the adapters assigned to it
+		 */
+		private void runContinuous() {
+			List<InputAdapter> own = new ArrayList<>(assignedInputAdapters.get(workerId));
+			if(own.isEmpty()) {
+				return;
+			}
+			while(working) {
+				for(InputAdapter ia : own) {
+					process(ia);
+				}
+			}
+		}
+
+		private void runUntilDrained() {
+			InputAdapter ia = null;
+			while(working && (ia = nextInputAdapter()) != null) {
+				// An input adapter is exhausted when it returns no data
+				while(working && process(ia)) { }
+			}
+		}
+
+		private InputAdapter nextInputAdapter() {
+			InputAdapter ia = assignedInputAdapters.get(workerId).pollFirst();
+			if(ia != null) {
+				return ia;
+			}
+			// Steal from the end of the queue of other workers, furthest from what they are processing
+			for(int i = 1; i < assignedInputAdapters.size(); i++) {
+				int victim = (workerId + i) % assignedInputAdapters.size();
+				ia = assignedInputAdapters.get(victim).pollLast();
+				if(ia != null) {
+					return ia;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return false if the input adapter did not return data
+		 */
+		private boolean process(InputAdapter ia) {
+			if(workerId == 0) {
+				FutureTask<?> f = null;
+				while((f = actions.poll()) != null) {
+					f.run();
+				}
+			}
+			if(task instanceof BatchSeepTask && ia instanceof BatchInputAdapter) {
+				BatchInputAdapter bia = (BatchInputAdapter)ia;
+				if(! batches.containsKey(ia)) {
+					batches.put(ia, bia.newBatch(BATCH_SIZE));
+				}
+				ColumnBatch batch = batches.get(ia);
+				if(batch != null) {
+					if(! bia.pullDataBatch(batch, MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS)) {
+						return false;
+					}
+					((BatchSeepTask)task).processBatch(batch, (BatchAPI)api);
+					m.mark(batch.size());
+					return true;
+				}
+			}
+			if(ia.returnType() == one) {
+				ITuple d = ia.pullDataItem(MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS);
+				if(d == null) {
+					return false;
+				}
+				task.processData(d, api);
+				m.mark();
+			}
+			else if(ia.returnType() == many) {
+				List<ITuple> d = ia.pullDataItems(MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS);
+				if(d == null) {
+					return false;
+				}
+				task.processDataGroup(d, api);
+				m.mark();
+			}
+			return true;
+		}
+	}
+}
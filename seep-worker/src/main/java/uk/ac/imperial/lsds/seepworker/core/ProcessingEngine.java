@@ -1,9 +1,21 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 
 public interface ProcessingEngine {
 	
 	public void start();
 	public void stop();
+	
+	/**
+	 * Runs the action on the thread of the task, between two calls to it, e.g. to change the state of a stateful
+	 * task, which always runs on a single thread. The action runs once the engine finishes the call in progress,
+	 * or waits for input for at most the max wait time per input adapter. Engines only run actions while their task
+	 * processes input, so actions pending when it stops are cancelled
+	 * @throws RejectedExecutionException if the task does not process input, e.g. it is a source or it finished
+	 */
+	public Future<?> submit(Runnable action);
 
 }
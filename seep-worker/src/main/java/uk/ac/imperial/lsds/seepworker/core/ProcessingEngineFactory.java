@@ -20,6 +20,10 @@ public class ProcessingEngineFactory {
 			LOG.info("Building processing engine of type: {}", "SINGLE_THREAD");
 			return new SingleThreadProcessingEngine(wc, id, task, state, coreInput, coreOutput, callback);
 		}
+		else if(engineType == ProcessingEngineType.MULTI_THREAD.ofType()) {
+			LOG.info("Building processing engine of type: {}", "MULTI_THREAD");
+			return new MultiThreadProcessingEngine(wc, id, task, state, coreInput, coreOutput, callback);
+		}
 		return null;
 	}
 
@@ -29,6 +33,10 @@ public class ProcessingEngineFactory {
 			LOG.info("Building processing engine of type: {}", "SINGLE_THREAD");
 			return new SingleThreadProcessingEngine(wc, id, task, state, coreInput, coreOutput, callback);
 		}
+		else if(engineType == ProcessingEngineType.MULTI_THREAD.ofType()) {
+			LOG.info("Building processing engine of type: {}", "MULTI_THREAD");
+			return new MultiThreadProcessingEngine(wc, id, task, state, coreInput, coreOutput, callback);
+		}
 		return null;
 	}
 	
@@ -1,7 +1,8 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
 public enum ProcessingEngineType {
-	SINGLE_THREAD((short)0);
+	SINGLE_THREAD((short)0),
+	MULTI_THREAD((short)1);
 	
 	private short type;
 	
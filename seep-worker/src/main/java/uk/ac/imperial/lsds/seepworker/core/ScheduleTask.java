@@ -12,9 +12,8 @@ import org.slf4j.LoggerFactory;
 import uk.ac.imperial.lsds.seep.api.API;
 import uk.ac.imperial.lsds.seep.api.SeepTask;
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
-import uk.ac.imperial.lsds.seep.api.data.OTuple;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
-import uk.ac.imperial.lsds.seep.api.data.TransporterITuple;
+import uk.ac.imperial.lsds.seep.api.operator.DownstreamConnection;
 import uk.ac.imperial.lsds.seep.api.operator.LogicalOperator;
 import uk.ac.imperial.lsds.seep.scheduler.ScheduleDescription;
 import uk.ac.imperial.lsds.seep.scheduler.Stage;
@@ -27,16 +26,12 @@ public class ScheduleTask implements SeepTask {
 	private int stageId;
 	private int euId;
 	private List<LogicalOperator> operators;
-	private Iterator<LogicalOperator> opIt;
+	// Transient, so that copies of this task get their own in setUp
+	private transient Iterator<LogicalOperator> opIt;
 	private List<SeepTask> tasks;
-	private Iterator<SeepTask> taskIterator;
-	private API scApi = new SimpleCollector();
-	
-	// Optimizing for same schema
-	private boolean sameSchema = true;
-	private Schema schema = null;
-	private ITuple data = null;
-	private TransporterITuple d = null;
+	private transient Iterator<SeepTask> taskIterator;
+	// Fused chain: the collector that operator i sends to feeds operator i+1
+	private transient FusedCollector[] chain;
 	
 	private ScheduleTask(int euId, int stageId, List<LogicalOperator> operators) {
 		this.stageId = stageId;
@@ -48,13 +43,6 @@ public class ScheduleTask implements SeepTask {
 			tasks.add(opIt.next().getSeepTask());
 		}
 		this.taskIterator = tasks.iterator();
-		// TODO: initialize sameSchema here by actually checking if the schema is the same
-		if(sameSchema && opIt.hasNext()) {
-			schema = opIt.next().downstreamConnections().get(0).getSchema();
-			data = new ITuple(schema);
-			d = new TransporterITuple(schema);
-			opIt = operators.iterator(); // reset
-		}
 	}
 	
 	public static ScheduleTask buildTaskFor(int id, Stage s, ScheduleDescription sd) {
@@ -80,123 +68,54 @@ public class ScheduleTask implements SeepTask {
 	
 	@Override
 	public void setUp() {
-		if(! taskIterator.hasNext()) {
+		if(taskIterator == null || ! taskIterator.hasNext()) {
 			taskIterator = tasks.iterator();
 		}
-		if(! opIt.hasNext()) {
+		if(opIt == null || ! opIt.hasNext()) {
 			opIt = operators.iterator();
 		}
-	}
-
-//	@Override
-	@Deprecated
-	public void _processData(ITuple data, API api) {
-		API scApi = new SimpleCollector();
-		SeepTask next = taskIterator.next(); // Get first, and possibly only task here
-		// Check whether there are tasks ahead
-		while(taskIterator.hasNext()) {
-			// There is a next OP, we simply need to collect output
-			next.processData(data, scApi);
-			byte[] o = ((SimpleCollector)scApi).collectMem();
-			LogicalOperator nextOp = opIt.next();
-			if(! sameSchema) {
-				Schema schema = nextOp.downstreamConnections().get(0).getSchema(); // 0 cause there's only 1
-				data = new ITuple(schema);
-			}
-			data.setData(o);
-			// Otherwise we simply forward the data
-			next = taskIterator.next();
+		if(chain == null) {
+			chain = buildChain();
 		}
-		// Finally use real API for real forwarding
-		next.processData(data, api);
-		// Then reset iterators for more processing
-		taskIterator = tasks.iterator();
-		opIt = operators.iterator();
 	}
 	
-	@Override
-	public void processData(ITuple data, API api) {
-		for(int i = 0; i < tasks.size() - 1; i++) {
-			SeepTask next = tasks.get(i);
-			next.processData(data, scApi);
-			OTuple o = ((SimpleCollector)scApi).collect();
-			LogicalOperator nextOp = operators.get(i);
-			if(! sameSchema) {
-				Schema schema = nextOp.downstreamConnections().get(0).getSchema(); // 0 cause there's only 1
-				data = new ITuple(schema);
-				d = new TransporterITuple(schema); // FIXME: can we get schema from OTuple
-			}
-			if(d == null) {
-				Schema schema = nextOp.downstreamConnections().get(0).getSchema();
-				d = new TransporterITuple(schema);
+	/**
+	 * Each link unboxes the output of an operator into a row with the schema of its connection to the next 
+	 * operator, so operators that change the schema are fused as well
+	 */
+	private FusedCollector[] buildChain() {
+		FusedCollector[] chain = new FusedCollector[tasks.size() - 1];
+		for(int i = 0; i < chain.length; i++) {
+			Schema schema = schemaBetween(operators.get(i), operators.get(i + 1));
+			chain[i] = new FusedCollector(tasks.get(i + 1), schema);
+			if(i > 0) {
+				chain[i - 1].setDownstream(chain[i]);
 			}
-			Object[] values = o.getValues();
-			d.setValues(values);
 		}
-		
-		SeepTask next = tasks.get(tasks.size() -1);
-		next.processData(data, api);
-		
-//		SeepTask next = taskIterator.next(); // Get first, and possibly only task here
-//		// Check whether there are tasks ahead
-//		while(taskIterator.hasNext()) {
-//			// There is a next OP, we simply need to collect output
-//			next.processData(data, scApi);
-////			byte[] o = ((SimpleCollector)scApi).collect();
-//			OTuple o = ((SimpleCollector)scApi).collect();
-//			LogicalOperator nextOp = opIt.next();
-//			if(! sameSchema) {
-//				Schema schema = nextOp.downstreamConnections().get(0).getSchema(); // 0 cause there's only 1
-//				data = new ITuple(schema);
-//				d = new TransporterITuple(schema); // FIXME: can we get schema from OTuple
-//			}
-//			if(d == null) {
-//				Schema schema = nextOp.downstreamConnections().get(0).getSchema();
-//				d = new TransporterITuple(schema);
-//			}
-//			Object[] values = o.getValues();
-//			d.setValues(values);
-//			// Otherwise we simply forward the data
-//			next = taskIterator.next();
-//		}
-//		
-//		// Finally use real API for real forwarding
-//		next.processData(data, api);
-//		// Then reset iterators for more processing
-//		taskIterator = tasks.iterator();
-//		opIt = operators.iterator();
+		return chain;
 	}
 	
-	
-	public void __processData(ITuple data, API api) {
-		SeepTask next = taskIterator.next(); // Get first, and possibly only task here
-		// Check whether there are tasks ahead
-		while(taskIterator.hasNext()) {
-			// There is a next OP, we simply need to collect output
-			next.processData(data, scApi);
-//			byte[] o = ((SimpleCollector)scApi).collect();
-			OTuple o = ((SimpleCollector)scApi).collect();
-			LogicalOperator nextOp = opIt.next();
-			if(! sameSchema) {
-				Schema schema = nextOp.downstreamConnections().get(0).getSchema(); // 0 cause there's only 1
-				data = new ITuple(schema);
-				d = new TransporterITuple(schema); // FIXME: can we get schema from OTuple
-			}
-			if(d == null) {
-				Schema schema = nextOp.downstreamConnections().get(0).getSchema();
-				d = new TransporterITuple(schema);
+	private Schema schemaBetween(LogicalOperator upstream, LogicalOperator downstream) {
+		for(DownstreamConnection dc : upstream.downstreamConnections()) {
+			if(dc.getDownstreamOperator().getOperatorId() == downstream.getOperatorId()) {
+				return dc.getSchema();
 			}
-			Object[] values = o.getValues();
-			d.setValues(values);
-			// Otherwise we simply forward the data
-			next = taskIterator.next();
 		}
-		
-		// Finally use real API for real forwarding
-		next.processData(data, api);
-		// Then reset iterators for more processing
-		taskIterator = tasks.iterator();
-		opIt = operators.iterator();
+		return upstream.downstreamConnections().get(0).getSchema();
+	}
+
+	@Override
+	public void processData(ITuple data, API api) {
+		if(chain == null) {
+			chain = buildChain();
+		}
+		if(chain.length == 0) {
+			tasks.get(0).processData(data, api);
+			return;
+		}
+		// The last operator sends with the API of the task
+		chain[chain.length - 1].setDownstream(api);
+		tasks.get(0).processData(data, chain[0]);
 	}
 	
 	public boolean hasMoreTasks() {
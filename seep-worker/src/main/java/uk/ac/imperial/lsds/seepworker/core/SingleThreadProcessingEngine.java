@@ -6,14 +6,21 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.imperial.lsds.seep.api.API;
+import uk.ac.imperial.lsds.seep.api.BatchSeepTask;
 import uk.ac.imperial.lsds.seep.api.SeepTask;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
 import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.core.BatchInputAdapter;
 import uk.ac.imperial.lsds.seep.core.InputAdapter;
 import uk.ac.imperial.lsds.seep.core.InputAdapterReturnType;
 import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
@@ -28,6 +35,8 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 
 	final private Logger LOG = LoggerFactory.getLogger(SingleThreadProcessingEngine.class.getName());
 	final private int MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS;
+	final private int BATCH_SIZE;
+	final private long MAX_HELD_BYTES;
 	
 	private boolean working = false;
 	private Thread worker;
@@ -38,6 +47,9 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 	private CoreOutput coreOutput;
 	private SeepTask task;
 	private SeepState state;
+	// Actions to run between two calls to the task, accepted while the worker polls input adapters
+	private final Queue<FutureTask<?>> actions = new ConcurrentLinkedQueue<>();
+	private volatile boolean runningActions = false;
 		
 	// Metrics
 	final private Meter m;
@@ -50,6 +62,8 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 		this.coreOutput = coreOutput;
 		this.callback = callback;
 		this.MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS = wc.getInt(WorkerConfig.MAX_WAIT_TIME_PER_INPUTADAPTER_MS);
+		this.BATCH_SIZE = wc.getInt(WorkerConfig.PROCESSING_BATCH_SIZE);
+		this.MAX_HELD_BYTES = wc.getInt(WorkerConfig.SCALE_OUT_MAX_HELD_BYTES);
 		this.worker = new Thread(new Worker());
 		this.worker.setName(this.getClass().getSimpleName());
 		m = SeepMetrics.REG.meter(name(SingleThreadProcessingEngine.class, "event", "per", "sec"));
@@ -58,6 +72,7 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 	@Override
 	public void start() {
 		working = true;
+		runningActions = ! coreInput.getInputAdapters().isEmpty();
 		this.worker.start();
 	}
 
@@ -68,6 +83,34 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 		this.closeAndCleanEngine();
 	}
 	
+	@Override
+	public Future<?> submit(Runnable action) {
+		if(! runningActions) {
+			throw new RejectedExecutionException("Engine of task "+id+" is not processing input");
+		}
+		FutureTask<?> f = new FutureTask<>(action, null);
+		actions.add(f);
+		// The worker may have stopped running actions after the check
+		if(! runningActions) {
+			cancelActions();
+		}
+		return f;
+	}
+	
+	private void runActions() {
+		FutureTask<?> f = null;
+		while((f = actions.poll()) != null) {
+			f.run();
+		}
+	}
+	
+	private void cancelActions() {
+		FutureTask<?> f = null;
+		while((f = actions.poll()) != null) {
+			f.cancel(false);
+		}
+	}
+	
 	private void closeAndCleanEngine(){
 		try {
 			LOG.debug("Waiting for worker thread to die...");
@@ -95,14 +138,30 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 			short many = InputAdapterReturnType.MANY.ofType();
 			LOG.info("Configuring SINGLETHREAD processing engine with {} outputBuffers", coreOutput.getBuffers().size());
 			
-			API api = new Collector(id, coreOutput);
+			Collector api = new Collector(id, coreOutput);
+			api.handleScaleOutsOn(SingleThreadProcessingEngine.this, MAX_HELD_BYTES);
+			
+			// Batch tasks get a batch per input that can produce them natively, null otherwise
+			ColumnBatch[] batches = createBatches(inputAdapters);
 			
 			int ongoingStreams = inputAdapters.size();
 			
 			while(working) {
 				for(int i = 0; i < inputAdapters.size(); i++) {
+					runActions();
 					InputAdapter ia = inputAdapters.get(i);
-					if(ia.returnType() == one) {
+					if(batches[i] != null) {
+						ColumnBatch b = batches[i];
+						if(((BatchInputAdapter)ia).pullDataBatch(b, MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS)) {
+							((BatchSeepTask)task).processBatch(b, api);
+							m.mark(b.size());
+						}
+						else {
+							// Exhausted IA
+							ongoingStreams--;
+						}
+					}
+					else if(ia.returnType() == one) {
 						ITuple d = ia.pullDataItem(MAX_BLOCKING_TIME_PER_INPUTADAPTER_MS);
 						if(d != null) {							
 							task.processData(d, api);
@@ -144,9 +203,25 @@ public class SingleThreadProcessingEngine implements ProcessingEngine {
 					working = false; // run source only once
 				}
 			}
+			runningActions = false;
+			cancelActions();
 			this.closeEngine();
 		}
 		
+		private ColumnBatch[] createBatches(List<InputAdapter> inputAdapters) {
+			ColumnBatch[] batches = new ColumnBatch[inputAdapters.size()];
+			if(! (task instanceof BatchSeepTask)) {
+				return batches;
+			}
+			for(int i = 0; i < inputAdapters.size(); i++) {
+				InputAdapter ia = inputAdapters.get(i);
+				if(ia instanceof BatchInputAdapter) {
+					batches[i] = ((BatchInputAdapter)ia).newBatch(BATCH_SIZE);
+				}
+			}
+			return batches;
+		}
+		
 		private boolean allStreamsFinished(Map<Integer, Boolean> tracker) {
 			boolean finished = true;
 			for(boolean f : tracker.values()) {
@@ -0,0 +1,117 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Block codecs to compress the frames of a SpillFile. Each frame is compressed independently, so
+ * that spilled datasets can be decompressed one frame at a time while they are read.
+ */
+public enum SpillCodec {
+
+	NONE {
+		@Override
+		public int maxCompressedLength(int length) {
+			return length;
+		}
+
+		@Override
+		public int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff) {
+			System.arraycopy(src, srcOff, dst, dstOff, length);
+			return length;
+		}
+
+		@Override
+		public void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int length) {
+			System.arraycopy(src, srcOff, dst, dstOff, length);
+		}
+	},
+
+	LZ4 {
+		private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+		private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+		@Override
+		public int maxCompressedLength(int length) {
+			return compressor.maxCompressedLength(length);
+		}
+
+		@Override
+		public int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff) {
+			return compressor.compress(src, srcOff, length, dst, dstOff, dst.length - dstOff);
+		}
+
+		@Override
+		public void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int length) {
+			decompressor.decompress(src, srcOff, dst, dstOff, length);
+		}
+	},
+
+	DEFLATE {
+		@Override
+		public int maxCompressedLength(int length) {
+			// Same bound as zlib's deflateBound, plus the zlib wrapper
+			return length + ((length + 7) >> 3) + ((length + 63) >> 6) + 11;
+		}
+
+		@Override
+		public int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(src, srcOff, length);
+				deflater.finish();
+				int written = 0;
+				while(! deflater.finished()) {
+					written = written + deflater.deflate(dst, dstOff + written, dst.length - dstOff - written);
+				}
+				return written;
+			}
+			finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		public void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int length) {
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(src, srcOff, srcLength);
+				int read = 0;
+				while(read < length) {
+					int n = inflater.inflate(dst, dstOff + read, length - read);
+					if(n == 0 && (inflater.finished() || inflater.needsInput())) {
+						throw new IllegalStateException("Truncated deflate frame, expected: " + length + " got: " + read);
+					}
+					read = read + n;
+				}
+			}
+			catch (DataFormatException e) {
+				throw new IllegalStateException(e);
+			}
+			finally {
+				inflater.end();
+			}
+		}
+	};
+
+	public abstract int maxCompressedLength(int length);
+
+	/**
+	 * @return the compressed length, written to dst from dstOff
+	 */
+	public abstract int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff);
+
+	/**
+	 * Decompresses srcLength bytes from src into exactly length bytes of dst
+	 */
+	public abstract void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int length);
+
+	public static SpillCodec fromName(String name) {
+		return SpillCodec.valueOf(name.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,240 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file where a Dataset spills its buffers. Each buffer is stored as a frame: a header with
+ * the stored size, the raw size and the checksum of the stored bytes, followed by the stored bytes.
+ * Frames are appended through a FileChannel and read back through a memory mapped window of the file.
+ * Frames are compressed with the configured SpillCodec, unless that does not make them smaller, in which
+ * case they are stored raw and readers get buffers that point straight into the mapped pages.
+ * No thread safe, same as Dataset.
+ */
+public class SpillFile {
+
+	// stored size, raw size, checksum
+	public static final int FRAME_HEADER_SIZE = 3 * Integer.BYTES;
+	// Default size of the region of the file that is mapped at once
+	private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final String fileName;
+	private final FileChannel channel;
+	private final ByteBuffer header;
+	private final int windowSize;
+	private final SpillCodec codec;
+	private final CRC32 checksum;
+	private long writePosition;
+	private long nextFramePosition;
+	
+	// Scratch space to compress and decompress frames, reused across frames
+	private byte[] compressIn = new byte[0];
+	private byte[] compressOut = new byte[0];
+	private byte[] decompressIn = new byte[0];
+	private byte[] decompressOut = new byte[0];
+
+	// Currently mapped region of the file, [windowStart, windowStart + window.capacity())
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	private SpillFile(String fileName, int windowSize, SpillCodec codec) throws IOException {
+		this.fileName = fileName;
+		this.channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		this.windowSize = windowSize;
+		this.codec = codec;
+		this.checksum = new CRC32();
+		this.writePosition = channel.size();
+	}
+
+	public static SpillFile open(String fileName) throws IOException {
+		return new SpillFile(fileName, DEFAULT_WINDOW_SIZE, SpillCodec.NONE);
+	}
+
+	public static SpillFile open(String fileName, SpillCodec codec) throws IOException {
+		return new SpillFile(fileName, DEFAULT_WINDOW_SIZE, codec);
+	}
+
+	public static SpillFile open(String fileName, int windowSize, SpillCodec codec) throws IOException {
+		return new SpillFile(fileName, windowSize, codec);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Appends the remaining bytes of payload as a new frame. The data is handed to the OS page cache,
+	 * it is not forced to the device: spill files do not need to survive a crash of the worker.
+	 * @param payload
+	 * @return the number of payload bytes written
+	 * @throws IOException
+	 */
+	public int append(ByteBuffer payload) throws IOException {
+		int size = payload.remaining();
+		ByteBuffer stored = compress(payload);
+		
+		checksum.reset();
+		checksum.update(stored.duplicate());
+		header.clear();
+		header.putInt(stored.remaining());
+		header.putInt(size);
+		header.putInt((int)checksum.getValue());
+		header.flip();
+		while(header.hasRemaining()) {
+			writePosition = writePosition + channel.write(header, writePosition);
+		}
+		while(stored.hasRemaining()) {
+			writePosition = writePosition + channel.write(stored, writePosition);
+		}
+		payload.position(payload.limit());
+		return size;
+	}
+
+	/**
+	 * Returns the payload of the frame that starts at the given position of the file, or null if there
+	 * are no more frames. The returned buffer has position 0 and limit the size of the payload. Raw frames 
+	 * are read only views of the mapped file. Compressed frames are decompressed into a buffer that is 
+	 * reused by the next call, so they must be consumed before reading the next frame.
+	 * @param position
+	 * @return
+	 * @throws IOException if the checksum of the frame does not match
+	 */
+	public ByteBuffer readFrame(long position) throws IOException {
+		if(position + FRAME_HEADER_SIZE > writePosition) {
+			return null;
+		}
+		ensureMapped(position, FRAME_HEADER_SIZE);
+		int headerStart = (int)(position - windowStart);
+		int storedSize = window.getInt(headerStart);
+		int size = window.getInt(headerStart + Integer.BYTES);
+		int expectedChecksum = window.getInt(headerStart + 2 * Integer.BYTES);
+		ensureMapped(position, FRAME_HEADER_SIZE + storedSize);
+
+		ByteBuffer frame = window.duplicate();
+		int start = (int)(position - windowStart) + FRAME_HEADER_SIZE;
+		frame.limit(start + storedSize);
+		frame.position(start);
+		frame = frame.slice();
+		
+		checksum.reset();
+		checksum.update(frame.duplicate());
+		if((int)checksum.getValue() != expectedChecksum) {
+			throw new IOException("Corrupted frame at position: " + position + " of spill file: " + fileName);
+		}
+		nextFramePosition = position + FRAME_HEADER_SIZE + storedSize;
+		
+		if(storedSize == size) {
+			return frame;
+		}
+		return decompress(frame, size);
+	}
+	
+	/**
+	 * @return true if the frame returned by readFrame is decompressed into a buffer that the next call reuses,
+	 * false if it is a view of the mapped file
+	 */
+	public boolean isReusedBuffer(ByteBuffer frame) {
+		return frame.hasArray() && frame.array() == decompressOut;
+	}
+	
+	/**
+	 * @return the position of the frame that follows the last one read
+	 */
+	public long nextFramePosition() {
+		return nextFramePosition;
+	}
+	
+	public SpillCodec getCodec() {
+		return codec;
+	}
+
+	public long size() {
+		return writePosition;
+	}
+
+	public void close() {
+		window = null;
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public boolean delete() {
+		close();
+		return new File(fileName).delete();
+	}
+
+	/**
+	 * Compresses the remaining bytes of payload, without consuming them. Returns payload itself when
+	 * compression does not make it smaller.
+	 */
+	private ByteBuffer compress(ByteBuffer payload) {
+		int size = payload.remaining();
+		if(codec == SpillCodec.NONE || size == 0) {
+			return payload;
+		}
+		byte[] src = null;
+		int srcOff = 0;
+		if(payload.hasArray()) {
+			src = payload.array();
+			srcOff = payload.arrayOffset() + payload.position();
+		}
+		else {
+			// Direct (off-heap) buffers are copied out first, codecs work on arrays
+			if(compressIn.length < size) {
+				compressIn = new byte[size];
+			}
+			payload.duplicate().get(compressIn, 0, size);
+			src = compressIn;
+		}
+		int maxLength = codec.maxCompressedLength(size);
+		if(compressOut.length < maxLength) {
+			compressOut = new byte[maxLength];
+		}
+		int compressedSize = codec.compress(src, srcOff, size, compressOut, 0);
+		if(compressedSize >= size) {
+			return payload;
+		}
+		return ByteBuffer.wrap(compressOut, 0, compressedSize);
+	}
+	
+	private ByteBuffer decompress(ByteBuffer frame, int size) {
+		int storedSize = frame.remaining();
+		if(decompressIn.length < storedSize) {
+			decompressIn = new byte[storedSize];
+		}
+		if(decompressOut.length < size) {
+			decompressOut = new byte[size];
+		}
+		frame.get(decompressIn, 0, storedSize);
+		codec.decompress(decompressIn, 0, storedSize, decompressOut, 0, size);
+		return ByteBuffer.wrap(decompressOut, 0, size);
+	}
+
+	/**
+	 * Maps a new window when [position, position + length) is not within the current one. Old windows
+	 * are unmapped when they are garbage collected.
+	 */
+	private void ensureMapped(long position, int length) throws IOException {
+		if(window != null && position >= windowStart
+				&& position + length <= windowStart + window.capacity()) {
+			return;
+		}
+		long mapSize = Math.min(Math.max(windowSize, length), writePosition - position);
+		window = channel.map(MapMode.READ_ONLY, position, mapSize);
+		windowStart = position;
+	}
+
+}
@@ -0,0 +1,248 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+
+import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
+
+/**
+ * Reads ahead the frames of a SpillFile on a background I/O thread, so that the consumer of a spilled
+ * Dataset does not block on disk every time it crosses a buffer boundary. Raw frames are handed to the
+ * consumer as views of the mapped file, as SpillFile reads them: the I/O thread only touches their pages, so
+ * that they are in memory by the time the consumer reads them in place. Compressed frames are decompressed
+ * into buffers borrowed from the BufferPool: while the consumer reads one, the I/O thread fills the next ones.
+ * The read-ahead depth adapts to the consumer. It grows every time the consumer has to wait for a
+ * buffer, and shrinks when full buffers are waiting for the consumer.
+ * Supports a single consumer thread. The SpillFile must not be used by anyone else until close returns.
+ */
+public class SpillReadAhead {
+
+	final private static Logger LOG = LoggerFactory.getLogger(SpillReadAhead.class.getName());
+
+	private static final int MIN_DEPTH = 2;
+	// Touching a byte per page of a raw frame faults all of its pages in
+	private static final int PAGE_SIZE = 4096;
+	// Markers for the consumer, compared by identity
+	private static final Chunk END_OF_FILE = new Chunk(null, false, -1);
+	private static final Chunk STOPPED = new Chunk(null, false, -1);
+
+	private final SpillFile spillFile;
+	private final BufferPool bufferPool;
+	private final Executor ioExecutor;
+	private final int maxDepth;
+
+	private final LinkedBlockingQueue<Chunk> ready;
+	private final AtomicBoolean scheduled;
+	private final Object ioLock;
+	private volatile int depth;
+	private volatile boolean closed;
+	private volatile boolean finished;
+
+	// Owned by the I/O thread, guarded by ioLock. touched keeps the reads of touchPages from being optimized away
+	private long readPosition;
+	private int touched;
+	// Owned by the consumer
+	private long consumedPosition;
+	private Chunk current;
+
+	private final Counter consumerWaits;
+
+	private final Runnable fill = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(ioLock) {
+				try {
+					fillUpToDepth();
+				}
+				finally {
+					scheduled.set(false);
+				}
+			}
+			// The consumer may have taken a buffer after the last check
+			if(! closed && ! finished && ready.size() < depth) {
+				schedule();
+			}
+		}
+	};
+
+	public SpillReadAhead(SpillFile spillFile, long startPosition, BufferPool bufferPool, Executor ioExecutor, int maxDepth) {
+		this.spillFile = spillFile;
+		this.readPosition = startPosition;
+		this.consumedPosition = startPosition;
+		this.bufferPool = bufferPool;
+		this.ioExecutor = ioExecutor;
+		this.maxDepth = Math.max(MIN_DEPTH, maxDepth);
+		this.ready = new LinkedBlockingQueue<>();
+		this.scheduled = new AtomicBoolean(false);
+		this.ioLock = new Object();
+		this.depth = MIN_DEPTH;
+		this.consumerWaits = SeepMetrics.REG.counter(name(SpillReadAhead.class, "consumer", "waits"));
+	}
+
+	public void start() {
+		schedule();
+	}
+
+	/**
+	 * Returns the next frame, blocking if it has not been read yet. If the previous call returned a
+	 * decompressed frame, its buffer goes back to the BufferPool, so it must not be used anymore.
+	 * @return the next frame, or null when there are no more frames or the read-ahead had to stop, in
+	 * which case the consumer should close this and carry on reading from position()
+	 */
+	public ByteBuffer next() {
+		releaseCurrent();
+		if(finished && ready.isEmpty()) {
+			return null;
+		}
+		int queued = ready.size();
+		Chunk c = ready.poll();
+		if(c == null) {
+			// The consumer is faster than the disk, read further ahead
+			consumerWaits.inc();
+			depth = Math.min(maxDepth, depth + 1);
+			try {
+				c = ready.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		else if(queued >= depth && depth > MIN_DEPTH) {
+			// Buffers are waiting for the consumer, no need to hold so many
+			depth = depth - 1;
+		}
+		if(c == END_OF_FILE || c == STOPPED) {
+			return null;
+		}
+		current = c;
+		consumedPosition = c.nextPosition;
+		schedule();
+		return c.buffer;
+	}
+
+	/**
+	 * @return the position of the first frame that has not been handed to the consumer
+	 */
+	public long position() {
+		return consumedPosition;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Stops reading ahead, waiting for any read in progress to finish, and returns all buffers to the
+	 * BufferPool. Frames read ahead but not consumed are read again from position().
+	 */
+	public void close() {
+		closed = true;
+		synchronized(ioLock) {
+			Chunk c = null;
+			while((c = ready.poll()) != null) {
+				release(c);
+			}
+			releaseCurrent();
+		}
+	}
+
+	private void releaseCurrent() {
+		if(current != null) {
+			release(current);
+			current = null;
+		}
+	}
+	
+	private void release(Chunk c) {
+		if(c.pooled) {
+			bufferPool.returnBuffer(c.buffer);
+		}
+	}
+
+	private void schedule() {
+		if(! closed && ! finished && scheduled.compareAndSet(false, true)) {
+			ioExecutor.execute(fill);
+		}
+	}
+
+	private void fillUpToDepth() {
+		while(! closed && ready.size() < depth) {
+			ByteBuffer frame = null;
+			try {
+				frame = spillFile.readFrame(readPosition);
+			}
+			catch (IOException e) {
+				LOG.error("While reading ahead from: {}", spillFile.getFileName());
+				e.printStackTrace();
+				stop(STOPPED);
+				return;
+			}
+			if(frame == null) {
+				stop(END_OF_FILE);
+				return;
+			}
+			readPosition = spillFile.nextFramePosition();
+			if(! frame.hasRemaining()) {
+				continue;
+			}
+			if(! spillFile.isReusedBuffer(frame)) {
+				// A view of the mapped file, it stays valid after reading the next frames
+				touchPages(frame);
+				ready.add(new Chunk(frame, false, readPosition));
+				continue;
+			}
+			// Decompressed into a buffer of the SpillFile that the next frame reuses
+			ByteBuffer bb = bufferPool.borrowBuffer();
+			if(bb == null || bb.capacity() < frame.remaining()) {
+				if(bb != null) {
+					bufferPool.returnBuffer(bb);
+				}
+				// Out of memory, the consumer reads the rest synchronously
+				stop(STOPPED);
+				return;
+			}
+			bb.put(frame);
+			bb.flip();
+			ready.add(new Chunk(bb, true, readPosition));
+		}
+	}
+	
+	private void touchPages(ByteBuffer frame) {
+		int limit = frame.limit();
+		int sum = frame.get(limit - 1);
+		for(int i = frame.position(); i < limit; i = i + PAGE_SIZE) {
+			sum = sum + frame.get(i);
+		}
+		touched = sum;
+	}
+
+	private void stop(Chunk marker) {
+		finished = true;
+		ready.add(marker);
+	}
+	
+	private static class Chunk {
+		final ByteBuffer buffer;
+		// Whether buffer was borrowed from the BufferPool
+		final boolean pooled;
+		// Position of the frame that follows this one
+		final long nextPosition;
+		
+		Chunk(ByteBuffer buffer, boolean pooled, long nextPosition) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+			this.nextPosition = nextPosition;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.api.state.stateimpl.SeepMap;
+import uk.ac.imperial.lsds.seep.comm.serialization.KryoFactory;
+import uk.ac.imperial.lsds.seep.errors.IllegalOperationOnStateException;
+import uk.ac.imperial.lsds.seep.errors.SeepException;
+import uk.ac.imperial.lsds.seepworker.core.input.BatchIBuffer;
+import uk.ac.imperial.lsds.seepworker.core.output.routing.ConsistentHashingRoutingState;
+
+/**
+ * Scales out a stateful operator at runtime. Its subspace of keys is split in two halves, and a new operator takes
+ * the lower one along with its state:
+ * 1. the upstream routers hold the keys that move, and the upstream Collectors buffer their tuples, and send a marker
+ * to the operator after the tuples they sent it before
+ * 2. once the operator has read the marker of each upstream, its engine partitions the state with the split space
+ * between two tuples, and the operator keeps the partition of the keys it still owns
+ * 3. the partition of the keys that move is streamed to the new operator, which merges it before it processes data
+ * 4. the upstream routers route the keys that moved to the new operator, and the buffered tuples are sent to it
+ * The operator only stops while its state is partitioned, and the keys it keeps are never held. It reads the markers
+ * on the thread of its engine, so the tuples before them are processed before the state is partitioned. If the
+ * markers are not read, or the engine does not partition the state in time, the keys stay with the operator.
+ */
+public class StatefulScaleOut<K, V> {
+
+	final private static Logger LOG = LoggerFactory.getLogger(StatefulScaleOut.class);
+	
+	private static final long MARKERS_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+	private static final long ENGINE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+	private final List<ConsistentHashingRoutingState> upstreams;
+	private final int opId;
+	private final List<BatchIBuffer> fromUpstreams;
+	private final ProcessingEngine engine;
+	private final SeepMap<K, V> state;
+
+	/**
+	 * @param upstreams the routers of the upstreams of the operator
+	 * @param opId the id of the operator in the routers
+	 * @param fromUpstreams the inputs of the operator from the upstreams, where their markers arrive
+	 * @param engine the engine that runs the operator
+	 * @param state the state of the operator
+	 */
+	public StatefulScaleOut(List<ConsistentHashingRoutingState> upstreams, int opId, List<BatchIBuffer> fromUpstreams,
+			ProcessingEngine engine, SeepMap<K, V> state) {
+		this.upstreams = upstreams;
+		this.opId = opId;
+		this.fromUpstreams = fromUpstreams;
+		this.engine = engine;
+		this.state = state;
+	}
+
+	/**
+	 * Moves half of the keys of the operator to newOpId. The upstreams must have a buffer for newOpId already. If the
+	 * state cannot be moved, the keys stay with the operator
+	 * @param toNewOperator where the state of the keys that move is streamed to, read by receive
+	 * @return the number of entries of the state that moved
+	 */
+	public int scaleOut(int newOpId, OutputStream toNewOperator) {
+		long start = System.currentTimeMillis();
+		// Counted before the markers of this scale out can arrive
+		long[] markersRead = new long[fromUpstreams.size()];
+		for(int i = 0; i < markersRead.length; i++) {
+			markersRead[i] = fromUpstreams.get(i).markersRead();
+		}
+		final KeyHashSpace nextSpace = hold();
+		final int kept = upstreams.get(0).getOpIds().indexOf(opId);
+		final List<SeepState> moved = new ArrayList<>(1);
+		try {
+			awaitMarkers(markersRead);
+		}
+		catch(SeepException e) {
+			release();
+			throw e;
+		}
+		long marked = System.currentTimeMillis();
+		try {
+			runOnEngine(new Runnable() {
+				@Override
+				public void run() {
+					if(! state.migrate()) {
+						throw new IllegalOperationOnStateException("Attempt to scale out state while in snapshot mode");
+					}
+					List<SeepState> partitions = state.partition(nextSpace);
+					state.clear();
+					state.merge(Collections.singletonList(partitions.get(kept)));
+					moved.add(partitions.get(kept + 1));
+				}
+			});
+		}
+		catch(InterruptedException | ExecutionException | TimeoutException | RejectedExecutionException
+				| CancellationException e) {
+			release();
+			throw new SeepException("Could not partition state of operator "+opId, e);
+		}
+		long split = System.currentTimeMillis();
+		@SuppressWarnings("unchecked")
+		final SeepMap<K, V> partition = (SeepMap<K, V>) moved.get(0);
+		int entries = 0;
+		try {
+			entries = stream(partition, toNewOperator);
+		}
+		catch(RuntimeException e) {
+			LOG.error("Could not stream state to operator {}, keeping it in operator {}", newOpId, opId);
+			// The keys that were held are still routed to this operator, so their state must be back before that
+			try {
+				runOnEngine(new Runnable() {
+					@Override
+					public void run() {
+						state.merge(Collections.<SeepState>singletonList(partition));
+					}
+				});
+			}
+			catch(InterruptedException | ExecutionException | TimeoutException | RejectedExecutionException
+					| CancellationException mergeError) {
+				LOG.error("Could not merge state back into operator {}", opId, mergeError);
+			}
+			release();
+			throw new SeepException("Could not stream state to operator "+newOpId, e);
+		}
+		for(ConsistentHashingRoutingState upstream : upstreams) {
+			upstream.scaleOut(newOpId);
+		}
+		long stop = System.currentTimeMillis();
+		LOG.info("Scaled out operator {} to {}, moved {} entries. Markers read in {} ms, partitioned in {} ms, held keys for {} ms",
+				opId, newOpId, entries, marked - start, split - marked, stop - start);
+		return entries;
+	}
+	
+	/**
+	 * Holds the keys that move in every upstream, or in none if one cannot hold them
+	 * @return the space after the scale out
+	 */
+	private KeyHashSpace hold() {
+		KeyHashSpace nextSpace = null;
+		List<ConsistentHashingRoutingState> holding = new ArrayList<>(upstreams.size());
+		try {
+			for(ConsistentHashingRoutingState upstream : upstreams) {
+				nextSpace = upstream.hold(opId);
+				holding.add(upstream);
+			}
+		}
+		catch(RuntimeException e) {
+			for(ConsistentHashingRoutingState upstream : holding) {
+				upstream.release();
+			}
+			throw e;
+		}
+		return nextSpace;
+	}
+	
+	private void release() {
+		for(ConsistentHashingRoutingState upstream : upstreams) {
+			upstream.release();
+		}
+	}
+	
+	/**
+	 * Runs the action on the engine of the operator, waiting up to ENGINE_TIMEOUT_MS for the engine to start it.
+	 * Once it timed out, or the wait was interrupted before the engine started it, the action never runs
+	 */
+	private void runOnEngine(Runnable action) throws InterruptedException, ExecutionException, TimeoutException {
+		Future<?> f = engine.submit(action);
+		try {
+			f.get(ENGINE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e) {
+			if(f.cancel(false)) {
+				throw e;
+			}
+			// The engine started it just now, so it finishes it
+			f.get();
+		}
+		catch(InterruptedException e) {
+			f.cancel(false);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Waits for the operator to read one more marker than it had from each upstream
+	 */
+	private void awaitMarkers(long[] markersRead) {
+		long deadline = System.currentTimeMillis() + MARKERS_TIMEOUT_MS;
+		try {
+			for(int i = 0; i < markersRead.length; i++) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(! fromUpstreams.get(i).awaitMarkersRead(markersRead[i], remaining)) {
+					throw new SeepException("Operator "+opId+" did not read the markers of its upstreams in "
+							+MARKERS_TIMEOUT_MS+" ms");
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			throw new SeepException("Interrupted while waiting for the markers of the upstreams of operator "+opId, e);
+		}
+	}
+
+	/**
+	 * Writes the entries of the state, as they are read from makeStream
+	 * @return the number of entries written
+	 */
+	public static <K, V> int stream(SeepMap<K, V> state, OutputStream out) {
+		Kryo k = KryoFactory.buildKryoForDeepCopy(SeepMap.class.getClassLoader());
+		Output o = new Output(out);
+		Iterator<Map.Entry<K, V>> it = state.makeStream();
+		int entries = 0;
+		while(it.hasNext()) {
+			Map.Entry<K, V> e = it.next();
+			o.writeBoolean(true);
+			k.writeClassAndObject(o, e.getKey());
+			k.writeClassAndObject(o, e.getValue());
+			entries++;
+		}
+		o.writeBoolean(false);
+		o.flush();
+		return entries;
+	}
+
+	/**
+	 * Reads the entries written by stream and merges them into the state, e.g. the one of the new operator before
+	 * it starts processing data
+	 * @return the number of entries read
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> int receive(InputStream in, SeepMap<K, V> state) {
+		Kryo k = KryoFactory.buildKryoForDeepCopy(SeepMap.class.getClassLoader());
+		Input i = new Input(in);
+		SeepMap<K, V> partition = new SeepMap<>();
+		while(i.readBoolean()) {
+			K key = (K)k.readClassAndObject(i);
+			partition.put(key, (V)k.readClassAndObject(i));
+		}
+		state.merge(Collections.<SeepState>singletonList(partition));
+		return partition.size();
+	}
+
+}
@@ -0,0 +1,219 @@
+package uk.ac.imperial.lsds.seepworker.core.input;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.ScanEvaluator;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
+import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+
+/**
+ * IBuffer whose tuples are read in place from the batches it receives, each a sequence of [size][tuple] after a
+ * header. Subclasses provide the batches, and take them back once consumed. Only accessed by the consumer, but for
+ * the number of markers it has read.
+ */
+public abstract class BatchIBuffer implements IBuffer {
+
+	// Bytes before the first tuple of a batch
+	private final int batchHeaderSize;
+
+	// Batch being consumed and position of its next tuple
+	private ByteBuffer current;
+	private int cursor;
+	
+	// Projected copy of the last tuple read through a scan that projects
+	private ByteBuffer scanBuffer;
+	
+	// Markers read by the consumer
+	private long markers;
+	private final Object markerLock = new Object();
+
+	protected BatchIBuffer(int batchHeaderSize) {
+		this.batchHeaderSize = batchHeaderSize;
+	}
+
+	/**
+	 * @return the next batch, waiting up to timeout for it, or null if none arrived
+	 */
+	protected abstract ByteBuffer nextBatch(int timeout);
+
+	/**
+	 * Takes back a batch whose tuples have all been read
+	 */
+	protected abstract void consumed(ByteBuffer batch);
+	
+	/**
+	 * @return true if the batch is a marker, which holds no tuples
+	 */
+	protected abstract boolean isMarker(ByteBuffer batch);
+
+	/**
+	 * Moves to the next batch if the current one has been consumed, waiting up to timeout for it
+	 * @return false if there is no tuple to consume
+	 */
+	private boolean hasNextTuple(int timeout) {
+		while(current == null || cursor >= current.limit()) {
+			ByteBuffer next = nextBatch(timeout);
+			if(next == null) {
+				return false;
+			}
+			if(current != null) {
+				consumed(current);
+			}
+			current = next;
+			cursor = batchHeaderSize;
+			if(isMarker(next)) {
+				markerRead();
+			}
+		}
+		return true;
+	}
+	
+	private void markerRead() {
+		synchronized(markerLock) {
+			markers++;
+			markerLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Tuples are read in order, so once the consumer reads past the markers counted now, it has read all the tuples
+	 * written before them
+	 * @return the number of markers the consumer has read
+	 */
+	public long markersRead() {
+		synchronized(markerLock) {
+			return markers;
+		}
+	}
+	
+	/**
+	 * Waits up to timeout ms for the consumer to read more than the given number of markers
+	 * @return false if it did not within timeout
+	 */
+	public boolean awaitMarkersRead(long markersRead, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(markerLock) {
+			while(markers <= markersRead) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					return false;
+				}
+				markerLock.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public byte[] read(int timeout) {
+		if(! hasNextTuple(timeout)) {
+			return null;
+		}
+		int size = current.getInt(cursor);
+		byte[] data = new byte[size];
+		current.position(cursor + TupleInfo.TUPLE_SIZE_OVERHEAD);
+		current.get(data);
+		cursor = cursor + TupleInfo.TUPLE_SIZE_OVERHEAD + size;
+		return data;
+	}
+
+	/**
+	 * Points the given tuple to the next tuple, in the batch it arrived in, without copying it.
+	 * The tuple remains valid until the next call to read from this buffer.
+	 * @return the tuple, or null if no tuple arrived within timeout
+	 */
+	public ITuple read(ZCITuple t, int timeout) {
+		if(! hasNextTuple(timeout)) {
+			return null;
+		}
+		int size = current.getInt(cursor);
+		t.assignBuffer(current);
+		t.setBufferPtr(cursor + TupleInfo.TUPLE_SIZE_OVERHEAD);
+		cursor = cursor + TupleInfo.TUPLE_SIZE_OVERHEAD + size;
+		return t;
+	}
+
+	/**
+	 * Fills the batch with the tuples available, waiting up to timeout only for the first one
+	 * @return false if no tuple arrived within timeout
+	 */
+	public boolean read(ColumnBatch batch, int timeout) {
+		batch.clear();
+		if(! hasNextTuple(timeout)) {
+			return false;
+		}
+		do {
+			int size = current.getInt(cursor);
+			batch.appendRow(current, cursor + TupleInfo.TUPLE_SIZE_OVERHEAD);
+			cursor = cursor + TupleInfo.TUPLE_SIZE_OVERHEAD + size;
+		}
+		while(! batch.isFull() && hasNextTuple(0));
+		return true;
+	}
+
+	/**
+	 * Same as read(ZCITuple, int), skipping the tuples that do not pass the filter of the scan. If the scan projects,
+	 * the tuple points to a copy of the projected fields instead, so it must have the projected schema
+	 * @return the tuple, or null if no qualifying tuple arrived within timeout
+	 */
+	public ITuple read(ZCITuple t, ScanEvaluator scan, int timeout) {
+		while(hasNextTuple(timeout)) {
+			int size = current.getInt(cursor);
+			int base = cursor + TupleInfo.TUPLE_SIZE_OVERHEAD;
+			cursor = base + size;
+			if(! scan.accept(current, base)) {
+				continue;
+			}
+			if(scan.projects()) {
+				scan.project(current, base, scanBuffer(size));
+				t.assignBuffer(scanBuffer);
+				t.setBufferPtr(0);
+			}
+			else {
+				t.assignBuffer(current);
+				t.setBufferPtr(base);
+			}
+			return t;
+		}
+		return null;
+	}
+
+	/**
+	 * Same as read(ColumnBatch, int), with the tuples that pass the filter of the scan, projected
+	 * @return false if no qualifying tuple arrived within timeout
+	 */
+	public boolean read(ColumnBatch batch, ScanEvaluator scan, int timeout) {
+		batch.clear();
+		while(! batch.isFull() && hasNextTuple(batch.size() == 0 ? timeout : 0)) {
+			int size = current.getInt(cursor);
+			int base = cursor + TupleInfo.TUPLE_SIZE_OVERHEAD;
+			cursor = base + size;
+			if(! scan.accept(current, base)) {
+				continue;
+			}
+			if(scan.projects()) {
+				scan.project(current, base, scanBuffer(size));
+				batch.appendRow(scanBuffer, 0);
+			}
+			else {
+				batch.appendRow(current, base);
+			}
+		}
+		return batch.size() > 0;
+	}
+
+	/**
+	 * @return the buffer to project tuples of at most the given size to, cleared
+	 */
+	private ByteBuffer scanBuffer(int size) {
+		if(scanBuffer == null || scanBuffer.capacity() < size) {
+			scanBuffer = ByteBuffer.allocate(Math.max(size, 256));
+		}
+		scanBuffer.clear();
+		return scanBuffer;
+	}
+
+}
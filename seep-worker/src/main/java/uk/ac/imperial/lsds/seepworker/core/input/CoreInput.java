@@ -95,11 +95,17 @@ public class CoreInput {
 		for(Entry<Integer, IBuffer> entry : iBuffers.entrySet()) {
 			int streamId = entry.getKey();
 			IBuffer ib = entry.getValue();
-			if(ib instanceof InputBuffer) {
+			// IPC buffers are fed from rings found in the filesystem, not from connections
+			if(ib instanceof InputBuffer && ! isOfType(ib, DataStoreType.IPC)) {
 				toReturn.put(streamId, ib);
 			}
 		}
 		return toReturn;
 	}
 	
+	private boolean isOfType(IBuffer ib, DataStoreType type) {
+		DataReference dr = ib.getDataReference();
+		return dr != null && dr.getDataStore().type().equals(type);
+	}
+	
 }
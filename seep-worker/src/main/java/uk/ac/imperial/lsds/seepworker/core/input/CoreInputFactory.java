@@ -39,8 +39,12 @@ public class CoreInputFactory {
 			List<IBuffer> buffers = new ArrayList<>();
 			for(DataReference dr : drefs) {
 				IBuffer ib = null;
+				// If DR is streamed from this worker, batches are handed over in memory
+				if(drm.isStreamedFromThisWorker(dr)) {
+					ib = drm.connectToLocalStream(dr);
+				}
 				// If DR is managed internally and locally
-				if(drm.doesManageDataReference(dr.getId()) != null) {
+				else if(drm.doesManageDataReference(dr.getId()) != null) {
 					ib = drm.getInputBufferFor(dr);
 				}
 				else if(dr.getDataStore().type().equals(DataStoreType.EMPTY)) {
@@ -2,29 +2,45 @@ package uk.ac.imperial.lsds.seepworker.core.input;
 
 import java.util.List;
 
+import uk.ac.imperial.lsds.seep.api.DataReference;
 import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.ScanEvaluator;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
-import uk.ac.imperial.lsds.seep.core.InputAdapter;
+import uk.ac.imperial.lsds.seep.core.BatchInputAdapter;
 import uk.ac.imperial.lsds.seep.core.InputAdapterReturnType;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
 import uk.ac.imperial.lsds.seepworker.core.Dataset;
 
-public class DatasetInputAdapter implements InputAdapter {
+public class DatasetInputAdapter implements BatchInputAdapter {
 
 	final private short RETURN_TYPE = InputAdapterReturnType.ONE.ofType();
 	
 	private int streamId;
 	private Dataset dataset;
 	private ZCITuple iTuple;
+	// Filter and projection pushed down to the dataset, null if none
+	private ScanEvaluator scan;
 	
 	public DatasetInputAdapter(WorkerConfig wc, int streamId, Dataset dataset) {
+		this(wc, streamId, dataset, null);
+	}
+	
+	public DatasetInputAdapter(WorkerConfig wc, int streamId, Dataset dataset, ScanSpec spec) {
 		this.streamId = streamId;
 		this.dataset = dataset;
-		Schema expectedSchema = this.dataset.getSchemaForDataset();
 		//this.iTuple = new ITuple(expectedSchema);
-		this.iTuple = new ZCITuple(expectedSchema);
+		if(spec != null) {
+			this.scan = spec.bind(dataset.getSchemaForDataset());
+			this.iTuple = this.dataset.newZeroCopyTuple(scan);
+		}
+		else {
+			// The tuple depends on the layout of the dataset, row or columnar
+			this.iTuple = this.dataset.newZeroCopyTuple();
+		}
 	}
 	
 	@Override
@@ -37,6 +53,10 @@ public class DatasetInputAdapter implements InputAdapter {
 		return RETURN_TYPE;
 	}
 
+	public DataReference getDataReference() {
+		return dataset.getDataReference();
+	}
+
 	@Override
 	public DataStoreType getDataStoreType() {
 		// In this case it's dynamic.
@@ -45,6 +65,9 @@ public class DatasetInputAdapter implements InputAdapter {
 	
 	@Override
 	public ITuple pullDataItem(int timeout) {
+		if(scan != null) {
+			return dataset.consumeData_zerocopy(iTuple, scan);
+		}
 		ITuple i = dataset.consumeData_zerocopy(iTuple);
 		return i;
 //		byte[] data = dataset.consumeData();
@@ -62,6 +85,24 @@ public class DatasetInputAdapter implements InputAdapter {
 		return iTuple;
 	}
 
+	@Override
+	public ColumnBatch newBatch(int capacity) {
+		Schema schema = scan != null ? scan.getProjectedSchema() : dataset.getSchemaForDataset();
+		if(! ColumnBatch.supports(schema)) {
+			return null;
+		}
+		return new ColumnBatch(schema, capacity);
+	}
+	
+	@Override
+	public boolean pullDataBatch(ColumnBatch batch, int timeout) {
+		batch.setStreamId(streamId);
+		if(scan != null) {
+			return dataset.consumeBatch(batch, scan);
+		}
+		return dataset.consumeBatch(batch);
+	}
+
 	@Override
 	public List<ITuple> pullDataItems(int timeout) {
 		// TODO: will use Dataset.read(int number elements);
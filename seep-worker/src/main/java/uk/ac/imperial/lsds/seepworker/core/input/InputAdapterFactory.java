@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 import uk.ac.imperial.lsds.seep.api.ConnectionType;
 import uk.ac.imperial.lsds.seep.api.DataReference;
 import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.comm.IOComm;
 import uk.ac.imperial.lsds.seep.core.IBuffer;
@@ -37,11 +38,13 @@ public class InputAdapterFactory {
 		List<InputAdapter> ias_network = new ArrayList<>();
 		List<InputAdapter> ias_file = new ArrayList<>();
 		List<InputAdapter> ias_kafka = new ArrayList<>();
+		List<InputAdapter> ias_ipc = new ArrayList<>();
 		
 		List<Dataset> datasets = new ArrayList<>();
 		List<IBuffer> network_buffers = new ArrayList<>();
 		List<IBuffer> file_buffers = new ArrayList<>();
 		List<IBuffer> kafka_buffers = new ArrayList<>();
+		List<IBuffer> ipc_buffers = new ArrayList<>();
 		
 		for(IBuffer ib : buffers) {
 			DataReference dRef = ib.getDataReference();
@@ -62,6 +65,13 @@ public class InputAdapterFactory {
 				continue;
 			}
 			
+			// Exception, when ib is LocalInputBuffer, the stream is produced in this worker
+			if(ib instanceof LocalInputBuffer) {
+				Schema expectedSchema = dRef.getDataStore().getSchema();
+				ias.add(new LocalDataStream(wc, streamId, (LocalInputBuffer)ib, expectedSchema));
+				continue;
+			}
+			
 			if(dRefManaged) {
 				// The DR is managed by SEEP
 				if(drm.doesManageDataReference(dRef.getId()) != null) {
@@ -90,6 +100,9 @@ public class InputAdapterFactory {
 				else if(type.equals(DataStoreType.KAFKA)) {
 					kafka_buffers.add(ib);
 				}
+				else if(type.equals(DataStoreType.IPC)) {
+					ipc_buffers.add(ib);
+				}
 			}
 		}
 		
@@ -105,11 +118,15 @@ public class InputAdapterFactory {
 		if(! kafka_buffers.isEmpty()) {
 			ias_kafka = buildInputAdapterOfTypeKafkaForOps(wc, streamId, drefs, kafka_buffers, connType);
 		}
+		if(! ipc_buffers.isEmpty()) {
+			ias_ipc = buildInputAdapterOfTypeIpcForOps(wc, streamId, drefs, ipc_buffers, connType);
+		}
 		
 		ias.addAll(ias_dataset);
 		ias.addAll(ias_network);
 		ias.addAll(ias_file);
 		ias.addAll(ias_kafka);
+		ias.addAll(ias_ipc);
 		return ias;
 	}
 	
@@ -123,11 +140,30 @@ public class InputAdapterFactory {
 			WorkerConfig wc, int streamId, Set<DataReference> drefs, List<Dataset> datasets){
 		List<InputAdapter> ias = new ArrayList<>();
 		for(Dataset dataset : datasets) {
-			InputAdapter ia = new DatasetInputAdapter(wc, streamId, dataset);
+			ScanSpec spec = scanSpecFor(dataset.getDataReference().getId(), drefs);
+			if(spec != null) {
+				LOG.info("Pushing down {} to the scan of dataset {}", spec, dataset.id());
+			}
+			InputAdapter ia = new DatasetInputAdapter(wc, streamId, dataset, spec);
 			ias.add(ia);
 		}
 		return ias;
 	}
+	
+	/**
+	 * Buffers have the DR they were created with, the spec comes with the input DR that refers to it
+	 */
+	private static ScanSpec scanSpecFor(int dRefId, Set<DataReference> drefs) {
+		if(drefs == null) {
+			return null;
+		}
+		for(DataReference dr : drefs) {
+			if(dr.getId() == dRefId && dr.getScanSpec() != null) {
+				return dr.getScanSpec();
+			}
+		}
+		return null;
+	}
 
 	private static List<InputAdapter> buildInputAdapterOfTypeNetworkForOps(
 			WorkerConfig wc, int streamId, Set<DataReference> drefs, List<IBuffer> buffers, ConnectionType connType) {
@@ -138,7 +174,12 @@ public class InputAdapterFactory {
 			// one-queue-per-conn, one-single-queue, etc.
 			LOG.info("Creating NETWORK inputAdapter for upstream streamId: {} of type {}", streamId, "ONE_AT_A_TIME");
 			for(IBuffer buffer : buffers) {
-				InputAdapter ia = new NetworkDataStream(wc, streamId, buffer, expectedSchema);
+				// Datasets stored in other nodes are scanned as their tuples arrive
+				ScanSpec spec = scanSpecFor(buffer.getDataReference().getId(), drefs);
+				if(spec != null) {
+					LOG.info("Applying {} to the network input of dataset {}", spec, buffer.getDataReference().getId());
+				}
+				InputAdapter ia = new NetworkDataStream(wc, streamId, buffer, expectedSchema, spec);
 				ias.add(ia);
 			}
 		}
@@ -181,4 +222,19 @@ public class InputAdapterFactory {
 		}
 		return ias;
 	}
+	
+	private static List<InputAdapter> buildInputAdapterOfTypeIpcForOps(
+			WorkerConfig wc, int streamId, Set<DataReference> drefs, List<IBuffer> buffers, ConnectionType connType) {
+		List<InputAdapter> ias = new ArrayList<>();
+		short cType = connType.ofType();
+		Schema expectedSchema = drefs.iterator().next().getDataStore().getSchema();
+		if(cType == ConnectionType.ONE_AT_A_TIME.ofType()) {
+			LOG.info("Creating IPC inputAdapter for upstream streamId: {} of type {}", streamId, "ONE_AT_A_TIME");
+			for(IBuffer buffer : buffers) {
+				InputAdapter ia = new IpcDataStream(wc, streamId, buffer, expectedSchema);
+				ias.add(ia);
+			}
+		}
+		return ias;
+	}
 }
@@ -6,18 +6,23 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.ac.imperial.lsds.seep.api.DataReference;
 import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
-import uk.ac.imperial.lsds.seep.core.IBuffer;
 import uk.ac.imperial.lsds.seep.core.InputAdapter;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
 
 
-public class InputBuffer implements IBuffer {
+public class InputBuffer extends BatchIBuffer {
+	
+	// Published for each marker batch received, as markers have no payload
+	private static final ByteBuffer MARKER = ByteBuffer.allocate(0);
 	
 	private DataReference dRef;
 	
@@ -25,12 +30,25 @@ public class InputBuffer implements IBuffer {
 	private ByteBuffer payload = null;
 	private int nTuples = 0;
 	
-	private BlockingQueue<byte[]> queue;
+	// Payloads of the batches received, ready to be consumed as they arrived from the network, 
+	// i.e. a sequence of [size][tuple]. Consumed payloads are recycled by the reader
+	private BlockingQueue<ByteBuffer> batches;
+	private Queue<ByteBuffer> freePayloads;
+	private AtomicInteger numFreePayloads;
 	private int queueSize;
 	
+	// Batches that can be sent to this buffer without blocking the reader, not yet granted to the sender
+	private AtomicInteger creditsToGrant;
+	private Runnable creditListener;
+	
 	private InputBuffer(WorkerConfig wc, DataReference dr) {
+		// Payloads are read without their batch header
+		super(0);
 		this.queueSize = wc.getInt(WorkerConfig.SIMPLE_INPUT_QUEUE_LENGTH);
-		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.batches = new ArrayBlockingQueue<>(queueSize);
+		this.freePayloads = new ConcurrentLinkedQueue<>();
+		this.numFreePayloads = new AtomicInteger(0);
+		this.creditsToGrant = new AtomicInteger(queueSize);
 		this.dRef = dr;
 	}
 	
@@ -43,6 +61,30 @@ public class InputBuffer implements IBuffer {
 		return dRef;
 	}
 	
+	/**
+	 * Sets a listener to run when there are credits to grant, and there were none
+	 */
+	public void setCreditListener(Runnable creditListener) {
+		this.creditListener = creditListener;
+	}
+	
+	/**
+	 * A sender with credits can send as many batches without the reader blocking on this buffer.
+	 * Credits are granted once: initially as many as the queue holds, then one per batch consumed.
+	 * @return the credits to grant
+	 */
+	public int takeCreditsToGrant() {
+		return creditsToGrant.getAndSet(0);
+	}
+	
+	/**
+	 * Only meaningful to the thread that calls readFrom, as only it publishes batches
+	 * @return true if a batch read now is published without blocking
+	 */
+	public boolean hasRoomForBatch() {
+		return batches.remainingCapacity() > 0;
+	}
+
 	@Override
 	public int readFrom(ReadableByteChannel channel) {
 		int totalTuplesRead = 0;
@@ -55,13 +97,21 @@ public class InputBuffer implements IBuffer {
 			byte control = header.get();
 			nTuples = header.getInt();
 			int payloadSize = header.getInt(); // payload size
-			payload = ByteBuffer.allocate(payloadSize);
+			if(control == TupleInfo.CONTROL_MARKER) {
+				this.publish(MARKER);
+				header.clear();
+				nTuples = 0;
+				return 0;
+			}
+			payload = this.payloadBufferFor(payloadSize);
 		}
 		
 		if(payload != null) {
 			this.read(channel, payload);
 			if(!payload.hasRemaining()) {
-				totalTuplesRead = this.forwardTuples(payload, nTuples);
+				payload.flip();
+				this.publish(payload);
+				totalTuplesRead = nTuples;
 				payload = null;
 				header.clear();
 				nTuples = 0;
@@ -80,38 +130,72 @@ public class InputBuffer implements IBuffer {
 		return -1;
 	}
 	
-	private int forwardTuples(ByteBuffer buf, int numTuples) {
-		int totalTuplesForwarded = 0;
-		int tupleSize = 0;
-		buf.flip(); // Prepare buffer to read
-		for(int i = 0; i < numTuples; i++){			
-			tupleSize = buf.getInt();
-			byte[] completedRead = new byte[tupleSize];
-			buf.get(completedRead, 0, tupleSize);
-			this.pushData(completedRead);
-			totalTuplesForwarded++;
+	/**
+	 * Reuses a consumed payload when it is large enough, so that in steady state batches are read
+	 * from the network without allocating. Payloads are direct, so channels read into them without
+	 * an intermediate copy.
+	 */
+	private ByteBuffer payloadBufferFor(int payloadSize) {
+		ByteBuffer buf = freePayloads.poll();
+		if(buf != null) {
+			numFreePayloads.decrementAndGet();
+		}
+		if(buf == null || buf.capacity() < payloadSize) {
+			buf = ByteBuffer.allocateDirect(payloadSize);
 		}
 		buf.clear();
-		return totalTuplesForwarded;
+		buf.limit(payloadSize);
+		return buf;
 	}
 	
-	@Override
-	public void pushData(byte[] data) {
+	private void recycle(ByteBuffer buf) {
+		// Keep as many as may be in flight, the rest is left to the GC
+		if(buf.isDirect() && numFreePayloads.get() <= queueSize) {
+			numFreePayloads.incrementAndGet();
+			freePayloads.offer(buf);
+		}
+	}
+	
+	private void publish(ByteBuffer batch) {
 		try {
-			queue.put(data);
+			batches.put(batch);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
-
+	
 	@Override
-	public byte[] read(int timeout) {
+	public void pushData(byte[] data) {
+		ByteBuffer batch = ByteBuffer.allocate(TupleInfo.TUPLE_SIZE_OVERHEAD + data.length);
+		batch.putInt(data.length);
+		batch.put(data);
+		batch.flip();
+		this.publish(batch);
+	}
+	
+	@Override
+	protected ByteBuffer nextBatch(int timeout) {
+		ByteBuffer next = null;
 		try {
-			return queue.poll(timeout, TimeUnit.MILLISECONDS);
+			next = batches.poll(timeout, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
-		return null;
+		// A slot of the queue is free again
+		if(next != null && creditsToGrant.getAndIncrement() == 0 && creditListener != null) {
+			creditListener.run();
+		}
+		return next;
+	}
+	
+	@Override
+	protected void consumed(ByteBuffer batch) {
+		recycle(batch);
+	}
+	
+	@Override
+	protected boolean isMarker(ByteBuffer batch) {
+		return batch == MARKER;
 	}
 	
 //	@Deprecated
@@ -145,6 +229,7 @@ public class InputBuffer implements IBuffer {
 	 */
 	
 	public InputBuffer(int size){
+		super(0);
 		buffer = ByteBuffer.allocate(size);
 		completedReads = new ArrayDeque<>();
 	}
@@ -0,0 +1,25 @@
+package uk.ac.imperial.lsds.seepworker.core.input;
+
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+/**
+ * Batches arrive from an IPC ring into an InputBuffer framed as they are from the network, so tuples are read
+ * as in NetworkDataStream
+ */
+public class IpcDataStream extends NetworkDataStream {
+
+	final private DataStoreType TYPE = DataStoreType.IPC;
+	
+	public IpcDataStream(WorkerConfig wc, int streamId, IBuffer buffer, Schema expectedSchema) {
+		super(wc, streamId, buffer, expectedSchema);
+	}
+	
+	@Override
+	public DataStoreType getDataStoreType() {
+		return TYPE;
+	}
+
+}
@@ -0,0 +1,23 @@
+package uk.ac.imperial.lsds.seepworker.core.input;
+
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+/**
+ * Reads a stream produced in this worker from a LocalInputBuffer, whose batches are read as in NetworkDataStream
+ */
+public class LocalDataStream extends NetworkDataStream {
+
+	final private DataStoreType TYPE = DataStoreType.IN_MEMORY;
+	
+	public LocalDataStream(WorkerConfig wc, int streamId, LocalInputBuffer buffer, Schema expectedSchema) {
+		super(wc, streamId, buffer, expectedSchema);
+	}
+	
+	@Override
+	public DataStoreType getDataStoreType() {
+		return TYPE;
+	}
+
+}
@@ -0,0 +1,62 @@
+package uk.ac.imperial.lsds.seepworker.core.input;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
+import uk.ac.imperial.lsds.seepworker.core.LocalChannel;
+
+/**
+ * Input of a stream produced in this worker. Batches are the buffers the upstream OutputBuffer filled, received
+ * through a LocalChannel, and tuples are read in place from them. Consumed batches are given back to the producer.
+ */
+public class LocalInputBuffer extends BatchIBuffer {
+
+	private DataReference dr;
+	private LocalChannel channel;
+	
+	private LocalInputBuffer(DataReference dr, LocalChannel channel) {
+		// Batches keep the header written by the OutputBuffer
+		super(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+		this.dr = dr;
+		this.channel = channel;
+	}
+	
+	public static LocalInputBuffer makeOneFor(DataReference dr, LocalChannel channel) {
+		return new LocalInputBuffer(dr, channel);
+	}
+	
+	@Override
+	public DataReference getDataReference() {
+		return dr;
+	}
+	
+	@Override
+	public int readFrom(ReadableByteChannel channel) {
+		// Batches are handed over by reference, they are never read from a channel
+		return 0;
+	}
+	
+	/**
+	 * Does nothing. The channel has a single producer, the upstream OutputBuffer, so tuples cannot be pushed to it
+	 */
+	@Override
+	public void pushData(byte[] data) { }
+	
+	@Override
+	protected ByteBuffer nextBatch(int timeout) {
+		return channel.poll(timeout);
+	}
+	
+	@Override
+	protected void consumed(ByteBuffer batch) {
+		channel.recycle(batch);
+	}
+	
+	@Override
+	protected boolean isMarker(ByteBuffer batch) {
+		return batch.limit() > TupleInfo.CONTROL_OFFSET && batch.get(TupleInfo.CONTROL_OFFSET) == TupleInfo.CONTROL_MARKER;
+	}
+
+}
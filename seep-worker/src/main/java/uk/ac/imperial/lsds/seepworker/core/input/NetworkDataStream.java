@@ -2,20 +2,26 @@ package uk.ac.imperial.lsds.seepworker.core.input;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.ScanEvaluator;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
 import uk.ac.imperial.lsds.seep.core.IBuffer;
-import uk.ac.imperial.lsds.seep.core.InputAdapter;
+import uk.ac.imperial.lsds.seep.core.BatchInputAdapter;
 import uk.ac.imperial.lsds.seep.core.InputAdapterReturnType;
 import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
 
 import com.codahale.metrics.Counter;
 
-public class NetworkDataStream implements InputAdapter {
+public class NetworkDataStream implements BatchInputAdapter {
 
 	final private short RETURN_TYPE = InputAdapterReturnType.ONE.ofType();
 	final private DataStoreType TYPE = DataStoreType.NETWORK;
@@ -23,14 +29,35 @@ public class NetworkDataStream implements InputAdapter {
 	private int streamId;
 	private IBuffer buffer;
 	private ITuple iTuple;
+	// Points to tuples in the buffers they were received into, for fixed-size schemas
+	private ZCITuple zcTuple;
+	private Schema expectedSchema;
+	// Filter and projection of the dataset read, if any
+	private ScanEvaluator scan;
 	
 	// Metrics
 	final Counter qSize;
 	
 	public NetworkDataStream(WorkerConfig wc, int streamId, IBuffer buffer, Schema expectedSchema) {
+		this(wc, streamId, buffer, expectedSchema, null);
+	}
+	
+	/**
+	 * Tuples arrive with the schema of the dataset they are read from, so a scan pushed down to it applies here as
+	 * well: only qualifying tuples are returned, with the projected schema
+	 */
+	public NetworkDataStream(WorkerConfig wc, int streamId, IBuffer buffer, Schema expectedSchema, ScanSpec spec) {
 		this.streamId = streamId;
 		this.buffer = buffer;
-		this.iTuple = new ITuple(expectedSchema);
+		if(spec != null) {
+			this.scan = spec.bind(expectedSchema);
+		}
+		Schema schema = scan != null ? scan.getProjectedSchema() : expectedSchema;
+		this.iTuple = new ITuple(schema);
+		if(buffer instanceof BatchIBuffer && ! expectedSchema.isVariableSize()) {
+			this.zcTuple = new ZCITuple(schema);
+		}
+		this.expectedSchema = schema;
 		qSize = SeepMetrics.REG.counter(name(NetworkDataStream.class, "queue", "size"));
 	}
 
@@ -51,7 +78,15 @@ public class NetworkDataStream implements InputAdapter {
 	
 	@Override
 	public ITuple pullDataItem(int timeout) {
-		byte[] data = buffer.read(timeout);
+		if(zcTuple != null) {
+			ITuple t = scan != null ? ((BatchIBuffer)buffer).read(zcTuple, scan, timeout)
+					: ((BatchIBuffer)buffer).read(zcTuple, timeout);
+			if(t != null) {
+				t.setStreamId(streamId);
+			}
+			return t;
+		}
+		byte[] data = read(timeout);
 		if(data == null) {
 			return null;
 		}
@@ -60,6 +95,48 @@ public class NetworkDataStream implements InputAdapter {
 		return iTuple;
 	}
 
+	@Override
+	public ColumnBatch newBatch(int capacity) {
+		if(! ColumnBatch.supports(expectedSchema)) {
+			return null;
+		}
+		return new ColumnBatch(expectedSchema, capacity);
+	}
+	
+	@Override
+	public boolean pullDataBatch(ColumnBatch batch, int timeout) {
+		batch.setStreamId(streamId);
+		if(buffer instanceof BatchIBuffer) {
+			return scan != null ? ((BatchIBuffer)buffer).read(batch, scan, timeout)
+					: ((BatchIBuffer)buffer).read(batch, timeout);
+		}
+		batch.clear();
+		byte[] data = null;
+		while(! batch.isFull() && (data = read(batch.size() == 0 ? timeout : 0)) != null) {
+			batch.appendRow(data);
+		}
+		return batch.size() > 0;
+	}
+
+	/**
+	 * @return the next tuple of the buffer that passes the scan, if any, projected
+	 */
+	private byte[] read(int timeout) {
+		byte[] data = null;
+		while((data = buffer.read(timeout)) != null && scan != null) {
+			ByteBuffer tuple = ByteBuffer.wrap(data);
+			if(! scan.accept(tuple, 0)) {
+				continue;
+			}
+			if(scan.projects()) {
+				ByteBuffer projected = ByteBuffer.allocate(data.length);
+				data = Arrays.copyOf(projected.array(), scan.project(tuple, 0, projected));
+			}
+			break;
+		}
+		return data;
+	}
+
 	@Override
 	public List<ITuple> pullDataItems(int timeout) {
 		// TODO Auto-generated method stub
@@ -1,5 +1,6 @@
 package uk.ac.imperial.lsds.seepworker.core.output;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -18,9 +19,10 @@ public class CoreOutput {
 	
 	final private static Logger LOG = LoggerFactory.getLogger(CoreOutput.class);
 	
-	private Map<Integer, Set<DataReference>> output;
-	private Map<Integer, OBuffer> oBuffers;
-	private Map<Integer, List<OBuffer>> streamId_To_OBuffers;
+	// replaced rather than updated when a buffer is added at runtime
+	private volatile Map<Integer, Set<DataReference>> output;
+	private volatile Map<Integer, OBuffer> oBuffers;
+	private volatile Map<Integer, List<OBuffer>> streamId_To_OBuffers;
 		
 	public CoreOutput(Map<Integer, Set<DataReference>> output, Map<Integer, List<OBuffer>> streamId_To_OBuffers, Map<Integer, OBuffer> oBuffers){
 		this.output = output;
@@ -41,6 +43,34 @@ public class CoreOutput {
 		return oBuffers;
 	}
 	
+	/**
+	 * Adds the buffer of a downstream that joins at runtime, e.g. when a stateful downstream scales out. The maps
+	 * are copied, so that those already handed out, e.g. to Collectors, do not change while they are read
+	 */
+	public synchronized void addBuffer(int streamId, OBuffer ob) {
+		DataReference dr = ob.getDataReference();
+		Map<Integer, Set<DataReference>> output = new HashMap<>(this.output);
+		Set<DataReference> refs = new HashSet<>();
+		if(output.containsKey(streamId)) {
+			refs.addAll(output.get(streamId));
+		}
+		refs.add(dr);
+		output.put(streamId, refs);
+		Map<Integer, OBuffer> oBuffers = new HashMap<>(this.oBuffers);
+		oBuffers.put(dr.getId(), ob);
+		Map<Integer, List<OBuffer>> streamId_To_OBuffers = new HashMap<>(this.streamId_To_OBuffers);
+		List<OBuffer> bufs = new ArrayList<>();
+		if(streamId_To_OBuffers.containsKey(streamId)) {
+			bufs.addAll(streamId_To_OBuffers.get(streamId));
+		}
+		bufs.add(ob);
+		streamId_To_OBuffers.put(streamId, bufs);
+		this.output = output;
+		this.streamId_To_OBuffers = streamId_To_OBuffers;
+		this.oBuffers = oBuffers;
+		LOG.info("Added OBuffer {} to streamId {}", dr.getId(), streamId);
+	}
+	
 	public Set<OBuffer> getOBufferToDataStoreOfType(DataStoreType dst) {
 		Set<OBuffer> bufs = new HashSet<>();
 		for(Set<DataReference> set : output.values()) {
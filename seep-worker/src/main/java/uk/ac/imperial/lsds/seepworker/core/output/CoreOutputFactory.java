@@ -57,7 +57,10 @@ public class CoreOutputFactory {
 				}
 				// If STREAM, data is kept in an OutputBuffer until the network services pulls it
 				else if(dr.getServeMode().equals(ServeMode.STREAM)) {
-					ob = new OutputBuffer(dr, wc.getInt(WorkerConfig.BATCH_SIZE));
+					OutputBuffer streamOutput = new OutputBuffer(dr, wc.getInt(WorkerConfig.BATCH_SIZE), wc.getInt(WorkerConfig.OUTPUT_RING_SLOTS), drm.getBufferPool());
+					// So that consumers in this worker can take batches straight from it
+					drm.registerStreamOutput(streamOutput);
+					ob = streamOutput;
 				}
 				oBuffers.put(dr.getId(), ob); // dr.id -> obuffer
 				buffers.add(ob);
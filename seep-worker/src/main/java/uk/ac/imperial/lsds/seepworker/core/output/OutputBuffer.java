@@ -1,9 +1,14 @@
 package uk.ac.imperial.lsds.seepworker.core.output;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import uk.ac.imperial.lsds.seep.api.DataReference;
 import uk.ac.imperial.lsds.seep.api.RuntimeEventRegister;
@@ -11,24 +16,174 @@ import uk.ac.imperial.lsds.seep.api.data.OTuple;
 import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
 import uk.ac.imperial.lsds.seep.core.EventAPI;
 import uk.ac.imperial.lsds.seep.core.EventBasedOBuffer;
+import uk.ac.imperial.lsds.seep.core.GatheringOBuffer;
+import uk.ac.imperial.lsds.seep.core.InPlaceOBuffer;
+import uk.ac.imperial.lsds.seep.core.MarkerOBuffer;
+import uk.ac.imperial.lsds.seep.metrics.SeepMetrics;
+import uk.ac.imperial.lsds.seepworker.core.BufferPool;
+import uk.ac.imperial.lsds.seepworker.core.LocalChannel;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 
-public class OutputBuffer implements EventBasedOBuffer {
+/**
+ * Batches tuples for a network connection in a ring of batch buffers. The task fills one slot while the 
+ * network writer drains the completed ones, so that producers only block when all slots are waiting to be
+ * sent. There is a single producer (writes are serialized by the Collector) and a single consumer (the
+ * writer thread of the connection), that coordinate through the published and drained counters only.
+ */
+public class OutputBuffer implements EventBasedOBuffer, GatheringOBuffer, InPlaceOBuffer, MarkerOBuffer {
+	
+	public static final int DEFAULT_RING_SLOTS = 4;
 	
 	private final int BATCH_SIZE;
 	private DataReference dr;
 	
 	private EventAPI eAPI;
-	private ByteBuffer buf;
-	private AtomicBoolean completed = new AtomicBoolean(false);
+	private final ByteBuffer[] ring;
+	// Time at which the batch of each slot was completed
+	private final long[] completedTimes;
+	// Batches of one gathering write. Only used by the consumer
+	private final ByteBuffer[] gather;
+	// Number of batches completed by the producer, and number of batches fully written by the consumer.
+	// Slot published % ring.length is being filled, slots from drained up to published are ready to be written
+	private volatile long published = 0;
+	private volatile long drained = 0;
+	private volatile boolean producerWaiting = false;
+	private final Object lock = new Object();
+	// Pool the slots were borrowed from, and the slot buffers that belong to it, given back on close
+	private final BufferPool bufferPool;
+	private final Set<ByteBuffer> pooled;
+	private volatile boolean closed = false;
 	private int tuplesInBatch = 0;
 	private int currentBatchSize = 0;
+	private long numStalls = 0;
+	
+	// Metrics
+	final private Counter stalls;
+	final private Histogram occupancy;
+	final private Counter syscalls;
+	final private Counter bytesWritten;
+	final private Histogram batchesPerWrite;
 		
 	public OutputBuffer(DataReference dr, int batchSize) {
+		this(dr, batchSize, DEFAULT_RING_SLOTS, null);
+	}
+	
+	public OutputBuffer(DataReference dr, int batchSize, BufferPool bufferPool) {
+		this(dr, batchSize, DEFAULT_RING_SLOTS, bufferPool);
+	}
+	
+	/**
+	 * Uses segments of the given bufferPool as batch buffers when the pool is off-heap, so that 
+	 * batches are written to the network from direct memory without an intermediate copy. 
+	 * Falls back to heap buffers otherwise.
+	 */
+	public OutputBuffer(DataReference dr, int batchSize, int ringSlots, BufferPool bufferPool) {
 		this.dr = dr;
 		this.BATCH_SIZE = batchSize;
 		int headroomSize = this.BATCH_SIZE * 2;
-		buf = ByteBuffer.allocate(headroomSize);
-		buf.position(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+		this.ring = new ByteBuffer[Math.max(1, ringSlots)];
+		this.completedTimes = new long[ring.length];
+		this.gather = new ByteBuffer[ring.length];
+		this.bufferPool = bufferPool != null && bufferPool.isOffHeap() ? bufferPool : null;
+		this.pooled = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+		for(int i = 0; i < ring.length; i++) {
+			ByteBuffer buf = newSlot(headroomSize, false);
+			buf.position(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+			ring[i] = buf;
+		}
+		this.stalls = SeepMetrics.REG.counter(name(OutputBuffer.class, "ring", "stalls"));
+		this.occupancy = SeepMetrics.REG.histogram(name(OutputBuffer.class, "ring", "occupancy"));
+		this.syscalls = SeepMetrics.REG.counter(name(OutputBuffer.class, "write", "syscalls"));
+		this.bytesWritten = SeepMetrics.REG.counter(name(OutputBuffer.class, "write", "bytes"));
+		this.batchesPerWrite = SeepMetrics.REG.histogram(name(OutputBuffer.class, "write", "coalesced", "batches"));
+		registerSyscallsPerMB(syscalls, bytesWritten);
+	}
+	
+	/**
+	 * @return a segment of the pool if there is one, a new buffer otherwise
+	 */
+	private ByteBuffer newSlot(int size, boolean direct) {
+		if(bufferPool != null) {
+			ByteBuffer buf = bufferPool.borrowBuffer(size);
+			if(buf != null) {
+				synchronized(pooled) {
+					pooled.add(buf);
+				}
+				return buf;
+			}
+		}
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+	
+	/**
+	 * Gives a slot buffer back to the pool, if it came from it. Buffers handed off to a LocalChannel come back
+	 * here when the consumer is done with them after close
+	 */
+	public void releaseSlot(ByteBuffer buf) {
+		boolean fromPool;
+		synchronized(pooled) {
+			fromPool = pooled.remove(buf);
+		}
+		if(fromPool) {
+			bufferPool.returnBuffer(buf);
+		}
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Gives the slots back to the pool. Nothing can be written afterwards, so it is called once the writer of
+	 * the connection, or the consumer of the LocalChannel, is stopped
+	 */
+	public void close() {
+		closed = true;
+		for(int i = 0; i < ring.length; i++) {
+			releaseSlot(ring[i]);
+		}
+		if(eAPI instanceof LocalChannel) {
+			((LocalChannel)eAPI).releaseFreeBuffers();
+		}
+	}
+	
+	private static void registerSyscallsPerMB(final Counter syscalls, final Counter bytesWritten) {
+		String gaugeName = name(OutputBuffer.class, "write", "syscalls", "per", "mb");
+		synchronized(SeepMetrics.REG) {
+			if(! SeepMetrics.REG.getGauges().containsKey(gaugeName)) {
+				SeepMetrics.REG.register(gaugeName, new Gauge<Double>() {
+					@Override
+					public Double getValue() {
+						long bytes = bytesWritten.getCount();
+						return bytes == 0 ? 0 : syscalls.getCount() / (bytes / (1024.0 * 1024.0));
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of batch buffers in the ring
+	 */
+	public int getRingDepth() {
+		return ring.length;
+	}
+	
+	/**
+	 * @return the number of completed batches waiting to be written to the network
+	 */
+	public int getNumCompletedBatches() {
+		return (int)(published - drained);
+	}
+	
+	/**
+	 * @return the number of times the producer had to wait for a free slot
+	 */
+	public long getNumStalls() {
+		return numStalls;
 	}
 	
 	@Override
@@ -51,95 +206,253 @@ public class OutputBuffer implements EventBasedOBuffer {
 		return eAPI;
 	}
 	
+	/**
+	 * Writes the oldest completed batch, and frees its slot once fully written
+	 * @return true if a batch was fully written
+	 */
 	@Override
 	public boolean drainTo(WritableByteChannel channel) {
-		boolean fullyWritten = false;
-		if(completed.get()){
-			int totalBytesToWrite = buf.remaining();
-			int writtenBytes = 0;
-			try {
-				writtenBytes = channel.write(buf);
-			} 
-			catch (IOException e) {
-				e.printStackTrace();
+		if(drained == published) {
+			return false;
+		}
+		ByteBuffer buf = ring[(int)(drained % ring.length)];
+		try {
+			bytesWritten.inc(channel.write(buf));
+			syscalls.inc();
+		} 
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		if(buf.hasRemaining()){
+			// channel is full, continue when it is writable again
+			return false;
+		}
+		batchesPerWrite.update(1);
+		freeSlots(1);
+		return true;
+	}
+	
+	/**
+	 * Hands the completed batches to a consumer in this worker, instead of writing them to a channel.
+	 * The slot of each batch is refilled with a buffer the consumer is done with, or a new one from the pool.
+	 * The handed off buffer stays with the channel, so buffers from the pool travel between producer and consumer
+	 * and never exceed the ring and the channel capacity
+	 */
+	public void handOffTo(LocalChannel channel) {
+		while(drained < published) {
+			int idx = (int)(drained % ring.length);
+			ByteBuffer batch = ring[idx];
+			// Offer first, so that the consumer is likely to have given some buffer back already
+			channel.offer(batch);
+			ByteBuffer buf = channel.takeFreeBuffer();
+			if(buf == null) {
+				buf = newSlot(batch.capacity(), batch.isDirect());
 			}
-			if(writtenBytes == totalBytesToWrite){
-				// prepare buffer to be filled again
-				tuplesInBatch = 0;
-				currentBatchSize = 0; //TupleInfo.PER_BATCH_OVERHEAD_SIZE;
-				buf.clear();
-				buf.position(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
-				boolean success = completed.compareAndSet(true, false);
-				if(!success) {
-					System.out.println("PROB WHEN DRAINING");
-					System.exit(0);
-				}
+			buf.clear();
+			buf.position(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+			ring[idx] = buf;
+			batchesPerWrite.update(1);
+			drained = drained + 1;
+			if(producerWaiting) {
 				notifyHere();
-				return true;
 			}
-			else {
-				return false;
+		}
+	}
+
+	@Override
+	public int drainTo(GatheringByteChannel channel, int maxBytes, int maxBatches) {
+		long ready = Math.min(published - drained, maxBatches);
+		if(ready <= 0) {
+			return 0;
+		}
+		int n = 0;
+		int bytes = 0;
+		while(n < ready) {
+			ByteBuffer buf = ring[(int)((drained + n) % ring.length)];
+			if(n > 0 && bytes + buf.remaining() > maxBytes) {
+				break;
 			}
+			gather[n] = buf;
+			bytes = bytes + buf.remaining();
+			n++;
+		}
+		try {
+			bytesWritten.inc(channel.write(gather, 0, n));
+			syscalls.inc();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		int fullyWritten = 0;
+		while(fullyWritten < n && ! gather[fullyWritten].hasRemaining()) {
+			fullyWritten++;
+		}
+		for(int i = 0; i < n; i++) {
+			gather[i] = null;
+		}
+		if(fullyWritten > 0) {
+			batchesPerWrite.update(fullyWritten);
+			freeSlots(fullyWritten);
 		}
 		return fullyWritten;
 	}
+	
+	/**
+	 * Prepares the oldest written slots to be filled again, and hands them over to the producer
+	 */
+	private void freeSlots(int n) {
+		for(int i = 0; i < n; i++) {
+			ByteBuffer buf = ring[(int)((drained + i) % ring.length)];
+			buf.clear();
+			buf.position(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+		}
+		drained = drained + n;
+		if(producerWaiting) {
+			notifyHere();
+		}
+	}
+	
+	@Override
+	public int bytesReadyToWrite() {
+		int bytes = 0;
+		for(long i = drained; i < published; i++) {
+			bytes = bytes + ring[(int)(i % ring.length)].remaining();
+		}
+		return bytes;
+	}
+	
+	@Override
+	public long oldestReadyToWriteTime() {
+		long oldest = drained;
+		if(oldest == published) {
+			return -1;
+		}
+		return completedTimes[(int)(oldest % ring.length)];
+	}
+	
+	@Override
+	public boolean isFull() {
+		return published - drained >= ring.length;
+	}
+	
+	@Override
+	public void awaitNotFull() {
+		if(isFull()) {
+			waitHere();
+		}
+	}
 
 	@Override
 	public boolean write(byte[] data, RuntimeEventRegister reg) {
-		if(completed.get()){
-			waitHere(); // block
-		}
+		ByteBuffer buf = slotToFill();
 		int tupleSize = data.length;
 		buf.putInt(tupleSize);
 		buf.put(data);
-		tuplesInBatch++;
-		currentBatchSize = currentBatchSize + tupleSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
-		
-		if(bufferIsFull()) {
-			int currentPosition = buf.position();
-			int currentLimit = buf.limit();
-			buf.position(TupleInfo.NUM_TUPLES_BATCH_OFFSET);
-			buf.putInt(tuplesInBatch);
-			buf.putInt(currentBatchSize);
-			buf.position(currentPosition);
-			buf.limit(currentLimit);
-			buf.flip(); // leave the buffer ready to be read
-			boolean success = completed.compareAndSet(false, true);
-			if(!success){
-				System.out.println("PROB when writing");
-				System.exit(0);
-			}
-		}
-		return completed.get();
+		return tupleWritten(buf, tupleSize);
 	}
 	
 	@Override
 	public boolean write(OTuple o, RuntimeEventRegister reg) {
-		// TODO Auto-generated method stub
-		return false;
+		ByteBuffer buf = slotToFill();
+		o.writeValues(buf);
+		return tupleWritten(buf, o.getTupleSize());
+	}
+	
+	/**
+	 * Slots keep a batch of headroom past BATCH_SIZE, so tuples smaller than a batch always fit
+	 */
+	@Override
+	public ByteBuffer beginTuple(int minimumSize) {
+		return slotToFill();
+	}
+	
+	@Override
+	public boolean endTuple(int tupleSize, RuntimeEventRegister reg) {
+		return tupleWritten(ring[(int)(published % ring.length)], tupleSize);
+	}
+	
+	@Override
+	public boolean writeMarker(RuntimeEventRegister reg) {
+		ByteBuffer buf = slotToFill();
+		if(tuplesInBatch > 0) {
+			complete(buf, TupleInfo.CONTROL_DATA);
+			buf = slotToFill();
+		}
+		complete(buf, TupleInfo.CONTROL_MARKER);
+		return true;
 	}
 	
 	@Override
 	public boolean readyToWrite(){
-		return completed.get();
+		return drained < published;
+	}
+	
+	/**
+	 * @return the slot being filled, once it has been drained. Blocks only when the ring is full
+	 */
+	private ByteBuffer slotToFill() {
+		if(isFull()) {
+			numStalls++;
+			stalls.inc();
+			waitHere(); // block
+		}
+		return ring[(int)(published % ring.length)];
+	}
+	
+	/**
+	 * Publishes the slot to the consumer when the batch is full
+	 * @return true if a batch was completed
+	 */
+	private boolean tupleWritten(ByteBuffer buf, int tupleSize) {
+		tuplesInBatch++;
+		currentBatchSize = currentBatchSize + tupleSize + TupleInfo.TUPLE_SIZE_OVERHEAD;
+		
+		if(bufferIsFull(buf)) {
+			complete(buf, TupleInfo.CONTROL_DATA);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Writes the header of the batch being filled and publishes it
+	 */
+	private void complete(ByteBuffer buf, byte control) {
+		int currentPosition = buf.position();
+		int currentLimit = buf.limit();
+		// Slots given back by a LocalChannel may have held a marker
+		buf.put(TupleInfo.CONTROL_OFFSET, control);
+		buf.position(TupleInfo.NUM_TUPLES_BATCH_OFFSET);
+		buf.putInt(tuplesInBatch);
+		buf.putInt(currentBatchSize);
+		buf.position(currentPosition);
+		buf.limit(currentLimit);
+		buf.flip(); // leave the buffer ready to be read
+		tuplesInBatch = 0;
+		currentBatchSize = 0;
+		completedTimes[(int)(published % ring.length)] = System.nanoTime();
+		published = published + 1;
+		occupancy.update(published - drained);
 	}
 	
-	private boolean bufferIsFull(){
+	private boolean bufferIsFull(ByteBuffer buf){
 		return buf.position() >= BATCH_SIZE;
 	}
 	
 	private void notifyHere(){
-		synchronized(this){
-			notify();
+		synchronized(lock){
+			lock.notifyAll();
 		}
 	}
 	
 	private void waitHere(){
 		try {
-			synchronized(this){
-				while(completed.get()){
-					wait();
+			synchronized(lock){
+				producerWaiting = true;
+				while(published - drained >= ring.length){
+					lock.wait();
 				}
+				producerWaiting = false;
 			}
 		} 
 		catch (InterruptedException e) {
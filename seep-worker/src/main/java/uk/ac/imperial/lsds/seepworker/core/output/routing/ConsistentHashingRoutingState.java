@@ -1,56 +1,134 @@
 package uk.ac.imperial.lsds.seepworker.core.output.routing;
 
+import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.zip.CRC32;
+
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
 
 public class ConsistentHashingRoutingState implements Router {
 
-	private CRC32 crc32;	
-	// each downstream id
-	private List<Integer> opIds;
-	// subspace per downstream id
-	private List<Integer> subspaceFrontiers;
+	/**
+	 * Returned by route(key) for the keys that are held while a downstream scales out. Their tuples must be
+	 * buffered until the hold is over, and routed again
+	 */
+	public static final int HELD = Integer.MIN_VALUE;
+
+	// replaced as a whole, so that route sees each downstream id with its subspace
+	private volatile Routes routes;
+	private volatile ScaleOutListener listener;
 	
-	public ConsistentHashingRoutingState(List<Integer> opIds){
-		this.crc32 = new CRC32();
-		this.opIds = opIds;
-		this.subspaceFrontiers = new ArrayList<>();
-		int numSpaces = opIds.size();
-		// calculate span of each subrange of the space
-		long entireSpace = (long)Integer.MAX_VALUE * 2;
-		long initialSubspaceSize = (numSpaces > 0) ? entireSpace/numSpaces : entireSpace;
+	/**
+	 * Notified of the changes of the routes for a scale out, on the thread that makes them
+	 */
+	public interface ScaleOutListener {
+		/**
+		 * The keys that move from opId are held from now on
+		 */
+		public void holding(int opId);
+		/**
+		 * The held keys are routed again, either to the new downstream or to the one they were held from
+		 */
+		public void released();
+	}
 
-		int frontier = Integer.MAX_VALUE;
-		for(int i = 0; i < numSpaces; i++){
-			subspaceFrontiers.add(frontier);
-			frontier -= initialSubspaceSize;
+	private static final class Routes {
+		// each downstream id
+		final List<Integer> opIds;
+		// subspace per downstream id, the same ones states are partitioned with
+		final KeyHashSpace space;
+		// the space after the ongoing scale out and the subspace in it whose keys are held, if any
+		final KeyHashSpace nextSpace;
+		final int heldSubspace;
+
+		Routes(List<Integer> opIds, KeyHashSpace space, KeyHashSpace nextSpace, int heldSubspace) {
+			this.opIds = opIds;
+			this.space = space;
+			this.nextSpace = nextSpace;
+			this.heldSubspace = heldSubspace;
 		}
 	}
 
+	public ConsistentHashingRoutingState(List<Integer> opIds){
+		this.routes = new Routes(opIds, new KeyHashSpace(opIds.size()), null, -1);
+	}
+
 	@Override
 	public int route(int key) {
-		int hashedKey = hashKey(key);
-		int subspaceFrontiersSize = subspaceFrontiers.size();
-		for(int i = subspaceFrontiersSize-1; i >= 0; i--){
-			int frontier = subspaceFrontiers.get(i);
-			if(hashedKey <= frontier){
-				return opIds.get(i);
-			}
+		Routes r = routes;
+		if(r.opIds.isEmpty()){
+			return -1;
 		}
-		return -1;
+		if(r.nextSpace != null && r.nextSpace.subspaceOf(key) == r.heldSubspace){
+			return HELD;
+		}
+		return r.opIds.get(r.space.subspaceOf(key));
 	}
-	
-	private int hashKey(int value){
-		crc32.update(value);
-		int v = (int)crc32.getValue();
-		crc32.reset();
-		return v;
+
+	public KeyHashSpace getKeyHashSpace() {
+		return routes.space;
+	}
+
+	public List<Integer> getOpIds() {
+		return Collections.unmodifiableList(routes.opIds);
+	}
+
+	public boolean isHolding() {
+		return routes.nextSpace != null;
 	}
 	
-	private int hashKey(String value){
-		int v = value.hashCode();
-		return hashKey(v);
+	public void setScaleOutListener(ScaleOutListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts holding the keys of the subspace of opId that scaleOut will route to a new downstream, i.e. the lower
+	 * half of it. The other keys of opId are still routed to it
+	 * @return the space after the scale out, which the state of opId is partitioned with
+	 */
+	public synchronized KeyHashSpace hold(int opId) {
+		Routes r = routes;
+		if(r.nextSpace != null){
+			throw new IllegalStateException("Already holding keys for a scale out");
+		}
+		int subspace = r.opIds.indexOf(opId);
+		if(subspace == -1){
+			throw new InvalidParameterException("Tried to hold keys of unknown downstream: "+opId);
+		}
+		KeyHashSpace nextSpace = r.space.split(subspace);
+		routes = new Routes(r.opIds, r.space, nextSpace, subspace + 1);
+		if(listener != null){
+			listener.holding(opId);
+		}
+		return nextSpace;
+	}
+
+	/**
+	 * Routes the held keys to newOpId from now on, and stops holding them
+	 */
+	public synchronized void scaleOut(int newOpId) {
+		Routes r = routes;
+		if(r.nextSpace == null){
+			throw new IllegalStateException("Tried to scale out without holding keys first");
+		}
+		List<Integer> opIds = new ArrayList<>(r.opIds);
+		opIds.add(r.heldSubspace, newOpId);
+		routes = new Routes(opIds, r.nextSpace, null, -1);
+		if(listener != null){
+			listener.released();
+		}
+	}
+
+	/**
+	 * Stops holding keys, which are routed as before the hold
+	 */
+	public synchronized void release() {
+		Routes r = routes;
+		routes = new Routes(r.opIds, r.space, null, -1);
+		if(listener != null){
+			listener.released();
+		}
 	}
 
 	@Override
@@ -58,5 +136,5 @@ public class ConsistentHashingRoutingState implements Router {
 		// TODO Auto-generated method stub
 		return -1;
 	}
-	
+
 }
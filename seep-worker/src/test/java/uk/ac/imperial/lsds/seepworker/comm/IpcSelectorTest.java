@@ -0,0 +1,165 @@
+package uk.ac.imperial.lsds.seepworker.comm;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.input.IpcDataStream;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
+
+public class IpcSelectorTest {
+
+	private WorkerConfig buildWorkerConfig(File dir, int ringSize) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.setProperty(WorkerConfig.SIMPLE_INPUT_QUEUE_LENGTH, "2");
+		p.setProperty(WorkerConfig.IPC_DIR, dir.getAbsolutePath());
+		p.setProperty(WorkerConfig.IPC_RING_SIZE, Integer.toString(ringSize));
+		return new WorkerConfig(p);
+	}
+
+	@Test
+	public void testRingWrapsAround() throws IOException {
+		File dir = Files.createTempDirectory("ipcring").toFile();
+		File f = IpcSelector.ringFileFor(dir, 0, 1);
+		IpcRing producer = IpcRing.create(f, 10, 0);
+		IpcRing consumer = IpcRing.open(f, 0);
+		assertEquals(10, consumer.capacity());
+
+		ByteBuffer in = ByteBuffer.allocate(7);
+		ByteBuffer out = ByteBuffer.allocate(7);
+		for(int round = 0; round < 5; round++) {
+			in.clear();
+			for(int i = 0; i < 7; i++) {
+				in.put((byte)(round * 7 + i));
+			}
+			in.flip();
+			assertEquals(7, producer.write(in));
+			// Only 3 bytes left until the consumer reads
+			assertEquals(3, producer.writable());
+			out.clear();
+			assertEquals(7, consumer.read(out));
+			for(int i = 0; i < 7; i++) {
+				assertEquals((byte)(round * 7 + i), out.get(i));
+			}
+			assertEquals(0, consumer.readable());
+		}
+		producer.close();
+		consumer.close();
+		f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testOnlyLiveRingsOfTheSessionAreOpened() throws IOException {
+		File dir = Files.createTempDirectory("ipcring").toFile();
+		File f = IpcSelector.ringFileFor(dir, 1, 1);
+		IpcRing producer = IpcRing.create(f, 10, 1);
+		assertNull(IpcRing.open(f, 2));
+		IpcRing consumer = IpcRing.open(f, 1);
+		assertNotNull(consumer);
+		consumer.close();
+
+		// A ring whose producer is gone is left for the next producer to replace
+		try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek(24);
+			raf.writeLong(Long.MAX_VALUE);
+		}
+		assertNull(IpcRing.open(f, 1));
+		IpcRing next = IpcRing.create(f, 10, 1);
+		assertNotNull(IpcRing.open(f, 1));
+
+		// Only the ring in place is removed
+		producer.delete();
+		assertTrue(f.exists());
+		next.delete();
+		assertFalse(f.exists());
+		producer.close();
+		next.close();
+		dir.delete();
+	}
+
+	@Test
+	public void testBatchesThroughRingSmallerThanBatch() throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("ipcselector").toFile();
+		// Ring smaller than a batch, so that batches go through it in pieces
+		WorkerConfig wc = buildWorkerConfig(dir, 100);
+		final int id = 7;
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		InputBuffer ib = InputBuffer.makeInputBufferFor(wc, null);
+		final OutputBuffer ob = new OutputBuffer(null, 256, 4, null) {
+			@Override
+			public int id() {
+				return id;
+			}
+		};
+
+		final IpcSelector producerSide = new IpcSelector(wc);
+		Set<OBuffer> obufs = new HashSet<>();
+		obufs.add(ob);
+		producerSide.configureOutgoingConnection(obufs);
+		IpcSelector consumerSide = new IpcSelector(wc);
+		Map<Integer, IBuffer> ibMap = new HashMap<>();
+		ibMap.put(id, ib);
+		consumerSide.configureExpectedIncomingConnection(ibMap);
+		assertTrue(producerSide.initSelector());
+		assertTrue(consumerSide.initSelector());
+		assertTrue(IpcSelector.ringFileFor(dir, 0, id).exists());
+		producerSide.startSelector();
+		consumerSide.startSelector();
+
+		// 16 tuples per batch
+		final int tuples = 1024;
+		final Schema schema = s;
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				OTuple o = new OTuple(schema);
+				for(int i = 0; i < tuples; i++) {
+					o.setValues(new Object[]{i, (long)i});
+					if(ob.write(o, null)) {
+						producerSide.readyForWrite(id);
+					}
+				}
+			}
+		});
+		producer.start();
+
+		IpcDataStream ids = new IpcDataStream(wc, 0, ib, s);
+		for(int i = 0; i < tuples; i++) {
+			ITuple t = ids.pullDataItem(5000);
+			assertNotNull(t);
+			assertEquals(i, t.getInt("a"));
+			assertEquals((long)i, t.getLong("b"));
+		}
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		producerSide.stopSelector();
+		consumerSide.stopSelector();
+		// The ring is removed
+		assertFalse(IpcSelector.ringFileFor(dir, 0, id).exists());
+		dir.delete();
+	}
+
+}
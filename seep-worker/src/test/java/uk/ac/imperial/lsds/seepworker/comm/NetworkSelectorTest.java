@@ -2,8 +2,31 @@ package uk.ac.imperial.lsds.seepworker.comm;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
 import org.junit.Test;
 
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.comm.Connection;
+import uk.ac.imperial.lsds.seep.comm.OutgoingConnectionRequest;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+import uk.ac.imperial.lsds.seep.infrastructure.DataEndPoint;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.input.NetworkDataStream;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
+
 public class NetworkSelectorTest {
 
 	@Test
@@ -11,4 +34,80 @@ public class NetworkSelectorTest {
 		fail("Not yet implemented");
 	}
 
+	@Test
+	public void testSenderWaitsForCredits() throws IOException, InterruptedException {
+		int port = 0;
+		try(ServerSocket ss = new ServerSocket(0)) {
+			port = ss.getLocalPort();
+		}
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.setProperty(WorkerConfig.NUM_NETWORK_READER_THREADS, "1");
+		p.setProperty(WorkerConfig.NUM_NETWORK_WRITER_THREADS, "1");
+		p.setProperty(WorkerConfig.SIMPLE_INPUT_QUEUE_LENGTH, "2");
+		WorkerConfig wc = new WorkerConfig(p);
+
+		final int id = 7;
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		InputBuffer ib = InputBuffer.makeInputBufferFor(wc, null);
+		// Every tuple completes a batch
+		final OutputBuffer ob = new OutputBuffer(null, 16, 4, null) {
+			@Override
+			public int id() {
+				return id;
+			}
+		};
+
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		final NetworkSelector ns = new NetworkSelector(wc, 0);
+		ob.setEventAPI(ns);
+		ns.configureServerToListen(localhost, port);
+		Map<Integer, IBuffer> ibMap = new HashMap<>();
+		ibMap.put(id, ib);
+		ns.configureExpectedIncomingConnection(ibMap);
+		Set<OutgoingConnectionRequest> ocrs = new HashSet<>();
+		ocrs.add(new OutgoingConnectionRequest(new Connection(new DataEndPoint(id, "127.0.0.1", port)), ob));
+		ns.configureOutgoingConnection(ocrs);
+		ns.initSelector();
+		ns.startSelector();
+
+		final int tuples = 50;
+		final Schema schema = s;
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				OTuple o = new OTuple(schema);
+				for(int i = 0; i < tuples; i++) {
+					o.setValues(new Object[]{i, (long)i});
+					if(ob.write(o, null)) {
+						ns.readyForWrite(id);
+					}
+				}
+			}
+		});
+		producer.start();
+
+		// The receiver does not consume, so the sender stops once it used the 2 credits granted
+		long deadline = System.currentTimeMillis() + 5000;
+		while(! ob.isFull() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(ob.isFull());
+		Thread.sleep(100);
+		assertTrue(producer.isAlive());
+		assertTrue(ob.isFull());
+
+		NetworkDataStream nds = new NetworkDataStream(wc, 0, ib, s);
+		for(int i = 0; i < tuples; i++) {
+			ITuple t = nds.pullDataItem(5000);
+			assertNotNull(t);
+			assertEquals(i, t.getInt("a"));
+			assertEquals((long)i, t.getLong("b"));
+		}
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		ns.stopSelector();
+	}
+
 }
@@ -0,0 +1,97 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+public class AsyncSpillTest {
+
+	Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.INT, "v2").build();
+
+	final int tupleSize = 8 + TupleInfo.TUPLE_SIZE_OVERHEAD;
+	final int tuplesPerBuffer = 2;
+	final int numBuffers = 10;
+
+	private WorkerConfig buildWorkerConfig() {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, numBuffers * tuplesPerBuffer * tupleSize);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, tuplesPerBuffer * tupleSize);
+
+		// spill properties
+		p.put(WorkerConfig.SPILL_ASYNC, true);
+		p.put(WorkerConfig.SPILL_HIGH_WATERMARK, 0.5);
+		p.put(WorkerConfig.SPILL_LOW_WATERMARK, 0.3);
+
+		return new WorkerConfig(p);
+	}
+
+	/**
+	 * Fills the pool over the high watermark with a ranked (previous stage) dataset, and then writes
+	 * to a new dataset. The spill executor should evict the ranked dataset before the writer finds
+	 * the pool empty.
+	 */
+	@Test
+	public void testBackgroundSpillOfRankedDataset() throws InterruptedException {
+		DataReferenceManager drm = DataReferenceManager.makeDataReferenceManager(buildWorkerConfig());
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+
+		DataReference oldRef = DataReference.makeManagedDataReferenceWithOwner(10, dataStore, null, ServeMode.STORE);
+		OBuffer oldDataset = drm.manageNewDataReference(oldRef);
+		int written = 0;
+		for(int i = 0; i < tuplesPerBuffer * numBuffers / 2; i++) {
+			oldDataset.write(OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{i, i+1}), null);
+			written++;
+		}
+		drm.updateRankedDatasets(Arrays.asList(10));
+
+		// New stage writes to a new dataset, which triggers the background spill
+		DataReference newRef = DataReference.makeManagedDataReferenceWithOwner(11, dataStore, null, ServeMode.STORE);
+		OBuffer newDataset = drm.manageNewDataReference(newRef);
+		for(int i = 0; i < tuplesPerBuffer * 2; i++) {
+			newDataset.write(OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{i, i+1}), null);
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		// The dataset is marked on disk before its buffers go back to the pool
+		while(drm.getBufferPool().getPercAvailableMemory() <= 0.5 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(drm.datasetIsInMem(10));
+		assertTrue(drm.datasetIsInMem(11));
+		assertTrue(drm.getBufferPool().getPercAvailableMemory() > 0.5);
+
+		// Spilled data is intact
+		Dataset d = (Dataset) oldDataset;
+		ZCITuple t = new ZCITuple(s);
+		int read = 0;
+		ITuple i = null;
+		while((i = d.consumeData_zerocopy(t)) != null) {
+			assertEquals(read, i.getInt("v1"));
+			assertEquals(read + 1, i.getInt("v2"));
+			read++;
+		}
+		assertEquals(written, read);
+	}
+}
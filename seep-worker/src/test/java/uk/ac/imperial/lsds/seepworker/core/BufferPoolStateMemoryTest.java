@@ -0,0 +1,49 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.state.stateimpl.OffHeapSeepMap;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+public class BufferPoolStateMemoryTest {
+
+	private WorkerConfig buildWorkerConfig(int minBufferSize, long maxMemory) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, maxMemory);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, minBufferSize);
+
+		return new WorkerConfig(p);
+	}
+
+	@Test
+	public void testStateSharesTheBudgetOfThePool() {
+		// 8 buffers of 4KB
+		WorkerConfig wc = buildWorkerConfig(4096, 8 * 4096 + 1);
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		OffHeapSeepMap<Long, Long> map = new OffHeapSeepMap<>();
+		map.setStateMemory(new BufferPoolStateMemory(bp, wc));
+		for(long k = 0; k < 20000; k++) {
+			map.put(k, k * 2);
+		}
+		// The state took the whole pool, and spilled the rest
+		assertFalse(bp.isThereXMemAvailable(1));
+		assertNull(bp.borrowBuffer());
+		for(long k = 0; k < 20000; k++) {
+			assertEquals(Long.valueOf(k * 2), map.get(k));
+		}
+
+		map.clear();
+		assertTrue(bp.isThereXMemAvailable(7 * 4096));
+		assertNotNull(bp.borrowBuffer());
+	}
+
+}
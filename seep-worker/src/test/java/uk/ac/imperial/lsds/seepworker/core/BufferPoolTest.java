@@ -0,0 +1,300 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+public class BufferPoolTest {
+
+	Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.LONG, "v2").build();
+
+	private WorkerConfig buildWorkerConfig(int minBufferSize, long maxMemory, boolean offHeap) {
+		return buildWorkerConfig(minBufferSize, maxMemory, offHeap, 4);
+	}
+	
+	private WorkerConfig buildWorkerConfig(int minBufferSize, long maxMemory, boolean offHeap, int threadCacheSize) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, maxMemory);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, minBufferSize);
+		p.put(WorkerConfig.BUFFERPOOL_OFF_HEAP, offHeap);
+		p.put(WorkerConfig.BUFFERPOOL_OFF_HEAP_SLAB_BUFFERS, 4);
+		p.put(WorkerConfig.BUFFERPOOL_SIZE_CLASSES, 3);
+		p.put(WorkerConfig.BUFFERPOOL_THREAD_CACHE_SIZE, threadCacheSize);
+
+		return new WorkerConfig(p);
+	}
+
+	@Test
+	public void testOffHeapBorrowReturn() {
+		int minBufferSize = 8192;
+		BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(minBufferSize, minBufferSize * 10, true));
+		assertTrue(bp.isOffHeap());
+
+		double before = bp.getPercAvailableMemory();
+		ByteBuffer bb = bp.borrowBuffer();
+		assertNotNull(bb);
+		assertTrue(bb.isDirect());
+		assertEquals(minBufferSize, bb.capacity());
+		assertTrue(bp.getPercAvailableMemory() < before);
+
+		assertEquals(minBufferSize, bp.returnBuffer(bb));
+		assertEquals(before, bp.getPercAvailableMemory(), 0.0001);
+	}
+
+	@Test
+	public void testSizeClasses() {
+		int minBufferSize = 8192;
+		BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(minBufferSize, minBufferSize * 10, true));
+
+		// Smallest class that fits the request
+		ByteBuffer small = bp.borrowBuffer(1500);
+		assertNotNull(small);
+		assertEquals(minBufferSize / 4, small.capacity());
+		ByteBuffer medium = bp.borrowBuffer(minBufferSize / 2);
+		assertEquals(minBufferSize / 2, medium.capacity());
+		// Requests larger than the minimum buffer size are not served
+		assertNull(bp.borrowBuffer(minBufferSize + 1));
+
+		// Segments do not overlap
+		small.putInt(0, 42);
+		medium.putInt(0, 43);
+		assertEquals(42, small.getInt(0));
+
+		// Returned segments are recycled within their size class
+		bp.returnBuffer(small);
+		assertSame(small, bp.borrowBuffer(1024));
+	}
+
+	@Test
+	public void testSmallClassesSplitPreallocatedBuffers() {
+		int minBufferSize = 8192;
+		for(boolean offHeap : new boolean[]{ true, false }) {
+			// All the memory of the pool goes to buffers of minBufferSize on creation, but for one
+			BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(minBufferSize, minBufferSize * 10, offHeap));
+			double before = bp.getPercAvailableMemory();
+			List<ByteBuffer> small = new ArrayList<>();
+			ByteBuffer bb = null;
+			while((bb = bp.borrowBuffer(minBufferSize / 4)) != null) {
+				assertEquals(minBufferSize / 4, bb.capacity());
+				bb.putInt(0, small.size());
+				small.add(bb);
+			}
+			// The whole pool in the smallest class, with no buffer outside of it
+			assertEquals(40, small.size());
+			assertEquals(1.0, before - bp.getPercAvailableMemory(), 0.0001);
+			assertNull(bp.borrowBuffer());
+			for(int i = 0; i < small.size(); i++) {
+				assertEquals(i, small.get(i).getInt(0));
+			}
+			for(ByteBuffer b : small) {
+				bp.returnBuffer(b);
+			}
+			assertEquals(before, bp.getPercAvailableMemory(), 0.0001);
+			// Pieces are recycled within the smaller class
+			ByteBuffer recycled = bp.borrowBuffer(minBufferSize / 4);
+			Set<ByteBuffer> pieces = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+			pieces.addAll(small);
+			assertTrue(pieces.contains(recycled));
+		}
+	}
+
+	@Test
+	public void testOffHeapDatasetSpillAndRead() throws IOException {
+		// Each tuple is 16 bytes including overhead, so that 3 fit per buffer
+		WorkerConfig wc = buildWorkerConfig(48, 48 * 4, true);
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedDataReferenceWithOwner(555, dataStore, null, ServeMode.STORE);
+		Dataset d = new Dataset(dataRef, bp, null);
+
+		int written = 0;
+		for(int i = 0; i < 8; i++) {
+			byte[] srcData = OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{i, (long)i});
+			d.write(srcData, null);
+			written++;
+		}
+
+		// Spill direct buffers to disk and read them back
+		DiskCacher.makeDiskCacher(wc).cacheToDisk(d);
+		ZCITuple t = new ZCITuple(s);
+		int read = 0;
+		ITuple i = null;
+		while((i = d.consumeData_zerocopy(t)) != null) {
+			assertEquals(read, i.getInt("v1"));
+			assertEquals(read, i.getLong("v2"));
+			read++;
+		}
+		assertEquals(written, read);
+	}
+
+	@Test
+	public void testStealFromOtherThreadCache() throws InterruptedException {
+		int minBufferSize = 1024;
+		// All buffers of the pool end up cached by the owner thread
+		BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(minBufferSize, minBufferSize * 5, false, 8));
+		final AtomicInteger owned = new AtomicInteger();
+		final CountDownLatch cached = new CountDownLatch(1);
+		final CountDownLatch stealingDone = new CountDownLatch(1);
+		
+		Thread owner = new Thread(new Runnable() {
+			public void run() {
+				List<ByteBuffer> borrowed = new ArrayList<>();
+				ByteBuffer bb = null;
+				while((bb = bp.borrowBuffer()) != null) {
+					borrowed.add(bb);
+				}
+				for(ByteBuffer b : borrowed) {
+					bp.returnBuffer(b);
+				}
+				owned.set(borrowed.size());
+				cached.countDown();
+				// Alive, so that its magazine is not swept
+				try {
+					stealingDone.await();
+				}
+				catch (InterruptedException e) { }
+			}
+		});
+		owner.start();
+		cached.await();
+		
+		// The shared stack is empty, so these can only come from the other thread's cache
+		int stolen = 0;
+		while(bp.borrowBuffer() != null) {
+			stolen++;
+		}
+		stealingDone.countDown();
+		owner.join();
+		assertTrue(owned.get() > 0);
+		assertEquals(owned.get(), stolen);
+	}
+	
+	@Test
+	public void testMagazinesOfExitedThreadsAreSwept() throws InterruptedException {
+		int minBufferSize = 1024;
+		final BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(minBufferSize, minBufferSize * 5, false, 8));
+		final AtomicInteger owned = new AtomicInteger();
+		for(int i = 0; i < 20; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					List<ByteBuffer> borrowed = new ArrayList<>();
+					ByteBuffer bb = null;
+					while((bb = bp.borrowBuffer()) != null) {
+						borrowed.add(bb);
+					}
+					for(ByteBuffer b : borrowed) {
+						bp.returnBuffer(b);
+					}
+					owned.set(borrowed.size());
+				}
+			});
+			t.start();
+			t.join();
+			// The magazine of the previous thread was swept when this one registered
+			assertTrue(bp.getNumMagazines() <= 1);
+		}
+		// The buffers cached by the last thread are back in the shared stack
+		int borrowed = 0;
+		while(bp.borrowBuffer() != null) {
+			borrowed++;
+		}
+		assertEquals(owned.get(), borrowed);
+		assertEquals(1, bp.getNumMagazines());
+	}
+	
+	@Test
+	public void testConcurrentBorrowReturnStress() throws InterruptedException {
+		final int minBufferSize = 1024;
+		final int maxBuffers = 17;
+		final int numThreads = 16;
+		final int iterations = 20000;
+		final BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(minBufferSize, minBufferSize * maxBuffers, true));
+		final double initialAvailable = bp.getPercAvailableMemory();
+		
+		// ByteBuffer equality is content based, so track identities
+		final Set<ByteBuffer> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+		final Set<ByteBuffer> seen = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for(int t = 0; t < numThreads; t++) {
+			final int threadId = t;
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} 
+					catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					List<ByteBuffer> held = new ArrayList<>();
+					for(int i = 0; i < iterations; i++) {
+						// Hold a varying number of buffers to exercise caches, shared stack and stealing
+						if(held.size() < 3 && (i % 5) != 4) {
+							ByteBuffer bb = bp.borrowBuffer();
+							if(bb == null) {
+								continue;
+							}
+							if(! inUse.add(bb)) {
+								errors.incrementAndGet(); // handed out twice
+							}
+							seen.add(bb);
+							bb.putInt(0, threadId);
+							held.add(bb);
+						}
+						else if(! held.isEmpty()) {
+							ByteBuffer bb = held.remove(held.size() - 1);
+							if(bb.getInt(0) != threadId) {
+								errors.incrementAndGet(); // written by someone else while we held it
+							}
+							inUse.remove(bb);
+							bp.returnBuffer(bb);
+						}
+					}
+					for(ByteBuffer bb : held) {
+						inUse.remove(bb);
+						bp.returnBuffer(bb);
+					}
+				}
+			});
+			threads.add(th);
+			th.start();
+		}
+		start.countDown();
+		for(Thread th : threads) {
+			th.join();
+		}
+		
+		assertEquals(0, errors.get());
+		assertTrue(seen.size() <= maxBuffers);
+		assertEquals(initialAvailable, bp.getPercAvailableMemory(), 0.0001);
+	}
+}
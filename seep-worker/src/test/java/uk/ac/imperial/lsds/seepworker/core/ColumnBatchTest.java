@@ -0,0 +1,137 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ColumnarITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.DatasetInputAdapter;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
+
+public class ColumnBatchTest {
+
+	Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.LONG, "v2").build();
+
+	private WorkerConfig buildWorkerConfig(int minBufferSize) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, 1024L * 1024);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, minBufferSize);
+
+		return new WorkerConfig(p);
+	}
+
+	private Dataset newDataset(WorkerConfig wc, int id, boolean columnar) {
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedDataReferenceWithOwner(id, dataStore, null, ServeMode.STORE);
+		return columnar ? Dataset.newColumnarDataset(dataRef, bp, null) : new Dataset(dataRef, bp, null);
+	}
+
+	private void writeTuples(Dataset d, int numTuples) {
+		OTuple o = new OTuple(s);
+		for(int i = 0; i < numTuples; i++) {
+			o.setValues(new Object[]{i, (long)i * 10});
+			d.write(o, null);
+		}
+	}
+
+	private int readBatches(Dataset d, ColumnBatch batch) {
+		int read = 0;
+		while(d.consumeBatch(batch)) {
+			assertTrue(batch.size() > 0);
+			int[] v1 = batch.intColumn("v1");
+			long[] v2 = batch.longColumn(1);
+			for(int i = 0; i < batch.size(); i++) {
+				assertEquals(read, v1[i]);
+				assertEquals(read * 10L, v2[i]);
+				read++;
+			}
+		}
+		return read;
+	}
+
+	@Test
+	public void testConsumeBatchesFromBothLayouts() {
+		// Buffers of 7 tuples, read in batches of 5, so that batches span buffers
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 7 * 12);
+		for(boolean columnar : new boolean[]{false, true}) {
+			Dataset d = newDataset(wc, columnar ? 561 : 562, columnar);
+			writeTuples(d, 33);
+			ColumnBatch batch = new ColumnBatch(s, 5);
+			assertEquals(33, readBatches(d, batch));
+			// The dataset can be read again, also one tuple at a time
+			assertEquals(33, readBatches(d, batch));
+			int read = 0;
+			while(d.consumeData() != null) {
+				read++;
+			}
+			assertEquals(33, read);
+		}
+	}
+
+	@Test
+	public void testWriteBatchesToBothLayouts() {
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 7 * 12);
+		for(boolean columnar : new boolean[]{false, true}) {
+			Dataset d = newDataset(wc, columnar ? 563 : 564, columnar);
+			ColumnBatch out = new ColumnBatch(s, 16);
+			int written = 0;
+			for(int b = 0; b < 3; b++) {
+				int[] v1 = out.intColumn(0);
+				long[] v2 = out.longColumn(1);
+				for(int i = 0; i < out.capacity(); i++) {
+					v1[i] = written;
+					v2[i] = written * 10L;
+					written++;
+				}
+				out.setSize(out.capacity());
+				d.write(out, null);
+			}
+			DatasetInputAdapter dia = new DatasetInputAdapter(wc, 0, d);
+			ColumnBatch in = dia.newBatch(10);
+			int read = 0;
+			while(dia.pullDataBatch(in, 0)) {
+				for(int i = 0; i < in.size(); i++) {
+					assertEquals(read, in.intColumn(0)[i]);
+					assertEquals(read * 10L, in.longColumn(1)[i]);
+					read++;
+				}
+			}
+			assertEquals(written, read);
+		}
+	}
+
+	@Test
+	public void testInputBufferBatches() {
+		WorkerConfig wc = buildWorkerConfig(1024);
+		InputBuffer ib = InputBuffer.makeInputBufferFor(wc, null);
+		for(int i = 0; i < 7; i++) {
+			ib.pushData(OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{i, (long)i}));
+		}
+		ColumnBatch batch = new ColumnBatch(s, 4);
+		assertTrue(ib.read(batch, 10));
+		assertEquals(4, batch.size());
+		assertTrue(ib.read(batch, 10));
+		assertEquals(3, batch.size());
+		assertEquals(6, batch.intColumn(0)[2]);
+		assertFalse(ib.read(batch, 10));
+		assertEquals(0, batch.size());
+	}
+}
@@ -0,0 +1,148 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ColumnarITuple;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.DatasetInputAdapter;
+
+public class ColumnarDatasetTest {
+
+	Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.LONG, "v2")
+			.newField(Type.DOUBLE, "v3").build();
+
+	private WorkerConfig buildWorkerConfig(int minBufferSize, long maxMemory) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, maxMemory);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, minBufferSize);
+
+		return new WorkerConfig(p);
+	}
+
+	private Dataset newColumnarDataset(WorkerConfig wc, int id) {
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedDataReferenceWithOwner(id, dataStore, null, ServeMode.STORE);
+		return Dataset.newColumnarDataset(dataRef, bp, null);
+	}
+
+	private void writeTuples(Dataset d, int from, int to) {
+		OTuple o = new OTuple(s);
+		for(int i = from; i < to; i++) {
+			if(i % 2 == 0) {
+				o.setValues(new Object[]{i, (long)i * 10, i / 2.0});
+				d.write(o, null);
+			}
+			else {
+				d.write(OTuple.create(s, new String[]{"v1", "v2", "v3"}, new Object[]{i, (long)i * 10, i / 2.0}), null);
+			}
+		}
+	}
+
+	@Test
+	public void testColumnarLayoutWithoutSizes() {
+		// Header plus 5 tuples of 20 bytes per buffer
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 5 * 20, 1024 * 1024);
+		Dataset d = newColumnarDataset(wc, 557);
+		assertTrue(ColumnarLayout.supports(s));
+		assertTrue(d.isColumnar());
+		writeTuples(d, 0, 3);
+		// Tuples are accounted without size overhead
+		assertEquals(3 * s.sizeOfTuple(), d.size());
+
+		assertEquals(3, readAll(d));
+	}
+
+	@Test
+	public void testReadAcrossBuffersTwice() {
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 5 * 20, 1024 * 1024);
+		Dataset d = newColumnarDataset(wc, 558);
+		int written = 23;
+		writeTuples(d, 0, written);
+
+		assertEquals(written, readAll(d));
+		assertEquals(written, readAll(d));
+
+		// Row format reads get the same data as OTuple writes
+		int read = 0;
+		byte[] data = null;
+		while((data = d.consumeData()) != null) {
+			ByteBuffer bb = ByteBuffer.wrap(data);
+			assertEquals(read, bb.getInt());
+			assertEquals(read * 10L, bb.getLong());
+			assertEquals(read / 2.0, bb.getDouble(), 0.0);
+			read++;
+		}
+		assertEquals(written, read);
+	}
+
+	@Test
+	public void testSpilledColumnarDataset() throws IOException {
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 5 * 20, 1024 * 1024);
+		Dataset d = newColumnarDataset(wc, 559);
+		writeTuples(d, 0, 12);
+		DiskCacher dc = DiskCacher.makeDiskCacher(wc);
+		dc.cacheToDisk(d);
+		assertFalse(dc.inMem(d));
+		// Writes after the spill are appended to the spill file
+		writeTuples(d, 12, 30);
+
+		assertEquals(30, readAll(d));
+
+		dc.retrieveFromDisk(d);
+		assertTrue(dc.inMem(d));
+		assertEquals(30, readAll(d));
+		d.freeDataset();
+	}
+
+	@Test
+	public void testDatasetInputAdapterReadsColumnarDataset() {
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 5 * 20, 1024 * 1024);
+		Dataset d = newColumnarDataset(wc, 560);
+		writeTuples(d, 0, 17);
+		DatasetInputAdapter dia = new DatasetInputAdapter(wc, 0, d);
+		int read = 0;
+		ITuple t = null;
+		while((t = dia.pullDataItem(0)) != null) {
+			assertEquals(read, t.getInt("v1"));
+			assertEquals(read * 10L, t.getLong("v2"));
+			assertEquals(read / 2.0, t.getDouble("v3"), 0.0);
+			assertEquals(read, t.get("v1"));
+			read++;
+		}
+		assertEquals(17, read);
+	}
+
+	private int readAll(Dataset d) {
+		ColumnarITuple t = (ColumnarITuple) d.newZeroCopyTuple();
+		int read = 0;
+		ITuple i = null;
+		while((i = d.consumeData_zerocopy(t)) != null) {
+			assertEquals(read, i.getInt(0));
+			assertEquals(read * 10L, i.getLong(1));
+			assertEquals(read / 2.0, i.getDouble(2), 0.0);
+			read++;
+		}
+		return read;
+	}
+}
@@ -0,0 +1,195 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.ConnectionType;
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.core.InputAdapter;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.CoreInput;
+import uk.ac.imperial.lsds.seepworker.core.input.LocalDataStream;
+import uk.ac.imperial.lsds.seepworker.core.input.LocalInputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
+
+public class LocalChannelTest {
+
+	static Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+
+	private WorkerConfig buildWorkerConfig() {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.setProperty(WorkerConfig.SIMPLE_INPUT_QUEUE_LENGTH, "2");
+		p.setProperty(WorkerConfig.BATCH_SIZE, "256");
+		return new WorkerConfig(p);
+	}
+
+	@Test
+	public void testBatchesHandedOverByReference() throws InterruptedException {
+		final OutputBuffer ob = new OutputBuffer(null, 256, 4, null) {
+			@Override
+			public int id() {
+				return 1;
+			}
+		};
+		final Set<ByteBuffer> seenBuffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+		final LocalChannel channel = new LocalChannel(ob, 2) {
+			@Override
+			public ByteBuffer poll(int timeout) {
+				ByteBuffer batch = super.poll(timeout);
+				if(batch != null) {
+					seenBuffers.add(batch);
+				}
+				return batch;
+			}
+		};
+		ob.setEventAPI(channel);
+		LocalInputBuffer lib = LocalInputBuffer.makeOneFor(null, channel);
+		LocalDataStream lds = new LocalDataStream(null, 0, lib, s);
+
+		// 16 tuples per batch
+		final int tuples = 16 * 1000;
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				OTuple o = new OTuple(s);
+				for(int i = 0; i < tuples; i++) {
+					o.setValues(new Object[]{i, (long)i});
+					if(ob.write(o, null)) {
+						ob.getEventAPI().readyForWrite(1);
+					}
+				}
+			}
+		});
+		producer.start();
+
+		for(int i = 0; i < tuples; i++) {
+			ITuple t = lds.pullDataItem(5000);
+			assertNotNull(t);
+			assertEquals(i, t.getInt("a"));
+			assertEquals((long)i, t.getLong("b"));
+		}
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertNull(lds.pullDataItem(10));
+		// Consumed buffers go back to the producer, so of 1000 batches there are only as many buffers as fit in
+		// the ring and the channel, plus the current and next batch of the consumer
+		assertTrue(seenBuffers.size() <= 4 + 2 + 2);
+	}
+
+	@Test
+	public void testStreamProducedInThisWorkerIsConsumedLocally() {
+		WorkerConfig wc = buildWorkerConfig();
+		DataReferenceManager drm = DataReferenceManager.makeDataReferenceManager(wc);
+		DataStore ds = new DataStore(s, DataStoreType.NETWORK);
+		DataReference dr = DataReference.makeManagedDataReference(ds, null, ServeMode.STREAM);
+		Set<DataReference> drs = new HashSet<>();
+		drs.add(dr);
+
+		// The task consumes the stream it produces, both are built by the Conductor at once
+		Map<Integer, Set<DataReference>> output = new HashMap<>();
+		output.put(0, drs);
+		Map<Integer, Set<DataReference>> input = new HashMap<>();
+		input.put(0, drs);
+		Map<Integer, ConnectionType> connTypes = new HashMap<>();
+		connTypes.put(0, ConnectionType.ONE_AT_A_TIME);
+		Conductor conductor = new Conductor(null, null, null, wc, null, drm);
+		conductor.buildCoreFor(input, output, connTypes);
+		CoreInput coreInput = conductor.getCoreInput();
+		CoreOutput coreOutput = conductor.getCoreOutput();
+		assertTrue(coreInput.getIBufferProvider().get(dr.getId()) instanceof LocalInputBuffer);
+		assertTrue(coreInput.getIBufferThatRequireNetwork().isEmpty());
+		assertEquals(1, coreInput.getInputAdapters().size());
+		InputAdapter ia = coreInput.getInputAdapters().get(0);
+		assertTrue(ia instanceof LocalDataStream);
+		// Only one consumer per stream
+		assertFalse(drm.isStreamedFromThisWorker(dr));
+
+		Collector api = new Collector(0, coreOutput);
+		OTuple o = new OTuple(s);
+		for(int i = 0; i < 32; i++) {
+			o.setValues(new Object[]{i, (long)i});
+			api.send(o);
+		}
+		for(int i = 0; i < 32; i++) {
+			ITuple t = ia.pullDataItem(1000);
+			assertNotNull(t);
+			assertEquals(i, t.getInt("a"));
+		}
+	}
+
+	@Test
+	public void testStreamsNotConsumedLocallyAreForgottenOnStop() {
+		WorkerConfig wc = buildWorkerConfig();
+		DataReferenceManager drm = DataReferenceManager.makeDataReferenceManager(wc);
+		DataReference dr = DataReference.makeManagedDataReference(new DataStore(s, DataStoreType.NETWORK), null, ServeMode.STREAM);
+		Set<DataReference> drs = new HashSet<>();
+		drs.add(dr);
+		Map<Integer, Set<DataReference>> output = new HashMap<>();
+		output.put(0, drs);
+		Conductor conductor = new Conductor(null, null, null, wc, null, drm);
+		conductor.buildCoreFor(new HashMap<Integer, Set<DataReference>>(), output, new HashMap<Integer, ConnectionType>());
+		assertTrue(drm.isStreamedFromThisWorker(dr));
+		// As the Conductor does once its task stops
+		drm.unregisterStreamOutputs(conductor.getCoreOutput().getBuffers().values());
+		assertFalse(drm.isStreamedFromThisWorker(dr));
+	}
+
+	@Test
+	public void testPooledSlotsAreReturnedOnClose() {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, 1024L * 1024);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, 1024);
+		p.put(WorkerConfig.BUFFERPOOL_OFF_HEAP, true);
+		BufferPool bp = BufferPool.createBufferPool(new WorkerConfig(p));
+		double available = bp.getPercAvailableMemory();
+
+		OutputBuffer ob = new OutputBuffer(null, 256, 4, bp);
+		assertTrue(bp.getPercAvailableMemory() < available);
+		LocalChannel channel = new LocalChannel(ob, 2);
+		ob.setEventAPI(channel);
+		LocalInputBuffer input = LocalInputBuffer.makeOneFor(null, channel);
+		OTuple o = new OTuple(s);
+		int read = 0;
+		for(int i = 0; i < 500; i++) {
+			o.setValues(new Object[]{i, (long)i});
+			if(ob.write(o, null)) {
+				channel.readyForWrite(1);
+				while(input.read(0) != null) {
+					read++;
+				}
+			}
+		}
+		assertTrue(read > 0);
+		ob.close();
+		// The batch the consumer still reads comes back once it moves past it, e.g. to an empty one
+		assertTrue(bp.getPercAvailableMemory() < available);
+		channel.offer(ByteBuffer.allocate(0));
+		input.read(0);
+		assertEquals(available, bp.getPercAvailableMemory(), 0.0);
+	}
+
+}
@@ -0,0 +1,184 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.API;
+import uk.ac.imperial.lsds.seep.api.BatchAPI;
+import uk.ac.imperial.lsds.seep.api.BatchSeepTask;
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.RuntimeEvent;
+import uk.ac.imperial.lsds.seep.api.SeepTask;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.core.IBuffer;
+import uk.ac.imperial.lsds.seep.core.InputAdapter;
+import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.Conductor.ConductorCallback;
+import uk.ac.imperial.lsds.seepworker.core.input.CoreInput;
+import uk.ac.imperial.lsds.seepworker.core.input.DatasetInputAdapter;
+import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
+
+public class MultiThreadProcessingEngineTest {
+
+	static Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.LONG, "v2").build();
+	static AtomicInteger setUps = new AtomicInteger();
+	static AtomicInteger setUpTwice = new AtomicInteger();
+
+	private WorkerConfig buildWorkerConfig(int threads) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.put(WorkerConfig.ENGINE_TYPE, (int)ProcessingEngineType.MULTI_THREAD.ofType());
+		p.put(WorkerConfig.ENGINE_THREADS, threads);
+		p.put(WorkerConfig.PROCESSING_BATCH_SIZE, 64);
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, 16L * 1024 * 1024);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, 4096);
+
+		return new WorkerConfig(p);
+	}
+
+	public static class PassThrough implements SeepTask {
+		private int processed;
+		private boolean isSetUp;
+		@Override
+		public void setUp() {
+			if(isSetUp) {
+				setUpTwice.incrementAndGet();
+			}
+			isSetUp = true;
+			setUps.incrementAndGet();
+		}
+		@Override
+		public void processData(ITuple data, API api) {
+			processed++;
+			api.send(OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{data.getInt("v1"), data.getLong("v2")}));
+		}
+		@Override
+		public void processDataGroup(List<ITuple> d, API api) { }
+		@Override
+		public void close() { }
+	}
+
+	public static class BatchPassThrough extends PassThrough implements BatchSeepTask {
+		@Override
+		public void processBatch(ColumnBatch batch, BatchAPI api) {
+			api.sendBatch(batch);
+		}
+	}
+
+	private Dataset newDataset(BufferPool bp, int id, int partitionId, int from, int to) {
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedAndPartitionedDataReference(dataStore, null, ServeMode.STORE, partitionId);
+		Dataset d = new Dataset(id, dataRef, bp, null);
+		OTuple o = new OTuple(s);
+		for(int i = from; i < to; i++) {
+			o.setValues(new Object[]{i, (long)i});
+			d.write(o, null);
+		}
+		return d;
+	}
+
+	private void runEngine(SeepTask task, int threads) throws InterruptedException {
+		WorkerConfig wc = buildWorkerConfig(threads);
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		int numPartitions = 8;
+		int perPartition = 500;
+		List<InputAdapter> ias = new ArrayList<>();
+		for(int p = 0; p < numPartitions; p++) {
+			Dataset d = newDataset(bp, p, p, p * perPartition, (p + 1) * perPartition);
+			ias.add(new DatasetInputAdapter(wc, 0, d));
+		}
+		CoreInput coreInput = new CoreInput(wc, new HashMap<Integer, Set<DataReference>>(), new HashMap<Integer, IBuffer>(), ias);
+
+		DataStore outStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference outRef = DataReference.makeManagedDataReference(outStore, null, ServeMode.STORE);
+		Dataset out = new Dataset(outRef, bp, null);
+		Map<Integer, OBuffer> oBuffers = new HashMap<>();
+		oBuffers.put(outRef.getId(), out);
+		Map<Integer, List<OBuffer>> streamIdToOBuffers = new HashMap<>();
+		List<OBuffer> l = new ArrayList<>();
+		l.add(out);
+		streamIdToOBuffers.put(0, l);
+		Map<Integer, Set<DataReference>> output = new HashMap<>();
+		Set<DataReference> outRefs = new HashSet<>();
+		outRefs.add(outRef);
+		output.put(0, outRefs);
+		CoreOutput coreOutput = new CoreOutput(output, streamIdToOBuffers, oBuffers);
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicInteger notifications = new AtomicInteger();
+		Conductor conductor = new Conductor(null, null, null, wc, null, null);
+		ConductorCallback callback = conductor.new ConductorCallback(false) {
+			@Override
+			public boolean isContinuousTask() {
+				return false;
+			}
+			@Override
+			public void notifyOk(List<RuntimeEvent> runtimeEvents) {
+				notifications.incrementAndGet();
+				done.countDown();
+			}
+		};
+
+		setUps.set(0);
+		setUpTwice.set(0);
+		ProcessingEngine engine = ProcessingEngineFactory.buildComposedTaskProcessingEngine(wc, 0, task, null, coreInput, coreOutput, callback);
+		assertTrue(engine instanceof MultiThreadProcessingEngine);
+		assertEquals(threads, ((MultiThreadProcessingEngine)engine).getNumWorkers());
+		// As the Conductor does
+		task.setUp();
+		engine.start();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		engine.stop();
+		assertEquals(1, notifications.get());
+		// Every worker sets up its own copy of the task, copied before the original was set up
+		assertEquals(threads, setUps.get());
+		assertEquals(0, setUpTwice.get());
+
+		// All input is in the output, exactly once
+		boolean[] seen = new boolean[numPartitions * perPartition];
+		byte[] data = null;
+		int read = 0;
+		while((data = out.consumeData()) != null) {
+			int v = java.nio.ByteBuffer.wrap(data).getInt();
+			assertFalse(seen[v]);
+			seen[v] = true;
+			read++;
+		}
+		assertEquals(numPartitions * perPartition, read);
+	}
+
+	@Test
+	public void testAllPartitionsProcessedByWorkerPool() throws InterruptedException {
+		runEngine(new PassThrough(), 4);
+	}
+
+	@Test
+	public void testBatchTaskOnWorkerPool() throws InterruptedException {
+		runEngine(new BatchPassThrough(), 3);
+	}
+}
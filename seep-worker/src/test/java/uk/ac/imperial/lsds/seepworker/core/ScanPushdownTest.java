@@ -0,0 +1,175 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ColumnBatch;
+import uk.ac.imperial.lsds.seep.api.data.ColumnarITuple;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec.Op;
+import uk.ac.imperial.lsds.seep.api.data.ScanSpec.ScanSpecBuilder;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.errors.NotSupportedException;
+import uk.ac.imperial.lsds.seep.scheduler.Stage;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.DatasetInputAdapter;
+import uk.ac.imperial.lsds.seepworker.core.input.InputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.input.NetworkDataStream;
+
+public class ScanPushdownTest {
+
+	Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.LONG, "v2")
+			.newField(Type.DOUBLE, "v3").build();
+	// Even v1 in [10, 40)
+	ScanSpec spec = new ScanSpecBuilder().where("v1", Op.GE, 10).where("v1", Op.LT, 40).where("v3", Op.EQ, 0.0)
+			.project("v2", "v1").build();
+
+	private WorkerConfig buildWorkerConfig(int minBufferSize) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, 1024L * 1024);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, minBufferSize);
+
+		return new WorkerConfig(p);
+	}
+
+	private Dataset newDataset(WorkerConfig wc, int id, boolean columnar) {
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedDataReferenceWithOwner(id, dataStore, null, ServeMode.STORE);
+		Dataset d = columnar ? Dataset.newColumnarDataset(dataRef, bp, null) : new Dataset(dataRef, bp, null);
+		OTuple o = new OTuple(s);
+		for(int i = 0; i < 50; i++) {
+			o.setValues(new Object[]{i, (long)i * 10, (double)(i % 2)});
+			d.write(o, null);
+		}
+		return d;
+	}
+
+	@Test
+	public void testOnlyQualifyingTuplesAreRead() {
+		// Buffers of 7 tuples
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 7 * 20);
+		for(boolean columnar : new boolean[]{false, true}) {
+			Dataset d = newDataset(wc, columnar ? 571 : 572, columnar);
+			DatasetInputAdapter dia = new DatasetInputAdapter(wc, 0, d, spec);
+			for(int pass = 0; pass < 2; pass++) {
+				int expected = 10;
+				ITuple t = null;
+				while((t = dia.pullDataItem(0)) != null) {
+					assertEquals(expected, t.getInt("v1"));
+					assertEquals(expected * 10L, t.getLong(0));
+					assertFalse(t.getSchema().hasField("v3"));
+					expected = expected + 2;
+				}
+				assertEquals(40, expected);
+			}
+		}
+	}
+
+	@Test
+	public void testBatchesHoldQualifyingTuples() {
+		WorkerConfig wc = buildWorkerConfig(ColumnarITuple.HEADER_SIZE + 7 * 20);
+		for(boolean columnar : new boolean[]{false, true}) {
+			Dataset d = newDataset(wc, columnar ? 573 : 574, columnar);
+			DatasetInputAdapter dia = new DatasetInputAdapter(wc, 0, d, spec);
+			ColumnBatch batch = dia.newBatch(4);
+			int expected = 10;
+			while(dia.pullDataBatch(batch, 0)) {
+				for(int i = 0; i < batch.size(); i++) {
+					assertEquals(expected * 10L, batch.longColumn("v2")[i]);
+					assertEquals(expected, batch.intColumn(1)[i]);
+					expected = expected + 2;
+				}
+			}
+			assertEquals(40, expected);
+		}
+	}
+
+	private InputBuffer newNetworkInput(WorkerConfig wc, int id) {
+		DataReference dataRef = DataReference.makeManagedDataReferenceWithOwner(id,
+				new DataStore(s, DataStoreType.IN_MEMORY), null, ServeMode.STORE);
+		InputBuffer ib = InputBuffer.makeInputBufferFor(wc, dataRef);
+		for(int i = 0; i < 50; i++) {
+			ib.pushData(OTuple.create(s, new String[]{"v1", "v2", "v3"}, new Object[]{i, (long)i * 10, (double)(i % 2)}));
+		}
+		return ib;
+	}
+
+	@Test
+	public void testNetworkInputsOfDatasetsAreScannedToo() {
+		WorkerConfig wc = buildWorkerConfig(1024);
+		NetworkDataStream nds = new NetworkDataStream(wc, 0, newNetworkInput(wc, 577), s, spec);
+		int expected = 10;
+		ITuple t = null;
+		while((t = nds.pullDataItem(0)) != null) {
+			assertEquals(expected, t.getInt("v1"));
+			assertEquals(expected * 10L, t.getLong(0));
+			assertFalse(t.getSchema().hasField("v3"));
+			expected = expected + 2;
+		}
+		assertEquals(40, expected);
+		
+		nds = new NetworkDataStream(wc, 0, newNetworkInput(wc, 578), s, spec);
+		ColumnBatch batch = nds.newBatch(4);
+		assertFalse(batch.getSchema().hasField("v3"));
+		expected = 10;
+		while(nds.pullDataBatch(batch, 0)) {
+			for(int i = 0; i < batch.size(); i++) {
+				assertEquals(expected * 10L, batch.longColumn("v2")[i]);
+				assertEquals(expected, batch.intColumn(1)[i]);
+				expected = expected + 2;
+			}
+		}
+		assertEquals(40, expected);
+	}
+
+	@Test
+	public void testStageAttachesSpecToInputs() {
+		WorkerConfig wc = buildWorkerConfig(1024);
+		Dataset d = newDataset(wc, 575, false);
+		Stage stage = new Stage(1);
+		stage.pushDownToInput(0, spec);
+		stage.addInputDataReference(0, java.util.Collections.singleton(d.getDataReference()));
+		DataReference input = stage.getInputDataReferences().get(0).iterator().next();
+		assertEquals(d.getDataReference().getId(), input.getId());
+		assertSame(spec, input.getScanSpec());
+		assertNull(d.getDataReference().getScanSpec());
+	}
+
+	@Test
+	public void testStageRefusesSpecForInputsThatAreNotDatasets() {
+		Stage stage = new Stage(2);
+		stage.pushDownToInput(0, spec);
+		DataReference external = DataReference.makeExternalDataReference(new DataStore(s, DataStoreType.NETWORK));
+		try {
+			stage.addInputDataReference(0, java.util.Collections.singleton(external));
+			fail();
+		}
+		catch(NotSupportedException e) { }
+		DataReference streamed = DataReference.makeManagedDataReferenceWithOwner(576,
+				new DataStore(s, DataStoreType.NETWORK), null, ServeMode.STREAM);
+		stage.addInputDataReference(1, java.util.Collections.singleton(streamed));
+		try {
+			stage.pushDownToInput(1, spec);
+			fail();
+		}
+		catch(NotSupportedException e) { }
+	}
+
+}
@@ -1,5 +1,7 @@
 package uk.ac.imperial.lsds.seepworker.core;
 
+import static org.junit.Assert.*;
+
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -9,12 +11,17 @@ import java.util.Set;
 import org.junit.Test;
 
 import uk.ac.imperial.lsds.seep.api.API;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.SeepTask;
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
 import uk.ac.imperial.lsds.seep.api.data.OTuple;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
 import uk.ac.imperial.lsds.seep.api.data.TransporterITuple;
 import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.operator.LogicalOperator;
+import uk.ac.imperial.lsds.seep.api.operator.SeepLogicalOperator;
 import uk.ac.imperial.lsds.seep.api.operator.SeepLogicalQuery;
 import uk.ac.imperial.lsds.seep.scheduler.ScheduleDescription;
 import uk.ac.imperial.lsds.seep.scheduler.Stage;
@@ -106,5 +113,92 @@ public class ScheduleTaskTest {
 		System.out.println(out.toString());
 				
 	}
+	
+	@Test
+	public void testFusedOperatorsWithDifferentSchemas() {
+		final Schema in = SchemaBuilder.getInstance().newField(Type.INT, "userId").newField(Type.LONG, "ts").build();
+		final Schema mid = SchemaBuilder.getInstance().newField(Type.LONG, "key").newField(Type.DOUBLE, "half").build();
+		final Schema out = SchemaBuilder.getInstance().newField(Type.STRING, "tag").newField(Type.INT, "n").build();
+		
+		// Projects and reuses its output tuple
+		SeepTask project = new Op() {
+			OTuple o = new OTuple(mid);
+			Object[] values = new Object[2];
+			@Override
+			public void processData(ITuple data, API api) {
+				values[0] = data.getInt("userId") + data.getLong("ts");
+				values[1] = data.getLong("ts") / 2.0;
+				o.setValues(values);
+				api.send(o);
+			}
+		};
+		// Sends two tuples per input
+		SeepTask split = new Op() {
+			@Override
+			public void processData(ITuple data, API api) {
+				for(int i = 0; i < 2; i++) {
+					OTuple o = new OTuple(out);
+					o.setValues(new Object[]{ data.getLong("key") + ":" + data.getDouble("half"), i });
+					api.send(o);
+				}
+			}
+		};
+		// Receives serialized tuples
+		SeepTask passOn = new Op() {
+			@Override
+			public void processData(ITuple data, API api) {
+				api.send(OTuple.create(out, out.names(), new Object[]{ data.getString("tag"), data.getInt("n") }));
+			}
+		};
+		
+		LogicalOperator op1 = SeepLogicalOperator.newStatelessOperator(1, project);
+		LogicalOperator op2 = SeepLogicalOperator.newStatelessOperator(2, split);
+		LogicalOperator op3 = SeepLogicalOperator.newStatelessOperator(3, passOn);
+		op1.connectTo(op2, 0, new DataStore(mid, DataStoreType.NETWORK));
+		op2.connectTo(op3, 0, new DataStore(out, DataStoreType.NETWORK));
+		
+		// Stages are built from the downstream operator
+		Stage s = new Stage(0);
+		s.add(3);
+		s.add(2);
+		s.add(1);
+		Set<Stage> stages = new HashSet<>();
+		stages.add(s);
+		List<LogicalOperator> ops = new ArrayList<>();
+		ops.add(op1);
+		ops.add(op2);
+		ops.add(op3);
+		ScheduleTask st = ScheduleTask.buildTaskFor(0, s, new ScheduleDescription(stages, ops));
+		st.setUp();
+		
+		final List<String> received = new ArrayList<>();
+		API api = new SimpleCollector() {
+			@Override
+			public void send(byte[] o) {
+				ITuple t = new ITuple(out, o);
+				received.add(t.getString("tag") + "/" + t.getInt("n"));
+			}
+		};
+		ITuple data = new ITuple(in);
+		for(int i = 0; i < 3; i++) {
+			data.setData(OTuple.create(in, in.names(), new Object[]{ i, 10L * i }));
+			st.processData(data, api);
+		}
+		
+		assertEquals(6, received.size());
+		assertEquals("0:0.0/0", received.get(0));
+		assertEquals("0:0.0/1", received.get(1));
+		assertEquals("11:5.0/0", received.get(2));
+		assertEquals("22:10.0/1", received.get(5));
+	}
+	
+	abstract class Op implements SeepTask {
+		@Override
+		public void setUp() { }
+		@Override
+		public void processDataGroup(List<ITuple> dataList, API api) { }
+		@Override
+		public void close() { }
+	}
 
 }
@@ -0,0 +1,184 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.data.ITuple;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+public class SpillFileTest {
+
+	Schema s = SchemaBuilder.getInstance().newField(Type.INT, "v1").newField(Type.LONG, "v2").build();
+
+	private WorkerConfig buildWorkerConfig(int minBufferSize, long maxMemory) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, maxMemory);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, minBufferSize);
+
+		return new WorkerConfig(p);
+	}
+
+	@Test
+	public void testAppendAndReadFramesAcrossWindows() throws IOException {
+		String name = "spillfiletest_" + System.nanoTime() + ".cached";
+		// Small window, so that reads have to remap the file
+		SpillFile sf = SpillFile.open(name, 64, SpillCodec.NONE);
+		int numFrames = 20;
+		for(int i = 0; i < numFrames; i++) {
+			ByteBuffer payload = ByteBuffer.allocate(4 * (i + 1));
+			for(int j = 0; j <= i; j++) {
+				payload.putInt(i);
+			}
+			payload.flip();
+			assertEquals(4 * (i + 1), sf.append(payload));
+			assertFalse(payload.hasRemaining());
+		}
+
+		long position = 0;
+		for(int i = 0; i < numFrames; i++) {
+			ByteBuffer frame = sf.readFrame(position);
+			assertNotNull(frame);
+			assertTrue(frame.isReadOnly());
+			assertEquals(4 * (i + 1), frame.remaining());
+			while(frame.hasRemaining()) {
+				assertEquals(i, frame.getInt());
+			}
+			position = sf.nextFramePosition();
+		}
+		assertEquals(sf.size(), position);
+		assertNull(sf.readFrame(position));
+
+		assertTrue(sf.delete());
+		assertFalse(new File(name).exists());
+	}
+
+	@Test
+	public void testCompressedFramesRoundTrip() throws IOException {
+		for(SpillCodec codec : SpillCodec.values()) {
+			String name = "spillfiletest_" + codec + "_" + System.nanoTime() + ".cached";
+			SpillFile sf = SpillFile.open(name, codec);
+			// Compressible heap frame, compressible direct frame and an incompressible frame
+			ByteBuffer heap = ByteBuffer.allocate(4096);
+			ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+			while(heap.hasRemaining()) {
+				heap.putInt(heap.position() % 64);
+				direct.putInt(direct.position() % 64);
+			}
+			heap.flip();
+			direct.flip();
+			ByteBuffer random = ByteBuffer.allocate(1024);
+			new Random(7).nextBytes(random.array());
+			
+			sf.append(heap.duplicate());
+			sf.append(direct.duplicate());
+			sf.append(random.duplicate());
+			if(codec != SpillCodec.NONE) {
+				assertTrue(sf.size() < 2 * 4096 + 1024);
+			}
+			
+			assertEquals(heap, sf.readFrame(0));
+			assertEquals(direct, sf.readFrame(sf.nextFramePosition()));
+			ByteBuffer r = sf.readFrame(sf.nextFramePosition());
+			assertEquals(random, r);
+			// Incompressible frames are stored raw and served from the mapped file
+			assertTrue(r.isReadOnly());
+			assertNull(sf.readFrame(sf.nextFramePosition()));
+			sf.delete();
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testCorruptedFrameIsDetected() throws IOException {
+		String name = "spillfiletest_" + System.nanoTime() + ".cached";
+		SpillFile sf = SpillFile.open(name, SpillCodec.LZ4);
+		ByteBuffer payload = ByteBuffer.allocate(1024);
+		sf.append(payload);
+		sf.close();
+		
+		// Flip a byte of the stored frame
+		RandomAccessFile raf = new RandomAccessFile(name, "rw");
+		raf.seek(SpillFile.FRAME_HEADER_SIZE + 1);
+		int b = raf.read();
+		raf.seek(SpillFile.FRAME_HEADER_SIZE + 1);
+		raf.write(b ^ 0xFF);
+		raf.close();
+		
+		sf = SpillFile.open(name, SpillCodec.LZ4);
+		try {
+			sf.readFrame(0);
+		}
+		finally {
+			sf.delete();
+		}
+	}
+
+	@Test
+	public void testReadSpilledDatasetFromMappedFile() throws IOException {
+		// Each tuple is 16 bytes including overhead, so that 3 fit per buffer
+		WorkerConfig wc = buildWorkerConfig(48, 48 * 8);
+		BufferPool bp = BufferPool.createBufferPool(wc);
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedDataReferenceWithOwner(556, dataStore, null, ServeMode.STORE);
+		Dataset d = new Dataset(dataRef, bp, null);
+
+		int written = 0;
+		for(int i = 0; i < 10; i++) {
+			d.write(OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{i, (long)i}), null);
+			written++;
+		}
+		DiskCacher dc = DiskCacher.makeDiskCacher(wc);
+		dc.cacheToDisk(d);
+		assertFalse(dc.inMem(d));
+		// Writes after the spill are appended to the spill file
+		for(int i = 10; i < 20; i++) {
+			d.write(OTuple.create(s, new String[]{"v1", "v2"}, new Object[]{i, (long)i}), null);
+			written++;
+		}
+
+		// Read twice, the dataset can be read again once consumed
+		for(int round = 0; round < 2; round++) {
+			ZCITuple t = new ZCITuple(s);
+			int read = 0;
+			ITuple i = null;
+			while((i = d.consumeData_zerocopy(t)) != null) {
+				assertEquals(read, i.getInt("v1"));
+				assertEquals(read, i.getLong("v2"));
+				read++;
+			}
+			assertEquals(written, read);
+		}
+
+		// And back to memory
+		dc.retrieveFromDisk(d);
+		assertTrue(dc.inMem(d));
+		int read = 0;
+		byte[] data = null;
+		while((data = d.consumeData()) != null) {
+			assertEquals(read, ByteBuffer.wrap(data).getInt());
+			read++;
+		}
+		assertEquals(written, read);
+	}
+}
@@ -0,0 +1,152 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+
+public class SpillReadAheadTest {
+
+	private final int frameSize = 1024;
+
+	private WorkerConfig buildWorkerConfig(int numBuffers) {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+
+		// mem properties
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, (long)(frameSize * numBuffers));
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, frameSize);
+
+		return new WorkerConfig(p);
+	}
+
+	private SpillFile writeFrames(int numFrames) throws IOException {
+		return writeFrames(numFrames, SpillCodec.NONE);
+	}
+
+	private SpillFile writeFrames(int numFrames, SpillCodec codec) throws IOException {
+		SpillFile sf = SpillFile.open("spillreadaheadtest_" + System.nanoTime() + ".cached", codec);
+		for(int i = 0; i < numFrames; i++) {
+			ByteBuffer payload = ByteBuffer.allocate(frameSize);
+			while(payload.hasRemaining()) {
+				payload.putInt(i);
+			}
+			payload.flip();
+			sf.append(payload);
+		}
+		return sf;
+	}
+
+	@Test
+	public void testReadAheadAllFrames() throws IOException {
+		for(SpillCodec codec : new SpillCodec[]{ SpillCodec.NONE, SpillCodec.LZ4 }) {
+			int numFrames = 50;
+			SpillFile sf = writeFrames(numFrames, codec);
+			BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(numFrames));
+			double initialAvailable = bp.getPercAvailableMemory();
+			ExecutorService io = Executors.newSingleThreadExecutor();
+
+			SpillReadAhead ra = new SpillReadAhead(sf, 0, bp, io, 8);
+			ra.start();
+			ByteBuffer bb = null;
+			int read = 0;
+			while((bb = ra.next()) != null) {
+				// Raw frames are read in place from the mapped file
+				assertEquals(codec == SpillCodec.NONE, bb.isDirect() && bb.isReadOnly());
+				assertEquals(frameSize, bb.remaining());
+				while(bb.hasRemaining()) {
+					assertEquals(read, bb.getInt());
+				}
+				read++;
+				assertTrue(ra.getDepth() >= 2 && ra.getDepth() <= 8);
+			}
+			assertEquals(numFrames, read);
+			assertEquals(sf.size(), ra.position());
+			ra.close();
+			assertEquals(initialAvailable, bp.getPercAvailableMemory(), 0.0001);
+
+			io.shutdown();
+			sf.delete();
+		}
+	}
+
+	@Test
+	public void testRawFramesDoNotTakeMemoryFromThePool() throws IOException {
+		int numFrames = 20;
+		SpillFile sf = writeFrames(numFrames);
+		BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(2));
+		ExecutorService io = Executors.newSingleThreadExecutor();
+		List<ByteBuffer> held = new ArrayList<>();
+		ByteBuffer bb = null;
+		while((bb = bp.borrowBuffer()) != null) {
+			held.add(bb);
+		}
+
+		SpillReadAhead ra = new SpillReadAhead(sf, 0, bp, io, 8);
+		ra.start();
+		int read = 0;
+		while((bb = ra.next()) != null) {
+			assertEquals(read, bb.getInt(0));
+			read++;
+		}
+		ra.close();
+		assertEquals(numFrames, read);
+
+		for(ByteBuffer h : held) {
+			bp.returnBuffer(h);
+		}
+		io.shutdown();
+		sf.delete();
+	}
+
+	@Test
+	public void testFallbackWhenOutOfMemory() throws IOException {
+		int numFrames = 20;
+		// Compressed frames are decompressed ahead into buffers of the pool
+		SpillFile sf = writeFrames(numFrames, SpillCodec.LZ4);
+		BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig(2));
+		ExecutorService io = Executors.newSingleThreadExecutor();
+		// Hold on to the whole pool so that the read-ahead stops
+		List<ByteBuffer> held = new ArrayList<>();
+		ByteBuffer bb = null;
+		while((bb = bp.borrowBuffer()) != null) {
+			held.add(bb);
+		}
+
+		SpillReadAhead ra = new SpillReadAhead(sf, 0, bp, io, 8);
+		ra.start();
+		int read = 0;
+		while((bb = ra.next()) != null) {
+			assertEquals(read, bb.getInt(0));
+			read++;
+		}
+		ra.close();
+		assertEquals(0, read);
+
+		// Carry on synchronously from where the read-ahead stopped
+		long position = ra.position();
+		while((bb = sf.readFrame(position)) != null) {
+			assertEquals(read, bb.getInt(0));
+			read++;
+			position = sf.nextFramePosition();
+		}
+		assertEquals(numFrames, read);
+
+		for(ByteBuffer h : held) {
+			bp.returnBuffer(h);
+		}
+		io.shutdown();
+		sf.delete();
+	}
+}
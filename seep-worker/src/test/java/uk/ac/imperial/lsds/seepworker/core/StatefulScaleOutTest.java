@@ -0,0 +1,309 @@
+package uk.ac.imperial.lsds.seepworker.core;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.imperial.lsds.seep.api.DataReference;
+import uk.ac.imperial.lsds.seep.api.DataReference.ServeMode;
+import uk.ac.imperial.lsds.seep.api.DataStore;
+import uk.ac.imperial.lsds.seep.api.DataStoreType;
+import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.Schema;
+import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.state.stateimpl.SeepMap;
+import uk.ac.imperial.lsds.seep.core.OBuffer;
+import uk.ac.imperial.lsds.seep.errors.SeepException;
+import uk.ac.imperial.lsds.seepworker.WorkerConfig;
+import uk.ac.imperial.lsds.seepworker.core.input.BatchIBuffer;
+import uk.ac.imperial.lsds.seepworker.core.input.LocalInputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.output.CoreOutput;
+import uk.ac.imperial.lsds.seepworker.core.output.OutputBuffer;
+import uk.ac.imperial.lsds.seepworker.core.output.routing.ConsistentHashingRoutingState;
+
+public class StatefulScaleOutTest {
+
+	static Schema s = SchemaBuilder.getInstance().newField(Type.INT, "key").build();
+
+	private WorkerConfig buildWorkerConfig() {
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		p.put(WorkerConfig.BUFFERPOOL_MAX_MEM_AVAILABLE, 16L * 1024 * 1024);
+		p.put(WorkerConfig.BUFFERPOOL_MIN_BUFFER_SIZE, 4096);
+		return new WorkerConfig(p);
+	}
+
+	private Dataset newDownstream(BufferPool bp, int partitionId) {
+		DataStore dataStore = new DataStore(s, DataStoreType.IN_MEMORY);
+		DataReference dataRef = DataReference.makeManagedAndPartitionedDataReference(dataStore, null, ServeMode.STORE, partitionId);
+		return new Dataset(dataRef, bp, null);
+	}
+
+	private List<Integer> keysIn(Dataset d) {
+		List<Integer> keys = new ArrayList<>();
+		byte[] data = null;
+		while((data = d.consumeData()) != null) {
+			keys.add(ByteBuffer.wrap(data).getInt());
+		}
+		return keys;
+	}
+
+	/**
+	 * Runs submitted actions on a thread of its own, like the task of an upstream
+	 */
+	private static class TaskThread implements ProcessingEngine {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		@Override
+		public void start() { }
+
+		@Override
+		public void stop() {
+			executor.shutdown();
+		}
+
+		@Override
+		public Future<?> submit(Runnable action) {
+			return executor.submit(action);
+		}
+	}
+
+	/**
+	 * Processes the tuples of its input once the test lets it, and runs submitted actions between them, like the
+	 * engine of a stateful operator. Counts the tuples whose key is not in its state when they are processed
+	 */
+	private static class Operator implements ProcessingEngine, Runnable {
+		final Queue<FutureTask<?>> actions = new ConcurrentLinkedQueue<>();
+		final CountDownLatch go = new CountDownLatch(1);
+		final LocalInputBuffer input;
+		final SeepMap<Integer, Integer> state;
+		final List<Integer> processed = new ArrayList<>();
+		int notOwned = 0;
+		volatile boolean working = true;
+		final Thread thread = new Thread(this);
+
+		Operator(LocalInputBuffer input, SeepMap<Integer, Integer> state) {
+			this.input = input;
+			this.state = state;
+		}
+
+		@Override
+		public void start() {
+			thread.start();
+		}
+
+		@Override
+		public void stop() {
+			working = false;
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public Future<?> submit(Runnable action) {
+			FutureTask<?> f = new FutureTask<>(action, null);
+			actions.add(f);
+			return f;
+		}
+
+		@Override
+		public void run() {
+			try {
+				go.await();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			while(working) {
+				FutureTask<?> f = null;
+				while((f = actions.poll()) != null) {
+					f.run();
+				}
+				byte[] data = input.read(10);
+				if(data != null) {
+					int key = ByteBuffer.wrap(data).getInt();
+					if(! state.containsKey(key)) {
+						notOwned++;
+					}
+					processed.add(key);
+				}
+			}
+		}
+	}
+
+	private Future<?> sendKeys(TaskThread upstreamTask, final Collector upstream, final int from, final int to) {
+		return upstreamTask.submit(new Runnable() {
+			@Override
+			public void run() {
+				for(int k = from; k < to; k++) {
+					upstream.sendKey(OTuple.create(s, new String[]{"key"}, new Object[]{k}), k);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testScaleOutMovesStateAndHeldTuples() throws Exception {
+		BufferPool bp = BufferPool.createBufferPool(buildWorkerConfig());
+		// The operator that scales out reads from the upstream through a channel that carries markers
+		DataReference drA = DataReference.makeManagedAndPartitionedDataReference(new DataStore(s, DataStoreType.IN_MEMORY),
+				null, ServeMode.STORE, 0);
+		final OutputBuffer a = new OutputBuffer(drA, 256);
+		final LocalChannel toOperator = new LocalChannel(a, 4096);
+		a.setEventAPI(toOperator);
+		LocalInputBuffer fromUpstream = LocalInputBuffer.makeOneFor(drA, toOperator);
+		Dataset b = newDownstream(bp, 1);
+		Map<Integer, OBuffer> oBuffers = new HashMap<>();
+		oBuffers.put(a.id(), a);
+		oBuffers.put(b.getDataReference().getId(), b);
+		Map<Integer, List<OBuffer>> streamIdToOBuffers = new HashMap<>();
+		streamIdToOBuffers.put(0, new ArrayList<>(oBuffers.values()));
+		Map<Integer, Set<DataReference>> output = new HashMap<>();
+		output.put(0, new HashSet<>());
+		output.get(0).add(drA);
+		output.get(0).add(b.getDataReference());
+		CoreOutput coreOutput = new CoreOutput(output, streamIdToOBuffers, oBuffers);
+		Collector upstream = new Collector(0, coreOutput);
+		TaskThread upstreamTask = new TaskThread();
+		// Room for 64 held tuples, then the upstream blocks until the scale out is over
+		upstream.handleScaleOutsOn(upstreamTask, 64 * s.sizeOfTuple());
+		final ConsistentHashingRoutingState router = (ConsistentHashingRoutingState) upstream.getRouter();
+
+		// The state of a holds the keys routed to it, of the tuples sent before and during the scale out
+		final int idA = a.id();
+		SeepMap<Integer, Integer> stateA = new SeepMap<>();
+		int keys = 10000;
+		for(int k = 0; k < 2 * keys; k++) {
+			if(router.route(k) == idA) {
+				stateA.put(k, k);
+			}
+		}
+		int entriesA = stateA.size();
+
+		// Tuples the operator has not processed yet when the scale out starts, some of keys that move
+		sendKeys(upstreamTask, upstream, 0, keys).get();
+
+		// The new downstream is connected before its keys move
+		Dataset c = newDownstream(bp, 2);
+		final int idC = c.getDataReference().getId();
+		coreOutput.addBuffer(0, c);
+
+		Operator operator = new Operator(fromUpstream, stateA);
+		operator.start();
+		final StatefulScaleOut<Integer, Integer> scaleOut = new StatefulScaleOut<>(Collections.singletonList(router), idA,
+				Collections.<BatchIBuffer>singletonList(fromUpstream), operator, stateA);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		final AtomicInteger moved = new AtomicInteger(-1);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				moved.set(scaleOut.scaleOut(idC, stream));
+			}
+		});
+		t.start();
+		while(! router.isHolding()) {
+			Thread.sleep(1);
+		}
+		// Tuples sent while the state is partitioned are held if their keys move
+		Future<?> whileHolding = sendKeys(upstreamTask, upstream, keys, 2 * keys);
+		operator.go.countDown();
+		t.join(TimeUnit.SECONDS.toMillis(30));
+		whileHolding.get(30, TimeUnit.SECONDS);
+		assertFalse(router.isHolding());
+		assertEquals(3, router.getOpIds().size());
+
+		// Held tuples were sent once the scale out was over, with no other tuple. The last batch of the operator is
+		// sent with a marker
+		upstreamTask.submit(new Runnable() {
+			@Override
+			public void run() {
+				a.writeMarker(null);
+				toOperator.readyForWrite(idA);
+			}
+		}).get();
+		assertTrue(fromUpstream.awaitMarkersRead(1, TimeUnit.SECONDS.toMillis(30)));
+		operator.stop();
+		upstreamTask.stop();
+
+		// The operator processed the tuples sent before the scale out before its state was partitioned
+		assertEquals(0, operator.notOwned);
+		List<Integer> toA = operator.processed;
+		List<Integer> toB = keysIn(b);
+		List<Integer> toC = keysIn(c);
+		assertEquals(2 * keys, toA.size() + toB.size() + toC.size());
+		assertTrue(toC.size() > 64);
+		for(int k : toA) {
+			if(k >= keys) {
+				assertEquals(idA, router.route(k));
+			}
+		}
+		// The tuples of each key keep their order
+		int previous = -1;
+		for(int k : toC) {
+			assertTrue(k >= keys && k > previous);
+			assertEquals(idC, router.route(k));
+			previous = k;
+		}
+
+		// Each operator owns the state of the keys it gets
+		SeepMap<Integer, Integer> stateC = new SeepMap<>();
+		assertEquals(moved.get(), StatefulScaleOut.receive(new ByteArrayInputStream(stream.toByteArray()), stateC));
+		assertEquals(entriesA, stateA.size() + stateC.size());
+		for(int k : stateA.keySet()) {
+			assertEquals(idA, router.route(k));
+		}
+		for(int k : stateC.keySet()) {
+			assertEquals(idC, router.route(k));
+		}
+	}
+
+	@Test
+	public void testKeysStayWhenTheEngineDoesNotRunActions() {
+		ConsistentHashingRoutingState router = new ConsistentHashingRoutingState(Arrays.asList(1, 2));
+		SeepMap<Integer, Integer> state = new SeepMap<>();
+		state.put(1, 1);
+		// The operator finished, so its engine rejects the partition of its state
+		TaskThread finished = new TaskThread();
+		finished.stop();
+		StatefulScaleOut<Integer, Integer> scaleOut = new StatefulScaleOut<>(Collections.singletonList(router), 1,
+				Collections.<BatchIBuffer>emptyList(), finished, state);
+		try {
+			scaleOut.scaleOut(3, new ByteArrayOutputStream());
+			fail();
+		}
+		catch(SeepException e) { }
+		assertFalse(router.isHolding());
+		assertEquals(Arrays.asList(1, 2), router.getOpIds());
+		assertEquals(1, state.size());
+	}
+
+}
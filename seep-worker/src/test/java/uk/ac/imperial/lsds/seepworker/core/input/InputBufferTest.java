@@ -1,5 +1,7 @@
 package uk.ac.imperial.lsds.seepworker.core.input;
 
+import static org.junit.Assert.*;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
@@ -11,7 +13,9 @@ import uk.ac.imperial.lsds.seep.api.data.ITuple;
 import uk.ac.imperial.lsds.seep.api.data.OTuple;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.data.Schema.SchemaBuilder;
+import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
 import uk.ac.imperial.lsds.seep.api.data.Type;
+import uk.ac.imperial.lsds.seep.api.data.ZCITuple;
 import uk.ac.imperial.lsds.seepworker.WorkerConfig;
 import uk.ac.imperial.lsds.seep.testutils.MockChannel;
 
@@ -88,10 +92,63 @@ public class InputBufferTest {
 		assert(true);
 	}
 	
+	@Test
+	public void testZeroCopyBatchesThroughChannel() {
+		InputBuffer ib = createInputBufferWith("4", 0);
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		int tuplesPerBatch = 5;
+		int numBatches = 12;
+		int tupleSize = s.sizeOfTuple();
+		int batchSize = TupleInfo.PER_BATCH_OVERHEAD_SIZE + tuplesPerBatch * (TupleInfo.TUPLE_SIZE_OVERHEAD + tupleSize);
+		
+		ByteBuffer b = ByteBuffer.allocate(numBatches * batchSize);
+		MockChannel channel = new MockChannel(b);
+		int value = 0;
+		for(int i = 0; i < numBatches; i++) {
+			ByteBuffer batch = ByteBuffer.allocate(batchSize);
+			batch.put((byte)0);
+			batch.putInt(tuplesPerBatch);
+			batch.putInt(batchSize - TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+			for(int j = 0; j < tuplesPerBatch; j++) {
+				batch.putInt(tupleSize);
+				batch.put(OTuple.create(s, new String[]{"a", "b"}, new Object[]{value, (long)value}));
+				value++;
+			}
+			batch.flip();
+			try {
+				channel.write(batch);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		channel.flip();
+		
+		NetworkDataStream nds = new NetworkDataStream(null, 0, ib, s);
+		int read = 0;
+		while(channel.hasRemaining() || read < value) {
+			// The queue holds 4 batches, consume as the network delivers
+			if(channel.hasRemaining()) {
+				assertEquals(tuplesPerBatch, ib.readFrom(channel));
+			}
+			ITuple t = null;
+			while((t = nds.pullDataItem(0)) != null) {
+				assertTrue(t instanceof ZCITuple);
+				assertEquals(read, t.getInt("a"));
+				assertEquals((long)read, t.getLong("b"));
+				assertEquals((long)read, t.get("b"));
+				read++;
+			}
+		}
+		assertEquals(numBatches * tuplesPerBatch, read);
+		assertNull(nds.pullDataItem(0));
+	}
+	
 	private InputBuffer createInputBufferWith(String queueLength, int tuples){
 		Properties p = new Properties();
 		p.setProperty(WorkerConfig.MASTER_IP, "");
 		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
 		p.setProperty(WorkerConfig.SIMPLE_INPUT_QUEUE_LENGTH, queueLength);
 		WorkerConfig wc = new WorkerConfig(p);
 		InputBuffer ib = InputBuffer.makeInputBufferFor(wc, null);
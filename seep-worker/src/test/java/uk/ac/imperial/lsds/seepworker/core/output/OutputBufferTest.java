@@ -4,12 +4,14 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Properties;
 
 import org.junit.Test;
 
 import uk.ac.imperial.lsds.seep.api.data.ITuple;
 import uk.ac.imperial.lsds.seep.api.data.OTuple;
+import uk.ac.imperial.lsds.seep.api.data.OTupleBuilder;
 import uk.ac.imperial.lsds.seep.api.data.Schema;
 import uk.ac.imperial.lsds.seep.api.data.TupleInfo;
 import uk.ac.imperial.lsds.seep.api.data.Type;
@@ -93,9 +95,214 @@ public class OutputBufferTest {
 		assert(true);
 	}
 
+	@Test
+	public void testRingBlocksOnlyWhenFull() throws InterruptedException {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		int tupleSize = s.sizeOfTuple();
+		// Every tuple completes a batch
+		final OutputBuffer ob = new OutputBuffer(null, 16, 3, null);
+		assertEquals(3, ob.getRingDepth());
+		assertFalse(ob.readyToWrite());
+		
+		OTuple o = new OTuple(s);
+		for(int i = 0; i < 3; i++) {
+			o.setValues(new Object[]{i, (long)i});
+			assertTrue(ob.write(o, null));
+		}
+		assertTrue(ob.readyToWrite());
+		assertEquals(3, ob.getNumCompletedBatches());
+		assertEquals(0, ob.getNumStalls());
+		
+		// The ring is full, the next write waits for the network
+		final byte[] last = OTuple.create(s, new String[]{"a", "b"}, new Object[]{3, 3L});
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				ob.write(last, null);
+			}
+		});
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());
+		
+		int batchSize = TupleInfo.PER_BATCH_OVERHEAD_SIZE + TupleInfo.TUPLE_SIZE_OVERHEAD + tupleSize;
+		MockChannel channel = new MockChannel(ByteBuffer.allocate(batchSize * 4));
+		assertTrue(ob.drainTo(channel));
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertEquals(1, ob.getNumStalls());
+		for(int i = 0; i < 3; i++) {
+			assertTrue(ob.drainTo(channel));
+		}
+		assertFalse(ob.readyToWrite());
+		assertFalse(ob.drainTo(channel));
+		
+		channel.flip();
+		ByteBuffer read = ByteBuffer.allocate(batchSize);
+		for(int i = 0; i < 4; i++) {
+			read.clear();
+			try {
+				channel.read(read);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			read.flip();
+			assertEquals(1, read.getInt(TupleInfo.NUM_TUPLES_BATCH_OFFSET));
+			assertEquals(TupleInfo.TUPLE_SIZE_OVERHEAD + tupleSize, read.getInt(TupleInfo.BATCH_SIZE_OFFSET));
+			read.position(TupleInfo.PER_BATCH_OVERHEAD_SIZE);
+			assertEquals(tupleSize, read.getInt());
+			assertEquals(i, read.getInt());
+			assertEquals((long)i, read.getLong());
+		}
+	}
+	
+	/**
+	 * Accepts up to a number of bytes per write, and counts the writes
+	 */
+	class CountingChannel implements GatheringByteChannel {
+		ByteBuffer bb;
+		int maxBytesPerWrite;
+		int writes = 0;
+		CountingChannel(int capacity, int maxBytesPerWrite) {
+			this.bb = ByteBuffer.allocate(capacity);
+			this.maxBytesPerWrite = maxBytesPerWrite;
+		}
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			writes++;
+			long written = 0;
+			for(int i = offset; i < offset + length; i++) {
+				while(srcs[i].hasRemaining() && written < maxBytesPerWrite) {
+					bb.put(srcs[i].get());
+					written++;
+				}
+			}
+			return written;
+		}
+		@Override
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+		@Override
+		public int write(ByteBuffer src) {
+			return (int) write(new ByteBuffer[]{src});
+		}
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		@Override
+		public void close() { }
+	}
+	
+	@Test
+	public void testGatheringDrain() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		int batchSize = TupleInfo.PER_BATCH_OVERHEAD_SIZE + TupleInfo.TUPLE_SIZE_OVERHEAD + s.sizeOfTuple();
+		OutputBuffer ob = new OutputBuffer(null, 16, 4, null);
+		OTuple o = new OTuple(s);
+		for(int i = 0; i < 4; i++) {
+			o.setValues(new Object[]{i, (long)i});
+			ob.write(o, null);
+		}
+		assertTrue(ob.isFull());
+		assertEquals(4 * batchSize, ob.bytesReadyToWrite());
+		assertTrue(ob.oldestReadyToWriteTime() > 0);
+		
+		// Budget of 2 batches per write
+		CountingChannel channel = new CountingChannel(batchSize * 8, Integer.MAX_VALUE);
+		assertEquals(2, ob.drainTo(channel, 2 * batchSize + 1, Integer.MAX_VALUE));
+		assertEquals(1, channel.writes);
+		assertEquals(2, ob.getNumCompletedBatches());
+		assertFalse(ob.isFull());
+		
+		// The channel takes a batch and a half, the rest is written in the next call
+		channel.maxBytesPerWrite = batchSize + batchSize / 2;
+		assertEquals(1, ob.drainTo(channel, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		assertEquals(1, ob.getNumCompletedBatches());
+		assertEquals(1, ob.drainTo(channel, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		assertEquals(3, channel.writes);
+		assertEquals(0, ob.bytesReadyToWrite());
+		assertEquals(-1, ob.oldestReadyToWriteTime());
+		assertEquals(0, ob.drainTo(channel, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		
+		channel.bb.flip();
+		for(int i = 0; i < 4; i++) {
+			channel.bb.position(i * batchSize + TupleInfo.PER_BATCH_OVERHEAD_SIZE + TupleInfo.TUPLE_SIZE_OVERHEAD);
+			assertEquals(i, channel.bb.getInt());
+			assertEquals((long)i, channel.bb.getLong());
+		}
+	}
+	
 	private OBuffer createOutputBufferWith(int batchSize){
 		OutputBuffer ob = new OutputBuffer(null, batchSize);
 		return ob;
 	}
 	
+	@Test
+	public void testTuplesBuiltInPlace() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		OutputBuffer boxed = new OutputBuffer(null, 64, 8, null);
+		OutputBuffer inPlace = new OutputBuffer(null, 64, 8, null);
+		OTuple o = new OTuple(s);
+		OTupleBuilder b = new OTupleBuilder(s);
+		int completed = 0;
+		for(int i = 0; i < 20; i++) {
+			o.setValues(new Object[]{i, (long)i * 3});
+			boolean boxedCompleted = boxed.write(o, null);
+			b.start(inPlace.beginTuple(b.minimumSize())).setLong(1, (long)i * 3).setInt(0, i);
+			assertTrue(b.isInPlace());
+			assertEquals(boxedCompleted, inPlace.endTuple(b.finish(), null));
+			completed = boxedCompleted ? completed + 1 : completed;
+		}
+		assertTrue(completed > 1);
+		CountingChannel expected = new CountingChannel(4096, 4096);
+		CountingChannel actual = new CountingChannel(4096, 4096);
+		while(boxed.drainTo(expected));
+		while(inPlace.drainTo(actual));
+		ByteBuffer e = expected.bb;
+		ByteBuffer a = actual.bb;
+		e.flip();
+		a.flip();
+		assertTrue(e.hasRemaining());
+		assertEquals(e, a);
+	}
+	
+	@Test
+	public void testMarkersFollowTheTuplesWrittenBefore() {
+		Schema s = SchemaBuilder.getInstance().newField(Type.INT, "a").newField(Type.LONG, "b").build();
+		OutputBuffer ob = new OutputBuffer(null, 1024, 4, null);
+		OTuple o = new OTuple(s);
+		for(int i = 0; i < 3; i++) {
+			o.setValues(new Object[]{i, (long)i});
+			ob.write(o, null);
+		}
+		// The partial batch is completed before the marker
+		assertTrue(ob.writeMarker(null));
+		assertEquals(2, ob.getNumCompletedBatches());
+		o.setValues(new Object[]{3, 3L});
+		ob.write(o, null);
+		MockChannel channel = new MockChannel(ByteBuffer.allocate(4096));
+		while(ob.drainTo(channel));
+		assertTrue(ob.writeMarker(null));
+		while(ob.drainTo(channel));
+		channel.flip();
+		
+		Properties p = new Properties();
+		p.setProperty(WorkerConfig.MASTER_IP, "");
+		p.setProperty(WorkerConfig.PROPERTIES_FILE, "");
+		p.setProperty(WorkerConfig.WORKER_IP, "");
+		InputBuffer ib = InputBuffer.makeInputBufferFor(new WorkerConfig(p), null);
+		while(channel.hasRemaining()) {
+			ib.readFrom(channel);
+		}
+		for(int i = 0; i < 3; i++) {
+			assertEquals(i, ByteBuffer.wrap(ib.read(0)).getInt());
+		}
+		assertEquals(0, ib.markersRead());
+		assertEquals(3, ByteBuffer.wrap(ib.read(0)).getInt());
+		assertEquals(1, ib.markersRead());
+		assertNull(ib.read(0));
+		assertEquals(2, ib.markersRead());
+	}
+	
 }
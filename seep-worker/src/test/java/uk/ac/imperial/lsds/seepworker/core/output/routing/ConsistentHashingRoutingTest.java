@@ -1,5 +1,7 @@
 package uk.ac.imperial.lsds.seepworker.core.output.routing;
 
+import static org.junit.Assert.*;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -8,6 +10,10 @@ import java.util.Map.Entry;
 
 import org.junit.Test;
 
+import uk.ac.imperial.lsds.seep.api.state.KeyHashSpace;
+import uk.ac.imperial.lsds.seep.api.state.SeepState;
+import uk.ac.imperial.lsds.seep.api.state.stateimpl.SeepMap;
+
 public class ConsistentHashingRoutingTest {
 	
 	@Test
@@ -53,6 +59,66 @@ public class ConsistentHashingRoutingTest {
 		assert(true);
 	}
 	
+	@Test
+	public void testStatePartitionsMatchRoutes() {
+		List<Integer> opIds = new ArrayList<>();
+		for(int i = 0; i < 4; i++){
+			opIds.add(10 + i);
+		}
+		Router r = RouterFactory.buildRouterFor(opIds, true);
+		SeepMap<Integer, Integer> state = new SeepMap<>();
+		for(int key = 0; key < 10000; key++){
+			state.put(key, key);
+		}
+		List<SeepState> partitions = state.partition(opIds.size());
+		int total = 0;
+		for(int i = 0; i < partitions.size(); i++){
+			@SuppressWarnings("unchecked")
+			SeepMap<Integer, Integer> partition = (SeepMap<Integer, Integer>) partitions.get(i);
+			// Keys are spread over all downstreams, not only the low byte of them
+			assertTrue(partition.size() > 2000);
+			for(Integer key : partition.keySet()){
+				assertEquals(opIds.get(i).intValue(), r.route(key));
+			}
+			total = total + partition.size();
+		}
+		assertEquals(10000, total);
+	}
+	
+	@Test
+	public void testHoldOnlyTheKeysThatMove() {
+		List<Integer> opIds = new ArrayList<>();
+		opIds.add(1);
+		opIds.add(2);
+		ConsistentHashingRoutingState r = new ConsistentHashingRoutingState(opIds);
+		int[] before = new int[10000];
+		for(int key = 0; key < before.length; key++){
+			before[key] = r.route(key);
+		}
+		r.hold(2);
+		for(int key = 0; key < before.length; key++){
+			int id = r.route(key);
+			// Keys of other downstreams are not held
+			assertTrue(id == before[key] || (id == ConsistentHashingRoutingState.HELD && before[key] == 2));
+		}
+		// Released keys go back to where they were
+		r.release();
+		for(int key = 0; key < before.length; key++){
+			assertEquals(before[key], r.route(key));
+		}
+		r.hold(2);
+		r.scaleOut(3);
+		int moved = 0;
+		for(int key = 0; key < before.length; key++){
+			int id = r.route(key);
+			assertTrue(id == before[key] || (id == 3 && before[key] == 2));
+			if(id == 3){
+				moved++;
+			}
+		}
+		assertTrue(moved > 2000);
+	}
+	
 	private void routeTo(Map<Integer, Integer> distribution, int opId, int key){
 		int newValue = 1;
 		if(distribution.containsKey(opId)){